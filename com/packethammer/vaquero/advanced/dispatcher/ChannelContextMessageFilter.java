@@ -0,0 +1,117 @@
+/**
+ * This filter rewrites PRIVMSGs and NOTICEs to a single nickname into ircu's
+ * CPRIVMSG and CNOTICE whenever the advanced tracker shows that we are an
+ * operator or have voice in a channel the target is also in. It is meant to
+ * be used in the pre-release filtering, so that the decision is made with
+ * the channel state at the moment the command is actually sent.
+ *
+ * On ircu networks, messaging many different people in a short time runs
+ * into the target change limit, and the server answers "target change too
+ * fast" and throws the message away, which stalls anything that messages
+ * users one at a time. Channel context messages are not subject to that
+ * limit, so with this filter in place such messaging can go out as fast as
+ * the timing scheme allows.
+ *
+ * Nothing is rewritten unless the server advertises CPRIVMSG (or CNOTICE),
+ * and messages to several nicknames at once are left alone, since the
+ * channel context commands only take one.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher;
+
+import com.packethammer.vaquero.advanced.tracker.ChannelView;
+import com.packethammer.vaquero.advanced.tracker.MemberView;
+import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.UserView;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCMessageNickCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCNoticeNickCommand;
+import com.packethammer.vaquero.outbound.commands.basic.MultitargetMessage;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.ChannelContextMessage;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCCNoticeCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCCPrivmsgCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.parser.tracking.IRCServerISupport;
+import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+
+public class ChannelContextMessageFilter implements CommandFilterI {
+    private Tracker tracker;
+    
+    /**
+     * Initializes the filter with the advanced tracker to look up shared
+     * channels in.
+     *
+     * @param tracker The advanced tracker to use.
+     */
+    public ChannelContextMessageFilter(Tracker tracker) {
+        this.tracker = tracker;
+    }
+    
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        IRCCommand cmd = command.getCommand();
+        IRCServerISupport isupport = tracker.getParser().getServerContext().getISupport();
+        
+        boolean privmsg = cmd instanceof IRCMessageNickCommand && isupport.isCPrivmsgSupported();
+        boolean notice = cmd instanceof IRCNoticeNickCommand && isupport.isCNoticeSupported();
+        if(!privmsg && !notice)
+            return;
+        
+        MultitargetMessage message = (MultitargetMessage) cmd;
+        if(message.getTargets().size() != 1 || message.getMessage() == null)
+            return;
+        
+        String nickname = message.getTargets().get(0);
+        String channel = findSharedChannel(nickname);
+        if(channel == null)
+            return;
+        
+        ChannelContextMessage rewritten;
+        if(privmsg)
+            rewritten = new IRCCPrivmsgCommand(nickname, channel, message.getMessage());
+        else
+            rewritten = new IRCCNoticeCommand(nickname, channel, message.getMessage());
+        
+        // the channel name makes our line longer; don't let that push it over the limit
+        if(rewritten.renderForIRC().lengthIsRFCCompliant())
+            command.setCommand(rewritten);
+    }
+    
+    /**
+     * Finds a channel that a user is in, and in which we are an operator
+     * or have voice.
+     *
+     * @param nickname The user's nickname.
+     * @return The name of the channel, or null if there is no such channel.
+     */
+    private String findSharedChannel(final String nickname) {
+        IRCServerContext context = tracker.getParser().getServerContext();
+        if(context.getMe() == null || context.getMe().getNickname() == null || context.isMe(nickname))
+            return null;
+        
+        // the tracker is changed by the parser's thread, so read what it last published
+        UserView me = tracker.getUserView(context.getMe().getNickname());
+        if(me == null)
+            return null; // we're not in any channels
+        
+        for(String name : me.getChannels()) {
+            ChannelView channel = tracker.getChannelView(name);
+            if(channel == null)
+                continue; // we've left it since
+            
+            MemberView us = channel.getMember(me.getNickname());
+            if(us != null && isOppedOrVoiced(us) && channel.getMember(nickname) != null)
+                return channel.getName();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Determines if the tracker shows us as an operator or voiced in a channel.
+     */
+    private static boolean isOppedOrVoiced(MemberView member) {
+        return member.hasPrefixMode(ChannelMode.MODE_OP) || member.hasPrefixMode(ChannelMode.MODE_VOICE);
+    }
+}
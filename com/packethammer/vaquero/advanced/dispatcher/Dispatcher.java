@@ -7,6 +7,18 @@
 
 package com.packethammer.vaquero.advanced.dispatcher;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CancellationException;
+import com.packethammer.vaquero.advanced.dispatcher.querying.AbstractCommandQueryListener;
+import com.packethammer.vaquero.advanced.dispatcher.querying.AbstractQueryProcessor;
+import com.packethammer.vaquero.advanced.dispatcher.querying.ChannelListConsumer;
+import com.packethammer.vaquero.advanced.dispatcher.querying.ChannelListFilter;
+import com.packethammer.vaquero.advanced.dispatcher.querying.ChannelListQueryListener;
+import com.packethammer.vaquero.advanced.dispatcher.querying.PipelinedQueryProcessor;
+import com.packethammer.vaquero.advanced.dispatcher.querying.QueryListener;
+import com.packethammer.vaquero.advanced.dispatcher.querying.QueryResultCache;
+import com.packethammer.vaquero.advanced.dispatcher.querying.WhoBatcher;
 import com.packethammer.vaquero.advanced.dispatcher.querying.WhoQueryListener;
 import com.packethammer.vaquero.advanced.dispatcher.querying.WhoReplyQueryProcessor;
 import com.packethammer.vaquero.advanced.dispatcher.querying.WhoXQueryListener;
@@ -15,17 +27,28 @@ import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.basic.IRCRawCommand;
 import com.packethammer.vaquero.outbound.commands.basic.IRCWhoCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCListCommand;
 import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCWhoXCommand;
 import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
 import com.packethammer.vaquero.outbound.outboundprocessing.TimingScheme;
 import com.packethammer.vaquero.parser.IRCParser;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfWhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoXReply;
+import com.packethammer.vaquero.util.timing.WheelTimer;
 
 public class Dispatcher extends CommandManager {
     private IRCParser parser;
     private boolean queryingEnabled;
     private boolean rawCommandSendingEnabled;
+    private boolean queryDeduplicationEnabled;
     
     private WhoReplyQueryProcessor whoProcessor;
+    private PipelinedQueryProcessor queryProcessor;
+    private WhoBatcher whoBatcher;
+    private QueryResultCache queryCache;
+    private QueryDeduplicationOptimizer deduplicationOptimizer;
 
     /** 
      * Initializes the command manager with a timing scheme to use for command
@@ -39,8 +62,14 @@ public class Dispatcher extends CommandManager {
         super(scheme, rawLineSender);
         this.parser = parser;
         this.whoProcessor = new WhoReplyQueryProcessor(parser);
+        this.queryProcessor = new PipelinedQueryProcessor(parser);
+        this.deduplicationOptimizer = new QueryDeduplicationOptimizer(parser.getServerContext());
+        this.addPreReleaseFilter(whoProcessor); // tags each WHOX as it goes out
+        this.whoBatcher = new WhoBatcher(this);
+        this.queryCache = new QueryResultCache(this);
         this.setQueryingEnabled(true);
         this.setRawCommandSendingEnabled(true);
+        this.setQueryDeduplicationEnabled(true);
     }
 
     public IRCParser getParser() {
@@ -48,11 +77,13 @@ public class Dispatcher extends CommandManager {
     }
     
     /**
-     * Sends an IRC command using the outbound system.
+     * Sends an IRC command using the outbound system, discarding it if it 
+     * has not left the wait queue by the given deadline.
      *
      * @param command The IRCCommand to send.
+     * @param deadline The time after which the command is no longer worth sending, or null to use the default for its type.
      */
-    public void sendCommand(IRCCommand command) {
+    public void sendCommand(IRCCommand command, Date deadline) {
         if(!this.isRawCommandSendingEnabled()) {
             if(command instanceof IRCRawCommand) {
                 throw new IllegalStateException("You cannot send an IRCRawCommand when raw command sending is disabled!");
@@ -60,50 +91,343 @@ public class Dispatcher extends CommandManager {
         }
         
         // force it through as a query so that the applicable query system won't get desynchronized if we need to
-        if(command instanceof IRCWhoCommand) {
-            this.performWhoQuery((IRCWhoCommand) command, new WhoQueryListener() {});
-        } else if(command instanceof IRCWhoXCommand) {
-            this.performWhoXQuery((IRCWhoXCommand) command, new WhoXQueryListener() {});
+        // (with querying disabled there is nothing to desynchronize, and the query methods would refuse it)
+        if(command instanceof IRCWhoCommand && this.isQueryingEnabled()) {
+            this.performWhoQuery((IRCWhoCommand) command, new WhoQueryListener() {}, deadline);
+        } else if(command instanceof IRCWhoXCommand && this.isQueryingEnabled()) {
+            this.performWhoXQuery((IRCWhoXCommand) command, new WhoXQueryListener() {}, deadline);
         } else {
             // send regularly
-            this.sendEncapsulatedCommand(new EncapsulatedIRCCommand(command));
+            EncapsulatedIRCCommand ec = new EncapsulatedIRCCommand(command);
+            ec.setDeadline(deadline);
+            this.sendEncapsulatedCommand(ec);
         }
     }
     
     /**
      * Performs a regular WHO query and notifies the given listener of the
-     * results.
+     * results. If query deduplication is enabled and an identical WHO is still
+     * waiting to be sent, the listener is attached to that one instead.
      *
      * @param command The WHO command to use.
      * @param listener The query listener to use.
      * @throws IllegalStateException If querying is disabled.
      */
     public void performWhoQuery(IRCWhoCommand command, WhoQueryListener listener) {
+        this.performWhoQuery(command, listener, null);
+    }
+    
+    /**
+     * Performs a regular WHO query and notifies the given listener of the
+     * results, cancelling the query if it has not been sent by the deadline.
+     *
+     * @param command The WHO command to use.
+     * @param listener The query listener to use.
+     * @param deadline The time after which the query is no longer worth sending, or null to use the default for its type.
+     * @throws IllegalStateException If querying is disabled.
+     * @see #performWhoQuery(IRCWhoCommand, WhoQueryListener)
+     */
+    public void performWhoQuery(IRCWhoCommand command, WhoQueryListener listener, Date deadline) {
         checkQuerying();
+        if(this.isQueryDeduplicationEnabled() && this.whoProcessor.attachToWaitingQuery(command, listener))
+            return; // an identical query is already waiting to go out, and it will share its replies
+        
         EncapsulatedIRCCommand ec = new EncapsulatedIRCCommand(command);
+        ec.setDeadline(deadline);
         this.whoProcessor.addQueryingCommand(ec, listener);
         this.sendEncapsulatedCommand(ec);
     }
     
     /**
      * Performs an (ircu-specific) WHOX query and notifies the given listener 
-     * of the results.
+     * of the results. If query deduplication is enabled and an identical WHOX
+     * is still waiting to be sent, the listener is attached to that one instead.
      *
-     * DO NOT USE THIS ON NETWORKS THAT DO NOT SUPPORT WHOX. IT MAY DESYNCHRONIZE 
-     * THE WHO QUERY SYSTEM SO THAT YOU CAN NO LONGER USE IT FOR THIS IRC
-     * SESSION.
+     * Each WHOX is sent with a query tag of its own (replacing any the
+     * command's options had), and its replies are matched to it by that tag,
+     * so any number of WHOX queries may be in flight at once. The command's
+     * options are copied before the tag is set, so they may be shared.
+     *
+     * Do not use this on networks that do not support WHOX; the query will
+     * never see any replies, although it won't disturb any other query.
      *
      * @param command The WHOX command to use.
      * @param listener The query listener to use.
      * @throws IllegalStateException If querying is disabled.
      */
     public void performWhoXQuery(IRCWhoXCommand command, WhoXQueryListener listener) {
+        this.performWhoXQuery(command, listener, null);
+    }
+    
+    /**
+     * Performs an (ircu-specific) WHOX query and notifies the given listener 
+     * of the results, cancelling the query if it has not been sent by the 
+     * deadline.
+     *
+     * @param command The WHOX command to use.
+     * @param listener The query listener to use.
+     * @param deadline The time after which the query is no longer worth sending, or null to use the default for its type.
+     * @throws IllegalStateException If querying is disabled.
+     * @see #performWhoXQuery(IRCWhoXCommand, WhoXQueryListener)
+     */
+    public void performWhoXQuery(IRCWhoXCommand command, WhoXQueryListener listener, Date deadline) {
         checkQuerying();
+        if(this.isQueryDeduplicationEnabled() && this.whoProcessor.attachToWaitingQuery(command, listener))
+            return; // an identical query is already waiting to go out, and it will share its replies
+        
         EncapsulatedIRCCommand ec = new EncapsulatedIRCCommand(command);
+        ec.setDeadline(deadline);
         this.whoProcessor.addQueryingCommand(ec, listener);
         this.sendEncapsulatedCommand(ec);
     }
     
+    /**
+     * Performs a query of one of the types handled by the pipelined query
+     * processor (WHOIS, NAMES, ban/exception/invite-exception lists, LIST, 
+     * USERHOST or TOPIC) and notifies the given listener of the results. Any
+     * number of these can be in flight at once. If query deduplication is
+     * enabled and an identical query is still waiting to be sent, the
+     * listener is attached to that one instead.
+     *
+     * @param command The query command to use, such as an IRCWhoisCommand.
+     * @param listener The query listener to use.
+     * @throws IllegalStateException If querying is disabled.
+     * @throws IllegalArgumentException If the command is not a type of query the processor handles.
+     * @see PipelinedQueryProcessor
+     */
+    public void performQuery(IRCCommand command, QueryListener listener) {
+        this.performQuery(command, listener, null);
+    }
+    
+    /**
+     * Performs a query and notifies the given listener of the results,
+     * cancelling the query if it has not been sent by the deadline.
+     *
+     * @param command The query command to use.
+     * @param listener The query listener to use.
+     * @param deadline The time after which the query is no longer worth sending, or null to use the default for its type.
+     * @throws IllegalStateException If querying is disabled.
+     * @throws IllegalArgumentException If the command is not a type of query the processor handles.
+     * @see #performQuery(IRCCommand, QueryListener)
+     */
+    public void performQuery(IRCCommand command, QueryListener listener, Date deadline) {
+        this.performQuery(command, listener, deadline, this.queryProcessor.getDefaultTimeout());
+    }
+    
+    /**
+     * Performs a query and notifies the given listener of the results,
+     * cancelling the query if it has not been sent by the deadline, and 
+     * giving up on it if the server has not finished answering within the
+     * timeout after it was sent.
+     *
+     * @param command The query command to use.
+     * @param listener The query listener to use.
+     * @param deadline The time after which the query is no longer worth sending, or null to use the default for its type.
+     * @param timeout The number of milliseconds the server has to answer once the query is sent, or 0 to wait forever.
+     * @throws IllegalStateException If querying is disabled.
+     * @throws IllegalArgumentException If the command is not a type of query the processor handles.
+     * @see #performQuery(IRCCommand, QueryListener)
+     */
+    public void performQuery(IRCCommand command, QueryListener listener, Date deadline, long timeout) {
+        checkQuerying();
+        if(this.queryProcessor.getQueryType(command) == null)
+            throw new IllegalArgumentException("The command is not a type of query the dispatcher can handle.");
+        if(this.isQueryDeduplicationEnabled() && this.queryProcessor.attachToWaitingQuery(command, listener))
+            return; // an identical query is already waiting to go out, and it will share its replies
+        
+        EncapsulatedIRCCommand ec = new EncapsulatedIRCCommand(command);
+        ec.setDeadline(deadline);
+        this.queryProcessor.addQueryingCommand(ec, listener, timeout);
+        this.sendEncapsulatedCommand(ec);
+    }
+    
+    /**
+     * Performs a regular WHO query, returning a future that completes with 
+     * every reply and the end of the listing. 
+     *
+     * @param command The WHO command to use.
+     * @param timeout The number of milliseconds to wait for the query to finish, counted from now, or 0 to wait forever.
+     * @return The future result of the query.
+     * @throws IllegalStateException If querying is disabled.
+     */
+    public QueryFuture<QueryResult<WhoReply>> submitWhoQuery(IRCWhoCommand command, long timeout) {
+        final QueryFuture<QueryResult<WhoReply>> future = new QueryFuture();
+        WhoQueryListener listener = new WhoQueryListener() {
+            public void onFinished(EndOfWhoReply end) {
+                future.complete(new QueryResult<WhoReply>(getReplies(), new ArrayList(), end));
+            }
+            
+            public void onCancel() {
+                future.fail(new CancellationException("The query was dropped before it was sent"));
+            }
+        };
+        
+        future.setAbandonTask(createAbandonTask(whoProcessor, listener));
+        this.performWhoQuery(command, listener);
+        scheduleTimeout(future, timeout);
+        return future;
+    }
+    
+    /**
+     * Performs a WHOX query, returning a future that completes with every
+     * reply (with its search options already set) and the end of the 
+     * listing.
+     *
+     * @param command The WHOX command to use.
+     * @param timeout The number of milliseconds to wait for the query to finish, counted from now, or 0 to wait forever.
+     * @return The future result of the query.
+     * @throws IllegalStateException If querying is disabled.
+     * @see #performWhoXQuery(IRCWhoXCommand, WhoXQueryListener)
+     */
+    public QueryFuture<QueryResult<WhoXReply>> submitWhoXQuery(IRCWhoXCommand command, long timeout) {
+        final QueryFuture<QueryResult<WhoXReply>> future = new QueryFuture();
+        WhoXQueryListener listener = new WhoXQueryListener() {
+            public void onFinished(EndOfWhoReply end) {
+                future.complete(new QueryResult<WhoXReply>(getReplies(), new ArrayList(), end));
+            }
+            
+            public void onCancel() {
+                future.fail(new CancellationException("The query was dropped before it was sent"));
+            }
+        };
+        
+        future.setAbandonTask(createAbandonTask(whoProcessor, listener));
+        this.performWhoXQuery(command, listener);
+        scheduleTimeout(future, timeout);
+        return future;
+    }
+    
+    /**
+     * Performs a query of one of the types handled by the pipelined query
+     * processor, returning a future that completes with every reply, any 
+     * errors, and the numeric that ended the query.
+     *
+     * @param command The query command to use, such as an IRCWhoisCommand.
+     * @param timeout The number of milliseconds to wait for the query to finish, counted from now, or 0 to use the processor's default timeout (counted from when the query is sent).
+     * @return The future result of the query.
+     * @throws IllegalStateException If querying is disabled.
+     * @throws IllegalArgumentException If the command is not a type of query the processor handles.
+     * @see #performQuery(IRCCommand, QueryListener)
+     */
+    public QueryFuture<QueryResult<IRCNumericEvent>> submitQuery(IRCCommand command, long timeout) {
+        final QueryFuture<QueryResult<IRCNumericEvent>> future = new QueryFuture();
+        QueryListener listener = new QueryListener() {
+            public void onFinished(IRCNumericEvent end) {
+                future.complete(new QueryResult<IRCNumericEvent>(getReplies(), getErrors(), end));
+            }
+            
+            public void onTimeout() {
+                future.timeOut();
+            }
+            
+            public void onCancel() {
+                future.fail(new CancellationException("The query was dropped before it was sent"));
+            }
+        };
+        
+        future.setAbandonTask(createAbandonTask(queryProcessor, listener));
+        this.performQuery(command, listener, null, timeout > 0 ? timeout : this.queryProcessor.getDefaultTimeout());
+        scheduleTimeout(future, timeout);
+        return future;
+    }
+    
+    /**
+     * Lists the network's channels, streaming each one that passes the filter
+     * to the consumer as it arrives rather than collecting the listing. The
+     * filter's conditions are sent along in the LIST command as far as the
+     * server supports them (see IRCServerISupport.getListExtensions()), and
+     * checked again as each channel arrives. The listing is never timed out,
+     * since a large network can take minutes to send it all.
+     *
+     * Note that on servers without SAFELIST (see IRCServerISupport.isSafeListSupported()),
+     * the server may send the listing faster than we can take it, and an
+     * unfiltered listing of a large network can get us disconnected.
+     *
+     * @param filter The filter channels must pass.
+     * @param consumer The consumer to stream channels to. Wrap it in a ChannelListIndexWriter to save the listing to disk as well.
+     * @return The query listener, which can be given to the query processor's detachListener() to stop the listing.
+     * @throws IllegalStateException If querying is disabled.
+     */
+    public ChannelListQueryListener listChannels(ChannelListFilter filter, ChannelListConsumer consumer) {
+        return this.listChannels(filter, consumer, 0);
+    }
+    
+    /**
+     * Lists the network's channels, giving up if the server has not finished
+     * within the timeout after the LIST was sent.
+     *
+     * @param filter The filter channels must pass.
+     * @param consumer The consumer to stream channels to.
+     * @param timeout The number of milliseconds the server has to finish the listing once it is sent, or 0 to wait forever.
+     * @return The query listener, which can be given to the query processor's detachListener() to stop the listing.
+     * @throws IllegalStateException If querying is disabled.
+     * @see #listChannels(ChannelListFilter, ChannelListConsumer)
+     */
+    public ChannelListQueryListener listChannels(ChannelListFilter filter, ChannelListConsumer consumer, long timeout) {
+        filter.setCasemappingDefinition(parser.getServerContext().getISupport().getCasemappingDefinition());
+        IRCListCommand command = filter.createCommand(parser.getServerContext().getISupport());
+        
+        ChannelListQueryListener listener = new ChannelListQueryListener(filter, consumer);
+        this.performQuery(command, listener, null, timeout);
+        return listener;
+    }
+    
+    /**
+     * Makes a task that detaches a listener from its query and, if nobody
+     * else is waiting on the query and it hasn't been sent, takes it out of
+     * the wait queue.
+     */
+    private Runnable createAbandonTask(final AbstractQueryProcessor processor, final AbstractCommandQueryListener listener) {
+        return new Runnable() {
+            public void run() {
+                EncapsulatedIRCCommand unsent = processor.detachListener(listener);
+                if(unsent != null)
+                    getWaitQueue().withdraw(unsent);
+            }
+        };
+    }
+    
+    /**
+     * Times a future out after the given number of milliseconds, if it 
+     * isn't done by then.
+     */
+    private static void scheduleTimeout(final QueryFuture future, long timeout) {
+        if(timeout <= 0 || future.isDone())
+            return;
+        
+        future.setPendingTimeout(WheelTimer.getSharedTimer().schedule(new Runnable() {
+            public void run() {
+                future.timeOut();
+            }
+        }, timeout));
+    }
+    
+    /**
+     * Returns the processor that handles queries other than WHO and WHOX.
+     * Use it to register your own query types or change the default timeout.
+     */
+    public PipelinedQueryProcessor getQueryProcessor() {
+        return queryProcessor;
+    }
+    
+    /**
+     * Returns the batcher that gathers WHO lookups of single nicknames into
+     * multi-target queries. Its queries go through this dispatcher like any
+     * other WHO or WHOX query.
+     */
+    public WhoBatcher getWhoBatcher() {
+        return whoBatcher;
+    }
+    
+    /**
+     * Returns the cache that answers lookups of user information (hostmask,
+     * account, realname, idle time and so on) from earlier query results
+     * where it can, and sends a query through this dispatcher where it can't.
+     */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+    
     /*
      * Throws an exception if we aren't allowed to perform queries.
      */
@@ -167,4 +491,29 @@ public class Dispatcher extends CommandManager {
     public void setRawCommandSendingEnabled(boolean rawCommandSendingEnabled) {
         this.rawCommandSendingEnabled = rawCommandSendingEnabled;
     }
+
+    /**
+     * Determines if identical queries waiting to be sent are deduplicated.
+     */
+    public boolean isQueryDeduplicationEnabled() {
+        return queryDeduplicationEnabled;
+    }
+
+    /**
+     * Allows you to turn query deduplication on or off. When it is on, a WHO
+     * or WHOX query that is identical to one still waiting to be sent shares
+     * that query's replies instead of being sent itself, and NAMES, TOPIC
+     * and channel mode (or mode list) requests that are identical to one
+     * still in the wait queue are dropped. This is on by default.
+     *
+     * @param queryDeduplicationEnabled Set to true to deduplicate queries, false otherwise.
+     * @see QueryDeduplicationOptimizer
+     */
+    public void setQueryDeduplicationEnabled(boolean queryDeduplicationEnabled) {
+        this.queryDeduplicationEnabled = queryDeduplicationEnabled;
+        
+        this.getWaitQueue().removeCommandOptimizer(deduplicationOptimizer);
+        if(queryDeduplicationEnabled)
+            this.getWaitQueue().addCommandOptimizer(deduplicationOptimizer);
+    }
 }
@@ -13,14 +13,15 @@
 package com.packethammer.vaquero.advanced.dispatcher;
 
 import com.packethammer.vaquero.advanced.tracker.NicknameHistory;
-import com.packethammer.vaquero.advanced.tracker.TrackedUser;
 import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.UserView;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
 import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
 import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
 import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 // Yes, this is a hacky way to do this, but it's the only way to avoid writing
@@ -44,18 +45,19 @@ public class NicknameTargetFilter implements CommandFilterI {
     public void filterCommand(EncapsulatedIRCCommand command) {
         IRCCommand cmd = command.getCommand();
         if(cmd instanceof AdjustableNicknameTargetCommandI && cmd instanceof NicknamesTargetedCommandI) {
-            NicknamesTargetedCommandI nickGetter = (NicknamesTargetedCommandI) cmd;
+            final NicknamesTargetedCommandI nickGetter = (NicknamesTargetedCommandI) cmd;
+            final Date creationTime = command.getCreationTime();
             AdjustableNicknameTargetCommandI nickSetter = (AdjustableNicknameTargetCommandI) cmd;
             
             // build a new list of nicknames
             List<String> newNicks = new ArrayList();
             for(String curNick : nickGetter.getNicknames()) {
                 // look it up in the tracker
-                NicknameHistory history = tracker.getNicknameHistoryAtTime(curNick, command.getCreationTime());
-                if(history != null) {
-                    // we have history, so just get that user's latest nickname known
-                    TrackedUser user = history.getUser();
-                    newNicks.add(user.getHostmask().getNickname());
+                NicknameHistory history = tracker.getNicknameHistoryAtTime(curNick, creationTime);
+                UserView user = history == null ? null : history.getUser().getView();
+                if(user != null) {
+                    // we have history, so just get that user's latest nickname known (as last published, since the parser's thread changes the user)
+                    newNicks.add(user.getNickname());
                 } else {
                     // leave the original intact
                     newNicks.add(curNick);
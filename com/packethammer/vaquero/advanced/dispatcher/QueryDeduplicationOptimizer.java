@@ -0,0 +1,89 @@
+/**
+ * This optimizer drops informational requests that are identical to one
+ * already sitting in the wait queue. It handles NAMES requests, TOPIC
+ * requests (not topic changes), channel mode requests and channel mode list
+ * requests (such as 'MODE #channel +b'). Since the replies to these are
+ * delivered to everyone through the parser anyway, sending the same request
+ * twice in a row only wastes outbound bandwidth and server time.
+ *
+ * Requests that have event listeners attached to them are left alone, as
+ * are WHO and WHOX queries; the dispatcher deduplicates those itself so that
+ * their replies reach every query listener.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher;
+
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCChannelModeCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCNamesCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCTopicCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+
+public class QueryDeduplicationOptimizer extends CommandOptimizer {
+    private IRCServerContext serverContext;
+
+    /**
+     * Initializes this optimizer with the server context used to compare
+     * channel names.
+     */
+    public QueryDeduplicationOptimizer(IRCServerContext serverContext) {
+        this.serverContext = serverContext;
+    }
+
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        if(command.getListeners().isEmpty() && isRequest(serverContext, command.getCommand())) {
+            String rendered = command.getCommand().renderForIRC().toRawLine();
+
+            Vector<EncapsulatedIRCCommand> queue = this.getWaitQueue().getCommandQueue();
+            synchronized(queue) {
+                for(EncapsulatedIRCCommand queued : queue) {
+                    IRCCommand other = queued.getCommand();
+                    if(other != null && other.getClass().equals(command.getCommand().getClass())
+                            && serverContext.casemapString(other.renderForIRC().toRawLine()).equals(rendered)) {
+                        // an identical request is already on its way out
+                        command.setCommand(null);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines if a command only asks the server for information that
+     * is given back to us through numeric replies, as opposed to changing
+     * something.
+     *
+     * @param serverContext The server context used to look up channel modes.
+     * @param command The command to inspect.
+     * @return True if the command is a NAMES, TOPIC, channel mode or channel mode list request.
+     */
+    public static boolean isRequest(IRCServerContext serverContext, IRCCommand command) {
+        if(command instanceof IRCNamesCommand) {
+            return true;
+        } else if(command instanceof IRCTopicCommand) {
+            return ((IRCTopicCommand) command).getMessage() == null;
+        } else if(command instanceof IRCChannelModeCommand) {
+            IRCChannelModeCommand modeCmd = (IRCChannelModeCommand) command;
+            return modeCmd.getModes() == null || isModeListRequest(serverContext, modeCmd);
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines if a channel mode command only contains listable modes
+     * without parameters (ie: 'MODE #channel +b'), which asks the server for
+     * the contents of those lists.
+     *
+     * @param serverContext The server context used to look up channel modes.
+     * @param command The command to inspect.
+     * @return True if this is a request for one or more mode lists.
+     */
+    public static boolean isModeListRequest(IRCServerContext serverContext, IRCChannelModeCommand command) {
+        return command.isListRequest(serverContext.getISupport());
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This is the pending result of a query sent through the Dispatcher. It
+ * can be waited on with get(), or given listeners to be told when it is done,
+ * so that a plugin can fire off many lookups at once and collect the
+ * answers however suits it.
+ *
+ * A future ends in exactly one of these ways:
+ *   1. The query finishes, and get() returns its result.
+ *   2. The query times out, and get() throws an ExecutionException caused by
+ *      a TimeoutException.
+ *   3. The outbound system drops the query before sending it, and get()
+ *      throws an ExecutionException caused by a CancellationException.
+ *   4. It is cancelled with cancel(), and get() throws a CancellationException.
+ *
+ * When a future times out or is cancelled, the query stops taking up a
+ * place in the query processor, and if it hasn't been sent yet (and nobody
+ * else is sharing it) it is taken out of the wait queue.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher;
+
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import com.packethammer.vaquero.util.timing.Timeout;
+
+public class QueryFuture<T> implements Future<T> {
+    private T result;
+    private Throwable failure;
+    private boolean done;
+    private boolean cancelled;
+    private boolean timedOut;
+    private Vector<QueryFutureListener<T>> listeners;
+    private Runnable abandonTask; // lets go of the query when we stop waiting on it
+    private Timeout pendingTimeout;
+
+    /**
+     * Initializes a future that is not done.
+     */
+    QueryFuture() {
+        this.listeners = new Vector();
+    }
+
+    /**
+     * Sets what to do to let go of the query if we stop waiting on it before
+     * it finishes.
+     */
+    void setAbandonTask(Runnable abandonTask) {
+        this.abandonTask = abandonTask;
+    }
+
+    /**
+     * Sets the timeout that will time this future out, so that it can be
+     * cancelled if the query finishes first.
+     */
+    synchronized void setPendingTimeout(Timeout pendingTimeout) {
+        if(done)
+            pendingTimeout.cancel();
+        else
+            this.pendingTimeout = pendingTimeout;
+    }
+
+    /**
+     * Finishes this future with the query's result.
+     */
+    void complete(T result) {
+        finish(result, null, false, false);
+    }
+
+    /**
+     * Finishes this future with a failure.
+     */
+    void fail(Throwable failure) {
+        finish(null, failure, false, false);
+    }
+
+    /**
+     * Times this future out, letting go of the query.
+     */
+    void timeOut() {
+        if(finish(null, new TimeoutException("The query was not answered in time"), false, true))
+            abandon();
+    }
+
+    /**
+     * Marks this future as done, if it isn't already, and tells its
+     * listeners. Returns false if it was already done.
+     */
+    private boolean finish(T result, Throwable failure, boolean cancelled, boolean timedOut) {
+        Vector<QueryFutureListener<T>> notify;
+        synchronized(this) {
+            if(done)
+                return false;
+
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            this.timedOut = timedOut;
+            this.done = true;
+            this.notifyAll();
+
+            if(pendingTimeout != null)
+                pendingTimeout.cancel();
+
+            notify = new Vector<QueryFutureListener<T>>(listeners);
+            listeners.clear();
+        }
+
+        for(QueryFutureListener<T> listener : notify) {
+            try {
+                listener.onDone(this);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        return true;
+    }
+
+    private void abandon() {
+        if(abandonTask != null)
+            abandonTask.run();
+    }
+
+    /**
+     * Cancels the query. If it hasn't been sent yet and nobody else is
+     * sharing it, it is taken out of the wait queue; otherwise its replies
+     * are simply ignored.
+     *
+     * @param mayInterruptIfRunning Ignored, since there is no thread to interrupt.
+     * @return False if the future was already done.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(!finish(null, null, true, false))
+            return false;
+
+        abandon();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Determines if the query timed out.
+     */
+    public synchronized boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Waits for the query to finish and returns its result.
+     *
+     * @throws CancellationException If the future was cancelled.
+     * @throws ExecutionException If the query timed out or was dropped; the cause says which.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(!done)
+            this.wait();
+
+        return getResult();
+    }
+
+    /**
+     * Waits up to the given time for the query to finish and returns its
+     * result. Running out of time here does not cancel the query.
+     *
+     * @throws CancellationException If the future was cancelled.
+     * @throws ExecutionException If the query timed out or was dropped; the cause says which.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     * @throws TimeoutException If the query did not finish in the given time.
+     */
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while(!done && (remaining = deadline - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+
+        if(!done)
+            throw new TimeoutException("Gave up waiting on the query");
+
+        return getResult();
+    }
+
+    private T getResult() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException("The query was cancelled");
+        if(failure != null)
+            throw new ExecutionException(failure);
+
+        return result;
+    }
+
+    /**
+     * Adds a listener to be told when this future is done. If it is done
+     * already, the listener is told right away.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(QueryFutureListener<T> listener) {
+        synchronized(this) {
+            if(!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        listener.onDone(this);
+    }
+}
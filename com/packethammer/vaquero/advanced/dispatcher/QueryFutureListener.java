@@ -0,0 +1,21 @@
+/**
+ * This listener is told when a query future is done, whether the query
+ * finished, failed, timed out or was cancelled.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher;
+
+public class QueryFutureListener<T> {
+    public QueryFutureListener() {
+    }
+
+    /**
+     * Occurs once the future is done. Calling get() on it from here will not
+     * block.
+     *
+     * @param future The future that is done.
+     */
+    public void onDone(QueryFuture<T> future) {
+
+    }
+}
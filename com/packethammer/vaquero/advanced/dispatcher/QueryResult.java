@@ -0,0 +1,58 @@
+/**
+ * This is everything the server said in answer to one query: each reply,
+ * any errors, and the numeric that ended it. It cannot be changed once it
+ * has been made, so it can be handed around between threads freely.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class QueryResult<T extends IRCNumericEvent> {
+    private List<T> replies;
+    private List<IRCNumericEvent> errors;
+    private IRCNumericEvent end;
+
+    /**
+     * Initializes this result. The lists are copied.
+     *
+     * @param replies The replies to the query, in the order they arrived.
+     * @param errors The errors the query got, in the order they arrived.
+     * @param end The numeric that ended the query.
+     */
+    public QueryResult(List<? extends T> replies, List<? extends IRCNumericEvent> errors, IRCNumericEvent end) {
+        this.replies = Collections.unmodifiableList(new ArrayList<T>(replies));
+        this.errors = Collections.unmodifiableList(new ArrayList<IRCNumericEvent>(errors));
+        this.end = end;
+    }
+
+    /**
+     * Returns the replies to the query, in the order they arrived.
+     */
+    public List<T> getReplies() {
+        return replies;
+    }
+
+    /**
+     * Returns the errors the query got, in the order they arrived. A WHO or
+     * WHOX query never has any.
+     */
+    public List<IRCNumericEvent> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the numeric that ended the query. This is an error numeric if
+     * the query failed outright.
+     */
+    public IRCNumericEvent getEnd() {
+        return end;
+    }
+
+    public String toString() {
+        return "REPLIES:" + replies.size() + " ERRORS:" + errors.size() + " END:" + (end == null ? null : end.getNumeric());
+    }
+}
@@ -15,4 +15,19 @@ public abstract class AbstractQueryProcessor {
      * @param listener The listener to use.
      */
     public abstract void addQueryingCommand(EncapsulatedIRCCommand command, AbstractCommandQueryListener listener);
+    
+    /**
+     * Stops a listener from hearing anything more about its query. If that
+     * leaves a query nobody is listening to, the query is forgotten, which
+     * frees whatever it was using to match replies.
+     *
+     * This does nothing by default; processors that can let go of a query
+     * part way through override it.
+     *
+     * @param listener The listener to detach.
+     * @return The command of the query if nobody is listening to it any more and it has not been sent yet (so that it can be withdrawn from the wait queue), or null.
+     */
+    public EncapsulatedIRCCommand detachListener(AbstractCommandQueryListener listener) {
+        return null;
+    }
 }
@@ -0,0 +1,33 @@
+/**
+ * This listener receives the result of a lookup made through the query
+ * result cache, whether it was answered from the cache or by the server.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+public class CachedLookupListener {
+    public CachedLookupListener() {
+    }
+
+    /**
+     * Occurs when the information asked for is available. Fields that the
+     * server did not give us (or that weren't asked for) may be unknown; see
+     * CachedUserInfo.isKnown().
+     *
+     * @param info A copy of what is known about the user.
+     * @param cached True if this was answered from the cache without sending anything.
+     */
+    public void onResult(CachedUserInfo info, boolean cached) {
+
+    }
+
+    /**
+     * Occurs when the lookup could not be answered, because the user does
+     * not exist or the query was cancelled or timed out.
+     *
+     * @param nickname The nickname that was looked up.
+     */
+    public void onFailed(String nickname) {
+
+    }
+}
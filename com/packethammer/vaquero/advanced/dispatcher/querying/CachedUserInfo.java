@@ -0,0 +1,190 @@
+/**
+ * This holds what the query result cache knows about one user, field by
+ * field, along with when each field was learned. Listeners are always handed
+ * a copy, so the information they get won't change under them.
+ *
+ * A field that is known may still be null; for instance, a known account
+ * name of null means the user is not logged in to an account.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import com.packethammer.vaquero.util.Hostmask;
+
+public class CachedUserInfo {
+    /** The user's ident and hostname */
+    public static final int FIELD_HOSTMASK = 0;
+    /** The user's realname (infotext) */
+    public static final int FIELD_REALNAME = 1;
+    /** The account the user is logged in to */
+    public static final int FIELD_ACCOUNT = 2;
+    /** Whether the user is away, along with their away message if we know it */
+    public static final int FIELD_AWAY = 3;
+    /** Whether the user is a server operator */
+    public static final int FIELD_OPERATOR = 4;
+    /** The server the user is on */
+    public static final int FIELD_SERVER = 5;
+    /** The number of seconds the user has been idle */
+    public static final int FIELD_IDLE = 6;
+    /** The channels the user is visibly in */
+    public static final int FIELD_CHANNELS = 7;
+    /** The number of fields */
+    public static final int FIELD_COUNT = 8;
+
+    private String nickname;
+    private Object[] values;
+    private long[] learned; // when each field was learned (ms), or 0 if it isn't known
+    private String awayMessage;
+
+    /**
+     * Initializes this with nothing known about a user.
+     *
+     * @param nickname The user's nickname.
+     */
+    public CachedUserInfo(String nickname) {
+        this.nickname = nickname;
+        this.values = new Object[FIELD_COUNT];
+        this.learned = new long[FIELD_COUNT];
+    }
+
+    /**
+     * Returns a copy of this information.
+     */
+    public synchronized CachedUserInfo copy() {
+        CachedUserInfo info = new CachedUserInfo(nickname);
+        System.arraycopy(values, 0, info.values, 0, FIELD_COUNT);
+        System.arraycopy(learned, 0, info.learned, 0, FIELD_COUNT);
+        info.awayMessage = awayMessage;
+        return info;
+    }
+
+    /**
+     * Records the value of a field as of now.
+     */
+    synchronized void set(int field, Object value) {
+        values[field] = value;
+        learned[field] = System.currentTimeMillis();
+    }
+
+    /**
+     * Forgets the value of a field.
+     */
+    synchronized void forget(int field) {
+        values[field] = null;
+        learned[field] = 0;
+        if(field == FIELD_AWAY)
+            awayMessage = null;
+    }
+
+    synchronized void setAwayMessage(String awayMessage) {
+        this.awayMessage = awayMessage;
+    }
+
+    /**
+     * Determines if a field was learned no more than the given number of
+     * milliseconds ago.
+     */
+    synchronized boolean isFresh(int field, long timeToLive) {
+        return learned[field] != 0 && System.currentTimeMillis() - learned[field] <= timeToLive;
+    }
+
+    /**
+     * Returns the nickname of the user.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    /**
+     * Determines if a field is known.
+     *
+     * @param field One of the FIELD_* constants.
+     */
+    public synchronized boolean isKnown(int field) {
+        return learned[field] != 0;
+    }
+
+    /**
+     * Returns the number of milliseconds since a field was learned, or -1 if
+     * it isn't known.
+     *
+     * @param field One of the FIELD_* constants.
+     */
+    public synchronized long getAge(int field) {
+        return learned[field] == 0 ? -1 : System.currentTimeMillis() - learned[field];
+    }
+
+    /**
+     * Returns the user's hostmask, or null if it isn't known.
+     */
+    public synchronized Hostmask getHostmask() {
+        return (Hostmask) values[FIELD_HOSTMASK];
+    }
+
+    /**
+     * Returns the user's realname, or null if it isn't known.
+     */
+    public synchronized String getRealname() {
+        return (String) values[FIELD_REALNAME];
+    }
+
+    /**
+     * Returns the account the user is logged in to, or null if they aren't
+     * logged in or it isn't known.
+     */
+    public synchronized String getAccountName() {
+        return (String) values[FIELD_ACCOUNT];
+    }
+
+    /**
+     * Determines if the user is away. This is false if it isn't known.
+     */
+    public synchronized boolean isAway() {
+        return Boolean.TRUE.equals(values[FIELD_AWAY]);
+    }
+
+    /**
+     * Returns the user's away message, or null if they aren't away or we
+     * only know that they are away (USERHOST and WHO don't give the message).
+     */
+    public synchronized String getAwayMessage() {
+        return awayMessage;
+    }
+
+    /**
+     * Determines if the user is a server operator. This is false if it isn't
+     * known.
+     */
+    public synchronized boolean isOperator() {
+        return Boolean.TRUE.equals(values[FIELD_OPERATOR]);
+    }
+
+    /**
+     * Returns the server the user is on, or null if it isn't known.
+     */
+    public synchronized String getServer() {
+        return (String) values[FIELD_SERVER];
+    }
+
+    /**
+     * Returns the number of seconds the user had been idle when this was
+     * learned, or -1 if it isn't known.
+     */
+    public synchronized int getIdleTime() {
+        return values[FIELD_IDLE] == null ? -1 : (Integer) values[FIELD_IDLE];
+    }
+
+    /**
+     * Returns the channels the user is visibly in (with any prefix they
+     * were given), or null if they aren't known.
+     */
+    public synchronized String[] getChannels() {
+        return (String[]) values[FIELD_CHANNELS];
+    }
+
+    public synchronized String toString() {
+        return "NICK:" + nickname + " HOSTMASK:" + values[FIELD_HOSTMASK] + " REALNAME:" + values[FIELD_REALNAME]
+                + " ACCOUNT:" + values[FIELD_ACCOUNT] + " AWAY:" + values[FIELD_AWAY] + " OPER:" + values[FIELD_OPERATOR]
+                + " SERVER:" + values[FIELD_SERVER] + " IDLE:" + values[FIELD_IDLE];
+    }
+}
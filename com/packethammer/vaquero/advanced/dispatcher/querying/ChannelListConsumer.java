@@ -0,0 +1,45 @@
+/**
+ * This receives a channel listing one row at a time, as it arrives from the
+ * server or is read back from an index on disk. Nothing is kept once a row
+ * has been handed over, so keep whatever you need from it yourself.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class ChannelListConsumer {
+    public ChannelListConsumer() {
+    }
+
+    /**
+     * Occurs for each channel that passes the filter.
+     *
+     * @param entry The channel.
+     */
+    public void onChannel(ChannelListEntry entry) {
+
+    }
+
+    /**
+     * Occurs when the whole listing has been gone through.
+     *
+     * @param listed How many channels were listed in all.
+     * @param matched How many of those passed the filter.
+     */
+    public void onFinished(int listed, int matched) {
+
+    }
+
+    /**
+     * Occurs when the listing could not be finished, whether the server
+     * refused it, it timed out, it was dropped before being sent, or the
+     * index could not be written. Rows given so far were real, but there
+     * may have been more.
+     *
+     * @param error The numeric the server refused with, or null if there was none.
+     */
+    public void onFailed(IRCNumericEvent error) {
+
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * This is one row of a channel listing: a channel's name, how many users
+ * it has and its topic.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+public class ChannelListEntry {
+    private String channel;
+    private int users;
+    private String topic;
+
+    /**
+     * Initializes this entry.
+     *
+     * @param channel The channel's name.
+     * @param users How many users the channel has.
+     * @param topic The channel's topic, which is empty if it has none.
+     */
+    public ChannelListEntry(String channel, int users, String topic) {
+        this.channel = channel;
+        this.users = users;
+        this.topic = topic;
+    }
+
+    /**
+     * Returns the channel's name.
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns how many users the channel has, as far as we can see.
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * Returns the channel's topic, which is empty if it has none.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public String toString() {
+        return channel + " (" + users + "): " + topic;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * This describes which channels we want out of a channel listing: a range of
+ * user counts, a mask the name must (or must not) match, and a regular
+ * expression the topic must contain a match of. Everything left unset
+ * matches every channel.
+ *
+ * Whatever the server can do for us (see IRCServerISupport.getListExtensions())
+ * is sent along in the LIST command, so that it never sends us channels we
+ * don't want. Every condition is checked again on our side as rows arrive,
+ * since servers may ignore conditions or understand them a little
+ * differently, and since a topic can only be checked by us.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.util.regex.Pattern;
+import com.packethammer.vaquero.outbound.commands.channel.IRCListCommand;
+import com.packethammer.vaquero.parser.tracking.IRCServerISupport;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.MaskMatcher;
+
+public class ChannelListFilter {
+    private int minUsers;
+    private int maxUsers;
+    private String mask;
+    private String excludedMask;
+    private Pattern topicPattern;
+    private CasemappingDefinition casemappingDefinition;
+    private MaskMatcher maskMatcher;
+    private MaskMatcher excludedMaskMatcher;
+
+    /**
+     * Initializes a filter that matches every channel.
+     */
+    public ChannelListFilter() {
+        minUsers = -1;
+        maxUsers = -1;
+        casemappingDefinition = new CasemappingDefinition();
+    }
+
+    /**
+     * Returns the fewest users a channel may have, or -1 if there is no minimum.
+     */
+    public int getMinUsers() {
+        return minUsers;
+    }
+
+    /**
+     * Sets the fewest users a channel may have.
+     *
+     * @param minUsers The minimum user count, or -1 for none.
+     */
+    public void setMinUsers(int minUsers) {
+        this.minUsers = minUsers;
+    }
+
+    /**
+     * Returns the most users a channel may have, or -1 if there is no maximum.
+     */
+    public int getMaxUsers() {
+        return maxUsers;
+    }
+
+    /**
+     * Sets the most users a channel may have.
+     *
+     * @param maxUsers The maximum user count, or -1 for none.
+     */
+    public void setMaxUsers(int maxUsers) {
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Returns the mask channel names must match, or null if any name will do.
+     */
+    public String getMask() {
+        return mask;
+    }
+
+    /**
+     * Sets the mask channel names must match, such as "#*chat*".
+     *
+     * @param mask The mask, or null if any name will do.
+     */
+    public synchronized void setMask(String mask) {
+        this.mask = mask;
+        this.maskMatcher = null;
+    }
+
+    /**
+     * Returns the mask channel names must not match, or null if no name is excluded.
+     */
+    public String getExcludedMask() {
+        return excludedMask;
+    }
+
+    /**
+     * Sets the mask channel names must not match.
+     *
+     * @param excludedMask The mask, or null if no name is excluded.
+     */
+    public synchronized void setExcludedMask(String excludedMask) {
+        this.excludedMask = excludedMask;
+        this.excludedMaskMatcher = null;
+    }
+
+    /**
+     * Returns the pattern topics must contain a match of, or null if any topic will do.
+     */
+    public Pattern getTopicPattern() {
+        return topicPattern;
+    }
+
+    /**
+     * Sets the pattern topics must contain a match of. Servers can't filter
+     * on this, so it is only ever checked on our side.
+     *
+     * @param topicPattern The pattern, or null if any topic will do.
+     */
+    public void setTopicPattern(Pattern topicPattern) {
+        this.topicPattern = topicPattern;
+    }
+
+    /**
+     * Returns the casemapping that channel names are compared to the masks with.
+     */
+    public CasemappingDefinition getCasemappingDefinition() {
+        return casemappingDefinition;
+    }
+
+    /**
+     * Sets the casemapping that channel names are compared to the masks with.
+     * The dispatcher sets this to the server's own casemapping when the
+     * filter is used to list channels.
+     */
+    public synchronized void setCasemappingDefinition(CasemappingDefinition casemappingDefinition) {
+        this.casemappingDefinition = casemappingDefinition;
+        this.maskMatcher = null;
+        this.excludedMaskMatcher = null;
+    }
+
+    /**
+     * Creates the LIST command for this filter, carrying every condition the
+     * server says it can handle.
+     *
+     * @param support The server's ISUPPORT information.
+     * @return A LIST command.
+     */
+    public IRCListCommand createCommand(IRCServerISupport support) {
+        IRCListCommand command = new IRCListCommand();
+
+        if(support.isListExtensionSupported('U')) {
+            // the server's comparisons are strict, ex: ">10" means 11 or more
+            if(minUsers > 0)
+                command.addCondition(">" + (minUsers - 1));
+            if(maxUsers >= 0)
+                command.addCondition("<" + (maxUsers + 1));
+        }
+
+        if(mask != null && support.isListExtensionSupported('M'))
+            command.addCondition(mask);
+        if(excludedMask != null && support.isListExtensionSupported('N'))
+            command.addCondition("!" + excludedMask);
+
+        return command;
+    }
+
+    /**
+     * Determines if a user count is within range.
+     */
+    public boolean acceptsUsers(int users) {
+        return (minUsers < 0 || users >= minUsers) && (maxUsers < 0 || users <= maxUsers);
+    }
+
+    /**
+     * Determines if a channel name matches the mask and not the excluded mask.
+     */
+    public synchronized boolean acceptsName(String channel) {
+        if(mask != null) {
+            if(maskMatcher == null)
+                maskMatcher = new MaskMatcher(mask, casemappingDefinition);
+            if(!maskMatcher.matches(channel))
+                return false;
+        }
+
+        if(excludedMask != null) {
+            if(excludedMaskMatcher == null)
+                excludedMaskMatcher = new MaskMatcher(excludedMask, casemappingDefinition);
+            if(excludedMaskMatcher.matches(channel))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Determines if a topic contains a match of the topic pattern.
+     */
+    public boolean acceptsTopic(String topic) {
+        return topicPattern == null || topicPattern.matcher(topic).find();
+    }
+
+    public String toString() {
+        return "USERS:" + minUsers + "-" + maxUsers + " MASK:" + mask + " EXCLUDED:" + excludedMask + " TOPIC:" + topicPattern;
+    }
+}
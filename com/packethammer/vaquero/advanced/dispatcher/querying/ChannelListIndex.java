@@ -0,0 +1,300 @@
+/**
+ * This searches a channel listing saved to disk by a ChannelListIndexWriter.
+ * Besides the channels themselves, the file holds a table of every channel's
+ * user count and where its entry is, sorted from the most users to the
+ * fewest. That table is read when the index is opened (twelve bytes a
+ * channel), so a search only has to look at the channels whose user count is
+ * in range, finding them by binary search and reading nothing else. The
+ * channels it does read are streamed through one at a time in file order,
+ * and an entry is only made for those that pass the rest of the filter.
+ *
+ * The file is laid out as follows (all numbers big-endian):
+ *   int     MAGIC
+ *   byte    VERSION
+ *   long    when the listing was taken, in milliseconds since the epoch
+ *   then for each channel, in the order they were listed:
+ *     int   user count
+ *     UTF   channel name (in DataOutput's modified UTF-8)
+ *     UTF   topic
+ *   then the table:
+ *     int   the number of channels
+ *     then for each channel, from the most users to the fewest:
+ *       int   user count
+ *       long  where the channel's entry starts
+ *   long    where the table starts
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+
+public class ChannelListIndex {
+    /** Marks the start of a channel list index file ("VQLI") */
+    public static final int MAGIC = 0x56514c49;
+    /** The version of the file layout that we write */
+    public static final int VERSION = 2;
+    /** The number of bytes before the first entry */
+    static final int HEADER_LENGTH = 13;
+    /** The most bytes DataOutput's modified UTF-8 can hold */
+    private static final int MAX_UTF_LENGTH = 65535;
+
+    private File file;
+    private Date creationTime;
+    private int[] users; // from the most users to the fewest
+    private long[] offsets; // where the entry for each of the above starts
+
+    /**
+     * Opens an index, checking that it really is one, and reads its table
+     * of user counts.
+     *
+     * @param file The index file.
+     * @throws IOException If the file can't be read or is not an index.
+     */
+    public ChannelListIndex(File file) throws IOException {
+        this.file = file;
+
+        long tableOffset;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            checkHeader(raf);
+            this.creationTime = new Date(raf.readLong());
+
+            if(raf.length() < HEADER_LENGTH + 12)
+                throw new IOException(file + " is a channel list index that was never finished");
+            raf.seek(raf.length() - 8);
+            tableOffset = raf.readLong();
+            if(tableOffset < HEADER_LENGTH || tableOffset > raf.length() - 12)
+                throw new IOException(file + " is a channel list index with a broken table");
+        } finally {
+            raf.close();
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            skipFully(in, tableOffset);
+
+            int count = in.readInt();
+            users = new int[count];
+            offsets = new long[count];
+            for(int i = 0; i < count; i++) {
+                users[i] = in.readInt();
+                offsets[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the file this index is in.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns when the listing in this index was taken.
+     */
+    public Date getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns how many channels were listed.
+     */
+    public int getChannelCount() {
+        return users.length;
+    }
+
+    /**
+     * Goes through the channels in the index whose user count the filter
+     * accepts, giving each that passes the rest of the filter to the 
+     * consumer, followed by onFinished() once they have been gone through.
+     *
+     * @param filter The filter channels must pass.
+     * @param consumer The consumer to give channels to.
+     * @throws IOException If the index could not be read; the consumer is not told of the failure.
+     */
+    public void search(ChannelListFilter filter, ChannelListConsumer consumer) throws IOException {
+        // the table is sorted from the most users down, so the range is one run of it
+        int from = filter.getMaxUsers() < 0 ? 0 : firstBelow(filter.getMaxUsers() + 1L);
+        int to = filter.getMinUsers() < 0 ? users.length : firstBelow(filter.getMinUsers());
+
+        // and reading them in file order means we only ever skip forward
+        long[] wanted = new long[Math.max(0, to - from)];
+        System.arraycopy(offsets, from, wanted, 0, wanted.length);
+        Arrays.sort(wanted);
+
+        int matched = 0;
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            for(long offset : wanted) {
+                skipFully(in, offset - counter.getPosition());
+
+                int count = in.readInt();
+                String channel = in.readUTF();
+                if(!filter.acceptsUsers(count) || !filter.acceptsName(channel))
+                    continue;
+
+                String topic = in.readUTF();
+                if(!filter.acceptsTopic(topic))
+                    continue;
+
+                matched++;
+                try {
+                    consumer.onChannel(new ChannelListEntry(channel, count, topic));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        consumer.onFinished(users.length, matched);
+    }
+
+    /**
+     * Finds the first channel in the table with fewer users than the limit.
+     *
+     * @return Its place in the table, or the length of the table if there is none.
+     */
+    private int firstBelow(long limit) {
+        int low = 0;
+        int high = users.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(users[middle] < limit)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+
+        return low;
+    }
+
+    /**
+     * Checks the magic number and version at the start of an index.
+     */
+    private void checkHeader(RandomAccessFile in) throws IOException {
+        if(in.readInt() != MAGIC)
+            throw new IOException(file + " is not a channel list index");
+        if(in.readByte() != VERSION)
+            throw new IOException(file + " is a channel list index of a version we can't read");
+    }
+
+    /**
+     * Passes over the given number of bytes, which skipBytes() alone may not
+     * do in one go.
+     */
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while(count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if(skipped <= 0)
+                throw new IOException("The index ends in the middle of an entry");
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Writes the header of an index.
+     */
+    static void writeHeader(DataOutputStream out, long creationTime) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(creationTime);
+    }
+
+    /**
+     * Writes one entry of an index.
+     */
+    static void writeEntry(DataOutputStream out, ChannelListEntry entry) throws IOException {
+        out.writeInt(entry.getUsers());
+        out.writeUTF(truncate(entry.getChannel()));
+        out.writeUTF(truncate(entry.getTopic()));
+    }
+
+    /**
+     * Writes the table at the end of an index, sorting it first.
+     *
+     * @param out Where to write it.
+     * @param users The user count of each entry.
+     * @param offsets Where each entry starts.
+     * @param count The number of entries.
+     * @param tableOffset Where the table starts.
+     */
+    static void writeTable(DataOutputStream out, int[] users, long[] offsets, int count, long tableOffset) throws IOException {
+        // pack the user count and the entry's number into one long each, so that sorting them 
+        // puts the most users first and keeps channels with the same count in file order
+        long[] order = new long[count];
+        for(int i = 0; i < count; i++)
+            order[i] = ((long) (Integer.MAX_VALUE - Math.max(0, users[i])) << 32) | i;
+        Arrays.sort(order);
+
+        out.writeInt(count);
+        for(long packed : order) {
+            int i = (int) packed;
+            out.writeInt(users[i]);
+            out.writeLong(offsets[i]);
+        }
+        out.writeLong(tableOffset);
+    }
+
+    /**
+     * Cuts a string short enough for writeUTF(), which can only take 65535
+     * bytes. No line from an IRC server is anywhere near that, so this is
+     * only a safeguard.
+     */
+    private static String truncate(String s) {
+        if(s.length() * 3 <= MAX_UTF_LENGTH)
+            return s;
+
+        return s.substring(0, MAX_UTF_LENGTH / 3);
+    }
+
+    /**
+     * Keeps track of how far into the file we have read.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long position;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1)
+                position++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if(count > 0)
+                position += count;
+            return count;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+    }
+}
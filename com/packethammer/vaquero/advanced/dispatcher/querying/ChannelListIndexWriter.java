@@ -0,0 +1,201 @@
+/**
+ * This consumer writes a channel listing to a file as it streams in, so that
+ * it can be searched again later with a ChannelListIndex without asking the
+ * server (or keeping the listing in memory). Each row can be passed on to
+ * another consumer as well.
+ *
+ * Rows are written on a thread of the writer's own, so a slow disk never
+ * holds up the parser while a listing is streaming in. Rows are passed on
+ * to the next consumer right away, but its onFinished() (or onFailed()) is
+ * called from the writer's thread, once the file is complete and can be
+ * opened.
+ *
+ * A file that could not be finished, because the listing failed or the
+ * disk did, is deleted rather than left half-written.
+ *
+ * @see ChannelListIndex
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class ChannelListIndexWriter extends ChannelListConsumer {
+    private File file;
+    private ChannelListConsumer next;
+    private ExecutorService writer;
+    private volatile IOException exception;
+
+    // only touched by the writer's thread once the constructor returns
+    private DataOutputStream out;
+    private int count;
+    private int[] users;
+    private long[] offsets;
+
+    /**
+     * Initializes this writer, creating the file (or replacing what's there).
+     *
+     * @param file The file to write the index to.
+     * @param next A consumer to pass each row on to, or null for none.
+     * @throws IOException If the file could not be created.
+     */
+    public ChannelListIndexWriter(File file, ChannelListConsumer next) throws IOException {
+        this.file = file;
+        this.next = next;
+        this.users = new int[256];
+        this.offsets = new long[256];
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        try {
+            ChannelListIndex.writeHeader(out, System.currentTimeMillis());
+        } catch (IOException ex) {
+            close();
+            file.delete();
+            throw ex;
+        }
+
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Channel list index writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void onChannel(final ChannelListEntry entry) {
+        writer.execute(new Runnable() {
+            public void run() {
+                write(entry);
+            }
+        });
+
+        if(next != null)
+            next.onChannel(entry);
+    }
+
+    public void onFinished(final int listed, final int matched) {
+        writer.execute(new Runnable() {
+            public void run() {
+                finishFile();
+
+                if(exception != null) {
+                    if(next != null)
+                        next.onFailed(null);
+                } else if(next != null) {
+                    next.onFinished(listed, matched);
+                }
+            }
+        });
+        writer.shutdown();
+    }
+
+    public void onFailed(final IRCNumericEvent error) {
+        writer.execute(new Runnable() {
+            public void run() {
+                abandon();
+
+                if(next != null)
+                    next.onFailed(error);
+            }
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Writes one row, noting where it starts for the table.
+     */
+    private void write(ChannelListEntry entry) {
+        if(out == null)
+            return;
+
+        try {
+            if(out.size() == Integer.MAX_VALUE)
+                throw new IOException("The channel listing is too large to index");
+
+            if(count == users.length) {
+                int[] moreUsers = new int[count * 2];
+                long[] moreOffsets = new long[count * 2];
+                System.arraycopy(users, 0, moreUsers, 0, count);
+                System.arraycopy(offsets, 0, moreOffsets, 0, count);
+                users = moreUsers;
+                offsets = moreOffsets;
+            }
+
+            users[count] = entry.getUsers();
+            offsets[count] = out.size();
+            count++;
+
+            ChannelListIndex.writeEntry(out, entry);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Writes the table of user counts and closes the file.
+     */
+    private void finishFile() {
+        if(out == null)
+            return;
+
+        try {
+            ChannelListIndex.writeTable(out, users, offsets, count, out.size());
+            out.close();
+            out = null;
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * Gives up on the file after it could not be written.
+     */
+    private void fail(IOException ex) {
+        exception = ex;
+        ex.printStackTrace();
+        abandon();
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    private void abandon() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * Returns the file the index is written to.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns what went wrong writing the index, or null if nothing has.
+     */
+    public IOException getException() {
+        return exception;
+    }
+
+    private void close() {
+        if(out == null)
+            return;
+
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // we're giving up on the file anyway
+        }
+        out = null;
+    }
+}
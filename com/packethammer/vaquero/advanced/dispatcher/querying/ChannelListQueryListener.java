@@ -0,0 +1,108 @@
+/**
+ * This query listener streams the answer to a LIST query to a consumer
+ * instead of collecting it. A full channel list can run to tens of thousands
+ * of RPL_LIST numerics, so each one is checked against the filter as it
+ * arrives (user count first, since it is cheapest) and only the channels that
+ * pass are made into entries for the consumer. Nothing is kept, so
+ * getReplies() stays empty however long the listing is.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class ChannelListQueryListener extends QueryListener {
+    private ChannelListFilter filter;
+    private ChannelListConsumer consumer;
+    private int listed;
+    private int matched;
+
+    /**
+     * Initializes this listener.
+     *
+     * @param filter The filter rows must pass to be given to the consumer.
+     * @param consumer The consumer to give rows to.
+     */
+    public ChannelListQueryListener(ChannelListFilter filter, ChannelListConsumer consumer) {
+        this.filter = filter;
+        this.consumer = consumer;
+    }
+
+    protected void addReply(IRCNumericEvent reply) {
+        // RPL_LIST: <channel> <users> :<topic>
+        if(reply.getNumeric() != IRCNumericEvent.RPL_LIST || reply.numericArgumentCount() < 2)
+            return; // RPL_LISTSTART, or something we can't make sense of
+
+        listed++;
+
+        int users = parseUsers(reply.getNumericArg(1));
+        if(users < 0 || !filter.acceptsUsers(users))
+            return;
+
+        String channel = reply.getNumericArg(0);
+        if(!filter.acceptsName(channel))
+            return;
+
+        String topic = reply.numericArgumentCount() > 2 ? reply.getNumericArg(2) : "";
+        if(!filter.acceptsTopic(topic))
+            return;
+
+        matched++;
+        try {
+            consumer.onChannel(new ChannelListEntry(channel, users, topic));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    protected void finish(IRCNumericEvent end) {
+        super.finish(end);
+
+        if(end.getNumeric() == IRCNumericEvent.RPL_LISTEND)
+            consumer.onFinished(listed, matched);
+        else
+            consumer.onFailed(end);
+    }
+
+    public void onTimeout() {
+        consumer.onFailed(null);
+    }
+
+    public void onCancel() {
+        consumer.onFailed(null);
+    }
+
+    /**
+     * Returns how many channels have been listed so far.
+     */
+    public int getListedCount() {
+        return listed;
+    }
+
+    /**
+     * Returns how many channels have passed the filter so far.
+     */
+    public int getMatchedCount() {
+        return matched;
+    }
+
+    /**
+     * Reads a user count without making an exception out of a bad one.
+     *
+     * @return The user count, or -1 if it isn't a number.
+     */
+    private static int parseUsers(String users) {
+        if(users.length() == 0 || users.length() > 9)
+            return -1;
+
+        int count = 0;
+        for(int i = 0; i < users.length(); i++) {
+            char c = users.charAt(i);
+            if(c < '0' || c > '9')
+                return -1;
+            count = count * 10 + (c - '0');
+        }
+
+        return count;
+    }
+}
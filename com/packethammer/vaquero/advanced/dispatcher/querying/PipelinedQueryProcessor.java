@@ -0,0 +1,536 @@
+/**
+ * This query processor handles every query described by a QueryType (WHOIS,
+ * NAMES, ban/exception/invite-exception lists, LIST, USERHOST and TOPIC, 
+ * plus any types you register yourself). 
+ *
+ * Rather than assuming the server answers one query at a time in the order
+ * they were sent, each reply is matched to the oldest query in flight whose
+ * type listens for that numeric and which is still waiting on the subject
+ * (nickname or channel) the reply names. This lets any number of queries be
+ * in flight at once, even of the same type, and keeps replies we never asked
+ * for (the NAMES list sent when we join a channel, an RPL_AWAY from messaging
+ * someone) from being mistaken for the answer to a query about something else.
+ * Errors are attributed the same way, so a no-such-nick for one WHOIS doesn't
+ * end another.
+ *
+ * Some replies may or may not be followed by an end numeric (many servers
+ * send RPL_TOPIC without RPL_TOPICWHOTIME). After such a reply, the query
+ * is finished by the next numeric to arrive if that isn't the end it was
+ * waiting for, or after a short grace period if nothing arrives at all.
+ *
+ * A query that the server never finishes answering would otherwise wait 
+ * forever, so each query is given a timeout once it has been sent. When it
+ * runs out, the query is dropped and its listeners are told so.
+ *
+ * Identical queries that are still waiting to be sent can share a single
+ * session; the replies for that session are handed to every listener that
+ * was attached to it.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.OutboundCommandEventListener;
+import com.packethammer.vaquero.parser.IRCEventListener;
+import com.packethammer.vaquero.parser.IRCParser;
+import com.packethammer.vaquero.parser.events.IRCEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
+
+public class PipelinedQueryProcessor extends AbstractQueryProcessor {
+    /** The default number of milliseconds the server has to finish answering a query */
+    public static final long DEFAULT_TIMEOUT = 60000;
+    /** The number of milliseconds an optional end numeric is waited for after a closing reply */
+    public static final long CLOSING_GRACE = 2000;
+    
+    private static final int KIND_REPLY = 0;
+    private static final int KIND_ERROR = 1;
+    private static final int KIND_END = 2;
+    private static final int KIND_TERMINAL_ERROR = 3;
+    
+    private IRCParser parser;
+    private Vector<QueryType> queryTypes;
+    private Set<Integer> numerics; // every numeric some query type listens for
+    private Vector<QuerySession> liveQueries; // oldest query sent first
+    private Vector<QuerySession> waitingQueries; // queries not sent yet
+    private long defaultTimeout;
+    private WheelTimer timer;
+    
+    /**
+     * Initializes this query processor with the parser it is to use and the
+     * standard query types.
+     */
+    public PipelinedQueryProcessor(IRCParser parser) {
+        this.parser = parser;
+        this.queryTypes = new Vector();
+        this.numerics = new HashSet();
+        this.liveQueries = new Vector();
+        this.waitingQueries = new Vector();
+        this.defaultTimeout = DEFAULT_TIMEOUT;
+        this.timer = WheelTimer.getSharedTimer();
+        
+        for(QueryType type : QueryType.getStandardTypes())
+            registerQueryType(type);
+        
+        hookEvents();
+    }
+    
+    /**
+     * Hooks the numerics vital to processing replies.
+     */
+    private void hookEvents() {
+        parser.getEventDistributor().addDynamicEventListener(IRCNumericEvent.class, new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                numericReceived((IRCNumericEvent) e);
+            }
+        });
+    }
+    
+    /**
+     * Registers a type of query this processor can handle. The standard types
+     * are registered already. Types are tried in the order they were 
+     * registered when deciding which one a command belongs to.
+     *
+     * @param type The query type.
+     */
+    public synchronized void registerQueryType(QueryType type) {
+        queryTypes.add(type);
+        
+        Set<Integer> all = new HashSet(numerics);
+        for(int n : type.getReplyNumerics())
+            all.add(n);
+        for(int n : type.getEndNumerics())
+            all.add(n);
+        for(int n : type.getErrorNumerics())
+            all.add(n);
+        for(int n : type.getTerminalErrorNumerics())
+            all.add(n);
+        numerics = all; // swapped whole, so the parser thread never sees it half-built
+    }
+    
+    /**
+     * Returns the type of query a command is.
+     *
+     * @param command The command.
+     * @return The query type, or null if this processor can't handle the command.
+     */
+    public QueryType getQueryType(IRCCommand command) {
+        for(QueryType type : queryTypes) {
+            if(type.handles(parser.getServerContext(), command))
+                return type;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the number of milliseconds the server is given to finish 
+     * answering a query once it has been sent.
+     */
+    public long getDefaultTimeout() {
+        return defaultTimeout;
+    }
+    
+    /**
+     * Sets the number of milliseconds the server is given to finish answering
+     * a query once it has been sent, for queries not given one of their own.
+     *
+     * @param defaultTimeout The timeout, or 0 to wait forever.
+     */
+    public void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+    
+    /**
+     * Returns the number of queries that have been sent and are waiting on
+     * their replies.
+     */
+    public int getLiveQueryCount() {
+        return liveQueries.size();
+    }
+    
+    /**
+     * Adds a query to this processor with its listener, using the default
+     * timeout.
+     *
+     * @param command The query command to process.
+     * @param listener The listener to use.
+     * @throws IllegalArgumentException If the command is not a type of query this processor handles, or the listener is not a QueryListener.
+     */
+    public void addQueryingCommand(EncapsulatedIRCCommand command, AbstractCommandQueryListener listener) {
+        this.addQueryingCommand(command, listener, this.getDefaultTimeout());
+    }
+    
+    /**
+     * Adds a query to this processor with its listener.
+     *
+     * @param command The query command to process.
+     * @param listener The listener to use.
+     * @param timeout The number of milliseconds the server has to finish answering once the query is sent, or 0 to wait forever.
+     * @throws IllegalArgumentException If the command is not a type of query this processor handles, or the listener is not a QueryListener.
+     */
+    public void addQueryingCommand(EncapsulatedIRCCommand command, AbstractCommandQueryListener listener, long timeout) {
+        QueryType type = getQueryType(command.getCommand());
+        if(type == null || !(listener instanceof QueryListener))
+            throw new IllegalArgumentException("Command is not a known type of query, or listener is not a QueryListener.");
+        
+        QuerySession session = new QuerySession();
+        session.type = type;
+        session.command = command;
+        session.timeout = timeout;
+        session.listeners.add((QueryListener) listener);
+        
+        // watch the command's progress through the outbound system
+        command.addListener(new QueryCommandListener(session));
+        
+        // add our session to the wait queue until it pops out from the outbound system
+        waitingQueries.add(session);
+    }
+    
+    /**
+     * Tries to attach a listener to a query that is identical to the given 
+     * one and has not been sent yet. If this succeeds, the listener will 
+     * receive the replies for that query and the given command should not be
+     * sent at all.
+     *
+     * @param command The query command that would otherwise be sent.
+     * @param listener The listener to use.
+     * @return True if the listener was attached to a waiting query, false if the command must be sent normally.
+     */
+    public boolean attachToWaitingQuery(IRCCommand command, QueryListener listener) {
+        String rendered = parser.getServerContext().casemapString(command.renderForIRC().toRawLine()).toString();
+        synchronized(waitingQueries) {
+            for(QuerySession session : waitingQueries) {
+                IRCCommand waiting = session.command.getCommand();
+                if(waiting != null && waiting.getClass().equals(command.getClass()) 
+                        && parser.getServerContext().casemapString(waiting.renderForIRC().toRawLine()).equals(rendered)) {
+                    session.listeners.add(listener);
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    public EncapsulatedIRCCommand detachListener(AbstractCommandQueryListener listener) {
+        synchronized(waitingQueries) {
+            for(QuerySession session : waitingQueries) {
+                if(session.listeners.remove(listener)) {
+                    if(!session.listeners.isEmpty())
+                        return null;
+                    
+                    waitingQueries.remove(session);
+                    return session.command;
+                }
+            }
+        }
+        
+        synchronized(liveQueries) {
+            for(QuerySession session : liveQueries) {
+                if(session.listeners.remove(listener)) {
+                    // a query answered in order has to stay until its end arrives, or the
+                    // rest of its replies would be taken for the next one's
+                    if(session.listeners.isEmpty() && session.bySubject) {
+                        liveQueries.remove(session);
+                        session.stopClosing();
+                        if(session.pendingTimeout != null)
+                            session.pendingTimeout.cancel();
+                    }
+                    return null;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the key a nickname or channel is compared by.
+     */
+    private String toKey(String subject) {
+        return parser.getServerContext().casemapString(subject).toLowerCase().toString();
+    }
+    
+    /**
+     * Finds the query a numeric belongs to, if any, and hands it over.
+     */
+    private void numericReceived(IRCNumericEvent event) {
+        int numeric = event.getNumeric();
+        
+        // whatever arrives after a closing reply decides whether its end numeric is coming
+        for(QuerySession closed : takeClosedQueries(event)) {
+            for(QueryListener listener : new Vector<QueryListener>(closed.listeners))
+                listener.finish(closed.closingReply);
+        }
+        
+        if(!numerics.contains(numeric))
+            return;
+        
+        QuerySession target = null;
+        int kind = -1;
+        boolean finished = false;
+        
+        synchronized(liveQueries) {
+            for(QuerySession session : liveQueries) {
+                kind = classify(session.type, numeric);
+                if(kind != -1 && session.type.isAbout(event) && session.isWaitingOn(session.type.getSubject(event))) {
+                    target = session;
+                    break;
+                }
+            }
+            
+            if(target == null)
+                return; // not something we asked for
+            
+            if(target.closing)
+                target.stopClosing(); // the optional end came after all
+            
+            if(kind == KIND_END) {
+                finished = target.subjectEnded(target.type.getSubject(event));
+            } else if(kind == KIND_TERMINAL_ERROR) {
+                finished = true;
+            } else if(kind == KIND_REPLY && QueryType.contains(target.type.getClosingReplyNumerics(), numeric)) {
+                startClosing(target, event);
+            }
+            
+            if(finished) {
+                liveQueries.remove(target);
+                if(target.pendingTimeout != null)
+                    target.pendingTimeout.cancel();
+            }
+        }
+        
+        // tell the listeners outside of our lock, since they may well send more queries
+        for(QueryListener listener : new Vector<QueryListener>(target.listeners)) {
+            if(kind == KIND_REPLY)
+                listener.addReply(event);
+            else if(kind == KIND_ERROR || kind == KIND_TERMINAL_ERROR)
+                listener.addError(event);
+            
+            if(finished)
+                listener.finish(event);
+        }
+    }
+    
+    /**
+     * Takes the queries that were left open by a closing reply and whose 
+     * optional end numeric is not the given numeric, ending the subject each
+     * was closing.
+     *
+     * @param event The numeric that arrived after the closing replies.
+     * @return The queries this finishes, which are no longer live.
+     */
+    private Vector<QuerySession> takeClosedQueries(IRCNumericEvent event) {
+        Vector<QuerySession> finished = new Vector();
+        
+        synchronized(liveQueries) {
+            for(QuerySession session : new Vector<QuerySession>(liveQueries)) {
+                if(!session.closing || isClosingEnd(session, event))
+                    continue;
+                
+                if(endClosedSubject(session))
+                    finished.add(session);
+            }
+        }
+        
+        return finished;
+    }
+    
+    /**
+     * Determines if a numeric is the end a closing reply may be followed by.
+     */
+    private boolean isClosingEnd(QuerySession session, IRCNumericEvent event) {
+        if(classify(session.type, event.getNumeric()) != KIND_END || !session.type.isAbout(event))
+            return false;
+        
+        String subject = session.type.getSubject(event);
+        return subject == null || session.closingSubject == null || toKey(subject).equals(toKey(session.closingSubject));
+    }
+    
+    /**
+     * Leaves a query open after a closing reply, in case its end numeric
+     * follows. The caller must hold the lock on the live queries.
+     */
+    private void startClosing(final QuerySession session, IRCNumericEvent reply) {
+        session.stopClosing();
+        session.closing = true;
+        session.closingReply = reply;
+        session.closingSubject = session.type.getSubject(reply);
+        session.closingTimeout = timer.schedule(new Runnable() {
+            public void run() {
+                closingTimedOut(session);
+            }
+        }, CLOSING_GRACE);
+    }
+    
+    /**
+     * Ends the subject a closing reply was about, now that its end numeric
+     * isn't coming. The caller must hold the lock on the live queries.
+     *
+     * @return True if this finishes the whole query, which is then no longer live.
+     */
+    private boolean endClosedSubject(QuerySession session) {
+        session.stopClosing();
+        if(!session.subjectEnded(session.closingSubject))
+            return false;
+        
+        liveQueries.remove(session);
+        if(session.pendingTimeout != null)
+            session.pendingTimeout.cancel();
+        return true;
+    }
+    
+    /**
+     * Finishes a query whose optional end numeric never arrived.
+     */
+    private void closingTimedOut(QuerySession session) {
+        synchronized(liveQueries) {
+            if(!session.closing || !liveQueries.contains(session) || !endClosedSubject(session))
+                return;
+        }
+        
+        for(QueryListener listener : new Vector<QueryListener>(session.listeners))
+            listener.finish(session.closingReply);
+    }
+    
+    /**
+     * Determines what part a numeric plays in a type of query, or -1 if it
+     * plays none.
+     */
+    private static int classify(QueryType type, int numeric) {
+        if(QueryType.contains(type.getReplyNumerics(), numeric))
+            return KIND_REPLY;
+        if(QueryType.contains(type.getEndNumerics(), numeric))
+            return KIND_END;
+        if(QueryType.contains(type.getErrorNumerics(), numeric))
+            return KIND_ERROR;
+        if(QueryType.contains(type.getTerminalErrorNumerics(), numeric))
+            return KIND_TERMINAL_ERROR;
+        return -1;
+    }
+    
+    /**
+     * Drops a query that the server took too long to answer.
+     */
+    private void timedOut(QuerySession session) {
+        if(!liveQueries.remove(session))
+            return; // it finished just in time
+        
+        session.stopClosing();
+        for(QueryListener listener : new Vector<QueryListener>(session.listeners))
+            listener.onTimeout();
+    }
+    
+    private class QuerySession {
+        public QueryType type;
+        public EncapsulatedIRCCommand command;
+        public Vector<QueryListener> listeners = new Vector();
+        public Set<String> pendingSubjects = new HashSet(); // keys of subjects that haven't seen an end numeric
+        public boolean bySubject;
+        public long timeout;
+        public Timeout pendingTimeout;
+        public boolean closing; // a closing reply arrived and its end numeric may or may not follow
+        public IRCNumericEvent closingReply;
+        public String closingSubject;
+        public Timeout closingTimeout;
+        
+        /**
+         * Sets up the subjects this query is waiting on, from the command
+         * as it was actually sent.
+         */
+        public void setSubjects(Collection<String> subjects) {
+            for(String subject : subjects) {
+                if(subject != null)
+                    pendingSubjects.add(toKey(subject));
+            }
+            bySubject = !pendingSubjects.isEmpty();
+        }
+        
+        /**
+         * Determines if a reply naming the given subject(s) could be for 
+         * this query.
+         */
+        public boolean isWaitingOn(String subject) {
+            if(!bySubject || subject == null)
+                return true;
+            
+            for(String s : subject.split(",")) {
+                if(pendingSubjects.contains(toKey(s)))
+                    return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Marks the given subject(s) as finished, returning true if that
+         * finishes the whole query.
+         */
+        public boolean subjectEnded(String subject) {
+            if(!bySubject || subject == null)
+                return true;
+            
+            for(String s : subject.split(","))
+                pendingSubjects.remove(toKey(s));
+            return pendingSubjects.isEmpty();
+        }
+        
+        /**
+         * Stops waiting on the end numeric after a closing reply.
+         */
+        public void stopClosing() {
+            closing = false;
+            if(closingTimeout != null) {
+                closingTimeout.cancel();
+                closingTimeout = null;
+            }
+        }
+    }
+    
+    private class QueryCommandListener extends OutboundCommandEventListener {
+        public QuerySession session;
+        
+        public QueryCommandListener(QuerySession session) {
+            this.session = session;
+        }
+        
+        public void onCommandTypeChange() {
+            onDrop();
+        }
+        
+        public void onCommandReferenceChange() {
+            // let command type change handle it
+        }    
+        
+        public void onDrop() {
+            // remove from wait list and mark as canceled (premature removal)
+            waitingQueries.remove(session);
+            for(QueryListener listener : new Vector<QueryListener>(session.listeners))
+                listener.onCancel();
+        }
+        
+        public void onSent() {
+            // remove from wait list
+            waitingQueries.remove(session);
+            
+            session.setSubjects(session.type.getSubjects(session.command.getCommand()));
+            
+            // add to the end of the expecting queue
+            synchronized(liveQueries) {
+                liveQueries.add(session);
+                if(session.timeout > 0) {
+                    session.pendingTimeout = timer.schedule(new Runnable() {
+                        public void run() {
+                            timedOut(session);
+                        }
+                    }, session.timeout);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This listener is used for queries handled by the PipelinedQueryProcessor
+ * (WHOIS, NAMES, mode lists, LIST, USERHOST and TOPIC). It collects every
+ * numeric that belongs to the query, so in onFinished() you have the whole
+ * answer at hand.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.util.ArrayList;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class QueryListener extends AbstractCommandQueryListener {
+    private ArrayList<IRCNumericEvent> replies;
+    private ArrayList<IRCNumericEvent> errors;
+    private IRCNumericEvent end;
+    
+    public QueryListener() {
+        replies = new ArrayList();
+        errors = new ArrayList();
+    }
+    
+    /**
+     * Used by the query processor to add a reply to this query listener,
+     * which adds it to the internal list and calls the onReply event.
+     */
+    protected void addReply(IRCNumericEvent reply) {
+        replies.add(reply);
+        onReply(reply);
+    }
+    
+    /**
+     * Used by the query processor to add an error to this query listener,
+     * which adds it to the internal list and calls the onError event.
+     */
+    protected void addError(IRCNumericEvent error) {
+        errors.add(error);
+        onError(error);
+    }
+    
+    /**
+     * Used by the query processor to finish this query.
+     */
+    protected void finish(IRCNumericEvent end) {
+        this.end = end;
+        onFinished(end);
+    }
+    
+    /**
+     * Occurs for each reply from the server related to our query.
+     */
+    public void onReply(IRCNumericEvent reply) {
+        
+    }
+    
+    /**
+     * Occurs for each error from the server related to our query. If the
+     * error ends the query, onFinished() follows with the same numeric.
+     */
+    public void onError(IRCNumericEvent error) {
+        
+    }
+    
+    /**
+     * Occurs when the server has finished answering our query.
+     *
+     * @param end The numeric that ended the query, which is an error numeric if the query failed outright.
+     */
+    public void onFinished(IRCNumericEvent end) {
+        
+    }
+    
+    /**
+     * Occurs when the server did not finish answering our query in time.
+     * Whatever replies did arrive are still available from getReplies().
+     */
+    public void onTimeout() {
+        
+    }
+    
+    /**
+     * Returns a list of all replies received thus far to our query. If you
+     * use this in the onFinished event, you will receive all query replies.
+     */
+    public ArrayList<IRCNumericEvent> getReplies() {
+        return replies;
+    }
+    
+    /**
+     * Returns a list of all errors received thus far to our query.
+     */
+    public ArrayList<IRCNumericEvent> getErrors() {
+        return errors;
+    }
+    
+    /**
+     * Returns the numeric that ended our query, or null if it hasn't ended.
+     */
+    public IRCNumericEvent getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,546 @@
+/**
+ * This caches what WHOIS, USERHOST, WHO and WHOX queries tell us about users,
+ * so that asking about the same user over and over (as plugins love to do
+ * with account names, realnames and idle times) doesn't mean sending a query
+ * each time.
+ *
+ * Users are keyed by casemapped nickname, and each field of what we know
+ * about them has its own time to live: a hostmask stays good for a long
+ * time, while an idle time goes stale almost immediately. A lookup whose
+ * fields are all fresh is answered at once without sending anything. One
+ * that isn't joins a query already in flight for that user if that query
+ * will answer it, or else sends the cheapest query that will (USERHOST, then
+ * WHOX or WHO, then WHOIS).
+ *
+ * Everything known about a user is forgotten when they change nicknames,
+ * quit or are killed. Anything else that learns a field has changed (such as
+ * the Tracker noticing a user went away) should call invalidate().
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.outbound.commands.basic.IRCUserhostCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCWhoCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCWhoisCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCWhoXCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.WhoXSearchOptions;
+import com.packethammer.vaquero.parser.IRCEventListener;
+import com.packethammer.vaquero.parser.IRCParser;
+import com.packethammer.vaquero.parser.events.IRCEvent;
+import com.packethammer.vaquero.parser.events.basic.IRCNickChangeEvent;
+import com.packethammer.vaquero.parser.events.basic.IRCQuitEvent;
+import com.packethammer.vaquero.parser.events.server.IRCKillEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfWhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.UserHostReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoXReply;
+import com.packethammer.vaquero.util.Hostmask;
+
+public class QueryResultCache {
+    /** The default number of users information is kept for; the least recently used are forgotten first */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // the fields each kind of query tells us, as bit masks
+    private static final int COVERS_USERHOST = bit(CachedUserInfo.FIELD_HOSTMASK) | bit(CachedUserInfo.FIELD_AWAY) | bit(CachedUserInfo.FIELD_OPERATOR);
+    private static final int COVERS_WHO = COVERS_USERHOST | bit(CachedUserInfo.FIELD_REALNAME) | bit(CachedUserInfo.FIELD_SERVER);
+    private static final int COVERS_WHOX = COVERS_WHO | bit(CachedUserInfo.FIELD_ACCOUNT);
+    private static final int COVERS_WHOIS = (1 << CachedUserInfo.FIELD_COUNT) - 1;
+
+    private Dispatcher dispatcher;
+    private IRCParser parser;
+    private WhoXSearchOptions whoXOptions;
+    private long[] timesToLive;
+    private int maxEntries;
+
+    private LinkedHashMap<String, CachedUserInfo> entries; // key = casemapped nickname, in order of last use
+    private HashMap<String, Lookup> inFlight; // key = casemapped nickname
+
+    private long hits;
+    private long misses;
+    private long joins;
+
+    /**
+     * Initializes this cache with the dispatcher to send its queries
+     * through.
+     *
+     * @param dispatcher The dispatcher to use.
+     */
+    public QueryResultCache(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.parser = dispatcher.getParser();
+        this.maxEntries = DEFAULT_MAX_ENTRIES;
+        this.inFlight = new HashMap();
+        this.entries = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        this.timesToLive = new long[CachedUserInfo.FIELD_COUNT];
+        timesToLive[CachedUserInfo.FIELD_HOSTMASK] = 10 * 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_REALNAME] = 10 * 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_ACCOUNT] = 5 * 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_AWAY] = 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_OPERATOR] = 5 * 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_SERVER] = 10 * 60 * 1000;
+        timesToLive[CachedUserInfo.FIELD_IDLE] = 15 * 1000;
+        timesToLive[CachedUserInfo.FIELD_CHANNELS] = 30 * 1000;
+
+        this.whoXOptions = new WhoXSearchOptions(new char[] { WhoXSearchOptions.SEARCHFLAG_NICK }, new char[] {
+            WhoXSearchOptions.SEARCHFIELD_NICK,
+            WhoXSearchOptions.SEARCHFIELD_IDENT,
+            WhoXSearchOptions.SEARCHFIELD_HOSTNAME,
+            WhoXSearchOptions.SEARCHFIELD_REALNAME,
+            WhoXSearchOptions.SEARCHFIELD_ACCOUNTNAME,
+            WhoXSearchOptions.SEARCHFIELD_INFOFLAGS,
+            WhoXSearchOptions.SEARCHFIELD_SERVER
+        });
+
+        hookEvents();
+    }
+
+    private static int bit(int field) {
+        return 1 << field;
+    }
+
+    /**
+     * Hooks the events that make what we know about a user worthless.
+     */
+    private void hookEvents() {
+        parser.getEventDistributor().addHardEventListener(IRCNickChangeEvent.class, new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                IRCNickChangeEvent n = (IRCNickChangeEvent) e;
+                invalidate(n.getSource().getNickname());
+                invalidate(n.getNewNickname());
+            }
+        });
+
+        parser.getEventDistributor().addHardEventListener(IRCQuitEvent.class, new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                invalidate(e.getSource().getNickname());
+            }
+        });
+
+        parser.getEventDistributor().addHardEventListener(IRCKillEvent.class, new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                invalidate(((IRCKillEvent) e).getTarget());
+            }
+        });
+    }
+
+    /**
+     * Looks up information about a user. If every field asked for is fresh
+     * in the cache, the listener is called before this returns.
+     *
+     * @param nickname The user's nickname.
+     * @param fields The fields wanted (see the FIELD_* constants of CachedUserInfo).
+     * @param listener The listener to give the result to.
+     * @throws IllegalArgumentException If a field is not valid.
+     */
+    public void lookup(String nickname, int[] fields, CachedLookupListener listener) {
+        String key = casemap(nickname);
+        CachedUserInfo answer = null;
+        Lookup send = null;
+
+        synchronized(this) {
+            CachedUserInfo info = entries.get(key);
+
+            int needed = 0;
+            for(int field : fields) {
+                if(field < 0 || field >= CachedUserInfo.FIELD_COUNT)
+                    throw new IllegalArgumentException("No such field as " + field);
+                if(info == null || !info.isFresh(field, timesToLive[field]))
+                    needed |= bit(field);
+            }
+
+            if(needed == 0 && info != null) {
+                hits++;
+                answer = info.copy();
+            } else {
+                misses++;
+
+                Lookup flying = inFlight.get(key);
+                if(flying != null && (flying.covers & needed) == needed) {
+                    // it'll answer us too
+                    joins++;
+                    flying.listeners.add(listener);
+                } else {
+                    send = new Lookup(nickname, getCheapestQuery(needed));
+                    send.listeners.add(listener);
+                    inFlight.put(key, send);
+                }
+            }
+        }
+
+        if(answer != null)
+            listener.onResult(answer, true);
+        else if(send != null)
+            send(send);
+    }
+
+    /**
+     * Returns the fields covered by the cheapest query that tells us all the
+     * needed fields.
+     */
+    private int getCheapestQuery(int needed) {
+        if((needed & COVERS_USERHOST) == needed)
+            return COVERS_USERHOST;
+        if(parser.getServerContext().getISupport().isWhoXSupported() && (needed & COVERS_WHOX) == needed)
+            return COVERS_WHOX;
+        if((needed & COVERS_WHO) == needed)
+            return COVERS_WHO;
+
+        return COVERS_WHOIS;
+    }
+
+    /**
+     * Sends the query for a lookup.
+     */
+    private void send(final Lookup lookup) {
+        final String nickname = lookup.nickname;
+
+        if(lookup.covers == COVERS_USERHOST) {
+            dispatcher.performQuery(new IRCUserhostCommand(nickname), new QueryListener() {
+                public void onFinished(IRCNumericEvent end) {
+                    boolean found = false;
+                    if(end.getNumeric() == IRCNumericEvent.RPL_USERHOST && end.numericArgumentCount() > 0) {
+                        for(String item : end.getNumericArg(0).split(" ")) {
+                            Matcher m = UserHostReply.matchPattern.matcher(item);
+                            if(m.matches() && casemap(m.group(1)).equals(casemap(nickname))) {
+                                synchronized(QueryResultCache.this) {
+                                    CachedUserInfo info = getEntry(nickname);
+                                    info.set(CachedUserInfo.FIELD_HOSTMASK, new Hostmask(m.group(1), m.group(4), m.group(5)));
+                                    info.set(CachedUserInfo.FIELD_OPERATOR, m.group(2).length() > 0);
+                                    setAway(info, m.group(3).equals("-"), null);
+                                }
+                                found = true;
+                            }
+                        }
+                    }
+                    complete(lookup, found);
+                }
+
+                public void onTimeout() {
+                    complete(lookup, false);
+                }
+
+                public void onCancel() {
+                    complete(lookup, false);
+                }
+            });
+        } else if(lookup.covers == COVERS_WHOX) {
+            dispatcher.performWhoXQuery(new IRCWhoXCommand(nickname, whoXOptions), new WhoXQueryListener() {
+                public void onReply(WhoXReply reply) {
+                    if(casemap(reply.getNickname()).equals(casemap(nickname))) {
+                        synchronized(QueryResultCache.this) {
+                            CachedUserInfo info = getEntry(nickname);
+                            info.set(CachedUserInfo.FIELD_HOSTMASK, reply.getInfoAsHostmask());
+                            info.set(CachedUserInfo.FIELD_REALNAME, reply.getRealname());
+                            info.set(CachedUserInfo.FIELD_ACCOUNT, reply.getAccountName());
+                            info.set(CachedUserInfo.FIELD_OPERATOR, reply.isOperator());
+                            info.set(CachedUserInfo.FIELD_SERVER, reply.getServer());
+                            setAway(info, reply.isAway(), null);
+                        }
+                        lookup.found = true;
+                    }
+                }
+
+                public void onFinished(EndOfWhoReply end) {
+                    complete(lookup, lookup.found);
+                }
+
+                public void onCancel() {
+                    complete(lookup, false);
+                }
+            });
+        } else if(lookup.covers == COVERS_WHO) {
+            dispatcher.performWhoQuery(new IRCWhoCommand(nickname), new WhoQueryListener() {
+                public void onReply(WhoReply reply) {
+                    if(casemap(reply.getNickname()).equals(casemap(nickname))) {
+                        synchronized(QueryResultCache.this) {
+                            CachedUserInfo info = getEntry(nickname);
+                            info.set(CachedUserInfo.FIELD_HOSTMASK, reply.getInfoAsHostmask());
+                            info.set(CachedUserInfo.FIELD_REALNAME, reply.getRealname());
+                            info.set(CachedUserInfo.FIELD_OPERATOR, reply.isOperator());
+                            info.set(CachedUserInfo.FIELD_SERVER, reply.getServerName());
+                            setAway(info, reply.isAway(), null);
+                        }
+                        lookup.found = true;
+                    }
+                }
+
+                public void onFinished(EndOfWhoReply end) {
+                    complete(lookup, lookup.found);
+                }
+
+                public void onCancel() {
+                    complete(lookup, false);
+                }
+            });
+        } else {
+            dispatcher.performQuery(new IRCWhoisCommand(nickname), new QueryListener() {
+                public void onFinished(IRCNumericEvent end) {
+                    complete(lookup, end.getNumeric() == IRCNumericEvent.RPL_ENDOFWHOIS && storeWhois(nickname, this));
+                }
+
+                public void onTimeout() {
+                    complete(lookup, false);
+                }
+
+                public void onCancel() {
+                    complete(lookup, false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stores what a WHOIS told us. Returns false if it didn't find the user.
+     * Anything WHOIS would have mentioned but didn't (an account, an away
+     * message, operator status) is taken to be absent.
+     */
+    private boolean storeWhois(String nickname, QueryListener whois) {
+        String user = null, host = null, realname = null, server = null, account = null, away = null;
+        Integer idle = null;
+        String[] channels = new String[0];
+        boolean operator = false;
+
+        for(IRCNumericEvent reply : whois.getReplies()) {
+            int numeric = reply.getNumeric();
+            if(numeric == IRCNumericEvent.RPL_WHOISUSER && reply.numericArgumentCount() >= 5) {
+                user = reply.getNumericArg(1);
+                host = reply.getNumericArg(2);
+                realname = reply.getNumericArg(4);
+            } else if(numeric == IRCNumericEvent.RPL_WHOISSERVER && reply.numericArgumentCount() >= 2) {
+                server = reply.getNumericArg(1);
+            } else if(numeric == IRCNumericEvent.RPL_WHOISOPERATOR) {
+                operator = true;
+            } else if(numeric == IRCNumericEvent.RPL_WHOISIDLE && reply.numericArgumentCount() >= 2) {
+                try {
+                    idle = Integer.parseInt(reply.getNumericArg(1));
+                } catch (NumberFormatException ex) {
+                    // leave it unknown
+                }
+            } else if(numeric == IRCNumericEvent.RPL_WHOISCHANNELS && reply.numericArgumentCount() >= 2) {
+                channels = reply.getNumericArg(1).trim().split(" ");
+            } else if(numeric == IRCNumericEvent.RPL_WHOISACCOUNT && reply.numericArgumentCount() >= 2) {
+                account = reply.getNumericArg(1);
+            } else if(numeric == IRCNumericEvent.RPL_AWAY && reply.numericArgumentCount() >= 2) {
+                away = reply.getNumericArg(1);
+            }
+        }
+
+        if(user == null)
+            return false; // no such user
+
+        synchronized(this) {
+            CachedUserInfo info = getEntry(nickname);
+            info.set(CachedUserInfo.FIELD_HOSTMASK, new Hostmask(nickname, user, host));
+            info.set(CachedUserInfo.FIELD_REALNAME, realname);
+            info.set(CachedUserInfo.FIELD_SERVER, server);
+            info.set(CachedUserInfo.FIELD_OPERATOR, operator);
+            info.set(CachedUserInfo.FIELD_ACCOUNT, account);
+            info.set(CachedUserInfo.FIELD_CHANNELS, channels);
+            if(idle != null)
+                info.set(CachedUserInfo.FIELD_IDLE, idle);
+            setAway(info, away != null, away);
+        }
+
+        return true;
+    }
+
+    private static void setAway(CachedUserInfo info, boolean away, String message) {
+        info.set(CachedUserInfo.FIELD_AWAY, away);
+        info.setAwayMessage(message);
+    }
+
+    /**
+     * Returns the cache entry for a user, making one if there isn't one.
+     * Hold the lock on this cache for as long as the entry is being updated,
+     * so that nobody copies it halfway through.
+     */
+    private synchronized CachedUserInfo getEntry(String nickname) {
+        String key = casemap(nickname);
+        CachedUserInfo info = entries.get(key);
+        if(info == null) {
+            info = new CachedUserInfo(nickname);
+            entries.put(key, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * Finishes a lookup, handing the result to everyone waiting on it.
+     */
+    private void complete(Lookup lookup, boolean found) {
+        String key = casemap(lookup.nickname);
+        Vector<CachedLookupListener> listeners;
+        Vector<CachedUserInfo> results = new Vector();
+
+        synchronized(this) {
+            if(inFlight.get(key) == lookup)
+                inFlight.remove(key);
+            if(lookup.completed)
+                return;
+            lookup.completed = true;
+
+            listeners = lookup.listeners;
+            CachedUserInfo info = entries.get(key);
+            if(found && info != null) {
+                for(int x = 0; x < listeners.size(); x++)
+                    results.add(info.copy()); // each gets their own, taken while nothing can be writing to it
+            }
+        }
+
+        for(int x = 0; x < listeners.size(); x++) {
+            if(!results.isEmpty())
+                listeners.get(x).onResult(results.get(x), false);
+            else
+                listeners.get(x).onFailed(lookup.nickname);
+        }
+    }
+
+    /**
+     * Forgets everything known about a user.
+     *
+     * @param nickname The user's nickname.
+     */
+    public synchronized void invalidate(String nickname) {
+        entries.remove(casemap(nickname));
+    }
+
+    /**
+     * Forgets one field of what is known about a user.
+     *
+     * @param nickname The user's nickname.
+     * @param field The field to forget (see the FIELD_* constants of CachedUserInfo).
+     */
+    public synchronized void invalidate(String nickname, int field) {
+        CachedUserInfo info = entries.get(casemap(nickname));
+        if(info != null)
+            info.forget(field);
+    }
+
+    /**
+     * Forgets everything about everyone.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns a copy of what is known about a user, however old, or null if
+     * nothing is known. This never sends a query.
+     *
+     * @param nickname The user's nickname.
+     */
+    public synchronized CachedUserInfo getCachedInfo(String nickname) {
+        CachedUserInfo info = entries.get(casemap(nickname));
+        return info == null ? null : info.copy();
+    }
+
+    /**
+     * Returns the number of milliseconds a field stays fresh after it is
+     * learned.
+     *
+     * @param field One of the FIELD_* constants of CachedUserInfo.
+     */
+    public synchronized long getTimeToLive(int field) {
+        return timesToLive[field];
+    }
+
+    /**
+     * Sets the number of milliseconds a field stays fresh after it is
+     * learned. A time of 0 means the field is always looked up.
+     *
+     * @param field One of the FIELD_* constants of CachedUserInfo.
+     * @param timeToLive The time to live in milliseconds.
+     * @throws IllegalArgumentException If the time is negative.
+     */
+    public synchronized void setTimeToLive(int field, long timeToLive) {
+        if(timeToLive < 0)
+            throw new IllegalArgumentException("The time to live cannot be negative!");
+
+        timesToLive[field] = timeToLive;
+    }
+
+    /**
+     * Returns the most users information is kept for at once.
+     */
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @see #getMaxEntries()
+     * @throws IllegalArgumentException If the number is less than one.
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        if(maxEntries < 1)
+            throw new IllegalArgumentException("The cache must be able to hold at least one user!");
+
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the number of users information is kept for.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered straight from the cache.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that could not be answered from the
+     * cache, whether they sent a query or joined one in flight.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of query lines the cache saved us from sending:
+     * every hit, and every miss that joined a query already in flight.
+     */
+    public synchronized long getSavedLineCount() {
+        return hits + joins;
+    }
+
+    private String casemap(String s) {
+        return parser.getServerContext().casemapString(s).toLowerCase().toString();
+    }
+
+    public synchronized String toString() {
+        return "ENTRIES:" + entries.size() + " HITS:" + hits + " MISSES:" + misses + " SAVED:" + (hits + joins);
+    }
+
+    /**
+     * A query in flight for one user, and everyone waiting on it.
+     */
+    private class Lookup {
+        public String nickname;
+        public int covers;
+        public boolean found;
+        public boolean completed;
+        public Vector<CachedLookupListener> listeners = new Vector();
+
+        public Lookup(String nickname, int covers) {
+            this.nickname = nickname;
+            this.covers = covers;
+        }
+    }
+}
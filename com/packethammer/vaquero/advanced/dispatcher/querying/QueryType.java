@@ -0,0 +1,344 @@
+/**
+ * A query type describes one kind of informational request (such as WHOIS or
+ * NAMES) well enough for the PipelinedQueryProcessor to pick its replies out
+ * of everything the server sends us. It lists:
+ *   - The reply numerics, which carry the answer and may come many times.
+ *   - The end numerics, which say the answer is complete.
+ *   - The error numerics, which say something went wrong but the end
+ *     numeric is still on its way (such as no-such-nick before end-of-WHOIS).
+ *   - The terminal error numerics, which are sent in place of an answer.
+ *
+ * Most replies name what they are about (a nickname or a channel), which is
+ * called the subject here. Replies are matched to the oldest query in flight
+ * that asked about that subject, so several queries of the same type can be
+ * out at once, and replies we didn't ask for (such as the NAMES list sent
+ * when we join a channel) are left alone unless a query is waiting on that
+ * same subject. Query types whose replies do not name a subject (LIST and
+ * USERHOST) are answered strictly in the order they were sent.
+ *
+ * The standard query types are kept as constants on this class. You can
+ * describe others by subclassing it and registering the subclass with the
+ * query processor.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCUserhostCommand;
+import com.packethammer.vaquero.outbound.commands.basic.IRCWhoisCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCChannelModeCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCListCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCNamesCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCTopicCommand;
+import com.packethammer.vaquero.outbound.commands.interfaces.ChannelsTargetedCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
+import com.packethammer.vaquero.util.modes.StandardMode;
+import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+
+public abstract class QueryType {
+    /** ERR_TOOMANYMATCHES, which some servers send in place of a LIST that would be too long */
+    public static final int ERR_TOOMANYMATCHES = 416;
+    
+    /** WHOIS, answered by 301/311/312/313/317/319/330 for each nickname and ended by 318 */
+    public static final QueryType WHOIS = new QueryType("WHOIS",
+            new int[] { IRCNumericEvent.RPL_AWAY, IRCNumericEvent.RPL_WHOISUSER, IRCNumericEvent.RPL_WHOISSERVER, 
+                        IRCNumericEvent.RPL_WHOISOPERATOR, IRCNumericEvent.RPL_WHOISIDLE, IRCNumericEvent.RPL_WHOISCHANNELS, 
+                        IRCNumericEvent.RPL_WHOISACCOUNT },
+            new int[] { IRCNumericEvent.RPL_ENDOFWHOIS },
+            new int[] { IRCNumericEvent.ERR_NOSUCHNICK },
+            new int[] { IRCNumericEvent.ERR_NOSUCHSERVER, IRCNumericEvent.ERR_NONICKNAMEGIVEN }) {
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            return command instanceof IRCWhoisCommand;
+        }
+    };
+    
+    /** NAMES, answered by 353 and ended by 366 for each channel */
+    public static final QueryType NAMES = new QueryType("NAMES",
+            new int[] { IRCNumericEvent.RPL_NAMREPLY },
+            new int[] { IRCNumericEvent.RPL_ENDOFNAMES },
+            new int[0],
+            new int[0]) {
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            return command instanceof IRCNamesCommand;
+        }
+        
+        public String getSubject(IRCNumericEvent event) {
+            // RPL_NAMREPLY has the channel type before the channel name, except on some old servers
+            if(event.getNumeric() == IRCNumericEvent.RPL_NAMREPLY && event.numericArgumentCount() >= 3)
+                return event.getNumericArg(1);
+            return event.getNumericArg(0);
+        }
+    };
+    
+    /** A channel's ban list, answered by 367 and ended by 368 */
+    public static final QueryType BAN_LIST = new ModeListQueryType("ban list",
+            IRCNumericEvent.RPL_BANLIST, IRCNumericEvent.RPL_ENDOFBANLIST) {
+        protected boolean isListMode(IRCServerContext context, char mode) {
+            return mode == ChannelMode.MODE_BAN;
+        }
+    };
+    
+    /** A channel's ban exception list, answered by 348 and ended by 349 */
+    public static final QueryType EXCEPT_LIST = new ModeListQueryType("ban exception list",
+            IRCNumericEvent.RPL_EXCEPTLIST, IRCNumericEvent.RPL_ENDOFEXCEPTLIST) {
+        protected boolean isListMode(IRCServerContext context, char mode) {
+            ChannelModeDefinition def = context.getISupport().getChannelModeByChar(mode);
+            return def != null ? def.isBanExceptionMode() : mode == 'e';
+        }
+    };
+    
+    /** A channel's invite exception list, answered by 346 and ended by 347 */
+    public static final QueryType INVEX_LIST = new ModeListQueryType("invite exception list",
+            IRCNumericEvent.RPL_INVITELIST, IRCNumericEvent.RPL_ENDOFINVITELIST) {
+        protected boolean isListMode(IRCServerContext context, char mode) {
+            ChannelModeDefinition def = context.getISupport().getChannelModeByChar(mode);
+            return def != null ? def.isInviteExceptionMode() : mode == 'I';
+        }
+    };
+    
+    /** LIST, answered by 321 and 322 and ended by 323; answered in order, since 323 names no channel */
+    public static final QueryType LIST = new QueryType("LIST",
+            new int[] { IRCNumericEvent.RPL_LISTSTART, IRCNumericEvent.RPL_LIST },
+            new int[] { IRCNumericEvent.RPL_LISTEND },
+            new int[0],
+            new int[] { IRCNumericEvent.RPL_TRYAGAIN, ERR_TOOMANYMATCHES }) {
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            return command instanceof IRCListCommand;
+        }
+        
+        public Collection<String> getSubjects(IRCCommand command) {
+            return new ArrayList(); // the channels may be masks, and the end doesn't name them anyway
+        }
+        
+        public String getSubject(IRCNumericEvent event) {
+            return null;
+        }
+        
+        public boolean isAbout(IRCNumericEvent event) {
+            // try again is sent for any command the server is rate limiting; make sure it's about ours
+            return event.getNumeric() != IRCNumericEvent.RPL_TRYAGAIN || "LIST".equalsIgnoreCase(event.getNumericArg(0));
+        }
+    };
+    
+    /** USERHOST, answered and ended by a single 302; answered in order */
+    public static final QueryType USERHOST = new QueryType("USERHOST",
+            new int[0],
+            new int[] { IRCNumericEvent.RPL_USERHOST },
+            new int[0],
+            new int[] { IRCNumericEvent.ERR_NEEDMOREPARAMS }) {
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            return command instanceof IRCUserhostCommand;
+        }
+        
+        public Collection<String> getSubjects(IRCCommand command) {
+            return new ArrayList(); // the reply leaves out nicknames that don't exist
+        }
+        
+        public String getSubject(IRCNumericEvent event) {
+            return null;
+        }
+        
+        public boolean isAbout(IRCNumericEvent event) {
+            // not enough parameters is sent for any command; make sure it's about ours
+            return event.getNumeric() != IRCNumericEvent.ERR_NEEDMOREPARAMS || "USERHOST".equalsIgnoreCase(event.getNumericArg(0));
+        }
+    };
+    
+    /** 
+     * A TOPIC request, answered by 332 and ended by 333, or by 331 if there is
+     * no topic. Many servers never send 333, so 332 may end it by itself.
+     */
+    public static final QueryType TOPIC = new QueryType("TOPIC",
+            new int[] { IRCNumericEvent.RPL_TOPIC },
+            new int[] { IRCNumericEvent.RPL_NOTOPIC, IRCNumericEvent.RPL_TOPICWHOTIME },
+            new int[0],
+            new int[] { IRCNumericEvent.ERR_NOSUCHCHANNEL, IRCNumericEvent.ERR_NOTONCHANNEL }) {
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            return command instanceof IRCTopicCommand && ((IRCTopicCommand) command).getMessage() == null;
+        }
+        
+        public int[] getClosingReplyNumerics() {
+            return new int[] { IRCNumericEvent.RPL_TOPIC };
+        }
+    };
+    
+    private String name;
+    private int[] replyNumerics;
+    private int[] endNumerics;
+    private int[] errorNumerics;
+    private int[] terminalErrorNumerics;
+    
+    /**
+     * Initializes this query type with the numerics that make up its replies.
+     *
+     * @param name A readable name for this type of query.
+     * @param replyNumerics The numerics that carry the answer.
+     * @param endNumerics The numerics that end the answer.
+     * @param errorNumerics The numerics that report an error before the end numeric.
+     * @param terminalErrorNumerics The numerics that report an error in place of an answer.
+     */
+    public QueryType(String name, int[] replyNumerics, int[] endNumerics, int[] errorNumerics, int[] terminalErrorNumerics) {
+        this.name = name;
+        this.replyNumerics = replyNumerics;
+        this.endNumerics = endNumerics;
+        this.errorNumerics = errorNumerics;
+        this.terminalErrorNumerics = terminalErrorNumerics;
+    }
+    
+    /**
+     * Returns all of the standard query types.
+     */
+    public static List<QueryType> getStandardTypes() {
+        List<QueryType> types = new ArrayList();
+        types.add(WHOIS);
+        types.add(NAMES);
+        types.add(BAN_LIST);
+        types.add(EXCEPT_LIST);
+        types.add(INVEX_LIST);
+        types.add(LIST);
+        types.add(USERHOST);
+        types.add(TOPIC);
+        return types;
+    }
+    
+    /**
+     * Determines if a command is a query of this type.
+     *
+     * @param context The server context of the connection.
+     * @param command The command.
+     * @return True if this type describes the command's replies.
+     */
+    public abstract boolean handles(IRCServerContext context, IRCCommand command);
+    
+    /**
+     * Returns the subjects (nicknames or channels) a query is about. Each of
+     * them must see an end numeric before the query is finished. By default,
+     * these are the nicknames or channels the command targets.
+     *
+     * @param command The query command, as it was sent.
+     * @return The subjects, which may be empty if the replies are to be matched by order alone.
+     */
+    public Collection<String> getSubjects(IRCCommand command) {
+        if(command instanceof NicknamesTargetedCommandI)
+            return ((NicknamesTargetedCommandI) command).getNicknames();
+        if(command instanceof ChannelsTargetedCommandI)
+            return ((ChannelsTargetedCommandI) command).getChannels();
+        return new ArrayList();
+    }
+    
+    /**
+     * Returns the subject a numeric is about. By default, this is the first
+     * argument of the numeric. End numerics may name several subjects
+     * separated by commas.
+     *
+     * @param event The numeric.
+     * @return The subject, or null if the numeric doesn't name one (in which case it goes to the oldest query).
+     */
+    public String getSubject(IRCNumericEvent event) {
+        return event.getNumericArg(0);
+    }
+    
+    /**
+     * Determines if a numeric this type listens for could be about a query of
+     * this type at all, before its subject is looked at. This is true by 
+     * default.
+     */
+    public boolean isAbout(IRCNumericEvent event) {
+        return true;
+    }
+    
+    /**
+     * Returns a readable name for this type of query.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the numerics that carry the answer to this type of query.
+     */
+    public int[] getReplyNumerics() {
+        return replyNumerics;
+    }
+    
+    /**
+     * Returns the numerics that end the answer to this type of query.
+     */
+    public int[] getEndNumerics() {
+        return endNumerics;
+    }
+    
+    /**
+     * Returns the reply numerics that may be the last thing the server sends
+     * for a subject, so that the end numeric after them is optional. If the
+     * next numeric to arrive isn't that end, the subject is taken to have
+     * ended with the reply. There are none by default.
+     */
+    public int[] getClosingReplyNumerics() {
+        return new int[0];
+    }
+    
+    /**
+     * Returns the numerics that report an error, after which the end 
+     * numeric still follows.
+     */
+    public int[] getErrorNumerics() {
+        return errorNumerics;
+    }
+    
+    /**
+     * Returns the numerics that report an error in place of an answer.
+     */
+    public int[] getTerminalErrorNumerics() {
+        return terminalErrorNumerics;
+    }
+    
+    /**
+     * Determines if a numeric appears in a list of numerics.
+     */
+    static boolean contains(int[] numerics, int numeric) {
+        for(int n : numerics) {
+            if(n == numeric)
+                return true;
+        }
+        return false;
+    }
+    
+    public String toString() {
+        return name;
+    }
+    
+    /**
+     * The shared description of channel mode list requests (such as 
+     * 'MODE #channel +b'), which differ only in the mode and numerics.
+     */
+    private static abstract class ModeListQueryType extends QueryType {
+        public ModeListQueryType(String name, int replyNumeric, int endNumeric) {
+            super(name, new int[] { replyNumeric }, new int[] { endNumeric }, new int[0],
+                    new int[] { IRCNumericEvent.ERR_NOSUCHCHANNEL, IRCNumericEvent.ERR_NOTONCHANNEL, IRCNumericEvent.ERR_CHANOPRIVSNEEDED });
+        }
+        
+        /**
+         * Determines if a mode is the one whose list this type asks for.
+         */
+        protected abstract boolean isListMode(IRCServerContext context, char mode);
+        
+        public boolean handles(IRCServerContext context, IRCCommand command) {
+            if(!(command instanceof IRCChannelModeCommand))
+                return false;
+            
+            IRCChannelModeCommand modeCmd = (IRCChannelModeCommand) command;
+            if(!modeCmd.isListRequest(context.getISupport()) || modeCmd.getModes().getModes().size() != 1)
+                return false; // the replies to several lists at once can't be told apart from one another's errors
+            
+            StandardMode mode = (StandardMode) modeCmd.getModes().getModes().get(0);
+            return isListMode(context, mode.getMode().charValue());
+        }
+    }
+}
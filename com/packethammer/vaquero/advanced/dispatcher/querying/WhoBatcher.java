@@ -0,0 +1,490 @@
+/**
+ * This collects WHO lookups for single nicknames over a short window and
+ * sends them as a few multi-target queries, instead of one WHO line per
+ * nickname. It exists for join floods: when a netsplit rejoins and three
+ * hundred users land in our channels, looking each of them up on their own
+ * would leave three hundred WHO lines queued behind the throttle.
+ *
+ * When the window closes, the pending nicknames are sent as comma-separated
+ * WHO (or WHOX) masks, as many to a line as the server's TARGMAX for WHO (or
+ * our own limit, if it doesn't give one) and the line length allow. If most
+ * of a channel's members are waiting to be looked up, a single WHO on the
+ * channel is sent for all of them instead.
+ *
+ * Each reply is handed to the listeners of whoever asked about that
+ * nickname, and every listener is told when the query that covered its
+ * nickname has finished (or was cancelled). Several requests for the same
+ * nickname in one window only cost one lookup.
+ */
+
+package com.packethammer.vaquero.advanced.dispatcher.querying;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Vector;
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.outbound.commands.basic.IRCWhoCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCWhoXCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.WhoXSearchOptions;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfWhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoXReply;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
+
+public class WhoBatcher {
+    /** The default number of milliseconds lookups are collected for before being sent */
+    public static final long DEFAULT_BATCH_WINDOW = 250;
+    /** The default number of masks in one WHOX line, when the server doesn't give a TARGMAX for WHO */
+    public static final int DEFAULT_WHOX_MAX_TARGETS = 20;
+    /** The default number of masks in one regular WHO line, when the server doesn't give a TARGMAX for WHO */
+    public static final int DEFAULT_WHO_MAX_TARGETS = 1;
+    /** The default share of a channel's members that must be waiting before the channel itself is queried */
+    public static final double DEFAULT_CHANNEL_WHO_RATIO = 0.5;
+    /** The fewest lookups a channel WHO will ever be sent in place of */
+    public static final int MIN_CHANNEL_WHO_LOOKUPS = 3;
+
+    private static final int QUERY_TAG_ROOM = 4; // the ",999" the WHO query processor adds to each WHOX
+
+    private Dispatcher dispatcher;
+    private IRCServerContext serverContext;
+    private long batchWindow;
+    private int whoXMaxTargets;
+    private int whoMaxTargets;
+    private double channelWhoRatio;
+
+    private LinkedHashMap<String, Batch> batches; // key = rendered search options, or "" for regular WHO
+    private HashMap<String, Integer> channelSizes; // key = casemapped channel
+    private Timeout pendingFlush;
+
+    private long requestCount;
+    private long queryCount;
+
+    /**
+     * Initializes this batcher with the dispatcher to send its queries
+     * through.
+     *
+     * @param dispatcher The dispatcher to use.
+     */
+    public WhoBatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        this.serverContext = dispatcher.getParser().getServerContext();
+        this.batchWindow = DEFAULT_BATCH_WINDOW;
+        this.whoXMaxTargets = DEFAULT_WHOX_MAX_TARGETS;
+        this.whoMaxTargets = DEFAULT_WHO_MAX_TARGETS;
+        this.channelWhoRatio = DEFAULT_CHANNEL_WHO_RATIO;
+        this.batches = new LinkedHashMap();
+        this.channelSizes = new HashMap();
+    }
+
+    /**
+     * Asks for a regular WHO lookup of a nickname. The listener receives
+     * only the replies about that nickname.
+     *
+     * @param nickname The nickname to look up.
+     * @param channel The channel we need the user's information for, or null if it doesn't matter.
+     * @param channelSize The number of users in that channel, used to decide if the channel itself should be queried.
+     * @param listener The listener to use.
+     */
+    public void requestWho(String nickname, String channel, int channelSize, WhoQueryListener listener) {
+        addLookup(null, nickname, channel, channelSize, listener);
+    }
+
+    /**
+     * Asks for a WHOX lookup of a nickname. Lookups using the same search
+     * options (not counting the query tag) are sent together. The options
+     * should include the nickname field; if they don't, each listener will
+     * receive every reply of the query its nickname was sent in.
+     *
+     * @param nickname The nickname to look up.
+     * @param channel The channel we need the user's information for, or null if it doesn't matter.
+     * @param channelSize The number of users in that channel, used to decide if the channel itself should be queried.
+     * @param options The search options to use.
+     * @param listener The listener to use.
+     */
+    public void requestWhoX(String nickname, String channel, int channelSize, WhoXSearchOptions options, WhoXQueryListener listener) {
+        addLookup(options, nickname, channel, channelSize, listener);
+    }
+
+    /**
+     * Adds a lookup to its batch, and starts the window if nothing is
+     * pending yet.
+     */
+    private synchronized void addLookup(WhoXSearchOptions options, String nickname, String channel, int channelSize, AbstractWhoListener listener) {
+        requestCount++;
+
+        String batchKey = options == null ? "" : options.renderSearchOptions();
+        Batch batch = batches.get(batchKey);
+        if(batch == null) {
+            batch = new Batch(options == null ? null : new WhoXSearchOptions(options));
+            batches.put(batchKey, batch);
+        }
+
+        String key = casemap(nickname);
+        Lookup lookup = batch.lookups.get(key);
+        if(lookup == null) {
+            lookup = new Lookup(nickname, channel);
+            batch.lookups.put(key, lookup);
+        }
+        lookup.listeners.add(listener);
+
+        if(channel != null)
+            channelSizes.put(casemap(channel), channelSize);
+
+        if(pendingFlush == null) {
+            pendingFlush = WheelTimer.getSharedTimer().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, batchWindow);
+        }
+    }
+
+    /**
+     * Sends every pending lookup right away, without waiting for the window
+     * to close.
+     */
+    public void flush() {
+        List<Batch> flushing;
+        HashMap<String, Integer> sizes;
+        synchronized(this) {
+            if(pendingFlush != null) {
+                pendingFlush.cancel();
+                pendingFlush = null;
+            }
+
+            flushing = new ArrayList(batches.values());
+            sizes = channelSizes;
+            batches = new LinkedHashMap();
+            channelSizes = new HashMap();
+        }
+
+        for(Batch batch : flushing)
+            send(batch, sizes);
+    }
+
+    /**
+     * Sends the queries for one batch: channel WHOs first, for any channel
+     * most of which is waiting, and then comma-separated nickname masks for
+     * the rest.
+     */
+    private void send(Batch batch, HashMap<String, Integer> sizes) {
+        // group the lookups by the channel they were for
+        LinkedHashMap<String, List<Lookup>> byChannel = new LinkedHashMap();
+        for(Lookup lookup : batch.lookups.values()) {
+            if(lookup.channel == null)
+                continue;
+
+            String key = casemap(lookup.channel);
+            List<Lookup> list = byChannel.get(key);
+            if(list == null) {
+                list = new ArrayList();
+                byChannel.put(key, list);
+            }
+            list.add(lookup);
+        }
+
+        for(String channelKey : byChannel.keySet()) {
+            List<Lookup> lookups = byChannel.get(channelKey);
+            Integer size = sizes.get(channelKey);
+            if(lookups.size() < MIN_CHANNEL_WHO_LOOKUPS || size == null || lookups.size() < size * channelWhoRatio)
+                continue;
+
+            // the channel will cover everyone in it; make sure nobody is looked up twice
+            for(Lookup lookup : lookups)
+                batch.lookups.remove(casemap(lookup.nickname));
+
+            dispatch(batch.options, lookups.get(0).channel, lookups);
+        }
+
+        // and the rest by nickname, as many to a line as will fit (in bytes, as they go out)
+        Charset charset = dispatcher.getCharset();
+        int maxTargets = getMaxTargets(batch.options != null);
+        int budget = IRCLineBuffer.MAX_LINE_LENGTH - getLineOverhead(batch.options, charset);
+        List<Lookup> group = new ArrayList();
+        StringBuilder mask = new StringBuilder();
+        int maskLength = 0;
+
+        for(Lookup lookup : batch.lookups.values()) {
+            int length = lookup.nickname.getBytes(charset).length;
+            if(!group.isEmpty() && (group.size() >= maxTargets || maskLength + 1 + length > budget)) {
+                dispatch(batch.options, mask.toString(), group);
+                group = new ArrayList();
+                mask.setLength(0);
+                maskLength = 0;
+            }
+
+            if(!group.isEmpty()) {
+                mask.append(',');
+                maskLength++;
+            }
+            mask.append(lookup.nickname);
+            maskLength += length;
+            group.add(lookup);
+        }
+
+        if(!group.isEmpty())
+            dispatch(batch.options, mask.toString(), group);
+    }
+
+    /**
+     * Sends a single WHO or WHOX query for a group of lookups.
+     */
+    private void dispatch(WhoXSearchOptions options, String mask, List<Lookup> lookups) {
+        synchronized(this) {
+            queryCount++;
+        }
+
+        if(options == null)
+            dispatcher.performWhoQuery(new IRCWhoCommand(mask), new BatchWhoListener(lookups));
+        else
+            dispatcher.performWhoXQuery(new IRCWhoXCommand(mask, options), new BatchWhoXListener(lookups));
+    }
+
+    /**
+     * Returns the number of masks that may go in one WHO line.
+     */
+    private int getMaxTargets(boolean whoX) {
+        if(serverContext.getISupport().isMaxTargetsKnown("WHO"))
+            return Math.max(1, serverContext.getISupport().getMaxTargets("WHO"));
+
+        return whoX ? whoXMaxTargets : whoMaxTargets;
+    }
+
+    /**
+     * Returns the length of a WHO or WHOX line with an empty mask, leaving
+     * room for a query tag.
+     */
+    private int getLineOverhead(WhoXSearchOptions options, Charset charset) {
+        if(options == null)
+            return new IRCWhoCommand("").renderForIRC().lengthInBytes(charset);
+
+        return new IRCWhoXCommand("", options).renderForIRC().lengthInBytes(charset) + QUERY_TAG_ROOM;
+    }
+
+    private String casemap(String s) {
+        return serverContext.casemapString(s).toLowerCase().toString();
+    }
+
+    /**
+     * Returns the number of milliseconds lookups are collected for before
+     * they are sent.
+     */
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Sets the number of milliseconds lookups are collected for before they
+     * are sent. A longer window makes for fewer, fuller lines, but a longer
+     * wait for each answer.
+     *
+     * @throws IllegalArgumentException If the window is negative.
+     */
+    public void setBatchWindow(long batchWindow) {
+        if(batchWindow < 0)
+            throw new IllegalArgumentException("The batch window cannot be negative!");
+
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Returns the number of masks put in one WHOX line when the server does
+     * not say how many it accepts.
+     */
+    public int getWhoXMaxTargets() {
+        return whoXMaxTargets;
+    }
+
+    /**
+     * @see #getWhoXMaxTargets()
+     * @throws IllegalArgumentException If the number is less than one.
+     */
+    public void setWhoXMaxTargets(int whoXMaxTargets) {
+        if(whoXMaxTargets < 1)
+            throw new IllegalArgumentException("There must be at least one target per line!");
+
+        this.whoXMaxTargets = whoXMaxTargets;
+    }
+
+    /**
+     * Returns the number of masks put in one regular WHO line when the server
+     * does not say how many it accepts. This is one by default, since many
+     * servers without WHOX don't understand a list of masks.
+     */
+    public int getWhoMaxTargets() {
+        return whoMaxTargets;
+    }
+
+    /**
+     * @see #getWhoMaxTargets()
+     * @throws IllegalArgumentException If the number is less than one.
+     */
+    public void setWhoMaxTargets(int whoMaxTargets) {
+        if(whoMaxTargets < 1)
+            throw new IllegalArgumentException("There must be at least one target per line!");
+
+        this.whoMaxTargets = whoMaxTargets;
+    }
+
+    /**
+     * Returns the share (between 0 and 1) of a channel's users that must be
+     * waiting to be looked up for the whole channel to be queried instead.
+     */
+    public double getChannelWhoRatio() {
+        return channelWhoRatio;
+    }
+
+    /**
+     * @see #getChannelWhoRatio()
+     */
+    public void setChannelWhoRatio(double channelWhoRatio) {
+        this.channelWhoRatio = channelWhoRatio;
+    }
+
+    /**
+     * Returns the number of lookups that have been asked for.
+     */
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns the number of WHO and WHOX lines those lookups were sent as.
+     */
+    public synchronized long getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * The lookups waiting to be sent with one set of search options.
+     */
+    private class Batch {
+        public WhoXSearchOptions options; // null for regular WHO
+        public LinkedHashMap<String, Lookup> lookups = new LinkedHashMap(); // key = casemapped nickname
+
+        public Batch(WhoXSearchOptions options) {
+            this.options = options;
+        }
+    }
+
+    /**
+     * A nickname waiting to be looked up, and everyone who asked for it.
+     */
+    private class Lookup {
+        public String nickname;
+        public String channel;
+        public Vector<AbstractWhoListener> listeners = new Vector();
+
+        public Lookup(String nickname, String channel) {
+            this.nickname = nickname;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Finds the lookups a reply about a nickname belongs to.
+     */
+    private List<Lookup> getLookups(HashMap<String, Lookup> byNickname, List<Lookup> all, String nickname) {
+        if(nickname == null)
+            return all;
+
+        Lookup lookup = byNickname.get(casemap(nickname));
+        if(lookup == null)
+            return new ArrayList();
+
+        List<Lookup> list = new ArrayList();
+        list.add(lookup);
+        return list;
+    }
+
+    private HashMap<String, Lookup> indexLookups(List<Lookup> lookups) {
+        HashMap<String, Lookup> index = new HashMap();
+        for(Lookup lookup : lookups)
+            index.put(casemap(lookup.nickname), lookup);
+        return index;
+    }
+
+    private void finishLookups(List<Lookup> lookups, EndOfWhoReply end) {
+        for(Lookup lookup : lookups) {
+            for(AbstractWhoListener listener : lookup.listeners)
+                listener.onFinished(end);
+        }
+    }
+
+    private void cancelLookups(List<Lookup> lookups) {
+        for(Lookup lookup : lookups) {
+            for(AbstractWhoListener listener : lookup.listeners)
+                listener.onCancel();
+        }
+    }
+
+    /**
+     * Hands the replies of a batched regular WHO to whoever asked.
+     */
+    private class BatchWhoListener extends WhoQueryListener {
+        private List<Lookup> lookups;
+        private HashMap<String, Lookup> byNickname;
+
+        public BatchWhoListener(List<Lookup> lookups) {
+            this.lookups = lookups;
+            this.byNickname = indexLookups(lookups);
+        }
+
+        public void onReply(WhoReply reply) {
+            for(Lookup lookup : getLookups(byNickname, lookups, reply.getNickname())) {
+                for(AbstractWhoListener listener : lookup.listeners)
+                    ((WhoQueryListener) listener).addReply(reply);
+            }
+        }
+
+        public void onFinished(EndOfWhoReply end) {
+            finishLookups(lookups, end);
+        }
+
+        public void onCancel() {
+            cancelLookups(lookups);
+        }
+    }
+
+    /**
+     * Hands the replies of a batched WHOX to whoever asked.
+     */
+    private class BatchWhoXListener extends WhoXQueryListener {
+        private List<Lookup> lookups;
+        private HashMap<String, Lookup> byNickname;
+
+        public BatchWhoXListener(List<Lookup> lookups) {
+            this.lookups = lookups;
+            this.byNickname = indexLookups(lookups);
+        }
+
+        public void onReply(WhoXReply reply) {
+            String nickname = null;
+            if(getSearchOptions().getSearchFields().contains(WhoXSearchOptions.SEARCHFIELD_NICK))
+                nickname = reply.getNickname();
+
+            for(Lookup lookup : getLookups(byNickname, lookups, nickname)) {
+                for(AbstractWhoListener listener : lookup.listeners) {
+                    // the requester's options don't have the query tag the reply was sent with
+                    WhoXQueryListener l = (WhoXQueryListener) listener;
+                    l.setSearchOptions(getSearchOptions());
+                    l.addReply(reply);
+                }
+            }
+        }
+
+        public void onFinished(EndOfWhoReply end) {
+            finishLookups(lookups, end);
+        }
+
+        public void onCancel() {
+            cancelLookups(lookups);
+        }
+    }
+}
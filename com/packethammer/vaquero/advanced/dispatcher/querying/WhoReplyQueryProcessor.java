@@ -1,5 +1,22 @@
 /**
  * This query processor handles WHO and WHOX queries.
+ *
+ * Identical queries that are still waiting to be sent can share a single
+ * session; the replies for that session are handed to every listener that
+ * was attached to it.
+ *
+ * Every WHOX query is given a query tag of its own as it leaves the wait
+ * queue (this processor is a pre-release filter for that purpose), and its
+ * replies are routed back to it by that tag. This means any number of WHOX
+ * queries can be in flight at once without depending on the server to answer
+ * them in order. Plain WHO replies carry no tag, so they go to the oldest
+ * WHO query that is still live. The end of a WHO listing is matched to the
+ * oldest live query with the same search mask, and only to that; an end
+ * with no matching mask is left alone.
+ *
+ * Replies that don't belong to any query we know about (for instance, a WHO
+ * sent around the Dispatcher) are ignored rather than being handed to
+ * whichever query happens to be first in line.
  */
 
 // note: this class is a bit...uh...ghetto. I can't think of a clean way to
@@ -7,9 +24,15 @@
 
 package com.packethammer.vaquero.advanced.dispatcher.querying;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.basic.IRCWhoCommand;
 import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCWhoXCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.WhoXSearchOptions;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
 import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
 import com.packethammer.vaquero.outbound.outboundprocessing.OutboundCommandEventListener;
 import com.packethammer.vaquero.parser.IRCEventListener;
@@ -19,23 +42,29 @@ import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfWhoReply
 import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoXReply;
 
-public class WhoReplyQueryProcessor extends AbstractQueryProcessor {
+public class WhoReplyQueryProcessor extends AbstractQueryProcessor implements CommandFilterI {
+    /** The highest query tag the server will accept */
+    public static final int MAX_QUERY_TAG = 999;
+
     private IRCParser parser;
-    private Vector<WhoSession> liveQueries; // index 0 = query awaiting reply, end = newest query sent live
+    private Vector<WhoSession> liveQueries; // in the order they were sent, oldest first
     private Vector<WhoSession> waitingQueries; // queries not sent yet
-    
-    /** 
+    private HashMap<Integer, WhoSession> taggedQueries; // WHOX queries by query tag, from release until finished
+    private int nextQueryTag;
+
+    /**
      * Initializes this query processor with the parser it is to use.
      */
     public WhoReplyQueryProcessor(IRCParser parser) {
         this.liveQueries = new Vector();
         this.waitingQueries = new Vector();
-        
-        this.parser = parser;  
-        
+        this.taggedQueries = new HashMap();
+
+        this.parser = parser;
+
         hookEvents();
     }
-    
+
     /**
      * Hooks events vital to processing WHO replies.
      */
@@ -43,44 +72,191 @@ public class WhoReplyQueryProcessor extends AbstractQueryProcessor {
         parser.getEventDistributor().addHardEventListener(WhoReply.class, new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 WhoReply r = (WhoReply) e;
-                
-                if(getCurrentListener() instanceof WhoQueryListener) {
-                    WhoQueryListener q = (WhoQueryListener) getCurrentListener();
-                    q.addReply(r);
+
+                WhoSession session = getOldestLiveWhoSession();
+                if(session == null)
+                    return; // not one of ours
+
+                for(AbstractWhoListener listener : new Vector<AbstractWhoListener>(session.whoListeners)) {
+                    if(listener instanceof WhoQueryListener)
+                        ((WhoQueryListener) listener).addReply(r);
                 }
             }
         });
-        
+
         parser.getEventDistributor().addHardEventListener(WhoXReply.class, new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 WhoXReply r = (WhoXReply) e;
-                
-                if(getCurrentListener() instanceof WhoXQueryListener) {
-                    WhoXQueryListener q = (WhoXQueryListener) getCurrentListener();
-                    q.addReply(r);
+
+                WhoSession session = getTaggedSession(r);
+                if(session == null)
+                    return; // untagged, or the tag isn't one we handed out
+
+                for(AbstractWhoListener listener : new Vector<AbstractWhoListener>(session.whoListeners)) {
+                    if(listener instanceof WhoXQueryListener)
+                        ((WhoXQueryListener) listener).addReply(r);
                 }
             }
         });
-        
+
         parser.getEventDistributor().addHardEventListener(EndOfWhoReply.class, new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 EndOfWhoReply end = (EndOfWhoReply) e;
-                getCurrentListener().onFinished(end);
-                
-                // remove listener
-                liveQueries.remove(0);
+
+                WhoSession session = finishSession(end.getName());
+                if(session == null)
+                    return; // nothing was waiting on this
+
+                for(AbstractWhoListener listener : new Vector<AbstractWhoListener>(session.whoListeners))
+                    listener.onFinished(end);
             }
         });
     }
-    
-    private AbstractWhoListener getCurrentListener() {
-        if(this.liveQueries.isEmpty()) {
-            throw new RuntimeException("Tried to get current listener, but queue is empty; possible WHO desync -- very bad");
+
+    /**
+     * Returns the oldest live plain WHO query, or null if there isn't one.
+     */
+    private WhoSession getOldestLiveWhoSession() {
+        synchronized(liveQueries) {
+            for(WhoSession session : liveQueries) {
+                if(session.tag == -1 && session.command.getCommand() instanceof IRCWhoCommand)
+                    return session;
+            }
         }
-        
-        return liveQueries.get(0).whoListener;
+
+        return null;
     }
-    
+
+    /**
+     * Returns the live WHOX query a reply is tagged for, or null if it
+     * isn't tagged for any of ours. Since the query tag is always the first
+     * field of a reply, we can read it before knowing what else the reply
+     * holds.
+     */
+    private WhoSession getTaggedSession(WhoXReply reply) {
+        if(reply.numericArgumentCount() == 0)
+            return null;
+
+        int tag;
+        try {
+            tag = Integer.parseInt(reply.getNumericArg(0));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        synchronized(liveQueries) {
+            WhoSession session = taggedQueries.get(tag);
+            return session != null && liveQueries.contains(session) ? session : null;
+        }
+    }
+
+    /**
+     * Removes and returns the live query an end of WHO listing belongs to,
+     * which is the oldest one with the same search mask. If none has that
+     * mask, the end is for a WHO sent around us (such as a plain WHO the
+     * tracker sends when querying is disabled), and every live query is
+     * left alone.
+     *
+     * @return The finished query, or null if the end isn't for one of ours.
+     */
+    private WhoSession finishSession(String name) {
+        if(name == null)
+            return null;
+
+        String mask = casemap(name);
+        synchronized(liveQueries) {
+            for(WhoSession session : liveQueries) {
+                if(mask.equals(casemap(getSearchMask(session.command.getCommand())))) {
+                    liveQueries.remove(session);
+                    releaseTag(session);
+                    return session;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Gives every WHOX query leaving the wait queue a query tag of its own,
+     * so that its replies can be told apart from those of any other WHOX in
+     * flight. The query's options are copied before the tag is set, since
+     * the caller may be sharing them between several queries; any tag the
+     * caller put in them is replaced.
+     *
+     * If every possible tag is in use, the query is dropped (and its
+     * listeners cancelled) rather than sent without a way to route its
+     * replies.
+     */
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        if(!(command.getCommand() instanceof IRCWhoXCommand))
+            return;
+
+        IRCWhoXCommand who = (IRCWhoXCommand) command.getCommand();
+        synchronized(liveQueries) {
+            WhoSession session = null;
+            for(WhoSession s : waitingQueries) {
+                if(s.command == command) {
+                    session = s;
+                    break;
+                }
+            }
+
+            if(session == null || session.tag != -1)
+                return; // not sent through us, or already tagged
+
+            int tag = allocateTag();
+            if(tag == -1) {
+                command.setCommand(null);
+                return;
+            }
+
+            WhoXSearchOptions options = new WhoXSearchOptions(who.getOptions());
+            options.setQueryTag(tag);
+            who.setOptions(options);
+
+            session.tag = tag;
+            taggedQueries.put(tag, session);
+
+            // the replies will now carry the tag field, so the listeners need to know to expect it
+            for(AbstractWhoListener listener : new Vector<AbstractWhoListener>(session.whoListeners))
+                ((WhoXQueryListener) listener).setSearchOptions(options);
+        }
+    }
+
+    /**
+     * Returns a query tag that no WHOX query is using, or -1 if they are all
+     * taken. Tags are handed out in turn, so a tag is not reused until
+     * long after its query has finished.
+     */
+    private int allocateTag() {
+        for(int x = 0; x <= MAX_QUERY_TAG; x++) {
+            int tag = nextQueryTag;
+            nextQueryTag = (nextQueryTag + 1) % (MAX_QUERY_TAG + 1);
+
+            if(!taggedQueries.containsKey(tag))
+                return tag;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Frees up the query tag of a session, if it has one.
+     */
+    private void releaseTag(WhoSession session) {
+        if(session.tag != -1 && taggedQueries.get(session.tag) == session)
+            taggedQueries.remove(session.tag);
+    }
+
+    /**
+     * Returns the number of WHO and WHOX queries that have been sent and are
+     * still waiting on the end of their listing.
+     */
+    public int getLiveQueryCount() {
+        return liveQueries.size();
+    }
+
     /**
      * Adds a WHO or WHOX query to this query processor with its listener.
      *
@@ -98,63 +274,190 @@ public class WhoReplyQueryProcessor extends AbstractQueryProcessor {
            !(command.getCommand() instanceof IRCWhoCommand || command.getCommand() instanceof IRCWhoXCommand)) {
             throw new IllegalArgumentException("Command type is wrong, or listener does not match command type.");
         }
-        
+
         // make new session
         WhoSession session = new WhoSession();
         // make our local listener for the who command to track its progress through the outbound system
         WhoCommandListener commandListener = new WhoCommandListener(session);
         // assign the who-reply listener to the session
-        session.whoListener = (AbstractWhoListener) listener;
+        session.whoListeners.add((AbstractWhoListener) listener);
         // assign our local command watcher to the session
         session.commandListener = commandListener;
         // store the encapsulated command
         session.command = command;
-        
+
         if(listener instanceof WhoXQueryListener) {
             // make sure to pass options to the listener
             ((WhoXQueryListener) listener).setSearchOptions(((IRCWhoXCommand) command.getCommand()).getOptions());
         }
-        
+
         // add our local command watcher to the command
         command.addListener(commandListener);
-        
+
         // add our session to the wait queue until it pops out from the outbound system
-        waitingQueries.add(session);
+        synchronized(liveQueries) {
+            waitingQueries.add(session);
+        }
+    }
+
+    /**
+     * Stops a listener from hearing anything more about its query. A WHOX
+     * query nobody is listening to any more gives up its query tag at once.
+     * A plain WHO query stays in line until its end arrives, since its
+     * replies can only be told apart from those of later queries by their
+     * order.
+     */
+    public EncapsulatedIRCCommand detachListener(AbstractCommandQueryListener listener) {
+        synchronized(liveQueries) {
+            for(WhoSession session : waitingQueries) {
+                if(session.whoListeners.remove(listener)) {
+                    if(!session.whoListeners.isEmpty())
+                        return null;
+                    
+                    waitingQueries.remove(session);
+                    releaseTag(session);
+                    return session.command;
+                }
+            }
+            
+            for(WhoSession session : liveQueries) {
+                if(session.whoListeners.remove(listener)) {
+                    if(session.whoListeners.isEmpty() && session.tag != -1) {
+                        liveQueries.remove(session);
+                        releaseTag(session);
+                    }
+                    return null;
+                }
+            }
+        }
+        
+        return null;
     }
     
+    /**
+     * Tries to attach a listener to a WHO or WHOX query that is identical to
+     * the given one and has not been sent yet. If this succeeds, the listener
+     * will receive the replies for that query and the given command should
+     * not be sent at all. Query tags are not taken into account, since every
+     * WHOX is given its own as it is sent.
+     *
+     * @param command The WHO or WHOX command that would otherwise be sent.
+     * @param listener The listener to use.
+     * @return True if the listener was attached to a waiting query, false if the command must be sent normally.
+     * @throws IllegalArgumentException If the command is not a WhoCommand or WhoXCommand, or if the listener does not match the command type.
+     */
+    public boolean attachToWaitingQuery(IRCCommand command, AbstractCommandQueryListener listener) {
+        if((command instanceof IRCWhoCommand && !(listener instanceof WhoQueryListener)) ||
+           (command instanceof IRCWhoXCommand && !(listener instanceof WhoXQueryListener)) ||
+           !(command instanceof IRCWhoCommand || command instanceof IRCWhoXCommand)) {
+            throw new IllegalArgumentException("Command type is wrong, or listener does not match command type.");
+        }
+
+        synchronized(liveQueries) {
+            for(WhoSession session : waitingQueries) {
+                IRCCommand waiting = session.command.getCommand();
+                if(waiting != null && session.tag == -1 && isSameQuery(waiting, command)) {
+                    if(listener instanceof WhoXQueryListener) {
+                        // the replies will be laid out according to the waiting query's options
+                        ((WhoXQueryListener) listener).setSearchOptions(((IRCWhoXCommand) waiting).getOptions());
+                    }
+
+                    session.whoListeners.add((AbstractWhoListener) listener);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines if two WHO or WHOX commands ask the server the same thing,
+     * ignoring any query tag.
+     */
+    private boolean isSameQuery(IRCCommand a, IRCCommand b) {
+        if(!a.getClass().equals(b.getClass()))
+            return false;
+
+        if(a instanceof IRCWhoXCommand) {
+            WhoXSearchOptions x = ((IRCWhoXCommand) a).getOptions();
+            WhoXSearchOptions y = ((IRCWhoXCommand) b).getOptions();
+
+            return casemap(getSearchMask(a)).equals(casemap(getSearchMask(b)))
+                    && x.getSearchFlags().equals(y.getSearchFlags())
+                    && getUntaggedFields(x).equals(getUntaggedFields(y));
+        }
+
+        return casemap(a.renderForIRC().toRawLine()).equals(casemap(b.renderForIRC().toRawLine()));
+    }
+
+    /**
+     * Returns the search fields of a set of options, without the query tag
+     * field.
+     */
+    private static Set<Character> getUntaggedFields(WhoXSearchOptions options) {
+        Set<Character> fields = new HashSet(options.getSearchFields());
+        fields.remove(WhoXSearchOptions.SEARCHFIELD_QUERYTYPE);
+        return fields;
+    }
+
+    /**
+     * Returns the search mask of a WHO or WHOX command.
+     */
+    private static String getSearchMask(IRCCommand command) {
+        if(command instanceof IRCWhoXCommand)
+            return ((IRCWhoXCommand) command).getSearchMask();
+        else if(command instanceof IRCWhoCommand)
+            return ((IRCWhoCommand) command).getUserMask();
+
+        return null;
+    }
+
+    private String casemap(String s) {
+        return s == null ? "" : parser.getServerContext().casemapString(s).toLowerCase().toString();
+    }
+
     private class WhoSession {
-        public AbstractWhoListener whoListener;
+        public Vector<AbstractWhoListener> whoListeners = new Vector();
         public WhoCommandListener commandListener;
         public EncapsulatedIRCCommand command;
+        public int tag = -1;
     }
-    
+
     private class WhoCommandListener extends OutboundCommandEventListener {
         public WhoSession session;
-        
+
         public WhoCommandListener(WhoSession session) {
             this.session = session;
         }
-        
+
         public void onCommandTypeChange() {
             onDrop();
         }
-        
+
         public void onCommandReferenceChange() {
             // let command type change handle it
-        }    
-        
+        }
+
         public void onDrop() {
             // remove from wait list and mark as canceled (premature removal)
-            session.whoListener.onCancel();
-            waitingQueries.remove(session);
+            synchronized(liveQueries) {
+                waitingQueries.remove(session);
+                releaseTag(session);
+            }
+
+            for(AbstractWhoListener listener : new Vector<AbstractWhoListener>(session.whoListeners))
+                listener.onCancel();
         }
-        
+
         public void onSent() {
-            // remove from wait list
-            waitingQueries.remove(session);
-            
-            // add to the end of the expecting queue
-            liveQueries.add(session);
+            synchronized(liveQueries) {
+                // remove from wait list
+                waitingQueries.remove(session);
+
+                // add to the end of the expecting queue
+                liveQueries.add(session);
+            }
         }
     }
 }
@@ -0,0 +1,196 @@
+/**
+ * This is what the tracker last published about a channel: a copy made by
+ * the parser's thread once an event that changed the channel (or someone's
+ * nickname or modes in it) has been tracked. It never changes, so any
+ * thread may read it without locking, and everything in it is from the
+ * same moment. A newer view is published each time the channel changes.
+ *
+ * @see Tracker#getChannelView(String)
+ * @see TrackedChannel#getView()
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+
+public class ChannelView {
+    private TrackedChannel channel;
+    private CasemappingDefinition casemapping;
+    private String name;
+    private String topic;
+    private Date lastTopicChangeTime;
+    private String lastTopicChanger;
+    private Date creationTime;
+    private Map<Character, String> modes; // mode character to its parameter, or null
+    private Map<Character, List<ListedMask>> lists; // key = mode character
+    private MemberView[] members; // in the order they were added
+    private MemberView[] membersByNickname; // open addressing on the casemapped nickname, as in MembershipTable
+
+    /**
+     * Copies what we know of a channel. This is done by the parser's thread.
+     *
+     * @param channel The channel to copy.
+     * @param casemapping The casemapping to find members by nickname with.
+     * @param prefixModeDefs The server's user prefix modes, highest first.
+     */
+    ChannelView(TrackedChannel channel, CasemappingDefinition casemapping, List<ChannelNickPrefixModeDefinition> prefixModeDefs) {
+        this.channel = channel;
+        this.casemapping = casemapping;
+        this.name = channel.getName();
+        this.topic = channel.getTopic();
+        this.lastTopicChangeTime = channel.getLastTopicChangeTime();
+        this.lastTopicChanger = channel.getLastTopicChanger();
+        this.creationTime = channel.getCreationTime();
+
+        LinkedHashMap<Character, String> modes = new LinkedHashMap();
+        for(ChannelMode mode : channel.getChannelModes())
+            modes.put(mode.getMode(), mode.getParameter());
+        this.modes = Collections.unmodifiableMap(modes);
+
+        LinkedHashMap<Character, List<ListedMask>> lists = new LinkedHashMap();
+        for(ListableModes list : channel.getListableModes())
+            lists.put(list.getModeDefinition().getMode(), Collections.unmodifiableList(new ArrayList(list.getMasks())));
+        this.lists = Collections.unmodifiableMap(lists);
+
+        List<UserChannelInformation> infos = channel.getUserInformation();
+        this.members = new MemberView[infos.size()];
+        int capacity = 4;
+        while(capacity * 3 < members.length * 4)
+            capacity *= 2; // keep it at most 3/4 full
+        this.membersByNickname = new MemberView[capacity];
+        for(int i = 0; i < members.length; i++) {
+            UserChannelInformation info = infos.get(i);
+            UserView user = info.getUser().getView();
+            if(user == null)
+                user = new UserView(info.getUser(), casemapping.createKey(info.getUser().getHostmask().getNickname())); // not published yet
+            
+            members[i] = new MemberView(user, info, prefixModeDefs);
+            int mask = capacity - 1;
+            int slot = hash(user.getKey()) & mask;
+            while(membersByNickname[slot] != null)
+                slot = (slot + 1) & mask;
+            membersByNickname[slot] = members[i];
+        }
+    }
+
+    /**
+     * Returns the tracked channel this is a view of. Unlike the view, it
+     * keeps changing as the parser tracks events, so only the parser's
+     * thread should read it.
+     */
+    public TrackedChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the name of the channel, including the channel type prefix.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the topic, or null if there is none (or we don't know it).
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    public Date getLastTopicChangeTime() {
+        return lastTopicChangeTime;
+    }
+
+    public String getLastTopicChanger() {
+        return lastTopicChanger;
+    }
+
+    public Date getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the channel's own modes (not its lists or its members' modes),
+     * as the mode character and its parameter, or null if it has none.
+     *
+     * @return An unmodifiable map of mode character to parameter.
+     * @see TrackedChannel#getChannelModes()
+     */
+    public Map<Character, String> getModes() {
+        return modes;
+    }
+
+    /**
+     * Determines if the channel has one of its own modes set, such as 'm'.
+     */
+    public boolean hasMode(char mode) {
+        return modes.containsKey(Character.valueOf(mode));
+    }
+
+    /**
+     * Returns the masks in a list of the channel, such as its bans.
+     *
+     * @param mode The mode character of the list, such as 'b'.
+     * @return An unmodifiable list, which is empty if we know of no such list.
+     * @see TrackedChannel#getListableModes(char)
+     */
+    public List<ListedMask> getMasks(char mode) {
+        List<ListedMask> masks = lists.get(Character.valueOf(mode));
+        return masks == null ? Collections.EMPTY_LIST : masks;
+    }
+
+    /**
+     * Returns the members of the channel, in the order they were added.
+     *
+     * @return An unmodifiable list of members.
+     */
+    public List<MemberView> getMembers() {
+        return Collections.unmodifiableList(Arrays.asList(members));
+    }
+
+    /**
+     * Returns a member of the channel by nickname, taking network
+     * casemapping into account.
+     *
+     * @param nickname The member's nickname.
+     * @return The member, or null if there is no such member.
+     */
+    public MemberView getMember(String nickname) {
+        if(nickname == null)
+            return null;
+
+        CasemappedKey key = casemapping.createKey(nickname);
+        int mask = membersByNickname.length - 1;
+        for(int slot = hash(key) & mask; membersByNickname[slot] != null; slot = (slot + 1) & mask) {
+            if(membersByNickname[slot].getKey().equals(key))
+                return membersByNickname[slot];
+        }
+        return null;
+    }
+
+    public int getMemberCount() {
+        return members.length;
+    }
+
+    /**
+     * Spreads the bits of a key's hash code, so that nicknames that differ
+     * only at the end don't all land in neighbouring slots.
+     */
+    private static int hash(CasemappedKey key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -1,28 +1,47 @@
 /**
- * NOT IN USE.
- * todo: Work on this, at least for +b
- *
  * This is a list of modes in a channel of the type "listable" (ISUPPORT mode
- * type A). 
+ * type A).
  *
- * An example of its usage is storing the bans list for a channel.
+ * An example of its usage is storing the bans list for a channel. Besides
+ * the masks themselves, the list keeps them in a MaskIndex, so finding the
+ * ones that match a user (such as the bans that match someone joining)
+ * doesn't mean trying every mask in the list.
  */
 
 package com.packethammer.vaquero.advanced.tracker;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
-import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.Hostmask;
+import com.packethammer.vaquero.util.MaskIndex;
 
 public class ListableModes {
     private ChannelModeDefinition modeDefinition;
-    private HashSet<ChannelMode> modes;
+    private CasemappingDefinition casemapping;
+    private LinkedHashMap<CasemappedKey, ListedMask> masks; // key = casemapped mask, in the order they were set
+    private MaskIndex<ListedMask> index; // made when first asked to match
     private boolean definite;
-    
-    /** Creates a new instance of ListableModes */
+
+    /**
+     * Creates a new instance of ListableModes that compares masks using
+     * RFC1459 casemapping.
+     */
     public ListableModes() {
-        modes = new HashSet();
+        this(new CasemappingDefinition(CasemappingDefinition.CASEMAPPING_RFC1459));
+    }
+
+    /**
+     * Creates a new instance of ListableModes.
+     *
+     * @param casemapping The casemapping to compare masks with.
+     */
+    public ListableModes(CasemappingDefinition casemapping) {
+        this.casemapping = casemapping;
+        this.masks = new LinkedHashMap();
     }
 
     /**
@@ -37,18 +56,97 @@ public class ListableModes {
     }
 
     /**
-     * Returns the actual modes listing. These should all be the same type mode
-     * as is defined by the channel mode definition.
+     * Returns the masks in this list, oldest first. The list is a copy.
+     */
+    public List<ListedMask> getMasks() {
+        return new ArrayList(masks.values());
+    }
+
+    /**
+     * Returns a mask in this list, compared using network casemapping, or
+     * null if it isn't in the list.
+     */
+    public ListedMask getMask(String mask) {
+        return masks.get(casemapping.createKey(mask));
+    }
+
+    /**
+     * Returns the number of masks in this list.
+     */
+    public int size() {
+        return masks.size();
+    }
+
+    /**
+     * Adds a mask to this list, if it isn't already in it.
      */
-    public Set<ChannelMode> getModes() {
-        return modes;
+    public void addMask(ListedMask mask) {
+        CasemappedKey key = casemapping.createKey(mask.getMask());
+        if(masks.containsKey(key))
+            return;
+
+        masks.put(key, mask);
+        if(index != null)
+            index.add(mask.getMask(), mask);
+    }
+
+    /**
+     * Removes a mask from this list.
+     *
+     * @return The mask removed, or null if it wasn't in the list.
+     */
+    public ListedMask removeMask(String mask) {
+        ListedMask removed = masks.remove(casemapping.createKey(mask));
+        if(removed != null && index != null)
+            index.remove(removed.getMask(), removed);
+
+        return removed;
+    }
+
+    /**
+     * Finds the masks in this list that match a user's hostmask, such as the
+     * bans that would keep them out of the channel. Parts of the hostmask
+     * that are unknown only match masks that allow anything there.
+     *
+     * @param hostmask The user's hostmask.
+     * @return The masks that match, in no particular order.
+     */
+    public List<ListedMask> getMatches(Hostmask hostmask) {
+        if(index == null) {
+            index = new MaskIndex(casemapping);
+            for(ListedMask mask : masks.values())
+                index.add(mask.getMask(), mask);
+        }
+
+        return index.match(hostmask);
+    }
+
+    /**
+     * Determines if any mask in this list matches a user's hostmask.
+     *
+     * @see #getMatches(Hostmask)
+     */
+    public boolean matches(Hostmask hostmask) {
+        return !getMatches(hostmask).isEmpty();
+    }
+
+    /**
+     * Makes the mask keys (and index) again, for when the casemapping they
+     * were made with has changed.
+     */
+    void rekey() {
+        List<ListedMask> list = getMasks();
+        masks.clear();
+        index = null;
+        for(ListedMask mask : list)
+            addMask(mask);
     }
 
     /**
      * Determines if this set of modes is actually the full set of modes set in
      * the channel. An example of a situation where it is indefinite would be
      * like the following:
-     * 
+     *
      * We join a channel, but do not try to list the bans with MODE #chan +b.
      * However, we record additional bans made. Thus, we know some of the bans,
      * but not all of them. However, if we had done a MODE #chan +b at some
@@ -64,5 +162,5 @@ public class ListableModes {
     public void setDefinite(boolean definite) {
         this.definite = definite;
     }
-    
+
 }
@@ -0,0 +1,53 @@
+/**
+ * This is one mask in a list of a listable channel mode, such as one ban
+ * of a channel.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.Date;
+
+public class ListedMask {
+    private String mask;
+    private String setter;
+    private Date setTime;
+
+    /**
+     * Creates a new instance of ListedMask.
+     *
+     * @param mask The mask, as the server gave it.
+     * @param setter Who set the mask, or null if unknown.
+     * @param setTime When the mask was set, or null if unknown.
+     */
+    public ListedMask(String mask, String setter, Date setTime) {
+        this.mask = mask;
+        this.setter = setter;
+        this.setTime = setTime;
+    }
+
+    /**
+     * Returns the mask, as the server gave it.
+     */
+    public String getMask() {
+        return mask;
+    }
+
+    /**
+     * Returns who set the mask (a nickname, hostmask or server name), or
+     * null if we don't know.
+     */
+    public String getSetter() {
+        return setter;
+    }
+
+    /**
+     * Returns the time the mask was set, or null if we don't know.
+     */
+    public Date getSetTime() {
+        return setTime;
+    }
+
+    public String toString() {
+        return mask + " (" + setter + ", " + setTime + ")";
+    }
+}
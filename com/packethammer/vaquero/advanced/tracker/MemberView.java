@@ -0,0 +1,104 @@
+/**
+ * This is one member of a channel as the tracker last published it, as
+ * part of a ChannelView. Like the rest of the view, it never changes.
+ *
+ * Large channels have tens of thousands of members, and the channel's view
+ * is copied each time it changes, so a member is kept small: the nickname
+ * and its key are shared with the user's own view, and the mode strings
+ * with every member that has the same modes.
+ *
+ * @see ChannelView#getMember(String)
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.List;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+import com.packethammer.vaquero.util.CasemappedKey;
+
+public class MemberView {
+    private String nickname;
+    private CasemappedKey key; // casemapped nickname
+    private String prefixModes;
+    private String prefixes;
+    private boolean prefixModesDefinite;
+
+    /**
+     * Copies a member of a channel. This is done by the parser's thread.
+     *
+     * @param user The view of the member as a user, published at the same time.
+     * @param info The member's information in the channel.
+     * @param prefixModeDefs The server's user prefix modes, highest first.
+     */
+    MemberView(UserView user, UserChannelInformation info, List<ChannelNickPrefixModeDefinition> prefixModeDefs) {
+        this.nickname = user.getNickname();
+        this.key = user.getKey();
+        this.prefixModesDefinite = info.isChannelPrefixModesDefinite();
+
+        StringBuilder modes = new StringBuilder();
+        StringBuilder chars = new StringBuilder();
+        for(ChannelNickPrefixModeDefinition def : info.getPrefixModes()) {
+            modes.append(def.getMode().charValue());
+        }
+        // put them in the server's order, so the highest comes first
+        for(ChannelNickPrefixModeDefinition def : prefixModeDefs) {
+            int i = modes.indexOf(String.valueOf(def.getMode().charValue()));
+            if(i != -1) {
+                modes.deleteCharAt(i);
+                modes.insert(chars.length(), def.getMode().charValue());
+                chars.append(def.getPrefix().charValue());
+            }
+        }
+        // there are only ever a few of these, so every member with the same modes shares them
+        this.prefixModes = modes.toString().intern();
+        this.prefixes = chars.toString().intern();
+    }
+
+    /**
+     * Returns the member's nickname. Tracker.getUserView() finds what was
+     * last published about them as a user.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+
+    CasemappedKey getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the member's user prefix modes in the channel, such as "ov",
+     * highest first.
+     *
+     * @see UserChannelInformation#isChannelPrefixModesDefinite()
+     */
+    public String getPrefixModes() {
+        return prefixModes;
+    }
+
+    /**
+     * Returns the prefixes of the member's user prefix modes, such as "@+",
+     * highest first.
+     */
+    public String getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Determines if the member has a user prefix mode, such as 'o'.
+     */
+    public boolean hasPrefixMode(char mode) {
+        return prefixModes.indexOf(mode) != -1;
+    }
+
+    /**
+     * @see UserChannelInformation#isChannelPrefixModesDefinite()
+     */
+    public boolean isPrefixModesDefinite() {
+        return prefixModesDefinite;
+    }
+
+    public String toString() {
+        return prefixes + nickname;
+    }
+}
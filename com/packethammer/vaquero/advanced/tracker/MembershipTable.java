@@ -0,0 +1,185 @@
+/**
+ * This is a channel's table of members, keyed by user ID. It keeps keys and
+ * values in two plain arrays (open addressing with linear probing), so a
+ * membership costs two array slots rather than a map entry object and a key
+ * object. Large channels have tens of thousands of members, so this adds up.
+ *
+ * Each membership also carries the number of the put() that added it, so
+ * the members can be listed in the order they were added without keeping a
+ * linked list through the table.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+class MembershipTable {
+    private static final int INITIAL_CAPACITY = 8; // must be a power of two
+
+    private int[] keys;
+    private UserChannelInformation[] values; // null = empty slot
+    private int[] sequences; // when each member was added, counting up
+    private int size;
+    private int nextSequence;
+
+    public MembershipTable() {
+        keys = new int[INITIAL_CAPACITY];
+        values = new UserChannelInformation[INITIAL_CAPACITY];
+        sequences = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the membership of a user, or null if they aren't a member.
+     */
+    public UserChannelInformation get(int id) {
+        int mask = values.length - 1;
+        for(int slot = hash(id) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == id)
+                return values[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Adds or replaces the membership of a user.
+     */
+    public void put(int id, UserChannelInformation info) {
+        if((size + 1) * 4 > values.length * 3)
+            resize(values.length * 2); // keep it at most 3/4 full
+        if(nextSequence == Integer.MAX_VALUE)
+            renumber();
+
+        insert(id, info, nextSequence);
+    }
+
+    /**
+     * Adds or replaces the membership of a user, giving a new one the given
+     * sequence number. A replaced membership keeps its place in the order.
+     */
+    private void insert(int id, UserChannelInformation info, int sequence) {
+        int mask = values.length - 1;
+        int slot = hash(id) & mask;
+        for( ; values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == id) {
+                values[slot] = info;
+                return;
+            }
+        }
+
+        keys[slot] = id;
+        values[slot] = info;
+        sequences[slot] = sequence;
+        nextSequence = Math.max(nextSequence, sequence + 1);
+        size++;
+    }
+
+    /**
+     * Removes the membership of a user.
+     *
+     * @return The membership removed, or null if they weren't a member.
+     */
+    public UserChannelInformation remove(int id) {
+        int mask = values.length - 1;
+        int slot = hash(id) & mask;
+        for( ; values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == id)
+                break;
+        }
+
+        UserChannelInformation removed = values[slot];
+        if(removed == null)
+            return null;
+
+        // shift later members of the same run back, so no lookup stops short at the hole
+        int hole = slot;
+        for(slot = (slot + 1) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            int home = hash(keys[slot]) & mask;
+            // move it unless its home lies cyclically after the hole and up to its slot
+            if(hole <= slot ? (home <= hole || home > slot) : (home <= hole && home > slot)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                sequences[hole] = sequences[slot];
+                hole = slot;
+            }
+        }
+        values[hole] = null;
+        size--;
+
+        if(values.length > INITIAL_CAPACITY && size * 8 < values.length)
+            resize(values.length / 2); // give memory back when a channel empties out
+
+        return removed;
+    }
+
+    /**
+     * Returns the number of members.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a copy of every membership, in the order they were added.
+     */
+    public Vector<UserChannelInformation> values() {
+        int[] slots = getSlotsInOrder();
+        Vector<UserChannelInformation> list = new Vector(slots.length);
+        for(int slot : slots)
+            list.add(values[slot]);
+        return list;
+    }
+
+    /**
+     * Returns the slots in use, in the order their members were added.
+     */
+    private int[] getSlotsInOrder() {
+        // the sequence goes in the high half and the slot in the low half, so sorting sorts by sequence
+        long[] order = new long[size];
+        int count = 0;
+        for(int slot = 0; slot < values.length; slot++) {
+            if(values[slot] != null)
+                order[count++] = ((long) sequences[slot] << 32) | slot;
+        }
+        Arrays.sort(order);
+
+        int[] slots = new int[count];
+        for(int x = 0; x < count; x++)
+            slots[x] = (int) order[x];
+        return slots;
+    }
+
+    /**
+     * Numbers the members from zero again, in the same order, once the
+     * sequence numbers run out.
+     */
+    private void renumber() {
+        int[] slots = getSlotsInOrder();
+        for(int x = 0; x < slots.length; x++)
+            sequences[slots[x]] = x;
+        nextSequence = slots.length;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        UserChannelInformation[] oldValues = values;
+        int[] oldSequences = sequences;
+
+        keys = new int[capacity];
+        values = new UserChannelInformation[capacity];
+        sequences = new int[capacity];
+        size = 0;
+        for(int x = 0; x < oldValues.length; x++) {
+            if(oldValues[x] != null)
+                insert(oldKeys[x], oldValues[x], oldSequences[x]);
+        }
+    }
+
+    /**
+     * Spreads out IDs, which are handed out in sequence.
+     */
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * This represents a netsplit: a server (and everything behind it) breaking
+ * away from the part of the network we are on. We see it as a flood of QUITs
+ * whose message is just the names of the two servers that split, such as
+ * "hub.example.net leaf.example.net", and, when the servers link again, a
+ * flood of JOINs from the same users.
+ *
+ * The tracker keeps a netsplit around for as long as any of the users it
+ * took away are waiting in split limbo to rejoin.
+ *
+ * @see TrackerSettings#setSplitLimboTime(int)
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.Date;
+
+public class Netsplit {
+    private String remainingServer;
+    private String splitServer;
+    private Date startTime;
+    private int quitCount;
+    private int rejoinCount;
+    private int limboCount;
+    
+    /**
+     * Creates a new instance of Netsplit.
+     *
+     * @param remainingServer The server on our side of the split.
+     * @param splitServer The server that split away.
+     */
+    public Netsplit(String remainingServer, String splitServer) {
+        this.remainingServer = remainingServer;
+        this.splitServer = splitServer;
+        this.startTime = new Date();
+    }
+    
+    /**
+     * Determines if a QUIT message is one a server gives when a user is lost
+     * in a netsplit, and if so, makes a netsplit for it. Such a message is
+     * exactly two server names separated by a space. Servers put a prefix
+     * such as "Quit: " before messages given by users, so users can't fake
+     * one on most networks.
+     *
+     * @param message The QUIT message, which may be null.
+     * @return A new netsplit between the two servers named, or null if the message isn't a netsplit message.
+     */
+    public static Netsplit fromQuitMessage(String message) {
+        if(message == null)
+            return null;
+        
+        int space = message.indexOf(' ');
+        if(space == -1)
+            return null;
+        
+        String remaining = message.substring(0, space);
+        String split = message.substring(space + 1);
+        if(!isServerName(remaining) || !isServerName(split) || remaining.equalsIgnoreCase(split))
+            return null;
+        
+        return new Netsplit(remaining, split);
+    }
+    
+    /**
+     * Determines if a string looks like a server name. Networks that hide
+     * their servers use masks such as "*.net", so wildcards are allowed.
+     */
+    private static boolean isServerName(String name) {
+        if(name.length() == 0 || name.indexOf('.') == -1 || name.startsWith(".") || name.endsWith("."))
+            return false;
+        
+        for(int x = 0; x < name.length(); x++) {
+            char c = name.charAt(x);
+            if(!Character.isLetterOrDigit(c) && c != '.' && c != '-' && c != '_' && c != '*')
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the server on our side of the split (the first server named
+     * in the QUIT messages).
+     */
+    public String getRemainingServer() {
+        return remainingServer;
+    }
+    
+    /**
+     * Returns the server that split away from ours (the second server named
+     * in the QUIT messages).
+     */
+    public String getSplitServer() {
+        return splitServer;
+    }
+    
+    /**
+     * Returns the time that we saw the first user lost in this split.
+     */
+    public Date getStartTime() {
+        return startTime;
+    }
+    
+    /**
+     * Returns the number of users we have seen lost in this split.
+     */
+    public int getQuitCount() {
+        return quitCount;
+    }
+    
+    /**
+     * Returns the number of users lost in this split that have come back
+     * and were restored from split limbo.
+     */
+    public int getRejoinCount() {
+        return rejoinCount;
+    }
+    
+    /**
+     * Returns the number of users lost in this split that are still in
+     * split limbo, waiting to come back.
+     */
+    public int getLimboCount() {
+        return limboCount;
+    }
+    
+    /**
+     * Determines if this is the same split as another, which is to say 
+     * between the same two servers.
+     */
+    public boolean isSameSplit(Netsplit split) {
+        return remainingServer.equalsIgnoreCase(split.getRemainingServer()) && splitServer.equalsIgnoreCase(split.getSplitServer());
+    }
+    
+    void userQuit() {
+        quitCount++;
+    }
+    
+    void userEnteredLimbo() {
+        limboCount++;
+    }
+    
+    void userLeftLimbo(boolean rejoined) {
+        limboCount--;
+        if(rejoined)
+            rejoinCount++;
+    }
+    
+    public String toString() {
+        return remainingServer + " " + splitServer + " (QUITS:" + quitCount + ", REJOINS:" + rejoinCount + ", LIMBO:" + limboCount + ")";
+    }
+}
@@ -13,6 +13,7 @@ public class NicknameHistory {
     private Date usageStopTime;
     private String nickname;
     private TrackedUser user;
+    private boolean indexed; // in the tracker's nickname timeline
     
     /**
      * Initializes this nickname history with the usage start time, nickname
@@ -90,6 +91,14 @@ public class NicknameHistory {
         return this.getUsageStopTime() == null;
     }
     
+    boolean isIndexed() {
+        return indexed;
+    }
+    
+    void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+    
     public String toString() {
         return "NICKNAME:" + this.getNickname() + " (" + this.getUsageStartTime() + " -> " + this.getUsageStopTime() + ")";
     }    
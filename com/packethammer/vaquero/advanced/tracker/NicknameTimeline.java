@@ -0,0 +1,250 @@
+/**
+ * This is the tracker's index of nickname history. For every (casemapped)
+ * nickname, it keeps the times it was used in order of when they started,
+ * so finding who used a nickname at some moment is a binary search. Nobody
+ * can use a nickname while someone else is, so at most one usage can cover
+ * any moment: the last one to start before it.
+ *
+ * Nicknames that are no longer in use are also queued in the order they
+ * stopped being used, which is the order they should be forgotten in. The
+ * oldest are forgotten once they are older than the tracking time, or once
+ * there are more than the limit, without having to look at the rest.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+
+class NicknameTimeline {
+    private CasemappingDefinition casemapping;
+    private int limit; // of old nicknames, or -1 for none
+    private HashMap<CasemappedKey, ArrayList<NicknameHistory>> byNickname; // each list in order of start time
+    private LinkedList<NicknameHistory> retired; // old nicknames, in order of stop time (may hold some that were removed)
+    private int retiredCount; // old nicknames in the index
+    
+    /**
+     * @param casemapping The casemapping to key nicknames with. The tracker shares its own, so it changes with the network's.
+     * @param limit The most old nicknames to remember, or -1 for no limit.
+     */
+    public NicknameTimeline(CasemappingDefinition casemapping, int limit) {
+        this.casemapping = casemapping;
+        this.limit = limit;
+        this.byNickname = new HashMap();
+        this.retired = new LinkedList();
+    }
+    
+    /**
+     * Adds a nickname someone has started using.
+     */
+    public void add(NicknameHistory history) {
+        CasemappedKey key = casemapping.createKey(history.getNickname());
+        ArrayList<NicknameHistory> list = byNickname.get(key);
+        if(list == null) {
+            list = new ArrayList(2);
+            byNickname.put(key, list);
+        }
+        
+        // usually this is the newest, but keep them in order if the clock says otherwise
+        int x = list.size();
+        while(x > 0 && list.get(x - 1).getUsageStartTime().after(history.getUsageStartTime()))
+            x--;
+        list.add(x, history);
+        history.setIndexed(true);
+    }
+    
+    /**
+     * Marks a nickname as no longer in use, so that it will be forgotten in
+     * time. Its usage stop time must already be set.
+     */
+    public void retire(NicknameHistory history) {
+        retired.add(history);
+        retiredCount++;
+    }
+    
+    /**
+     * Adds a nickname that stopped being used some time ago, such as one 
+     * restored from a snapshot. Unlike retire(), its stop time may be older
+     * than that of nicknames already retired.
+     */
+    public void addRetired(NicknameHistory history) {
+        add(history);
+        
+        // it is most likely older than anything retired since, so look from the front
+        ListIterator<NicknameHistory> i = retired.listIterator();
+        while(i.hasNext()) {
+            if(i.next().getUsageStopTime().after(history.getUsageStopTime())) {
+                i.previous();
+                break;
+            }
+        }
+        i.add(history);
+        retiredCount++;
+    }
+    
+    /**
+     * Removes a nickname usage, such as for a user we are no longer tracking.
+     */
+    public void remove(NicknameHistory history) {
+        if(!history.isIndexed())
+            return;
+        
+        CasemappedKey key = casemapping.createKey(history.getNickname());
+        ArrayList<NicknameHistory> list = byNickname.get(key);
+        if(list != null) {
+            int x = find(list, history.getUsageStartTime(), true);
+            // several may share a start time, so look back through those for this one
+            for(int y = x; y >= 0 && !list.get(y).getUsageStartTime().before(history.getUsageStartTime()); y--) {
+                if(list.get(y) == history) {
+                    list.remove(y);
+                    break;
+                }
+            }
+            
+            if(list.isEmpty())
+                byNickname.remove(key);
+        }
+        
+        history.setIndexed(false);
+        if(!history.isStillInUse()) {
+            retiredCount--;
+            
+            // it stays queued until it would have expired; don't let too many of those build up
+            if(retired.size() > 2 * retiredCount + 16)
+                compactRetired();
+        }
+    }
+    
+    /**
+     * Returns the usages of a nickname, oldest first.
+     */
+    public List<NicknameHistory> get(String nickname) {
+        ArrayList<NicknameHistory> list = byNickname.get(casemapping.createKey(nickname));
+        if(list == null)
+            return new ArrayList();
+        
+        return new ArrayList(list);
+    }
+    
+    /**
+     * Returns the usage of a nickname that covers some time, or null if
+     * nobody we know of used it then.
+     */
+    public NicknameHistory get(String nickname, Date time) {
+        ArrayList<NicknameHistory> list = byNickname.get(casemapping.createKey(nickname));
+        if(list == null)
+            return null;
+        
+        int x = find(list, time, false);
+        if(x == -1)
+            return null;
+        
+        NicknameHistory history = list.get(x);
+        if(history.isStillInUse() || history.getUsageStopTime().after(time))
+            return history;
+        
+        return null;
+    }
+    
+    /**
+     * Returns every nickname's usages.
+     */
+    public Collection<ArrayList<NicknameHistory>> getAll() {
+        return byNickname.values();
+    }
+    
+    /**
+     * Returns the stop time of the oldest nickname no longer in use, or null
+     * if there are none.
+     */
+    public Date getOldestStopTime() {
+        skipRemoved();
+        return retired.isEmpty() ? null : retired.getFirst().getUsageStopTime();
+    }
+    
+    /**
+     * Forgets nicknames that stopped being used before some time, and the
+     * oldest beyond our limit. They are taken out of their users' nickname
+     * histories as well.
+     *
+     * @param expiry The time before which old nicknames are forgotten, or null to keep them for any time.
+     * @return The number of nicknames forgotten.
+     */
+    public int expire(Date expiry) {
+        int count = 0;
+        
+        skipRemoved();
+        while(!retired.isEmpty()) {
+            NicknameHistory oldest = retired.getFirst();
+            boolean expired = expiry != null && oldest.getUsageStopTime().before(expiry);
+            if(!expired && (limit == -1 || retiredCount <= limit))
+                break;
+            
+            retired.removeFirst();
+            remove(oldest);
+            oldest.getUser().getNicknameHistory().remove(oldest);
+            count++;
+            
+            skipRemoved();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Makes the nickname keys again, for when the casemapping they were made
+     * with has changed.
+     */
+    public void rekey() {
+        ArrayList<ArrayList<NicknameHistory>> lists = new ArrayList(byNickname.values());
+        byNickname.clear();
+        for(ArrayList<NicknameHistory> list : lists) {
+            for(NicknameHistory history : list)
+                add(history);
+        }
+    }
+    
+    /**
+     * Finds the last usage to start before some time.
+     *
+     * @param inclusive True to count usages that started at exactly that time too.
+     * @return Its index, or -1 if there is none.
+     */
+    private static int find(ArrayList<NicknameHistory> list, Date time, boolean inclusive) {
+        int low = 0;
+        int high = list.size() - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            Date start = list.get(mid).getUsageStartTime();
+            if(start.before(time) || (inclusive && start.equals(time)))
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+    
+    /**
+     * Drops removed nicknames from the front of the queue.
+     */
+    private void skipRemoved() {
+        while(!retired.isEmpty() && !retired.getFirst().isIndexed())
+            retired.removeFirst();
+    }
+    
+    private void compactRetired() {
+        Iterator<NicknameHistory> i = retired.iterator();
+        while(i.hasNext()) {
+            if(!i.next().isIndexed())
+                i.remove();
+        }
+    }
+}
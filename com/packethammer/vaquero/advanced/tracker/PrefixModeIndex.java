@@ -0,0 +1,111 @@
+/**
+ * This gives each user prefix mode (such as +o or +v) a bit number, so that
+ * the prefix modes a user has in a channel can be kept as a few bits rather
+ * than a set of mode definitions. Bits are given out in the order of numeric
+ * 005 ISUPPORT PREFIX, highest-ranking mode first, and modes we hear of
+ * later are given the next free bit. A mode's bit never changes once given.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import com.packethammer.vaquero.parser.tracking.IRCServerISupport;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+
+public class PrefixModeIndex {
+    /** The most modes that can be given bits; no server has anywhere near this many prefix modes */
+    public static final int MAX_MODES = 15;
+
+    private IRCServerISupport support;
+    private boolean seeded;
+    private char[] modes; // index = bit
+    private ChannelNickPrefixModeDefinition[] definitions; // index = bit; null if we only know the character
+    private int count;
+
+    /**
+     * Initializes this index, which will give out bits in the order of the
+     * server's PREFIX as it is when the first bit is asked for.
+     *
+     * @param support The server's ISUPPORT information, or null to give out bits in the order modes are seen.
+     */
+    public PrefixModeIndex(IRCServerISupport support) {
+        this.support = support;
+        this.modes = new char[MAX_MODES];
+        this.definitions = new ChannelNickPrefixModeDefinition[MAX_MODES];
+    }
+
+    /**
+     * Returns the bit for a mode, giving it one if it has none yet.
+     *
+     * @param mode The mode character.
+     * @return The bit number, from 0 to MAX_MODES - 1.
+     * @throws IllegalStateException If every bit has been given out.
+     */
+    public synchronized int getBit(char mode) {
+        seed();
+
+        int bit = this.findBit(mode);
+        if(bit != -1)
+            return bit;
+
+        if(count == MAX_MODES)
+            throw new IllegalStateException("Cannot track more than " + MAX_MODES + " user prefix modes");
+
+        modes[count] = mode;
+        return count++;
+    }
+
+    /**
+     * Returns the bit for a mode definition, giving it one if it has none
+     * yet, and remembering the definition so that it can be looked up by bit.
+     *
+     * @throws IllegalStateException If every bit has been given out.
+     */
+    public synchronized int getBit(ChannelNickPrefixModeDefinition definition) {
+        int bit = this.getBit(definition.getMode().charValue());
+        definitions[bit] = definition;
+        return bit;
+    }
+
+    /**
+     * Returns the bit for a mode without giving it one.
+     *
+     * @param mode The mode character.
+     * @return The bit number, or -1 if the mode has none.
+     */
+    public synchronized int findBit(char mode) {
+        for(int x = 0; x < count; x++) {
+            if(modes[x] == mode)
+                return x;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the mode character that has a bit.
+     */
+    public synchronized char getMode(int bit) {
+        return modes[bit];
+    }
+
+    /**
+     * Returns the mode definition that has a bit, or null if the mode was
+     * only ever seen as a character.
+     */
+    public synchronized ChannelNickPrefixModeDefinition getDefinition(int bit) {
+        return definitions[bit];
+    }
+
+    /**
+     * Gives out bits in PREFIX order, the first time any are asked for.
+     */
+    private void seed() {
+        if(seeded)
+            return;
+
+        seeded = true;
+        if(support != null) {
+            for(ChannelNickPrefixModeDefinition def : support.getNickPrefixModes())
+                this.getBit(def);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * This holds users that were lost in a netsplit, for a while, in case they
+ * come back. When the servers link again, thousands of users may rejoin at
+ * once; those we still have here are put back as they were (with their
+ * realname, data store, nickname history and so on) rather than being made
+ * anew and looked up with a WHO each.
+ *
+ * Users are kept in the order they quit. Everyone is kept for the same
+ * length of time, so that is also the order they expire in, and finding
+ * the expired users never means looking at those that aren't. That length
+ * of time is read from the tracker's settings whenever it is needed, so
+ * changing it applies to those already here as well.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+
+class SplitLimbo {
+    private TrackerSettings settings;
+    private LinkedHashMap<CasemappedKey, Entry> entries; // key = casemapped nickname, in the order they quit
+    private ArrayList<Netsplit> splits; // splits with users still here
+    
+    /**
+     * @param settings The settings that say how long to keep each user for.
+     */
+    public SplitLimbo(TrackerSettings settings) {
+        this.settings = settings;
+        this.entries = new LinkedHashMap();
+        this.splits = new ArrayList();
+    }
+    
+    /**
+     * Returns the netsplit we already know of that is the same as the one 
+     * given, or starts keeping track of the one given if there isn't one.
+     */
+    public Netsplit getSplit(Netsplit split) {
+        for(Netsplit known : splits) {
+            if(known.isSameSplit(split))
+                return known;
+        }
+        
+        splits.add(split);
+        return split;
+    }
+    
+    /**
+     * Returns the netsplits that have users here.
+     */
+    public List<Netsplit> getSplits() {
+        return new ArrayList(splits);
+    }
+    
+    /**
+     * Puts a user lost in a netsplit here. The user should have been taken
+     * out of all of their channels already.
+     *
+     * @param key The user's casemapped nickname.
+     * @return A user that was here under the same nickname and has been replaced, or null if there wasn't one.
+     */
+    public TrackedUser add(CasemappedKey key, TrackedUser user, Netsplit split) {
+        TrackedUser replaced = remove(key, false);
+        
+        entries.put(key, new Entry(user, split, System.currentTimeMillis()));
+        split.userEnteredLimbo();
+        
+        return replaced;
+    }
+    
+    /**
+     * Returns the user here under a nickname, or null if there isn't one.
+     */
+    public TrackedUser get(CasemappedKey key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.user;
+    }
+    
+    /**
+     * Takes a user out of limbo.
+     *
+     * @param key The user's casemapped nickname.
+     * @param rejoined True if the user came back, or false if they are being given up on.
+     * @return The user, or null if there was no user here by that nickname.
+     */
+    public TrackedUser remove(CasemappedKey key, boolean rejoined) {
+        Entry entry = entries.remove(key);
+        if(entry == null)
+            return null;
+        
+        leftLimbo(entry, rejoined);
+        return entry.user;
+    }
+    
+    /**
+     * Returns the time (as given by System.currentTimeMillis()) that the
+     * next user will expire, or Long.MAX_VALUE if there is nobody here.
+     */
+    public long getNextExpiry() {
+        if(entries.isEmpty())
+            return Long.MAX_VALUE;
+        
+        return entries.values().iterator().next().quitTime + getLimboTime();
+    }
+    
+    /**
+     * Takes every user that has been here longer than the limbo time out.
+     *
+     * @param now The current time, as given by System.currentTimeMillis().
+     * @return The users that expired, who won't be coming back.
+     */
+    public List<TrackedUser> removeExpired(long now) {
+        List<TrackedUser> expired = new ArrayList();
+        long limboTime = getLimboTime();
+        
+        Iterator<Entry> i = entries.values().iterator();
+        while(i.hasNext()) {
+            Entry entry = i.next();
+            if(now != Long.MAX_VALUE && entry.quitTime + limboTime > now)
+                break; // everyone after this quit later
+            
+            i.remove();
+            leftLimbo(entry, false);
+            expired.add(entry.user);
+        }
+        
+        return expired;
+    }
+    
+    /**
+     * Takes everyone out of limbo.
+     *
+     * @return The users that were here.
+     */
+    public List<TrackedUser> clear() {
+        return removeExpired(Long.MAX_VALUE);
+    }
+    
+    /**
+     * Returns the number of users here.
+     */
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Makes the nickname keys again, for when the casemapping they were made
+     * with has changed.
+     */
+    public void rekey(CasemappingDefinition casemapping) {
+        ArrayList<Entry> list = new ArrayList(entries.values());
+        entries.clear();
+        for(Entry entry : list)
+            entries.put(casemapping.createKey(entry.user.getHostmask().getNickname()), entry);
+    }
+    
+    /**
+     * Returns the number of milliseconds each user is kept for.
+     */
+    private long getLimboTime() {
+        return settings.getSplitLimboTime() * 1000L;
+    }
+    
+    private void leftLimbo(Entry entry, boolean rejoined) {
+        entry.split.userLeftLimbo(rejoined);
+        if(entry.split.getLimboCount() == 0)
+            splits.remove(entry.split);
+    }
+    
+    private static class Entry {
+        TrackedUser user;
+        Netsplit split;
+        long quitTime;
+        
+        Entry(TrackedUser user, Netsplit split, long quitTime) {
+            this.user = user;
+            this.split = split;
+            this.quitTime = quitTime;
+        }
+    }
+}
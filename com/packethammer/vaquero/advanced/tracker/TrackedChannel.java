@@ -5,35 +5,71 @@
 package com.packethammer.vaquero.advanced.tracker;
 
 import com.packethammer.vaquero.util.datastore.DataStore;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.Hostmask;
+import com.packethammer.vaquero.util.MaskIndex;
+import com.packethammer.vaquero.util.MaskMatcher;
 import com.packethammer.vaquero.util.modes.channel.ChannelMode;
 
 public class TrackedChannel implements Comparable {
     private String name;
-    private Vector<UserChannelInformation> userInformation;
+    private CasemappingDefinition casemapping;
+    private Tracker tracker; // finds members by nickname, or null if we have to search
+    private PrefixModeIndex prefixModeIndex;
+    private MembershipTable userInformation; // key = user ID
     private String topic;
     private Date lastTopicChangeTime;
     private String lastTopicChanger;
     private Date creationTime;
     private HashSet<ChannelMode> channelModes;
     private DataStore store;
-    // TODO: not currently supported
-    //private ArrayList<ListableModes> listableModes;
+    private LinkedHashMap<Character, ListableModes> listableModes; // key = mode character
     private boolean tracked;
+    private volatile ChannelView view; // what was last published about us
     
     
     /**
-     * Creates a new instance of TrackedChannel
+     * Creates a new instance of TrackedChannel that compares nicknames using
+     * RFC1459 casemapping.
      */
     public TrackedChannel() {
+        this(new CasemappingDefinition(CasemappingDefinition.CASEMAPPING_RFC1459));
+    }
+    
+    /**
+     * Creates a new instance of TrackedChannel.
+     *
+     * @param casemapping The casemapping to compare nicknames with.
+     */
+    public TrackedChannel(CasemappingDefinition casemapping) {
+        this(casemapping, null, new PrefixModeIndex(null));
+    }
+    
+    /**
+     * Creates a new instance of TrackedChannel belonging to a tracker, which
+     * is used to find members by nickname.
+     *
+     * @param casemapping The casemapping to compare nicknames with.
+     * @param tracker The tracker tracking the channel's members, or null if there is none.
+     * @param prefixModeIndex The index giving user prefix modes their bits.
+     */
+    TrackedChannel(CasemappingDefinition casemapping, Tracker tracker, PrefixModeIndex prefixModeIndex) {
+        this.casemapping = casemapping;
+        this.tracker = tracker;
+        this.prefixModeIndex = prefixModeIndex;
         store = new DataStore();
-        userInformation = new Vector();
+        userInformation = new MembershipTable();
         // instantiate in set-like mode to prevent duplicate modes (a precaution)
         channelModes = new HashSet();
-        //listableModes = new ArrayList();
+        listableModes = new LinkedHashMap();
     }
 
     /**
@@ -51,29 +87,52 @@ public class TrackedChannel implements Comparable {
     }
 
     /**
-     * Returns information for the users in this channel.
+     * Returns information for the users in this channel, in the order they
+     * were added. The list is a copy, so changing it does not change the channel.
      */
     public Vector<UserChannelInformation> getUserInformation() {
-        return userInformation;
+        return userInformation.values();
     }
     
     /**
      * Gets a user's information by their nickname. This is a case-insensitive
-     * search, but network casemapping is NOT taken into effect. Read more
-     * on this inside Tracker.
+     * search that takes network casemapping into account.
      *
-     * @param nickname Their case-insensitive information.
+     * @param nickname Their case-insensitive nickname.
      * @return User information, or null if there is no user by that nickname in this channel.
      * @see #vaquero.advanced.tracker.Tracker.getUser(String)
      */
     public UserChannelInformation getUserInformation(String nickname) {
-        for(UserChannelInformation info : this.userInformation) {
-            if(info.getUser().getHostmask().getNonNullNickname().equalsIgnoreCase(nickname))
+        if(tracker != null) {
+            TrackedUser user = tracker.getUser(nickname);
+            return user == null ? null : this.userInformation.get(user.getId());
+        }
+        
+        String key = casemapping.toLowerCase(nickname);
+        for(UserChannelInformation info : this.userInformation.values()) {
+            if(casemapping.toLowerCase(info.getUser().getHostmask().getNonNullNickname()).equals(key))
                 return info;
         }
         return null;
     }
     
+    /**
+     * Gets a user's information by the user.
+     *
+     * @param user The user.
+     * @return User information, or null if the user is not in this channel.
+     */
+    public UserChannelInformation getUserInformation(TrackedUser user) {
+        return this.userInformation.get(user.getId());
+    }
+    
+    /**
+     * Returns the number of users known to be in this channel.
+     */
+    public int getUserCount() {
+        return this.userInformation.size();
+    }
+    
     /**
      * Adds user information to this channel, essentially making the user a member
      * of this channel.
@@ -81,7 +140,7 @@ public class TrackedChannel implements Comparable {
      * @param info The information to add.
      */
     public void addUserInformation(UserChannelInformation info) {
-        this.userInformation.add(info);
+        this.userInformation.put(info.getUser().getId(), info);
     }
     
     /**
@@ -89,7 +148,17 @@ public class TrackedChannel implements Comparable {
      * channel.
      */
     public void removeUserInformation(UserChannelInformation info) {
-        this.userInformation.remove(info);
+        int id = info.getUser().getId();
+        if(this.userInformation.get(id) == info)
+            this.userInformation.remove(id);
+    }
+    
+    /**
+     * Returns the index that gives the user prefix modes of this channel's
+     * members their bits.
+     */
+    public PrefixModeIndex getPrefixModeIndex() {
+        return prefixModeIndex;
     }
 
     /**
@@ -167,12 +236,22 @@ public class TrackedChannel implements Comparable {
         return channelModes;
     }
 
-    /*
+    /**
      * Returns the listable modes for this channel. This would be numeric 005 
      * ISUPPORT CHANMODES type A. The most obvious example is +b.
-     *
+     */
     public ArrayList<ListableModes> getListableModes() {
-        return listableModes;
+        return new ArrayList(listableModes.values());
+    }
+    
+    /**
+     * Returns the list of a listable mode for this channel.
+     *
+     * @param mode The mode character, such as 'b' for bans.
+     * @return The list, or null if the mode is not a listable mode we know of.
+     */
+    public ListableModes getListableModes(char mode) {
+        return listableModes.get(Character.valueOf(mode));
     }
     
     /**
@@ -181,16 +260,111 @@ public class TrackedChannel implements Comparable {
      * returned.
      *
      * @return The set of bans or null if the mode +b does not exist.
-     *
+     */
     public ListableModes getBanList() {
-        for(ListableModes lm : listableModes) {
-            if(lm.getModeDefinition().getMode().equals(ChannelMode.MODE_BAN)) 
-                return lm;
+        return getListableModes(ChannelMode.MODE_BAN);
+    }
+    
+    /**
+     * Determines if a user would be banned from this channel as far as we
+     * know: a ban matches their hostmask and no ban exception does. This is
+     * only as good as our lists, which are definite only if they were listed
+     * from the server.
+     *
+     * @param hostmask The user's hostmask.
+     * @return True if a ban we know of keeps them out.
+     */
+    public boolean isBanned(Hostmask hostmask) {
+        ListableModes bans = getBanList();
+        if(bans == null || !bans.matches(hostmask))
+            return false;
+        
+        for(ListableModes list : listableModes.values()) {
+            if(list.getModeDefinition().isBanExceptionMode() && list.matches(hostmask))
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Adds an empty list for a listable mode, unless there is one already.
+     *
+     * @return The list for the mode.
+     */
+    ListableModes addListableModes(ChannelModeDefinition def) {
+        ListableModes list = listableModes.get(def.getMode());
+        if(list == null) {
+            list = new ListableModes(casemapping);
+            list.setModeDefinition(def);
+            list.setDefinite(false); // don't know yet
+            listableModes.put(def.getMode(), list);
         }
+        return list;
+    }
+    
+    /**
+     * Finds the users in this channel whose hostmasks match a mask, such as
+     * those a new ban would affect. Parts of a user's hostmask that are
+     * unknown only match masks that allow anything there.
+     *
+     * Masks with a plain nickname, or a host that is plain text apart from
+     * a leading or trailing '*', are looked up rather than checked against
+     * every member.
+     *
+     * @param mask The mask, such as "*!*@*.example.com".
+     * @return Information for the users matching the mask.
+     */
+    public List<UserChannelInformation> getUserInformationMatching(String mask) {
+        String normalized = MaskIndex.normalizeMask(mask);
+        MaskMatcher matcher = new MaskMatcher(normalized, casemapping);
+        List<UserChannelInformation> matches = new ArrayList();
         
-        return null;
+        String nickname = normalized.substring(0, normalized.indexOf('!'));
+        if(nickname.indexOf('*') == -1 && nickname.indexOf('?') == -1) {
+            // only one user can have this nickname
+            UserChannelInformation info = getUserInformation(nickname);
+            if(info != null && matcher.matches(matchText(info.getUser().getHostmask())))
+                matches.add(info);
+            return matches;
+        }
+        
+        // if the host can be looked up, only the users on it need checking
+        if(tracker != null) {
+            String host = normalized.substring(normalized.indexOf('@', normalized.indexOf('!')) + 1);
+            List<TrackedUser> users = tracker.lookUpUsers(Tracker.USERINDEX_HOST, host);
+            if(users != null && users.size() < this.userInformation.size()) {
+                for(TrackedUser user : users) {
+                    UserChannelInformation info = this.userInformation.get(user.getId());
+                    if(info != null && matcher.matches(matchText(user.getHostmask())))
+                        matches.add(info);
+                }
+                return matches;
+            }
+        }
+        
+        for(UserChannelInformation info : this.userInformation.values()) {
+            if(matcher.matches(matchText(info.getUser().getHostmask())))
+                matches.add(info);
+        }
+        return matches;
     }
+    
+    /**
+     * Returns a hostmask as text to match a mask against, with unknown parts
+     * left empty.
+     */
+    private static String matchText(Hostmask hostmask) {
+        return hostmask.getNonNullNickname() + "!" + hostmask.getNonNullIdent() + "@" + hostmask.getNonNullHost();
+    }
+    
+    /**
+     * Makes the keys of the listable modes again, for when the casemapping
+     * they were made with has changed.
      */
+    void rekey() {
+        for(ListableModes list : listableModes.values())
+            list.rekey();
+    }
     
     /**
      * Determines if this channel is currently being tracked. If it is not being
@@ -219,6 +393,21 @@ public class TrackedChannel implements Comparable {
         return store;
     }
     
+    /**
+     * Returns what the tracker last published about this channel. Unlike
+     * the channel itself, the view never changes, so it can be read from
+     * any thread; a new one is published whenever the channel changes.
+     *
+     * @return The view, or null if we've left the channel (or it hasn't been published yet).
+     */
+    public ChannelView getView() {
+        return view;
+    }
+    
+    void setView(ChannelView view) {
+        this.view = view;
+    }
+    
     public void destroy() {
         this.store.destroy();
         this.store = null;
@@ -233,13 +422,12 @@ public class TrackedChannel implements Comparable {
     }
     
     /**
-     * Comparison is based on the name of the channel. This does not take
-     * casemapping into account, although ASCII letter casing does not matter
-     * (this is case-insensitive).
+     * Comparison is based on the name of the channel, using the channel's
+     * casemapping (so it is case-insensitive).
      */
     public int compareTo(Object o) {
         if(o instanceof TrackedChannel) {
-            return this.getName().toLowerCase().compareTo(((TrackedChannel) o).getName().toLowerCase());
+            return casemapping.toLowerCase(this.getName()).compareTo(casemapping.toLowerCase(((TrackedChannel) o).getName()));
         } else {
             throw new RuntimeException("Object not IRCChannel");
         }
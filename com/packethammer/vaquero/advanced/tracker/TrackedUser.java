@@ -4,31 +4,66 @@
 
 package com.packethammer.vaquero.advanced.tracker;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Vector;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
 import com.packethammer.vaquero.util.Hostmask;
 import com.packethammer.vaquero.util.datastore.DataStore;
 
 public class TrackedUser implements Comparable {
+    private static int nextId = 1;
+    
+    private int id;
     private Hostmask hostmask;
     private String realname;
+    private String ip;
     private boolean tracked;
+    private boolean provisional;
     private Boolean serverOperator;
     private Boolean away;
-    private Vector<UserChannelInformation> channelInformation;
+    private CasemappingDefinition casemapping;
+    private LinkedHashMap<CasemappedKey, UserChannelInformation> channelInformation; // key = casemapped channel name
     private Vector<NicknameHistory> nicknameHistory; // newest nickname is at index 0
     private DataStore store;
+    private volatile UserView view; // what was last published about us
     
     /**
-     * Creates a new instance of TrackedUser
+     * Creates a new instance of TrackedUser that compares channel names
+     * using RFC1459 casemapping.
      */
     public TrackedUser() {
-        channelInformation = new Vector();
+        this(new CasemappingDefinition(CasemappingDefinition.CASEMAPPING_RFC1459));
+    }
+    
+    /**
+     * Creates a new instance of TrackedUser.
+     *
+     * @param casemapping The casemapping to compare channel names with.
+     */
+    public TrackedUser(CasemappingDefinition casemapping) {
+        this.id = allocateId();
+        this.casemapping = casemapping;
+        channelInformation = new LinkedHashMap(4); // most users are in only a few channels
         hostmask = new Hostmask();
         store = new DataStore();
         nicknameHistory = new Vector();
     }
 
+    private static synchronized int allocateId() {
+        return nextId++;
+    }
+    
+    /**
+     * Returns this user's ID, which is different for every user object made
+     * and never changes, even when the user changes their nickname. Channels
+     * file their members by it.
+     */
+    public int getId() {
+        return id;
+    }
+    
     /**
      * Returns this user's hostmask. Unknown components of it will be null.
      *
@@ -64,6 +99,26 @@ public class TrackedUser implements Comparable {
         this.tracked = tracked;
     }
 
+    /**
+     * Determines if what we know of this user was restored from a snapshot
+     * and hasn't been confirmed by the server yet. Until the tracker has 
+     * looked them up again, their hostmask, realname, IP address, data
+     * store and old nicknames are what they were when the snapshot was
+     * taken, and may belong to someone else who has their nickname now.
+     *
+     * @see Tracker#restoreSnapshot(TrackerSnapshot)
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    /**
+     * @see #isProvisional()
+     */
+    public void setProvisional(boolean provisional) {
+        this.provisional = provisional;
+    }
+
     /**
      * Returns the channel status information for each channel this user is 
      * known to be in.
@@ -71,24 +126,26 @@ public class TrackedUser implements Comparable {
      * @return List of channels this user in known to be in.
      */
     public List<UserChannelInformation> getChannelInformation() {
-        return (List) this.channelInformation.clone();
+        return new Vector(this.channelInformation.values());
     }
     
     /**
      * Gets a channel's information by its name. This is a case-insensitive
-     * search, but network casemapping is NOT taken into effect. Read more
-     * on this inside Tracker.
+     * search that takes network casemapping into account.
      *
      * @param channel Their case-insensitive channel name (including channel type prefix).
      * @return Channel information, or null if there is no channel by that name that we see this user in.
      * @see #vaquero.advanced.tracker.Tracker.getUser(String)
      */
     public UserChannelInformation getChannelInformation(String channel) {
-        for(UserChannelInformation info : this.channelInformation) {
-            if(info.getChannel().getName().equalsIgnoreCase(channel))
-                return info;
-        }
-        return null;
+        return this.channelInformation.get(casemapping.createKey(channel));
+    }
+    
+    /**
+     * Returns the number of channels this user is known to be in.
+     */
+    public int getChannelCount() {
+        return this.channelInformation.size();
     }
     
     /**
@@ -97,14 +154,27 @@ public class TrackedUser implements Comparable {
      * @param info The channel information to add.
      */
     public void addChannelInformation(UserChannelInformation info) {
-        this.channelInformation.add(info);
+        this.channelInformation.put(casemapping.createKey(info.getChannel().getName()), info);
     }
     
     /**
-     * Removes our channel information for some channel using equals()
+     * Removes our channel information for some channel.
      */
     public void removeChannelInformation(UserChannelInformation info) {
-        this.channelInformation.remove(info);
+        CasemappedKey key = casemapping.createKey(info.getChannel().getName());
+        if(this.channelInformation.get(key) == info)
+            this.channelInformation.remove(key);
+    }
+    
+    /**
+     * Makes the channel name keys again, for when the casemapping they were
+     * made with has changed.
+     */
+    void rekey() {
+        List<UserChannelInformation> infos = this.getChannelInformation();
+        this.channelInformation.clear();
+        for(UserChannelInformation info : infos)
+            this.addChannelInformation(info);
     }
     
 
@@ -124,6 +194,21 @@ public class TrackedUser implements Comparable {
         this.realname = realname;
     }
 
+    /**
+     * Returns this user's IP address or null if it is not yet known. We only
+     * learn it from WHOX replies, if the server gives it to us.
+     */
+    public String getIP() {
+        return ip;
+    }
+
+    /**
+     * Sets this user's IP address.
+     */
+    public void setIP(String ip) {
+        this.ip = ip;
+    }
+
     /**
      * Returns the data store associated with this user. The store is emptied
      * when the user is no longer being tracked.
@@ -140,7 +225,8 @@ public class TrackedUser implements Comparable {
      * The length of time that a user's nickname history is kept is controlled
      * in the tracker's settings. It basically guarantees that nicknames that
      * existed in the time period defined in the tracker's settings will be
-     * in this history list.
+     * in this history list, unless the limit on how many old nicknames the
+     * tracker remembers was reached first.
      */
     public Vector<NicknameHistory> getNicknameHistory() {
         return nicknameHistory;
@@ -155,11 +241,27 @@ public class TrackedUser implements Comparable {
         nicknameHistory = null;
         hostmask = null;
         realname = null;
+        ip = null;
         store.destroy();
         store = null;
         tracked = false; // just in case...
     }
     
+    /**
+     * Returns what the tracker last published about this user. Unlike the
+     * user itself, the view never changes, so it can be read from any
+     * thread; a new one is published whenever the user changes.
+     *
+     * @return The view, or null if the user is no longer tracked (or hasn't been published yet).
+     */
+    public UserView getView() {
+        return view;
+    }
+    
+    void setView(UserView view) {
+        this.view = view;
+    }
+    
     /**
      * @see #compareTo(Object)
      */
@@ -15,21 +15,41 @@
  * The tracker requires an instance of the advanced dispatch command manager 
  * so that it can perform query-oriented operations such as requesting
  * WHO lists, etc.
+ *
+ * The tracker is changed only by the parser's thread. Other threads (such as
+ * the outbound thread, or a GUI) should read the views it publishes instead
+ * of the tracked users and channels themselves: once an event has been 
+ * tracked, each user and channel it changed is copied into a new UserView
+ * or ChannelView, which replaces the old one. Views never change, so they
+ * are read without locking and without holding up the parser.
  */
 
 package com.packethammer.vaquero.advanced.tracker;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.dispatcher.querying.CachedUserInfo;
+import com.packethammer.vaquero.advanced.dispatcher.querying.WhoQueryListener;
 import com.packethammer.vaquero.advanced.dispatcher.querying.WhoXQueryListener;
 import com.packethammer.vaquero.outbound.CommandManager;
 import com.packethammer.vaquero.outbound.commands.basic.IRCWhoCommand;
@@ -50,9 +70,19 @@ import com.packethammer.vaquero.parser.events.channel.IRCJoinEvent;
 import com.packethammer.vaquero.parser.events.channel.IRCKickEvent;
 import com.packethammer.vaquero.parser.events.channel.IRCPartEvent;
 import com.packethammer.vaquero.parser.events.channel.IRCTopicChangeEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.BanListReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.ChannelCreationReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.ChannelModeReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfBanListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfExceptListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfInviteListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfListModeReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfNamesReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.ExceptListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.InviteListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.ListModeReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.NamesReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.ServerISupportReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.TopicReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.TopicWhoTime;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.UserHostReply;
@@ -60,21 +90,62 @@ import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.WhoXReply;
 import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
 import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+import com.packethammer.vaquero.parser.tracking.IRCServerISupport;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
 import com.packethammer.vaquero.util.Hostmask;
+import com.packethammer.vaquero.util.datastore.DataStore;
 import com.packethammer.vaquero.util.modes.Modes;
 import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
 
 public class Tracker {   
     /** This is the keyname used for a user store when storing a user's account name, assuming we are using WHOX with account-tracking enabled in settings */
     public static final String USERKEY_IRCU_ACCOUNT = "IRCU.ACCT";
+    /** Finds users by their host; see getUsersBy() */
+    public static final int USERINDEX_HOST = 0;
+    /** Finds users by their ident; see getUsersBy() */
+    public static final int USERINDEX_IDENT = 1;
+    /** Finds users by their IP address, as given in WHOX replies; see getUsersBy() */
+    public static final int USERINDEX_IP = 2;
+    /** Finds users by their ircu account name, as given in WHOX replies; see getUsersBy() */
+    public static final int USERINDEX_ACCOUNT = 3;
+    /** How often (in milliseconds) we look up some of the users restored from a snapshot */
+    private static final int VERIFICATION_PERIOD = 5000;
+    /** How long (in milliseconds) we hold on to a snapshot for channels and users to come back to */
+    private static final long PROVISIONAL_TIME = 10 * 60000L;
     
     private IRCParser parser;
     private Dispatcher outbound;
     private TrackerSettings settings;
     
-    private HashMap<String, TrackedUser> trackedUsers; // key = lowercase nickname
-    private HashMap<String, TrackedChannel> trackedChannels; // key = lowercase channel 
-    private HashMap<String,ArrayList<NicknameHistory>> nicknameHistories; // key = nickname (not in lowercase)
+    private CasemappingDefinition keyCasemapping; // what our keys were made with; only changes when we re-key
+    private HashMap<CasemappedKey, TrackedUser> trackedUsers; // key = casemapped nickname
+    private HashMap<CasemappedKey, TrackedChannel> trackedChannels; // key = casemapped channel 
+    private ConcurrentHashMap<CasemappedKey, UserView> userViews; // what other threads read; key = casemapped nickname
+    private ConcurrentHashMap<CasemappedKey, ChannelView> channelViews; // key = casemapped channel
+    private IdentityHashMap<TrackedUser, Boolean> changedUsers; // to be published once the change is over
+    private IdentityHashMap<TrackedChannel, Boolean> changedChannels;
+    private PrefixModeIndex prefixModeIndex; // shared by all our channels
+    private TrackerLock lock; // the parser thread writes; guards what isn't published in views
+    private LinkedList<Runnable> pendingSends; // commands to send once the write lock is let go
+    private SplitLimbo limbo; // users lost in netsplits, who may be back
+    private NicknameTimeline nicknameTimeline; // everyone's nickname history, by casemapped nickname
+    private UserIndex[] userIndices; // see USERINDEX_* constants
+    private boolean historyExpiryScheduled; // there's a timeout coming to say it's time to expire nickname history
+    private volatile boolean historyExpiryDue; // set by that timeout
+    private TrackerSnapshot provisional; // what's left to restore of the last snapshot, or null
+    private long provisionalTime; // when we started restoring it
+    private HashMap<CasemappedKey, TrackerSnapshot.SavedChannel> restoringChannels; // key = casemapped channel; until their NAMES ends
+    private LinkedList<TrackedUser> unverifiedUsers; // restored users we have yet to look up
+    private LinkedList<TrackedChannel> unlistedChannels; // restored channels whose lists we have yet to ask for
+    private Timeout verificationTimer; // sets verificationDue while there's restoring going on
+    private volatile boolean verificationDue;
+    private Timeout snapshotTimer; // saves snapshots now and then, if we have a snapshot file
+    private AtomicBoolean snapshotting; // a snapshot is being saved in the background
+    private ExecutorService snapshotWriter; // writes snapshots to disk, one at a time
+    private volatile boolean dead;
     
     /**
      * Initializes the tracker with a parser and command manager to use.
@@ -89,15 +160,44 @@ public class Tracker {
         this.outbound = outbound; 
         this.settings = settings;
         
+        this.keyCasemapping = new CasemappingDefinition(parser.getServerContext().getISupport().getCasemappingDefinition().getCasemappingConstant());
         this.trackedUsers = new HashMap();
         this.trackedChannels = new HashMap();
-        this.nicknameHistories = new HashMap();
+        this.userViews = new ConcurrentHashMap();
+        this.channelViews = new ConcurrentHashMap();
+        this.changedUsers = new IdentityHashMap();
+        this.changedChannels = new IdentityHashMap();
+        this.prefixModeIndex = new PrefixModeIndex(parser.getServerContext().getISupport());
+        this.lock = new TrackerLock();
+        this.pendingSends = new LinkedList();
+        this.limbo = new SplitLimbo(settings);
+        this.nicknameTimeline = new NicknameTimeline(keyCasemapping, settings.getNicknameHistoryLimit());
+        this.userIndices = new UserIndex[] {
+            new UserIndex(keyCasemapping, true),
+            new UserIndex(keyCasemapping, false),
+            new UserIndex(keyCasemapping, false),
+            new UserIndex(keyCasemapping, false)
+        };
+        this.restoringChannels = new HashMap();
+        this.unverifiedUsers = new LinkedList();
+        this.unlistedChannels = new LinkedList();
+        this.snapshotting = new AtomicBoolean();
+        
+        // its thread only lives while there's a snapshot to write, and isn't a daemon, so a last snapshot gets written out even as the program exits
+        this.snapshotWriter = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Tracker snapshot");
+            }
+        });
         
         // act on settings
         if(settings.isIrcuAccountTrackingEnabled())
             settings.getWhoXSearchOptions().addSearchField(WhoXSearchOptions.SEARCHFIELD_ACCOUNTNAME);
         
         hookTrackingEvents();
+        
+        if(settings.getSnapshotFile() != null)
+            startSnapshots();
     }    
 
     /**
@@ -127,33 +227,284 @@ public class Tracker {
     }
     
     /**
-     * Returns a user by their nickname. Please note that this is case-insensitive,
-     * but it does NOT take network casemapping into account. This means that if
-     * a server considers ` and ~ to be the same (same as 'a' and 'A' are the
-     * same on basically every IRC server), that this method would not work
-     * as you might expect. In short, please use the exact nickname of the user
-     * you want to get the information for, although the ASCII letters can be
-     * lowercase/uppercase without causing trouble.
+     * Returns a user by their nickname. This is case-insensitive, and takes
+     * network casemapping into account, so on a server that considers [ and {
+     * to be the same (as 'a' and 'A' are the same on basically every IRC
+     * server), either will find the user. Until the server tells us its
+     * casemapping in numeric 005 ISUPPORT, RFC1459 casemapping is assumed;
+     * when it does, everything is filed again under the new casemapping.
+     *
+     * The user keeps changing as the parser tracks events, so threads other
+     * than the parser's should read its view (or use getUserView()) instead.
+     * They are found by the nickname they were last published under.
      *
      * @param nickname The user's current nickname.
      * @return The tracked IRC user, or null if such a user does not exist.
      */
     public TrackedUser getUser(String nickname) {
-        return this.trackedUsers.get(nickname.toLowerCase());
+        if(nickname == null)
+            return null;
+        
+        if(lock.isHeldByCurrentThread())
+            return this.trackedUsers.get(keyCasemapping.createKey(nickname)); // we're the writer, and may be mid-change
+        
+        UserView view = this.getUserView(nickname);
+        return view == null ? null : view.getUser();
     }
     
     /**
-     * Returns a channel by its name (including the channel type prefix). Note
-     * that while this is case-insensitive in the traditional sense, that there
-     * are some casemapping limitations in place that are better described in 
-     * getUser().
+     * Returns a channel by its name (including the channel type prefix). This
+     * is case-insensitive, and takes network casemapping into account as 
+     * described in getUser(). As with users, other threads should read the
+     * channel's view instead.
      *
      * @param channel The name of the channel.
      * @return The tracked channel, or null if such a channel does not exist.
      * @see #getUser(String)
      */
     public TrackedChannel getChannel(String channel) {
-        return this.trackedChannels.get(channel.toLowerCase());
+        if(channel == null)
+            return null;
+        
+        if(lock.isHeldByCurrentThread())
+            return this.trackedChannels.get(keyCasemapping.createKey(channel));
+        
+        ChannelView view = this.getChannelView(channel);
+        return view == null ? null : view.getChannel();
+    }
+    
+    /**
+     * Returns what was last published about a user, by their nickname. This
+     * never waits on the parser, and the view never changes, so it is how
+     * other threads should read users.
+     *
+     * @param nickname The user's nickname, compared as described in getUser().
+     * @return The user's view, or null if there is no such user.
+     * @see #getUser(String)
+     */
+    public UserView getUserView(String nickname) {
+        if(nickname == null)
+            return null;
+        
+        return userViews.get(keyCasemapping.createKey(nickname));
+    }
+    
+    /**
+     * Returns what was last published about a channel, by its name. Like
+     * getUserView(), this never waits on the parser.
+     *
+     * @param channel The name of the channel.
+     * @return The channel's view, or null if we aren't in such a channel.
+     */
+    public ChannelView getChannelView(String channel) {
+        if(channel == null)
+            return null;
+        
+        return channelViews.get(keyCasemapping.createKey(channel));
+    }
+    
+    /**
+     * Returns the views last published of every user we track. Each view is
+     * of one moment, but they aren't all of the same moment: a user who
+     * changed while the list was being made may be there as they were
+     * before or after the change.
+     */
+    public List<UserView> getUserViews() {
+        return new ArrayList(userViews.values());
+    }
+    
+    /**
+     * Returns the views last published of every channel we are in. As with
+     * getUserViews(), each view is of one moment.
+     */
+    public List<ChannelView> getChannelViews() {
+        return new ArrayList(channelViews.values());
+    }
+    
+    /**
+     * Reads from the tracker from any thread. The task should read the
+     * published views (see getUserView() and getChannelView()), which never
+     * change, so nothing is locked and the parser is never held up: it
+     * goes on publishing newer views while the task reads the ones it got.
+     * Each view is of one moment, and views of different users and
+     * channels may be of different moments.
+     *
+     * The nickname history and user index lookups, such as getUsersBy(),
+     * may be used as well; each of those is read in one go under the
+     * tracker's own lock, which the parser only waits on for the lookup.
+     *
+     * @param task The reading to do.
+     * @return What the task returned.
+     */
+    public <T> T read(TrackerReadI<T> task) {
+        return task.read(this);
+    }
+    
+    /**
+     * Reads what isn't published in views, such as our user indices and
+     * nickname history, holding the reading side of the tracker's lock. 
+     * The parser waits for these reads, so only the tracker's own short
+     * lookups and copies are made this way.
+     */
+    private <T> T readLocked(TrackerReadI<T> task) {
+        if(lock.isHeldByCurrentThread())
+            return task.read(this); // we're the writer, or already locked
+        
+        lock.lockRead();
+        try {
+            return task.read(this);
+        } finally {
+            lock.unlockRead();
+        }
+    }
+    
+    /**
+     * Wraps a tracking event listener so that the changes it makes are
+     * published as a whole once it's done. Commands the change decided to
+     * send go out once the write lock has been let go.
+     */
+    private IRCEventListener writing(final IRCEventListener listener) {
+        return new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                try {
+                    beginWrite();
+                    try {
+                        listener.onEvent(e);
+                        expireLimbo();
+                        expireNicknameHistory();
+                        verifyRestored();
+                    } finally {
+                        endWrite();
+                    }
+                } finally {
+                    sendPending();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Starts a change to the tracker. Changes may be nested in the parser's
+     * thread.
+     */
+    private void beginWrite() {
+        lock.beginWrite();
+    }
+    
+    /**
+     * Finishes a change started by beginWrite(), publishing new views of
+     * the users and channels it changed.
+     */
+    private void endWrite() {
+        try {
+            publishChanges();
+        } finally {
+            lock.endWrite();
+        }
+    }
+    
+    /**
+     * Notes that a user was changed (or started or stopped being tracked),
+     * so a new view of them is published when the change is over.
+     */
+    private void changed(TrackedUser user) {
+        changedUsers.put(user, Boolean.TRUE);
+    }
+    
+    /**
+     * Notes that a channel, or one of its members' nicknames or modes, was
+     * changed, so a new view of it is published when the change is over.
+     */
+    private void changed(TrackedChannel chan) {
+        changedChannels.put(chan, Boolean.TRUE);
+    }
+    
+    /**
+     * Publishes new views of the users and channels changed since this was
+     * last done. Only they are copied; everyone else's view stays as it was.
+     */
+    private void publishChanges() {
+        if(!changedUsers.isEmpty()) {
+            for(TrackedUser user : changedUsers.keySet())
+                publish(user);
+            changedUsers.clear();
+        }
+        
+        if(!changedChannels.isEmpty()) {
+            List<ChannelNickPrefixModeDefinition> prefixModeDefs = parser.getServerContext().getISupport().getNickPrefixModes();
+            for(TrackedChannel chan : changedChannels.keySet())
+                publish(chan, prefixModeDefs);
+            changedChannels.clear();
+        }
+    }
+    
+    /**
+     * Replaces the view of a user, or takes it away if we've stopped
+     * tracking them. The new view is filed before the old one is taken
+     * away, so someone changing their nickname is never missing.
+     */
+    private void publish(TrackedUser user) {
+        UserView old = user.getView();
+        UserView view = null;
+        if(user.isTracked()) {
+            CasemappedKey key = keyCasemapping.createKey(user.getHostmask().getNickname());
+            if(old != null && old.getKey().equals(key))
+                key = old.getKey(); // channel views still share the old one
+            view = new UserView(user, key);
+            userViews.put(key, view);
+        }
+        user.setView(view);
+        
+        if(old != null && (view == null || !old.getKey().equals(view.getKey())))
+            userViews.remove(old.getKey(), old); // unless someone else has the nickname now
+    }
+    
+    /**
+     * Replaces the view of a channel, or takes it away if we've left it.
+     */
+    private void publish(TrackedChannel chan, List<ChannelNickPrefixModeDefinition> prefixModeDefs) {
+        CasemappedKey key = keyCasemapping.createKey(chan.getName());
+        if(trackedChannels.get(key) == chan) {
+            ChannelView view = new ChannelView(chan, keyCasemapping, prefixModeDefs);
+            channelViews.put(key, view);
+            chan.setView(view);
+        } else {
+            ChannelView old = chan.getView();
+            if(old != null)
+                channelViews.remove(key, old);
+            chan.setView(null);
+        }
+    }
+    
+    /**
+     * Queues up sending a command (or a query) until the change being made
+     * has let go of the write lock, so that the outbound system and its
+     * listeners never run inside it.
+     */
+    private void sendLater(Runnable send) {
+        synchronized(pendingSends) {
+            pendingSends.add(send);
+        }
+    }
+    
+    /**
+     * Sends whatever was queued up by sendLater(), unless this thread still
+     * holds the lock.
+     */
+    private void sendPending() {
+        if(lock.isHeldByCurrentThread())
+            return;
+        
+        while(true) {
+            Runnable send;
+            synchronized(pendingSends) {
+                if(pendingSends.isEmpty())
+                    return;
+                send = pendingSends.removeFirst();
+            }
+            
+            send.run();
+        }
     }
     
     /**
@@ -166,46 +517,160 @@ public class Tracker {
     }
     
     /**
-     * Given an EXACT nickname, this method will find all usages of it in our
+     * Given a nickname, this method will find all usages of it in our
      * known nickname history time period. This is useful for finding
      * the exact time period when a certain nickname was used, eventually
      * allowing you to narrow things down to a specific IRC user.
      *
-     * The returned list is a reference to the internal listing, so do
-     * not modify it.
+     * The nickname is compared using the network's casemapping.
      *
-     * @param nickname The EXACT nickname to search with.
-     * @return A non-null list of nickname history for a given nickname (the list will be empty if no history is present in our tracking time period)
+     * @param nickname The nickname to search with.
+     * @return A non-null list of nickname history for a given nickname, oldest first (the list will be empty if no history is present in our tracking time period)
      */
-    public ArrayList<NicknameHistory> getNicknameHistory(String nickname) {
-        ArrayList<NicknameHistory> list = this.nicknameHistories.get(nickname);
-        if(list == null)
-            list = new ArrayList();
-        
-        return list;
+    public ArrayList<NicknameHistory> getNicknameHistory(final String nickname) {
+        return this.readLocked(new TrackerReadI<ArrayList<NicknameHistory>>() {
+            public ArrayList<NicknameHistory> read(Tracker tracker) {
+                return new ArrayList(nicknameTimeline.get(nickname));
+            }
+        });
     }
     
     /**
-     * Given an EXACT nickname and a point in time that you knew that nickname was in
+     * Given a nickname and a point in time that you knew that nickname was in
      * use, this will return a nickname history node which will allow you to
-     * access the actual tracked IRC user.
+     * access the actual tracked IRC user. The nickname is compared using the
+     * network's casemapping, and the history is searched by time, so this is
+     * quick no matter how much history a nickname has.
      *
      * The most obvious use is to find a tracked IRC user by their past nickname(s).
      *
-     * @param nickname The EXACT nickname to find a result with.
+     * @param nickname The nickname to find a result with.
      * @param time Some point in time when this nickname should have been in use.
      * @return The nickname history for that nickname for that point in time, or null if no such nickname existed at that time or if we are no longer tracking the user with that nickname.
      */
-    public NicknameHistory getNicknameHistoryAtTime(String nickname, Date time) {
-        ArrayList<NicknameHistory> history = this.getNicknameHistory(nickname);
-        for(NicknameHistory nicknameUsage : history) {
-            if(nicknameUsage.getUsageStartTime().before(time) && 
-                    (nicknameUsage.isStillInUse() || nicknameUsage.getUsageStopTime().after(time))) {
-                return nicknameUsage;
+    public NicknameHistory getNicknameHistoryAtTime(final String nickname, final Date time) {
+        return this.readLocked(new TrackerReadI<NicknameHistory>() {
+            public NicknameHistory read(Tracker tracker) {
+                return nicknameTimeline.get(nickname, time);
+            }
+        });
+    }
+    
+    /**
+     * Returns the netsplits that we are still waiting on users to come back
+     * from. A netsplit is forgotten once all of its users have rejoined or
+     * have been in split limbo for longer than our settings allow.
+     *
+     * @see TrackerSettings#setSplitLimboTime(int)
+     */
+    public List<Netsplit> getNetsplits() {
+        return this.readLocked(new TrackerReadI<List<Netsplit>>() {
+            public List<Netsplit> read(Tracker tracker) {
+                return limbo.getSplits();
+            }
+        });
+    }
+    
+    /**
+     * Determines if a user with the given nickname was lost in a netsplit
+     * and is being held in split limbo, in case they come back.
+     *
+     * @param nickname The user's nickname.
+     * @return True if they are in split limbo, false otherwise.
+     */
+    public boolean isInSplitLimbo(final String nickname) {
+        return this.readLocked(new TrackerReadI<Boolean>() {
+            public Boolean read(Tracker tracker) {
+                return Boolean.valueOf(limbo.get(keyCasemapping.createKey(nickname)) != null);
+            }
+        }).booleanValue();
+    }
+            
+    /**
+     * Saves what we know to a snapshot file, which a later tracker can start
+     * out from with restoreSnapshot(). This is done for you now and then if
+     * the settings name a snapshot file; see TrackerSettings.setSnapshotFile().
+     *
+     * @param file The file to save to. It is replaced only once the new snapshot is written.
+     * @throws IOException If the file could not be written.
+     */
+    public void saveSnapshot(File file) throws IOException {
+        TrackerSnapshot snapshot = readLocked(new TrackerReadI<TrackerSnapshot>() {
+            public TrackerSnapshot read(Tracker tracker) {
+                return TrackerSnapshot.capture(tracker, trackedUsers.values(), trackedChannels.values());
+            }
+        });
+        
+        // serializing and compressing it is the slow part, so it's done once the read is over
+        TrackerSnapshot.writeFile(file, snapshot.toByteArray());
+    }
+    
+    /**
+     * Starts out from a snapshot of what an earlier tracker knew, such as
+     * the one before a crash or restart. This must be done before we join
+     * any channels.
+     *
+     * Nothing is taken from the snapshot until it is needed. When we join a
+     * channel in the snapshot, its modes, topic and lists are restored, and
+     * the channel isn't looked up with a WHO. Its members are restored as 
+     * the NAMES reply lists them. What is restored is provisional (see
+     * TrackedUser.isProvisional()) and is checked with the server a few 
+     * users at a time, at the rate the settings allow, rather than all at
+     * once. Channel lists are restored as indefinite and listed again, one 
+     * channel at a time, if automatic join mode listing is enabled.
+     *
+     * Whatever hasn't been needed after ten minutes is forgotten.
+     *
+     * @param snapshot The snapshot to start from.
+     * @see TrackerSettings#setSnapshotVerificationRate(int)
+     */
+    public void restoreSnapshot(TrackerSnapshot snapshot) {
+        beginWrite();
+        try {
+            this.provisional = snapshot;
+            this.provisionalTime = System.currentTimeMillis();
+            startVerification();
+        } finally {
+            endWrite();
+        }
+    }
+    
+    /**
+     * Stops this tracker's timers, saving one last snapshot if the settings
+     * name a snapshot file. The advanced client does this when its 
+     * connection closes. Calling it again does nothing.
+     *
+     * What we know is copied right away, but it is written to the file on
+     * the tracker's snapshot thread, so this returns without waiting on the
+     * disk.
+     */
+    public synchronized void die() {
+        if(dead)
+            return;
+        dead = true;
+        
+        if(snapshotTimer != null)
+            snapshotTimer.cancel();
+        if(verificationTimer != null)
+            verificationTimer.cancel();
+        
+        if(settings.getSnapshotFile() != null) {
+            // queued behind any save already underway, so this one is written last
+            final TrackerSnapshot snapshot = captureAutomaticSnapshot();
+            if(snapshot != null) {
+                snapshotWriter.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            writeAutomaticSnapshot(snapshot);
+                        } catch (IOException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
             }
         }
         
-        return null;
+        snapshotWriter.shutdown();
     }
             
     /**
@@ -213,7 +678,7 @@ public class Tracker {
      */
     private void hookTrackingEvents() {
         // track joins
-        parser.getEventDistributor().addHardEventListener(IRCJoinEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCJoinEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCJoinEvent j = (IRCJoinEvent) e;
                 
@@ -221,79 +686,93 @@ public class Tracker {
                     // we just joined the channel
                     
                     // add the channel since we won't be tracking it yet
-                    createNewChannel(j.getChannel());
+                    TrackedChannel chan = createNewChannel(j.getChannel());
+                    
+                    // if we knew it before a restart, its lists and members are checked bit by bit instead
+                    boolean restored = restoreChannel(chan);
                     
                     // dispatch a MODES request, since this is very nice information to have
-                    outbound.sendCommand(new IRCChannelModeCommand(j.getChannel()));
+                    final String channel = j.getChannel();
+                    sendLater(new Runnable() {
+                        public void run() {
+                            outbound.sendCommand(new IRCChannelModeCommand(channel));
+                        }
+                    });
                     
                     // do we find listable modes?
-                    if(getSettings().isAutomaticJoinModeListingEnabled()) {
-                        for(ChannelModeDefinition def : getParser().getServerContext().getISupport().getChannelModes()) {
-                            if(def.isListable()) {
-                                Modes<ChannelMode> sendModes = new Modes();
-                                ChannelMode mode = new ChannelMode(def);
-                                mode.setAdding(true);
-                                sendModes.addMode(mode);
-                                outbound.sendCommand(new IRCChannelModeCommand(j.getChannel(), sendModes));
-                             }
-                        }
+                    if(getSettings().isAutomaticJoinModeListingEnabled() && !restored) {
+                        listModes(j.getChannel());
                     }
                     
-                    if(settings.isAutomaticWhoQueryingEnabled()) {
+                    if(settings.isAutomaticWhoQueryingEnabled() && !restored) {
                         dispatchWho(j.getChannel());
                     }
                 }
                 
+                // do we know them already, from another channel or from before a netsplit?
+                boolean known = getUser(j.getSource().getNickname()) != null || restoreFromLimbo(j.getSource());
+                
                 // now we process the user (who may be us)
                 UserChannelInformation info = addUserToChannel(j.getSource(), j.getChannel());
                 // from the time a user joins a channel, we can see all modes set on them
                 info.setChannelPrefixModesDefinite(true);
                 
-                if(settings.isAutomaticJoinWhoQueryingEnabled()) {
-                    // we need to WHO this user (yeah, we might have it from channel WHO request earlier if we are the ones joining, but it is possible we won't even get a WHO reply related to ourselves from that -- we shall err on safe side)
-                    dispatchWho(j.getSource().getNickname());
+                if(settings.isAutomaticJoinWhoQueryingEnabled() && (!known || parser.getServerContext().isMe(j.getSource().getNickname()))) {
+                    // we need to WHO this user, unless we've been tracking them already (and so had the chance to WHO them before)
+                    // (yeah, we might have it from channel WHO request earlier if we are the ones joining, but it is possible we won't even get a WHO reply related to ourselves from that -- we shall err on safe side)
+                    dispatchJoinWho(j.getSource().getNickname(), j.getChannel());
                 }
             }
-        });
+        }));
         
         // track parts
-        parser.getEventDistributor().addHardEventListener(IRCPartEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCPartEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCPartEvent p = (IRCPartEvent) e;
                 removeUserFromChannel(p.getSource().getNickname(), p.getChannel());
             }
-        });
+        }));
         
         // track kicks
-        parser.getEventDistributor().addHardEventListener(IRCKickEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCKickEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCKickEvent k = (IRCKickEvent) e;
                 removeUserFromChannel(k.getTarget(), k.getChannel());
             }
-        });
+        }));
         
         // track quits
-        parser.getEventDistributor().addHardEventListener(IRCQuitEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCQuitEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCQuitEvent q = (IRCQuitEvent) e;
-                userQuit(q.getSource());
+                userQuit(q.getSource(), Netsplit.fromQuitMessage(q.getMessage()));
             }
-        });
+        }));
+        
+        // re-key everything if the server tells us its casemapping is other than we assumed
+        parser.getEventDistributor().addHardEventListener(ServerISupportReply.class, writing(new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                int casemapping = getParser().getServerContext().getISupport().getCasemappingDefinition().getCasemappingConstant();
+                if(casemapping != keyCasemapping.getCasemappingConstant())
+                    rekey(casemapping);
+            }
+        }));
         
         // track nick changes
-        parser.getEventDistributor().addHardEventListener(IRCNickChangeEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCNickChangeEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCNickChangeEvent n = (IRCNickChangeEvent) e;
                 nicknameChanged(n.getSource(), n.getNewNickname());
             }
-        });
+        }));
         
         // track topic changes
-        parser.getEventDistributor().addHardEventListener(IRCTopicChangeEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCTopicChangeEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCTopicChangeEvent t = (IRCTopicChangeEvent) e;
                 TrackedChannel chan = getChannel(t.getChannel());
                 if(chan != null) {
+                    changed(chan);
                     chan.setTopic(t.getMessage());
                     chan.setLastTopicChangeTime(new Date());
                     if(t.getSource().getNickname() != null)
@@ -302,61 +781,102 @@ public class Tracker {
                         chan.setLastTopicChanger(t.getSource().getShortHostmask());                    
                 }
             }
-        });
+        }));
         
         // track TopicWhoTime to get the topic setter and last topic set time
-        parser.getEventDistributor().addHardEventListener(TopicWhoTime.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(TopicWhoTime.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 TopicWhoTime t = (TopicWhoTime) e;
                 TrackedChannel chan = getChannel(t.getChannel());
                 if(chan != null) {
+                    changed(chan);
                     chan.setLastTopicChanger(t.getTopicSetter());
                     chan.setLastTopicChangeTime(t.getLastChangedTime());
                 }
             }
-        });
+        }));
         
         // track channel creation time
-        parser.getEventDistributor().addHardEventListener(ChannelCreationReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(ChannelCreationReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 ChannelCreationReply r = (ChannelCreationReply) e;
                 TrackedChannel chan = getChannel(r.getChannel());
                 if(chan != null) {
+                    changed(chan);
                     chan.setCreationTime(r.getCreationTime());
                 }
             }
-        });
+        }));
         
         // track channel mode changes
-        parser.getEventDistributor().addHardEventListener(IRCChannelModeChangeEvent.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(IRCChannelModeChangeEvent.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 IRCChannelModeChangeEvent m = (IRCChannelModeChangeEvent) e;
-                updateChannelModes(m.getChannel(), m.getChannelModes());
+                String setter = m.getSource().getNickname() != null ? m.getSource().getNickname() : m.getSource().getShortHostmask();
+                updateChannelModes(m.getChannel(), m.getChannelModes(), setter);
             }
-        });
+        }));
         
         // track the numeric mode reply for a channel
-        parser.getEventDistributor().addHardEventListener(ChannelModeReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(ChannelModeReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 ChannelModeReply r = (ChannelModeReply) e;
-                updateChannelModes(r.getChannel(), r.getModes());
+                
+                // the reply has every mode the channel has (apart from lists), so it replaces what we had
+                TrackedChannel chan = getChannel(r.getChannel());
+                if(chan != null)
+                    chan.getChannelModes().clear();
+                
+                updateChannelModes(r.getChannel(), r.getModes(), null);
+            }
+        }));
+        
+        // track listings of bans, ban exceptions and invite exceptions
+        IRCEventListener listModeListener = writing(new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                ListModeReply r = (ListModeReply) e;
+                ListableModes list = getListForReply(r.getChannel(), getListModeForReply(r));
+                if(list != null)
+                    list.addMask(new ListedMask(r.getMask(), r.getSetter(), r.getSetTime()));
+            }
+        });
+        parser.getEventDistributor().addHardEventListener(BanListReply.class, listModeListener);
+        parser.getEventDistributor().addHardEventListener(ExceptListReply.class, listModeListener);
+        parser.getEventDistributor().addHardEventListener(InviteListReply.class, listModeListener);
+        
+        // once a listing ends, we know the whole list (and see every change to it from then on)
+        IRCEventListener endOfListModeListener = writing(new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                EndOfListModeReply r = (EndOfListModeReply) e;
+                ListableModes list = getListForReply(r.getChannel(), getListModeForReply(r));
+                if(list != null)
+                    list.setDefinite(true);
             }
         });
+        parser.getEventDistributor().addHardEventListener(EndOfBanListReply.class, endOfListModeListener);
+        parser.getEventDistributor().addHardEventListener(EndOfExceptListReply.class, endOfListModeListener);
+        parser.getEventDistributor().addHardEventListener(EndOfInviteListReply.class, endOfListModeListener);
         
         // track topic replies
-        parser.getEventDistributor().addHardEventListener(TopicReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(TopicReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 TopicReply t = (TopicReply) e;
                 TrackedChannel chan = getChannel(t.getChannel());
                 if(chan != null) {
+                    changed(chan);
                     chan.setTopic(t.getTopic());                
                 }
+                
+                // a channel restored from a snapshot has a topic after all
+                TrackerSnapshot.SavedChannel saved = restoringChannels.get(keyCasemapping.createKey(t.getChannel()));
+                if(saved != null)
+                    saved.topicSeen = true;
             }
-        });
+        }));
         
         // TODO: if query processor is made for NAMES, this needs to use it
         // track NAMES replies
-        parser.getEventDistributor().addHardEventListener(NamesReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(NamesReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 NamesReply r = (NamesReply) e;
                 Map<String,ChannelNickPrefixModeDefinition> map = r.getNicknames(getParser().getServerContext().getISupport());
@@ -386,23 +906,40 @@ public class Tracker {
                             if(arePrefixModesFullyAccountedFor(info.getWitnessedModes()))
                                 info.setChannelPrefixModesDefinite(true);
                         }
+                        
+                        restoreMembership(info, mode);
                     }
                 }
             }
-        });
+        }));
+        
+        // the end of a NAMES reply is the end of what we get on joining a channel
+        parser.getEventDistributor().addHardEventListener(EndOfNamesReply.class, writing(new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                EndOfNamesReply r = (EndOfNamesReply) e;
+                TrackedChannel chan = getChannel(r.getChannel());
+                if(chan != null)
+                    finishChannelRestore(chan);
+            }
+        }));
         
         // track WHO replies (this allows us to update our internal state based on WHO replies we may not even have initiated ourselves)
-        parser.getEventDistributor().addHardEventListener(WhoReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addHardEventListener(WhoReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 WhoReply reply = (WhoReply) e;
                 // NOTE: reply may be for a specific user, not a channel listing reply
                 
+                // if they were restored from a snapshot, this is the server's word on them
+                verifyUser(reply.getInfoAsHostmask());
+                
                 // update hostmask information for user
                 updateHostmask(reply.getInfoAsHostmask());
 
                 // get the user
                 TrackedUser user = getUser(reply.getNickname());  
                 if(user != null) {                     
+                    changed(user);
+                    
                     // set realname
                     user.setRealname(reply.getRealname());
                     
@@ -418,6 +955,7 @@ public class Tracker {
                         // the reply may have a single channel mode definition, add it to them if it's there
                         ChannelNickPrefixModeDefinition modeDef = reply.getChannelUserPrefix(parser.getServerContext().getISupport());
                         if(modeDef != null) {
+                            changed(info.getChannel());
                             info.getWitnessedModes().add(modeDef.getMode());
                             info.getPrefixModes().add(modeDef);
                             
@@ -429,30 +967,31 @@ public class Tracker {
                     }
                 }
             }
-        });
+        }));
         
         // this listens for USERHOST information
-        parser.getEventDistributor().addDynamicEventListener(UserHostReply.class, new IRCEventListener() {
+        parser.getEventDistributor().addDynamicEventListener(UserHostReply.class, writing(new IRCEventListener() {
             public void onEvent(IRCEvent e) {
                 UserHostReply userhost = (UserHostReply) e;                
                 updateHostmask(userhost.getAsHostmask());
                 
                 TrackedUser user = getUser(userhost.getNickname());
                 if(user != null) {
+                    changed(user);
                     user.setAway(userhost.isAway());
                     user.setServerOperator(userhost.isServerOperator());
                 }
             }
-        });
+        }));
         
         // optional tracking: full hostmask tracking
         if(settings.isFullHostmaskTrackingEnabled()) {
             // set up the listener that will keep updating hostmasks for likely-relevant users
-            IRCEventListener listener = new IRCEventListener() {
+            IRCEventListener listener = writing(new IRCEventListener() {
                 public void onEvent(IRCEvent e) {
                     updateHostmask(e.getSource());
                 }
-            };
+            });
             
             // now, hook all the events which could possibly come from some user we are tracking (that is, a lot of channel events)
             parser.getEventDistributor().addHardEventListener(IRCChannelActionEvent.class, listener);
@@ -467,57 +1006,271 @@ public class Tracker {
         }
     }
     
+    /**
+     * Returns the tracked users with a certain host, ident, IP address or 
+     * account name, such as everyone connecting from the same host. This 
+     * is a lookup, not a search through every user. Values are compared 
+     * using network casemapping.
+     *
+     * Users are only found by IP address if WHOX is used with the IP field
+     * in its search options, and by account name if ircu account tracking
+     * is enabled.
+     *
+     * @param index One of the USERINDEX_* constants.
+     * @param value The host, ident, IP address or account name.
+     * @return The users, in no particular order.
+     * @throws IllegalArgumentException If there is no such index.
+     */
+    public List<TrackedUser> getUsersBy(final int index, final String value) {
+        final UserIndex userIndex = getUserIndex(index);
+        return readLocked(new TrackerReadI<List<TrackedUser>>() {
+            public List<TrackedUser> read(Tracker tracker) {
+                return userIndex.get(value);
+            }
+        });
+    }
+    
+    /**
+     * Returns the tracked users with a host, ident, IP address or account
+     * name matching a mask, such as "*.example.com" or "192.168.*". Masks
+     * that are plain text apart from a trailing '*' (or, for hosts, a 
+     * leading '*') are looked up directly; other masks are checked against
+     * each distinct value.
+     *
+     * @param index One of the USERINDEX_* constants.
+     * @param mask The mask to match values against.
+     * @return The users, in no particular order.
+     * @throws IllegalArgumentException If there is no such index.
+     * @see #getUsersBy(int, String)
+     */
+    public List<TrackedUser> getUsersMatching(final int index, final String mask) {
+        final UserIndex userIndex = getUserIndex(index);
+        return readLocked(new TrackerReadI<List<TrackedUser>>() {
+            public List<TrackedUser> read(Tracker tracker) {
+                return userIndex.match(mask);
+            }
+        });
+    }
+    
+    /**
+     * Returns the number of tracked users with a certain host, ident, IP
+     * address or account name.
+     *
+     * @param index One of the USERINDEX_* constants.
+     * @param value The host, ident, IP address or account name.
+     * @throws IllegalArgumentException If there is no such index.
+     * @see #getUsersBy(int, String)
+     */
+    public int getUserCountBy(final int index, final String value) {
+        final UserIndex userIndex = getUserIndex(index);
+        return readLocked(new TrackerReadI<Integer>() {
+            public Integer read(Tracker tracker) {
+                return Integer.valueOf(userIndex.count(value));
+            }
+        }).intValue();
+    }
+    
+    /**
+     * Returns every host, ident, IP address or account name shared by at
+     * least some number of tracked users, with how many users share it. 
+     * For example, the hosts with a minimum of 3 are those with 3 or more
+     * clones on them.
+     *
+     * @param index One of the USERINDEX_* constants.
+     * @param minimum The least number of users that must share a value.
+     * @return A map of value to number of users, in order of value.
+     * @throws IllegalArgumentException If there is no such index.
+     */
+    public Map<String, Integer> getUserCounts(final int index, final int minimum) {
+        final UserIndex userIndex = getUserIndex(index);
+        return readLocked(new TrackerReadI<Map<String, Integer>>() {
+            public Map<String, Integer> read(Tracker tracker) {
+                return userIndex.getCounts(minimum);
+            }
+        });
+    }
+    
+    /**
+     * Returns the tracked users with a value matching a mask, if the mask
+     * can be looked up without checking every value. This doesn't take the
+     * lock, as it is for our channels, which only the parser's thread reads.
+     *
+     * @return The users, or null if every value would have to be checked.
+     */
+    List<TrackedUser> lookUpUsers(int index, String mask) {
+        return getUserIndex(index).lookUp(mask);
+    }
+    
+    private UserIndex getUserIndex(int index) {
+        if(index < 0 || index >= userIndices.length)
+            throw new IllegalArgumentException("No such user index as " + index + "; see the USERINDEX_* constants");
+        
+        return userIndices[index];
+    }
+    
     /**
      * This helper method dispatches a WHO request against a target of our 
      * choice. It will automatically determine if we are to use a regular
-     * WHO or a WHOX.
-     */
-    private void dispatchWho(String searchMask) {
-        if(settings.isWhoXForced() || (settings.isWhoXEnabled() && parser.getServerContext().getISupport().isWhoXSupported())) {
-            // perform a WHOX query and store the results as we receive them
-            outbound.performWhoXQuery(new IRCWhoXCommand(searchMask, this.getSettings().getWhoXSearchOptions()), new WhoXQueryListener() {
-                public void onReply(WhoXReply reply) {
-                    // NOTE: remember, this reply can be for a specific user, or as part of a channel user list
-                    
-                    // update hostmask information for user
-                    updateHostmask(reply.getInfoAsHostmask());
+     * WHO or a WHOX. It is sent once the write lock has been let go.
+     */
+    private void dispatchWho(final String searchMask) {
+        sendLater(new Runnable() {
+            public void run() {
+                if(isWhoXUsable()) {
+                    // perform a WHOX query and store the results as we receive them
+                    outbound.performWhoXQuery(new IRCWhoXCommand(searchMask, getSettings().getWhoXSearchOptions()), new WhoXTrackingListener());
+                } else {
+                    // send regular WHO -- we don't need to perform a query, since we passively monitor WHO replies anyway.
+                    outbound.sendCommand(new IRCWhoCommand(searchMask));
+                }
+            }
+        });
+    }
+    
+    /**
+     * This helper method looks up a user who just joined a channel. Rather
+     * than sending a WHO right away, the lookup is handed to the dispatcher's
+     * WHO batcher, so that a flood of joins is looked up a few lines at a 
+     * time (or with one WHO on the channel, if most of it just joined).
+     * It is handed over once the write lock has been let go.
+     */
+    private void dispatchJoinWho(final String nickname, final String channel) {
+        TrackedChannel c = this.getChannel(channel);
+        final int channelSize = c == null ? 0 : c.getUserCount();
+        
+        sendLater(new Runnable() {
+            public void run() {
+                if(isWhoXUsable()) {
+                    outbound.getWhoBatcher().requestWhoX(nickname, channel, channelSize, getSettings().getWhoXSearchOptions(), new WhoXTrackingListener());
+                } else if(outbound.isQueryingEnabled()) {
+                    // replies are monitored passively, as with a regular WHO above
+                    outbound.getWhoBatcher().requestWho(nickname, channel, channelSize, new WhoQueryListener());
+                } else {
+                    // the batcher sends queries, which we can't do; a plain WHO is all we need anyway
+                    outbound.sendCommand(new IRCWhoCommand(nickname));
+                }
+            }
+        });
+    }
+    
+    /**
+     * This helper method looks up a user restored from a snapshot, to check
+     * that what we restored is right. Like joins, lookups are handed to the
+     * WHO batcher, but without a channel, so they are never turned into a 
+     * WHO on the whole channel. It is handed over once the write lock has
+     * been let go.
+     */
+    private void dispatchVerificationWho(final String nickname) {
+        sendLater(new Runnable() {
+            public void run() {
+                if(isWhoXUsable()) {
+                    outbound.getWhoBatcher().requestWhoX(nickname, null, 0, getSettings().getWhoXSearchOptions(), new WhoXTrackingListener());
+                } else if(outbound.isQueryingEnabled()) {
+                    outbound.getWhoBatcher().requestWho(nickname, null, 0, new WhoQueryListener());
+                } else {
+                    // as with joins, a plain WHO will do when we can't send queries
+                    outbound.sendCommand(new IRCWhoCommand(nickname));
+                }
+            }
+        });
+    }
+    
+    /**
+     * Asks for the entries of each listable mode (such as the bans) of a
+     * channel, once the write lock has been let go.
+     */
+    private void listModes(final String channel) {
+        sendLater(new Runnable() {
+            public void run() {
+                for(ChannelModeDefinition def : getParser().getServerContext().getISupport().getChannelModes()) {
+                    if(def.isListable()) {
+                        Modes<ChannelMode> sendModes = new Modes();
+                        ChannelMode mode = new ChannelMode(def);
+                        mode.setAdding(true);
+                        sendModes.addMode(mode);
+                        outbound.sendCommand(new IRCChannelModeCommand(channel, sendModes));
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Determines if WHO requests should be made with WHOX.
+     */
+    private boolean isWhoXUsable() {
+        return settings.isWhoXForced() || (settings.isWhoXEnabled() && parser.getServerContext().getISupport().isWhoXSupported());
+    }
+    
+    /**
+     * This listener stores the results of our WHOX queries as we receive them.
+     */
+    private class WhoXTrackingListener extends WhoXQueryListener {
+        public void onReply(WhoXReply reply) {
+            beginWrite();
+            try {
+                trackReply(reply);
+            } finally {
+                endWrite();
+            }
+        }
+        
+        private void trackReply(WhoXReply reply) {
+            // NOTE: remember, this reply can be for a specific user, or as part of a channel user list
+            
+            // if they were restored from a snapshot, this is the server's word on them
+            verifyUser(reply.getInfoAsHostmask());
+            
+            // update hostmask information for user
+            updateHostmask(reply.getInfoAsHostmask());
+            
+            // get the user
+            TrackedUser user = getUser(reply.getNickname());  
+            if(user != null) {                     
+                changed(user);
+                
+                // set realname
+                user.setRealname(reply.getRealname());
+                
+                // any cached query results that disagree with what we just learned are stale
+                if(user.isAway() != null && user.isAway().booleanValue() != reply.isAway())
+                    outbound.getQueryCache().invalidate(reply.getNickname(), CachedUserInfo.FIELD_AWAY);
+                
+                // update away/oper status -- located in infoflags, so we should have 'em
+                user.setServerOperator(reply.isOperator());
+                user.setAway(reply.isAway());
+                
+                // are we supposed to pull the ircu account field?
+                if(getSettings().isIrcuAccountTrackingEnabled() && reply.getAccountName() != null) {
+                    if(!reply.getAccountName().equals(user.getStore().getString(USERKEY_IRCU_ACCOUNT)))
+                        outbound.getQueryCache().invalidate(reply.getNickname(), CachedUserInfo.FIELD_ACCOUNT);
                     
-                    // get the user
-                    TrackedUser user = getUser(reply.getNickname());  
-                    if(user != null) {                     
-                        // set realname
-                        user.setRealname(reply.getRealname());
-                        
-                        // update away/oper status -- located in infoflags, so we should have 'em
-                        user.setServerOperator(reply.isOperator());
-                        user.setAway(reply.isAway());
-                        
-                        // are we supposed to pull the ircu account field?
-                        if(getSettings().isIrcuAccountTrackingEnabled() && reply.getAccountName() != null) {
-                            user.getStore().store(USERKEY_IRCU_ACCOUNT, reply.getAccountName());
-                        }
-
-                        // if we are getting this info for a channel, deal with that
-                        if(reply.getChannel() != null) {
-                            // get channel-user information for the user in the channel
-                            UserChannelInformation info = user.getChannelInformation(reply.getChannel());
+                    user.getStore().store(USERKEY_IRCU_ACCOUNT, reply.getAccountName());
+                }
+                
+                // the IP is only there if our search options asked for it (ircu gives 255.255.255.255 for IPs it won't show us)
+                if(getSettings().getWhoXSearchOptions().getSearchFields().contains(Character.valueOf(WhoXSearchOptions.SEARCHFIELD_IP)))
+                    user.setIP(reply.getIP().equals("255.255.255.255") ? null : reply.getIP());
+                
+                indexUser(user);
 
-                            // update user nick-prefix modes for channel
-                            ArrayList<ChannelNickPrefixModeDefinition> modes = reply.getChannelUserPrefixModes(parser.getServerContext().getISupport());
-                            for(ChannelNickPrefixModeDefinition def : modes) {
-                                info.getWitnessedModes().add(def.getMode());
-                                info.getPrefixModes().add(def);
-                            }
+                // if we are getting this info for a channel, deal with that
+                if(reply.getChannel() != null) {
+                    // get channel-user information for the user in the channel
+                    UserChannelInformation info = user.getChannelInformation(reply.getChannel());
+                    changed(info.getChannel());
 
-                            // we just updated all nick-prefix modes, so those are definite
-                            info.setChannelPrefixModesDefinite(true);
-                        }
+                    // update user nick-prefix modes for channel
+                    ArrayList<ChannelNickPrefixModeDefinition> modes = reply.getChannelUserPrefixModes(parser.getServerContext().getISupport());
+                    for(ChannelNickPrefixModeDefinition def : modes) {
+                        info.getWitnessedModes().add(def.getMode());
+                        info.getPrefixModes().add(def);
                     }
+
+                    // we just updated all nick-prefix modes, so those are definite
+                    info.setChannelPrefixModesDefinite(true);
                 }
-            });
-        } else {
-            // send regular WHO -- we don't need to perform a query, since we passively monitor WHO replies anyway.
-            outbound.sendCommand(new IRCWhoCommand(searchMask));
+            }
         }
     }
     
@@ -552,10 +1305,36 @@ public class Tracker {
     private void updateHostmask(Hostmask hostmask) {
         TrackedUser user = this.getUser(hostmask.getNickname());
         if(user != null) {
+            if(!hostmask.equals(user.getHostmask()))
+                changed(user); // most messages are from someone we already know as they are
             user.setHostmask(hostmask);
+            indexUser(user);
         }
     }
     
+    /**
+     * Files a tracked user in our user indices under what we now know of
+     * them. This must be called whenever their hostmask, IP address or 
+     * account name may have changed.
+     */
+    private void indexUser(TrackedUser user) {
+        if(!user.isTracked())
+            return;
+        
+        userIndices[USERINDEX_HOST].update(user, user.getHostmask().getHost());
+        userIndices[USERINDEX_IDENT].update(user, user.getHostmask().getIdent());
+        userIndices[USERINDEX_IP].update(user, user.getIP());
+        userIndices[USERINDEX_ACCOUNT].update(user, user.getStore().getString(USERKEY_IRCU_ACCOUNT));
+    }
+    
+    /**
+     * Takes a user out of our user indices, for when we stop tracking them.
+     */
+    private void unindexUser(TrackedUser user) {
+        for(UserIndex index : userIndices)
+            index.remove(user);
+    }
+    
     /**
      * Called when a user changes their nickname.
      */
@@ -565,7 +1344,10 @@ public class Tracker {
         TrackedUser user = this.getUser(sourceHostmask.getNickname());
         if(user != null) {
             // First, remove their entry in the map
-            trackedUsers.remove(originalNick.toLowerCase());
+            trackedUsers.remove(keyCasemapping.createKey(originalNick));
+            
+            // anyone lost in a netsplit with this nickname won't be back as they were
+            discardFromLimbo(newNickname);
             
             // Create new nickname history data for current nickname
             Date nickChangeTime = new Date();
@@ -577,8 +1359,13 @@ public class Tracker {
             // assign new nickname, of course
             user.getHostmask().setNickname(newNickname);
             
-            // add them back to the map
-            trackedUsers.put(user.getHostmask().getNickname().toLowerCase(), user);
+            // add them back to the map (channels file them by ID, so they needn't change)
+            trackedUsers.put(keyCasemapping.createKey(user.getHostmask().getNickname()), user);
+            
+            // but the views of their channels list them by nickname
+            changed(user);
+            for(UserChannelInformation info : user.getChannelInformation())
+                changed(info.getChannel());
         }
     }
     
@@ -587,86 +1374,431 @@ public class Tracker {
      * entry is properly configured.
      */
     private TrackedUser createNewUser(Hostmask hostmask) {
-        TrackedUser user = new TrackedUser();
+        discardFromLimbo(hostmask.getNickname());
+        
+        TrackedUser user = new TrackedUser(keyCasemapping);
         user.setTracked(true);
         user.setHostmask(hostmask);
         
         // add to tracked map
-        this.trackedUsers.put(user.getHostmask().getNickname().toLowerCase(), user);
+        this.trackedUsers.put(keyCasemapping.createKey(user.getHostmask().getNickname()), user);
+        indexUser(user);
+        changed(user);
 
         // add their current nickname into the nickname history as a current nickname
         NicknameHistory history = new NicknameHistory(new Date(), hostmask.getNickname(), user);
         this.addNicknameHistory(history);
         
+        // we may have known them before a restart
+        restoreUser(user);
+        
         return user;
     }
     
     /**
-     * Adds nickname history to a user and the internal nickname histories map.
+     * Adds nickname history to a user and the nickname timeline.
      */
     private void addNicknameHistory(NicknameHistory history) {
-        ArrayList<NicknameHistory> currentHistory = this.nicknameHistories.get(history.getNickname());
-        if(currentHistory == null)
-            currentHistory = new ArrayList();
-        
         TrackedUser user = history.getUser();
         
-        // First, determine if we need to remove one or more existing nickname
-        // histories if they've expired
-        if(!user.getNicknameHistory().isEmpty()) {
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(new Date()); // make sure set to current time
-            cal.add(Calendar.MINUTE, -1 * this.settings.getNicknameTrackingHistoryTime()); // subtract the number of minutes to give a time in the past that is the expiration point
-            Date expirationTime = cal.getTime();            
-                    
-            ListIterator<NicknameHistory> i = user.getNicknameHistory().listIterator(user.getNicknameHistory().size());
-            while(i.hasPrevious()) {
-                NicknameHistory current = i.previous();
-                if(current.getUsageStartTime().before(expirationTime)) {
-                    // the current name history at the end of the list is expired, remove it
-                    i.remove();
-                    
-                    // likewise, remove from out lookup map
-                    ArrayList<NicknameHistory> historyList = this.nicknameHistories.get(current.getNickname());
-                    if(historyList != null)
-                        historyList.remove(current);
-                } else {
-                    // we've reached name history that is not expired; the rest is fine
-                    break;
-                }
-            }
-        }
-        
         // First, see if the user has a current nickname we need to "close up"
         if(!user.getNicknameHistory().isEmpty()) {
             // The current nickname just stopped at the time the new nickname is introduced
-            user.getNicknameHistory().get(0).setUsageStopTime(history.getUsageStartTime());
+            NicknameHistory previous = user.getNicknameHistory().get(0);
+            previous.setUsageStopTime(history.getUsageStartTime());
+            this.nicknameTimeline.retire(previous);
+            scheduleHistoryExpiry();
         }
         
         // Put history at topmost position, seeing as this is newest nickname
         user.getNicknameHistory().insertElementAt(history, 0);
-        currentHistory.add(history);
+        this.nicknameTimeline.add(history);
+        
+        // keep within the limit straight away (old history past its time waits for the timer)
+        if(settings.getNicknameHistoryLimit() != -1)
+            this.nicknameTimeline.expire(null);
+    }
+    
+    /**
+     * Makes sure we'll be told when the oldest nickname history is due to
+     * expire. The shared timer only tells us it is time; the expiring is
+     * done after the next event we track, so only the parser's thread
+     * changes the tracker.
+     */
+    private void scheduleHistoryExpiry() {
+        int minutes = settings.getNicknameTrackingHistoryTime();
+        if(historyExpiryScheduled || minutes == -1)
+            return;
+        
+        Date oldest = this.nicknameTimeline.getOldestStopTime();
+        if(oldest == null)
+            return;
+        
+        historyExpiryScheduled = true;
+        long delay = oldest.getTime() + minutes * 60000L - System.currentTimeMillis();
+        WheelTimer.getSharedTimer().schedule(new Runnable() {
+            public void run() {
+                historyExpiryDue = true;
+            }
+        }, delay);
+    }
+    
+    /**
+     * Forgets nickname history that is older than our settings allow, if the
+     * timer has said it's time.
+     */
+    private void expireNicknameHistory() {
+        if(!historyExpiryDue)
+            return;
+        
+        historyExpiryDue = false;
+        historyExpiryScheduled = false;
+        
+        Date expiry = new Date(System.currentTimeMillis() - settings.getNicknameTrackingHistoryTime() * 60000L);
+        this.nicknameTimeline.expire(expiry);
+        
+        // and wait for the next oldest
+        scheduleHistoryExpiry();
+    }
+    
+    /**
+     * Restores what a snapshot knew about a channel we just joined, if it
+     * knew the channel at all.
+     *
+     * @return True if the channel was restored.
+     */
+    private boolean restoreChannel(TrackedChannel chan) {
+        if(provisional == null)
+            return false;
+        
+        // a snapshot of some other network is no use to us
+        IRCServerISupport isupport = getParser().getServerContext().getISupport();
+        String network = isupport.getNetworkName();
+        if(network != null && provisional.getNetworkName() != null && !network.equalsIgnoreCase(provisional.getNetworkName())) {
+            discardSnapshot();
+            return false;
+        }
+        
+        TrackerSnapshot.SavedChannel saved = provisional.takeChannel(chan.getName());
+        if(saved == null)
+            return false;
+        
+        chan.setTopic(saved.topic);
+        chan.setLastTopicChanger(saved.lastTopicChanger);
+        chan.setLastTopicChangeTime(saved.lastTopicChangeTime);
+        chan.setCreationTime(saved.creationTime);
+        
+        // the MODE reply will correct these shortly
+        for(ChannelMode savedMode : saved.modes) {
+            ChannelModeDefinition def = isupport.getChannelModeByChar(savedMode.getMode());
+            if(def == null) {
+                chan.getChannelModes().add(savedMode);
+            } else if(!def.isListable() && !(def instanceof ChannelNickPrefixModeDefinition)) {
+                ChannelMode mode = new ChannelMode(def);
+                mode.setParameter(savedMode.getParameter());
+                mode.setAdding(true);
+                chan.getChannelModes().add(mode);
+            }
+        }
+        
+        // lists stay indefinite until they are listed again
+        for(Character modeChar : saved.lists.keySet()) {
+            ChannelModeDefinition def = isupport.getChannelModeByChar(modeChar);
+            if(def != null && def.isListable()) {
+                ListableModes list = chan.addListableModes(def);
+                for(ListedMask mask : saved.lists.get(modeChar))
+                    list.addMask(mask);
+            }
+        }
+        
+        restoreStore(chan.getStore(), saved.store);
+        
+        restoringChannels.put(keyCasemapping.createKey(chan.getName()), saved);
+        if(settings.isAutomaticJoinModeListingEnabled())
+            unlistedChannels.add(chan);
+        startVerification();
+        
+        return true;
+    }
+    
+    /**
+     * Finishes restoring a channel once its NAMES reply has ended. If the
+     * server didn't give us a topic on joining, the channel no longer has
+     * one.
+     */
+    private void finishChannelRestore(TrackedChannel chan) {
+        TrackerSnapshot.SavedChannel saved = restoringChannels.remove(keyCasemapping.createKey(chan.getName()));
+        if(saved != null && !saved.topicSeen && saved.topic != null) {
+            changed(chan);
+            chan.setTopic(null);
+            chan.setLastTopicChanger(null);
+            chan.setLastTopicChangeTime(null);
+        }
+    }
+    
+    /**
+     * Restores what a snapshot knew about a user we just started tracking,
+     * if it knew someone by their nickname. If we already know their ident
+     * and host (as we do for someone joining), the snapshot's must match.
+     */
+    private void restoreUser(TrackedUser user) {
+        if(provisional == null)
+            return;
+        
+        Hostmask hostmask = user.getHostmask();
+        TrackerSnapshot.SavedUser saved = provisional.takeUser(hostmask.getNickname());
+        if(saved == null)
+            return;
+        
+        if(hostmask.getIdent() != null && hostmask.getHost() != null) {
+            if(!hostmask.getIdent().equals(saved.ident) || !hostmask.getHost().equalsIgnoreCase(saved.host))
+                return;
+        } else {
+            hostmask.setIdent(saved.ident);
+            hostmask.setHost(saved.host);
+        }
         
-        this.nicknameHistories.put(history.getNickname(), currentHistory);
+        user.setRealname(saved.realname);
+        user.setIP(saved.ip);
+        user.setAway(saved.away);
+        user.setServerOperator(saved.serverOperator);
+        restoreStore(user.getStore(), saved.store);
+        
+        // their old nicknames go after the current one, newest first
+        for(NicknameHistory history : saved.oldNicknames) {
+            history.setUser(user);
+            user.getNicknameHistory().add(history);
+            this.nicknameTimeline.addRetired(history);
+        }
+        if(!saved.oldNicknames.isEmpty()) {
+            scheduleHistoryExpiry();
+            if(settings.getNicknameHistoryLimit() != -1)
+                this.nicknameTimeline.expire(null);
+        }
+        
+        user.setProvisional(true);
+        unverifiedUsers.add(user);
+        indexUser(user);
+        startVerification();
+    }
+    
+    /**
+     * Restores a user's prefix modes and data in a channel we are restoring,
+     * as they are listed in its NAMES reply. A NAMES reply only shows
+     * someone's highest prefix mode, so the rest are restored only if that
+     * one is the same as before.
+     *
+     * @param mode The prefix mode NAMES showed, or null.
+     */
+    private void restoreMembership(UserChannelInformation info, ChannelNickPrefixModeDefinition mode) {
+        TrackerSnapshot.SavedChannel saved = restoringChannels.get(keyCasemapping.createKey(info.getChannel().getName()));
+        if(saved == null || !info.getUser().isProvisional())
+            return;
+        
+        TrackerSnapshot.SavedMember member = saved.takeMember(info.getUser().getHostmask().getNickname());
+        if(member == null)
+            return;
+        
+        String modes = member.prefixModes;
+        if(mode != null && modes.length() > 0 && modes.charAt(0) == mode.getMode().charValue()) {
+            for(ChannelNickPrefixModeDefinition def : getParser().getServerContext().getISupport().getNickPrefixModes()) {
+                if(modes.indexOf(def.getMode().charValue()) > 0)
+                    info.getPrefixModes().add(def);
+            }
+        }
+        
+        restoreStore(info.getStore(), member.store);
+    }
+    
+    /**
+     * Stores values restored from a snapshot.
+     */
+    private void restoreStore(DataStore store, Map<String, Object> values) {
+        for(String key : values.keySet())
+            store.store(key, values.get(key));
     }
     
     /**
-     * Removes nickname history from the internal nickname histories map. 
-     * The history being removed must be the same reference as what is currently 
-     * in the map.
+     * Checks a user restored from a snapshot against what the server says
+     * about them. If they aren't the same person the snapshot knew (their
+     * ident or host differs), everything restored about them is forgotten.
      */
-    private void removeNicknameHistory(NicknameHistory history) {
-        ArrayList<NicknameHistory> currentHistory = this.nicknameHistories.get(history.getNickname());
-        if(currentHistory != null) {
-            currentHistory.remove(history);
+    private void verifyUser(Hostmask actual) {
+        TrackedUser user = getUser(actual.getNickname());
+        if(user == null || !user.isProvisional())
+            return;
+        
+        changed(user);
+        user.setProvisional(false);
+        Hostmask restored = user.getHostmask();
+        if((actual.getIdent() == null || actual.getIdent().equals(restored.getIdent()))
+                && (actual.getHost() == null || actual.getHost().equalsIgnoreCase(restored.getHost())))
+            return;
+        
+        user.setIP(null);
+        user.setRealname(null);
+        user.setAway(null);
+        user.setServerOperator(null);
+        user.getStore().clear();
+        for(UserChannelInformation info : user.getChannelInformation()) {
+            if(info.hasStore())
+                info.getStore().clear();
         }
+        
+        // only their current nickname is really theirs
+        Vector<NicknameHistory> histories = user.getNicknameHistory();
+        while(histories.size() > 1)
+            this.nicknameTimeline.remove(histories.remove(histories.size() - 1));
+    }
+    
+    /**
+     * Makes sure the verification timer is running while we have restored
+     * state to check.
+     */
+    private void startVerification() {
+        if(verificationTimer != null || dead)
+            return;
+        
+        verificationTimer = WheelTimer.getSharedTimer().scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                verificationDue = true;
+            }
+        }, VERIFICATION_PERIOD, VERIFICATION_PERIOD);
+    }
+    
+    /**
+     * Looks up the next few users restored from a snapshot and lists the
+     * next restored channel, if the timer has said it's time. Once there's
+     * nothing left to do, the timer is stopped.
+     */
+    private void verifyRestored() {
+        if(!verificationDue)
+            return;
+        
+        verificationDue = false;
+        
+        // whatever hasn't turned up by now probably won't
+        if(provisional != null && System.currentTimeMillis() - provisionalTime > PROVISIONAL_TIME)
+            discardSnapshot();
+        
+        int lookups = Math.max(1, settings.getSnapshotVerificationRate() * VERIFICATION_PERIOD / 60000);
+        while(lookups > 0 && !unverifiedUsers.isEmpty()) {
+            TrackedUser user = unverifiedUsers.removeFirst();
+            if(user.isTracked() && user.isProvisional()) {
+                dispatchVerificationWho(user.getHostmask().getNickname());
+                lookups--;
+            }
+        }
+        
+        while(!unlistedChannels.isEmpty()) {
+            TrackedChannel chan = unlistedChannels.removeFirst();
+            if(trackedChannels.get(keyCasemapping.createKey(chan.getName())) == chan) {
+                listModes(chan.getName());
+                break;
+            }
+        }
+        
+        if(provisional == null && unverifiedUsers.isEmpty() && unlistedChannels.isEmpty() && verificationTimer != null) {
+            verificationTimer.cancel();
+            verificationTimer = null;
+        }
+    }
+    
+    /**
+     * Forgets what is left of the snapshot we were restoring from. What has
+     * already been restored is still checked.
+     */
+    private void discardSnapshot() {
+        provisional = null;
+    }
+    
+    /**
+     * Loads the snapshot file named by the settings, if there is one, and
+     * starts saving to it now and then.
+     */
+    private void startSnapshots() {
+        File file = settings.getSnapshotFile();
+        if(file.exists()) {
+            try {
+                restoreSnapshot(new TrackerSnapshot(file));
+            } catch (IOException ex) {
+                // we'll just have to start from nothing
+                ex.printStackTrace();
+            }
+        }
+        
+        long interval = settings.getSnapshotInterval() * 1000L;
+        if(interval > 0) {
+            snapshotTimer = WheelTimer.getSharedTimer().scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    saveSnapshotInBackground();
+                }
+            }, interval, interval);
+        }
+    }
+    
+    /**
+     * Saves to the snapshot file on the tracker's snapshot thread, so
+     * neither the timer nor the parser waits on the disk. Nothing is done if
+     * the last save hasn't finished yet.
+     */
+    private void saveSnapshotInBackground() {
+        if(!snapshotting.compareAndSet(false, true))
+            return;
+        
+        try {
+            snapshotWriter.execute(new Runnable() {
+                public void run() {
+                    try {
+                        TrackerSnapshot snapshot = captureAutomaticSnapshot();
+                        if(snapshot != null)
+                            writeAutomaticSnapshot(snapshot);
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // we've died since the timer went off
+            snapshotting.set(false);
+        }
+    }
+    
+    /**
+     * Copies what we know for the snapshot file named by the settings,
+     * unless we're still restoring from it or haven't joined anything yet
+     * (in which case the file on disk is still the better snapshot).
+     *
+     * @return The snapshot, or null if the file should be left as it is.
+     */
+    private TrackerSnapshot captureAutomaticSnapshot() {
+        return readLocked(new TrackerReadI<TrackerSnapshot>() {
+            public TrackerSnapshot read(Tracker tracker) {
+                if(provisional != null || trackedChannels.isEmpty())
+                    return null;
+                
+                return TrackerSnapshot.capture(tracker, trackedUsers.values(), trackedChannels.values());
+            }
+        });
+    }
+    
+    /**
+     * Writes a snapshot from captureAutomaticSnapshot() to the snapshot file
+     * named by the settings.
+     */
+    private void writeAutomaticSnapshot(TrackerSnapshot snapshot) throws IOException {
+        TrackerSnapshot.writeFile(settings.getSnapshotFile(), snapshot.toByteArray());
     }
     
     /**
      * Adds a user to a channel given the user's hostmask and the channel
      * they joined. Returns the user-channel information we just added.
      *
-     * WARNING: may be called for a NAMES reply, not just JOIN!
+     * WARNING: may be called for a NAMES reply, not just JOIN! A NAMES reply
+     * only gives us the nickname, so only the parts of the hostmask that
+     * are known replace what we already had.
      */
     private UserChannelInformation addUserToChannel(Hostmask hostmask, String channel) {
         // Pull user
@@ -676,8 +1808,18 @@ public class Tracker {
             user = this.createNewUser(hostmask);
         }
         
-        // always a good habit to force hostmask update...
-        user.setHostmask(hostmask);
+        // a JOIN gives us the whole hostmask, but NAMES only the nickname, so keep whatever we already knew
+        Hostmask known = user.getHostmask();
+        if(hostmask.getIdent() == null || hostmask.getHost() == null) {
+            hostmask = new Hostmask(hostmask.getNickname(),
+                    hostmask.getIdent() != null ? hostmask.getIdent() : known.getIdent(),
+                    hostmask.getHost() != null ? hostmask.getHost() : known.getHost());
+        }
+        
+        if(!hostmask.equals(known)) {
+            user.setHostmask(hostmask);
+            indexUser(user);
+        }
         
         // Now, pull channel -- note that if we witnessed the join, we must already be in the channel, so it is implied it is tracked
         TrackedChannel chan = this.getChannel(channel);
@@ -693,6 +1835,8 @@ public class Tracker {
         // Now, we link the channel and user back to the info that links them
         user.addChannelInformation(info);
         chan.addUserInformation(info);
+        changed(user);
+        changed(chan);
         
         return info;
     }
@@ -714,6 +1858,8 @@ public class Tracker {
         // remove the info from the user and chan
         user.removeChannelInformation(info);
         chan.removeUserInformation(info);
+        changed(user);
+        changed(chan);
         
         // now, wipe that info that once linked them
         info.destroy();
@@ -723,12 +1869,13 @@ public class Tracker {
         
         if(this.getParser().getServerContext().isMe(nickname)) {
             // we are the one being removed from the channel! we should delete the channel's information since we can no longer track it
-            this.trackedChannels.remove(channel.toLowerCase());
+            this.trackedChannels.remove(keyCasemapping.createKey(channel));
             
             // remove all channel-user info, and make sure each user has the channel removed from them too!
             for(UserChannelInformation i : chan.getUserInformation()) {
                 // we must perform a regular user removal, much like above when it's not just us
                 i.getUser().removeChannelInformation(i);
+                changed(i.getUser());
                 cleanupCheck(i.getUser());
                 i.destroy();
             }
@@ -744,99 +1891,213 @@ public class Tracker {
      * meaning we don't "see" them anymore.
      */
     private void cleanupCheck(TrackedUser user) {
-        if(user.getChannelInformation().isEmpty()) {
+        if(user.getChannelCount() == 0) {
             // it is indeed time to drop this person
-            
-            // delete all their nickname history lookup entries
-            for(NicknameHistory history : user.getNicknameHistory()) {
-                ArrayList<NicknameHistory> historyList = this.nicknameHistories.get(history.getNickname());
-                if(historyList != null) {
-                    Iterator<NicknameHistory> i = historyList.iterator();
-                    while(i.hasNext()) {
-                        if(i.next().equals(history)) {
-                            i.remove();
-                        }
-                    }
-                }
-                
-                if(historyList.isEmpty())
-                    this.nicknameHistories.remove(history.getNickname());
-            }
-            
-            // clean up user
-            user.setTracked(false);
-            this.trackedUsers.remove(user.getHostmask().getNickname().toLowerCase());
-            user.destroy();
+            dropUser(user);
         }
     }
     
+    /**
+     * Stops tracking a user that is in no channels we can see.
+     */
+    private void dropUser(TrackedUser user) {
+        // delete all their nickname history lookup entries
+        for(NicknameHistory history : user.getNicknameHistory())
+            this.nicknameTimeline.remove(history);
+        
+        // clean up user (they may already be gone from the map, if they were in split limbo)
+        unindexUser(user);
+        user.setTracked(false);
+        changed(user);
+        CasemappedKey key = keyCasemapping.createKey(user.getHostmask().getNickname());
+        if(this.trackedUsers.get(key) == user)
+            this.trackedUsers.remove(key);
+        user.destroy();
+    }
+    
     /**
      * Occurs when a user quits the IRC server, meaning we need to remove them.
+     *
+     * @param split The netsplit the user was lost in, or null if they simply quit.
      */
-    private void userQuit(Hostmask hostmask) {
+    private void userQuit(Hostmask hostmask, Netsplit split) {
         // it is implied that the user is in at least one channel for us to have
-        // seen them quit, so we just start removing the user from each
-        // channel they are in, which will have the side effect of also removing
-        // them from our tracked user list at the end.
+        // seen them quit
         TrackedUser user = this.getUser(hostmask.getNickname());
         
         if(user == null)
             throw new IllegalStateException("Handling quit for user '" + hostmask.toString() + "', but user is not being tracked!");
         
-        // We need to copy the channels list off the user to avoid concurrent modification problems as we remove the channels
-        ArrayList<UserChannelInformation> channels = new ArrayList();
-        channels.addAll(user.getChannelInformation());
-        for(UserChannelInformation info : channels) {
-            this.removeUserFromChannel(user.getHostmask().getNickname(), info.getChannel().getName());
+        if(this.getParser().getServerContext().isMe(user.getHostmask().getNickname())) {
+            // we're leaving every channel, so each has to be torn down
+            for(UserChannelInformation info : user.getChannelInformation())
+                this.removeUserFromChannel(user.getHostmask().getNickname(), info.getChannel().getName());
+            return;
         }
+        
+        // take them out of every channel in one go: we already have each
+        // membership, so nothing needs looking up by name, and whether they
+        // should be dropped only needs deciding once at the end
+        for(UserChannelInformation info : user.getChannelInformation()) {
+            changed(info.getChannel());
+            info.getChannel().removeUserInformation(info);
+            user.removeChannelInformation(info);
+            info.destroy();
+        }
+        changed(user);
+        
+        if(split != null && settings.getSplitLimboTime() > 0) {
+            // they may well be back when the servers link again, so hold on to them
+            split = limbo.getSplit(split);
+            split.userQuit();
+            
+            CasemappedKey key = keyCasemapping.createKey(user.getHostmask().getNickname());
+            this.trackedUsers.remove(key);
+            unindexUser(user);
+            user.setTracked(false);
+            TrackedUser replaced = limbo.add(key, user, split);
+            if(replaced != null)
+                dropUser(replaced);
+        } else {
+            dropUser(user);
+        }
+    }
+    
+    /**
+     * Restores a user that is joining a channel from split limbo, if they
+     * were lost in a netsplit and have come back.
+     *
+     * @param hostmask The hostmask of the user joining.
+     * @return True if the user was restored, false if they are new to us.
+     */
+    private boolean restoreFromLimbo(Hostmask hostmask) {
+        if(limbo.size() == 0)
+            return false;
+        
+        CasemappedKey key = keyCasemapping.createKey(hostmask.getNickname());
+        TrackedUser user = limbo.get(key);
+        if(user == null)
+            return false;
+        
+        Hostmask old = user.getHostmask();
+        if(old.getIdent() == null || old.getHost() == null || !old.getIdent().equals(hostmask.getIdent()) || !old.getHost().equalsIgnoreCase(hostmask.getHost())) {
+            // someone else has their nickname, so we can't be sure it's them
+            discardFromLimbo(hostmask.getNickname());
+            return false;
+        }
+        
+        limbo.remove(key, true);
+        user.setTracked(true);
+        this.trackedUsers.put(key, user);
+        indexUser(user);
+        changed(user);
+        return true;
+    }
+    
+    /**
+     * Drops a user lost in a netsplit who can't come back as they were, 
+     * because someone else is now using their nickname.
+     */
+    private void discardFromLimbo(String nickname) {
+        if(limbo.size() == 0)
+            return;
+        
+        TrackedUser user = limbo.remove(keyCasemapping.createKey(nickname), false);
+        if(user != null)
+            dropUser(user);
+    }
+    
+    /**
+     * Drops the users that have been in split limbo for longer than our
+     * settings allow. This is done after each event we track, so only the
+     * parser's thread changes the tracker; users don't leave limbo any later
+     * than the first event after they expire.
+     */
+    private void expireLimbo() {
+        if(limbo.size() == 0)
+            return;
+        
+        long now = System.currentTimeMillis();
+        if(now < limbo.getNextExpiry())
+            return;
+        
+        for(TrackedUser user : limbo.removeExpired(now))
+            dropUser(user);
     }
     
     /**
      * Creates a new tracked channel.
      */
     private TrackedChannel createNewChannel(String name) {
-        TrackedChannel chan = new TrackedChannel();
+        TrackedChannel chan = new TrackedChannel(keyCasemapping, this, prefixModeIndex);
         chan.setName(name);
         
         // add to tracked channels
-        this.trackedChannels.put(chan.getName().toLowerCase(), chan);
-        
+        this.trackedChannels.put(keyCasemapping.createKey(chan.getName()), chan);
+        changed(chan);
         
         // populate the channel with empty listable channel modes derived from ISUPPORT
         Set<ChannelModeDefinition> modeDefs = this.getParser().getServerContext().getISupport().getChannelModes();
         for(ChannelModeDefinition def : modeDefs) {
-            if(def.getModeType() == ChannelModeDefinition.MODETYPE_A_NICKADDRESS) {
-                ListableModes listable = new ListableModes();
-                listable.setModeDefinition(def);
-                listable.setDefinite(false); // don't know yet
-            }
+            if(def.isListable())
+                chan.addListableModes(def);
         }
         
         return chan;
     }
     
+    /**
+     * Files every user, channel and membership again under a new casemapping.
+     * Our users and channels share our casemapping definition, so changing
+     * it changes how they look things up too.
+     */
+    private void rekey(int casemapping) {
+        keyCasemapping.setCasemappingConstant(casemapping);
+        
+        ArrayList<TrackedUser> users = new ArrayList(trackedUsers.values());
+        trackedUsers.clear();
+        for(TrackedUser user : users) {
+            trackedUsers.put(keyCasemapping.createKey(user.getHostmask().getNickname()), user);
+            user.rekey();
+            user.setView(null);
+            changed(user);
+        }
+        
+        ArrayList<TrackedChannel> channels = new ArrayList(trackedChannels.values());
+        trackedChannels.clear();
+        for(TrackedChannel chan : channels) {
+            trackedChannels.put(keyCasemapping.createKey(chan.getName()), chan);
+            chan.rekey();
+            changed(chan);
+        }
+        
+        // every view is published again under the new keys once the change is over
+        userViews.clear();
+        channelViews.clear();
+        
+        limbo.rekey(keyCasemapping);
+        nicknameTimeline.rekey();
+        for(UserIndex index : userIndices)
+            index.rekey();
+        
+        ArrayList<TrackerSnapshot.SavedChannel> restoring = new ArrayList(restoringChannels.values());
+        restoringChannels.clear();
+        for(TrackerSnapshot.SavedChannel saved : restoring)
+            restoringChannels.put(keyCasemapping.createKey(saved.name), saved);
+    }
+    
     /**
      * This will update the modes for a channel, which may affect users.
+     *
+     * @param setter Who changed the modes, or null if we are being told what they are.
      */
-    private void updateChannelModes(String channel, Modes<ChannelMode> modes) {
+    private void updateChannelModes(String channel, Modes<ChannelMode> modes, String setter) {
         List<ChannelMode> modeList = modes.getModes();
         TrackedChannel chan = this.getChannel(channel);
         if(chan != null) {
+            changed(chan);
             for(ChannelMode mode : modeList) {
-                /*
-                if(mode.getModeDefinition().getModeType() == ChannelModeDefinition.MODETYPE_A_NICKADDRESS) {
-                    // this mode is operating on the internal channel list
-                    for(ListableModes listableModes : chan.getListableModes()) {
-                        if(listableModes.getModeDefinition().equals(mode.getModeDefinition())) {
-                            if(mode.isBeingAdded()) {
-                                listableModes.getModes().add(mode);
-                            } else {
-                                listableModes.getModes().remove(mode);
-                            }
-                            break;
-                        }                            
-                    }
-                } else */ if(mode.getModeDefinition() instanceof ChannelNickPrefixModeDefinition) {
+                if(mode.getModeDefinition() instanceof ChannelNickPrefixModeDefinition) {
                     ChannelNickPrefixModeDefinition definition = (ChannelNickPrefixModeDefinition) mode.getModeDefinition();
                     // it's a user prefix mode
                     String nickname = mode.getParameter();
@@ -856,6 +2117,15 @@ public class Tracker {
                         if(arePrefixModesFullyAccountedFor(info.getWitnessedModes()))
                             info.setChannelPrefixModesDefinite(true);
                     }
+                } else if(mode.getModeDefinition() != null && mode.getModeDefinition().isListable()) {
+                    // this mode is operating on one of the channel's lists (a MODE without a parameter only asks for the list)
+                    if(mode.hasParameter()) {
+                        ListableModes list = chan.addListableModes(mode.getModeDefinition());
+                        if(mode.isBeingAdded())
+                            list.addMask(new ListedMask(mode.getParameter(), setter, new Date()));
+                        else
+                            list.removeMask(mode.getParameter());
+                    }
                 } else {
                     // it is a non-user-prefix non-listable channel mode
                     if(mode.isBeingAdded()) {
@@ -873,6 +2143,45 @@ public class Tracker {
         }
     }
     
+    /**
+     * Returns the mode a ban, ban exception or invite exception listing is
+     * for. The exception modes are usually +e and +I, but the server may name
+     * others in ISUPPORT.
+     */
+    private char getListModeForReply(IRCEvent reply) {
+        if(reply instanceof BanListReply || reply instanceof EndOfBanListReply)
+            return ChannelMode.MODE_BAN;
+        
+        boolean invite = reply instanceof InviteListReply || reply instanceof EndOfInviteListReply;
+        for(ChannelModeDefinition def : this.getParser().getServerContext().getISupport().getChannelModes()) {
+            if(invite ? def.isInviteExceptionMode() : def.isBanExceptionMode())
+                return def.getMode().charValue();
+        }
+        
+        return invite ? 'I' : 'e';
+    }
+    
+    /**
+     * Returns the list of a listable mode in a channel that a listing reply
+     * is for, or null if we aren't tracking the channel.
+     */
+    private ListableModes getListForReply(String channel, char mode) {
+        TrackedChannel chan = this.getChannel(channel);
+        if(chan == null)
+            return null;
+        
+        changed(chan); // the list is about to change
+        ListableModes list = chan.getListableModes(mode);
+        if(list == null) {
+            // the server has a list it didn't tell us about in ISUPPORT
+            ChannelModeDefinition def = this.getParser().getServerContext().getISupport().getChannelModeByChar(Character.valueOf(mode));
+            if(def == null || !def.isListable())
+                def = new ChannelModeDefinition(Character.valueOf(mode), ChannelModeDefinition.MODETYPE_A_NICKADDRESS);
+            list = chan.addListableModes(def);
+        }
+        return list;
+    }
+    
     /**
      * Prints debugging information to a print stream. This will essentially 
      * print the entire state of the tracker.
@@ -893,6 +2202,7 @@ public class Tracker {
         for(TrackedUser user : this.trackedUsers.values()) {
             out.println(String.format(format, "Hostmask", user.getHostmask()));
             out.println(String.format(format, "Away/Oper", user.isAway() + "/" + user.isServerOperator()));
+            out.println(String.format(format, "Provisional", user.isProvisional()));
             out.println(String.format(format, "Nickname history:", ""));
             out.println(String.format(format, "DataStore", user.getStore().toString()));
             for(NicknameHistory history : user.getNicknameHistory()) {
@@ -926,16 +2236,14 @@ public class Tracker {
             out.println(String.format(format, "Topic last set by", chan.getLastTopicChanger()));
             out.println(String.format(format, "Topic last set at", chan.getLastTopicChangeTime()));
             out.println(String.format(format, "DataStore", chan.getStore().toString()));
-            /*
             out.println(String.format(format, "Listable modes set", ""));
             
             
             for(ListableModes list : chan.getListableModes()) {
                 out.println(String.format(space+format, "Mode", "+" + list.getModeDefinition().getMode()));
                 out.println(String.format(space+format, "List is definite", list.isDefinite()));
-                out.println(String.format(space+format, "Modes as set", list.getModes()));
+                out.println(String.format(space+format, "Modes as set", list.getMasks()));
             }
-             */
             
             out.println(String.format(format, "Users", ""));
             for(UserChannelInformation info : chan.getUserInformation()) {
@@ -946,10 +2254,15 @@ public class Tracker {
             out.println("____________________________________");
         }
         
+        out.println("-> Netsplit dump --------------------------");
+        for(Netsplit split : limbo.getSplits()) {
+            out.println(String.format(format, "Netsplit", split.toString()));
+        }
+        
         out.println("-> User nickname history lookup dump --------------------------");
-        for(String nickname : this.nicknameHistories.keySet()) {
-            out.println(String.format(format, nickname, ""));
-            for(NicknameHistory history : this.nicknameHistories.get(nickname)) {
+        for(ArrayList<NicknameHistory> histories : this.nicknameTimeline.getAll()) {
+            out.println(String.format(format, histories.get(0).getNickname(), ""));
+            for(NicknameHistory history : histories) {
                 out.println(String.format(space+format, history.toString(), ""));
             }
         }
@@ -0,0 +1,56 @@
+/**
+ * This lets the tracker's single writer (the parser thread) change tracking
+ * state while other threads look things up in what the tracker doesn't
+ * publish as views, such as its user indices and nickname history. It is a
+ * read-write lock: readers share it, and only the writer has it to itself.
+ * The writer waits for the readers already reading to finish, so only the
+ * tracker's own short lookups are made under it; users and channels are
+ * read from their published views, which need no lock at all.
+ *
+ * Both the reading and the writing side may be taken again by a thread that
+ * already holds them, but a reader can't go on to become the writer.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class TrackerLock {
+    private ReentrantReadWriteLock lock;
+
+    public TrackerLock() {
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Starts a change. Changes may be nested in the same thread.
+     */
+    public void beginWrite() {
+        lock.writeLock().lock();
+    }
+
+    /**
+     * Finishes a change started by beginWrite().
+     */
+    public void endWrite() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Locks out the writer while reading.
+     */
+    public void lockRead() {
+        lock.readLock().lock();
+    }
+
+    public void unlockRead() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * Determines if this thread is the writer, or is otherwise holding the lock.
+     */
+    public boolean isHeldByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() > 0;
+    }
+}
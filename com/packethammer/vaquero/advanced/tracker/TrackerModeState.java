@@ -0,0 +1,84 @@
+/**
+ * This answers the mode optimizer's questions about channel modes from a
+ * tracker, so that it can drop mode changes the tracker says would do
+ * nothing. Nickname prefix modes (+o, +v and so on) are checked against
+ * the user's modes in the channel, and modes without parameters against
+ * the channel's own modes.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import com.packethammer.vaquero.outbound.ChannelModeStateI;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+import com.packethammer.vaquero.util.modes.StandardMode;
+
+public class TrackerModeState implements ChannelModeStateI {
+    private Tracker tracker;
+    
+    /**
+     * Creates a new instance of TrackerModeState.
+     *
+     * @param tracker The tracker to answer from.
+     */
+    public TrackerModeState(Tracker tracker) {
+        this.tracker = tracker;
+    }
+    
+    public List<StandardMode> removeNoOps(String channel, List<StandardMode> modes) {
+        IRCServerContext serverContext = tracker.getParser().getServerContext();
+        
+        // the tracker is changed by the parser's thread, so answer from what it last published
+        ChannelView chan = tracker.getChannelView(channel);
+        if(chan == null)
+            return modes;
+        
+        List<StandardMode> kept = new ArrayList(modes);
+        Iterator<StandardMode> i = kept.iterator();
+        while(i.hasNext()) {
+            StandardMode mode = i.next();
+            ChannelNickPrefixModeDefinition prefixDef = getPrefixModeDefinition(serverContext, mode.getMode());
+            
+            if(prefixDef != null && mode.hasParameter()) {
+                MemberView member = chan.getMember(mode.getParameter());
+                if(member != null) {
+                    boolean hasMode = member.hasPrefixMode(prefixDef.getMode().charValue());
+                    if(mode.isBeingAdded() && hasMode)
+                        i.remove(); // already has it
+                    else if(mode.isBeingRemoved() && !hasMode && member.isPrefixModesDefinite())
+                        i.remove(); // definitely doesn't have it
+                }
+            } else if(!mode.hasParameter() && mode.isBeingAdded()) {
+                ChannelModeDefinition def = serverContext.getISupport().getChannelModeByChar(mode.getMode());
+                if(def != null && def.getModeType() == ChannelModeDefinition.MODETYPE_D_NOPARAM && chan.hasMode(mode.getModeChar()))
+                    i.remove(); // channel already has this mode
+            }
+        }
+        
+        return kept;
+    }
+    
+    /**
+     * Returns the tracker we answer from.
+     */
+    public Tracker getTracker() {
+        return tracker;
+    }
+    
+    /**
+     * Returns the nickname prefix mode definition for a mode character, or
+     * null if it isn't a nickname prefix mode.
+     */
+    private static ChannelNickPrefixModeDefinition getPrefixModeDefinition(IRCServerContext serverContext, Character mode) {
+        for(ChannelNickPrefixModeDefinition def : serverContext.getISupport().getNickPrefixModes()) {
+            if(def.getMode().equals(mode))
+                return def;
+        }
+        
+        return null;
+    }
+}
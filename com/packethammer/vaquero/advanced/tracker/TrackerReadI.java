@@ -0,0 +1,23 @@
+/**
+ * This is a piece of reading to do on the tracker from another thread, such
+ * as gathering the users of a channel for display. It is run by
+ * Tracker.read(), and should read the views the tracker publishes (see
+ * Tracker.getUserView() and Tracker.getChannelView()) rather than the
+ * tracked users and channels, which the parser keeps changing. Views never
+ * change, so the task can take as long as it likes without holding up the
+ * parser.
+ *
+ * @see Tracker#read(TrackerReadI)
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+public interface TrackerReadI<T> {
+    /**
+     * Reads what is needed from the tracker.
+     *
+     * @param tracker The tracker to read from.
+     * @return Whatever was read, which read() passes back.
+     */
+    public T read(Tracker tracker);
+}
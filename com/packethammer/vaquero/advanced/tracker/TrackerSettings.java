@@ -7,6 +7,7 @@
 
 package com.packethammer.vaquero.advanced.tracker;
 
+import java.io.File;
 import com.packethammer.vaquero.outbound.commands.extended.ircu.WhoXSearchOptions;
 
 public class TrackerSettings {
@@ -19,6 +20,11 @@ public class TrackerSettings {
     private boolean automaticJoinModeListingEnabled;
     private WhoXSearchOptions whoXSearchOptions;
     private int nicknameTrackingHistoryTime;
+    private int splitLimboTime;
+    private int nicknameHistoryLimit;
+    private File snapshotFile;
+    private int snapshotInterval;
+    private int snapshotVerificationRate;
     
     /** Creates a new instance of TrackerSettings with default settings */
     public TrackerSettings() {
@@ -26,6 +32,7 @@ public class TrackerSettings {
             WhoXSearchOptions.SEARCHFIELD_NICK,
             WhoXSearchOptions.SEARCHFIELD_IDENT,
             WhoXSearchOptions.SEARCHFIELD_HOSTNAME,
+            WhoXSearchOptions.SEARCHFIELD_IP,
             WhoXSearchOptions.SEARCHFIELD_REALNAME,
             WhoXSearchOptions.SEARCHFIELD_ACCOUNTNAME,
             WhoXSearchOptions.SEARCHFIELD_INFOFLAGS,
@@ -34,6 +41,10 @@ public class TrackerSettings {
         
         this.setAutomaticJoinModeListingEnabled(true);
         this.setNicknameTrackingHistoryTime(10);
+        this.setSplitLimboTime(300);
+        this.setNicknameHistoryLimit(10000);
+        this.setSnapshotInterval(300);
+        this.setSnapshotVerificationRate(60);
         this.setWhoXEnabled(true);
         this.setAutomaticWhoQueryingEnabled(true);
     }
@@ -157,7 +168,9 @@ public class TrackerSettings {
      * To ensure that the tracker can still make the most use of the query
      * as possible, please leave nickname, ident, hostname, realname, and 
      * infoflags. The tracker automatically adds in the accountname field
-     * flag if ircu user tracking is explicitly enabled.
+     * flag if ircu user tracking is explicitly enabled. The IP field is 
+     * what lets the tracker find users by IP address; without it, they 
+     * can't be.
      */
     public void setWhoXSearchOptions(WhoXSearchOptions whoXSearchOptions) {
         this.whoXSearchOptions = whoXSearchOptions;
@@ -183,6 +196,25 @@ public class TrackerSettings {
         this.nicknameTrackingHistoryTime = nicknameTrackingHistoryTime;
     }
 
+    public int getNicknameHistoryLimit() {
+        return nicknameHistoryLimit;
+    }
+
+    /**
+     * Sets the most nicknames no longer in use that we should remember, over
+     * everyone we track. When there are more, the oldest are forgotten even
+     * if they are still within the nickname tracking history time; this 
+     * keeps a flood of nickname changes from using up memory. Set to -1 for
+     * no limit. Nicknames still in use don't count towards this.
+     *
+     * Default is 10000.
+     *
+     * @see #setNicknameTrackingHistoryTime(int)
+     */
+    public void setNicknameHistoryLimit(int nicknameHistoryLimit) {
+        this.nicknameHistoryLimit = nicknameHistoryLimit;
+    }
+
     public boolean isAutomaticJoinModeListingEnabled() {
         return automaticJoinModeListingEnabled;
     }
@@ -199,9 +231,86 @@ public class TrackerSettings {
         this.automaticJoinModeListingEnabled = automaticJoinModeListingEnabled;
     }
 
+    public int getSplitLimboTime() {
+        return splitLimboTime;
+    }
+
+    /**
+     * Sets the time (in seconds) we should keep users lost in a netsplit for.
+     * When a user quits with a netsplit message (the names of the two servers
+     * that split), they are kept in split limbo for this long rather than
+     * being forgotten. If they rejoin before then, they are restored as they
+     * were and are not looked up again with a WHO, which saves a flood of 
+     * WHO requests when the servers link again. Set to 0 to forget users lost
+     * in netsplits straight away, as with any other quit. A change applies to
+     * users already in split limbo too, from the next event we track.
+     *
+     * Default is 300 seconds (5 minutes).
+     *
+     * @see Tracker#getNetsplits()
+     */
+    public void setSplitLimboTime(int splitLimboTime) {
+        this.splitLimboTime = splitLimboTime;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Sets the file the tracker keeps snapshots of its state in. If the file
+     * exists when the tracker is made, the tracker starts out from it (see
+     * Tracker.restoreSnapshot()), which saves looking up every channel and
+     * user again after a restart. The tracker saves to it every so often, 
+     * and once more when the client's connection closes.
+     *
+     * Default is null (no snapshots).
+     *
+     * @see #setSnapshotInterval(int)
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public int getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Sets how often (in seconds) the tracker saves a snapshot to the 
+     * snapshot file. Saving is done on a thread of its own. Set to 0 to 
+     * only save when the client's connection closes.
+     *
+     * Default is 300 seconds (5 minutes).
+     */
+    public void setSnapshotInterval(int snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public int getSnapshotVerificationRate() {
+        return snapshotVerificationRate;
+    }
+
+    /**
+     * Sets how many users restored from a snapshot the tracker may look up 
+     * each minute to check that they are who the snapshot says. Lookups are 
+     * spread out so that rejoining a lot of channels doesn't flood the 
+     * server with WHO requests.
+     *
+     * Default is 60 a minute.
+     */
+    public void setSnapshotVerificationRate(int snapshotVerificationRate) {
+        this.snapshotVerificationRate = snapshotVerificationRate;
+    }
+
     public String toString() {
         return "WHOXSEARCH:" + this.getWhoXSearchOptions().renderSearchOptions()
          + ", NICKHIST:" + this.getNicknameTrackingHistoryTime()
+         + ", NICKHISTLIMIT:" + this.getNicknameHistoryLimit()
+         + ", SPLITLIMBO:" + this.getSplitLimboTime()
+         + ", SNAPSHOTFILE:" + this.getSnapshotFile()
+         + ", SNAPSHOTINTERVAL:" + this.getSnapshotInterval()
+         + ", SNAPSHOTVERIFYRATE:" + this.getSnapshotVerificationRate()
          + ", JOINMODELISTING:" + this.isAutomaticJoinModeListingEnabled()
          + ", ONJOINWHOQUERYING:" + this.isAutomaticJoinWhoQueryingEnabled()
          + ", AUTOWHOCHANNELONJOIN:" + this.isAutomaticWhoQueryingEnabled()
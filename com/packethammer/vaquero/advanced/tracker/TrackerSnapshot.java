@@ -0,0 +1,626 @@
+/**
+ * This is a snapshot of what a tracker knew, saved to disk so that a new
+ * tracker (such as one made when reconnecting after a crash or restart) can
+ * start out knowing it rather than asking the server for all of it again.
+ * See Tracker.restoreSnapshot() for how it is used.
+ *
+ * A snapshot is read in whole when it is opened. What it holds is then
+ * taken out of it, channel by channel and user by user, as the new tracker
+ * comes across them again, so each is only restored once.
+ *
+ * The file is laid out as follows (all numbers big-endian, strings in
+ * DataOutput's modified UTF-8, and "string?" being a byte 1 followed by the
+ * string, or a byte 0 for none):
+ *   int     MAGIC
+ *   byte    VERSION
+ *   then, compressed with GZIP:
+ *   long    when the snapshot was taken, in milliseconds since the epoch
+ *   string? network name (from ISUPPORT)
+ *   int     casemapping (a CasemappingDefinition constant)
+ *   int     number of users, then for each user:
+ *     string  nickname
+ *     string? ident, host, realname and IP address
+ *     byte    away and server operator flags (AWAY_/OPER_ bits)
+ *     store   data store
+ *     int     number of old nicknames, then for each (newest first):
+ *       string  nickname
+ *       long    usage start and stop times
+ *   int     number of channels, then for each channel:
+ *     string  name
+ *     string? topic and last topic changer
+ *     long    last topic change time and creation time (-1 if unknown)
+ *     int     number of modes, then for each: char mode, string? parameter
+ *     int     number of lists, then for each:
+ *       char    mode
+ *       int     number of masks, then for each:
+ *         string  mask
+ *         string? setter
+ *         long    set time (-1 if unknown)
+ *     store   data store
+ *     int     number of members, then for each:
+ *       int     the user's position in the users above
+ *       string  prefix mode characters, highest first
+ *       store   data store
+ * where a store is an int number of values, then for each a string key,
+ * an int length and that many bytes of the value in Java serialization.
+ * Only values that are Serializable and stored permanently are saved.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.datastore.DataStore;
+import com.packethammer.vaquero.util.modes.channel.ChannelMode;
+
+public class TrackerSnapshot {
+    /** Marks the start of a tracker snapshot file ("VQTS") */
+    public static final int MAGIC = 0x56515453;
+    /** The version of the file layout that we write */
+    public static final int VERSION = 1;
+
+    private static final int AWAY_KNOWN = 1;
+    private static final int AWAY = 2;
+    private static final int OPER_KNOWN = 4;
+    private static final int OPER = 8;
+    /** The most bytes DataOutput's modified UTF-8 can hold */
+    private static final int MAX_UTF_LENGTH = 65535;
+
+    private Date creationTime;
+    private String networkName;
+    private CasemappingDefinition casemapping;
+    private HashMap<CasemappedKey, SavedUser> users; // key = casemapped nickname; in file order when captured
+    private HashMap<CasemappedKey, SavedChannel> channels; // key = casemapped channel name; in file order when captured
+
+    /**
+     * Reads a snapshot, checking that it really is one.
+     *
+     * @param file The snapshot file.
+     * @throws IOException If the file can't be read or is not a snapshot.
+     */
+    public TrackerSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if(in.readInt() != MAGIC)
+                throw new IOException(file + " is not a tracker snapshot");
+            if(in.readByte() != VERSION)
+                throw new IOException(file + " is a tracker snapshot of a version we can't read");
+
+            read(new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns when this snapshot was taken.
+     */
+    public Date getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Returns the name of the network this snapshot was taken on, or null
+     * if the server didn't say.
+     */
+    public String getNetworkName() {
+        return networkName;
+    }
+
+    /**
+     * Returns the number of users in this snapshot that haven't been
+     * restored yet.
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Returns the number of channels in this snapshot that haven't been
+     * restored yet.
+     */
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    /**
+     * Takes a user out of this snapshot, to be restored.
+     *
+     * @return The user as they were saved, or null if they weren't (or were already taken).
+     */
+    SavedUser takeUser(String nickname) {
+        return users.remove(casemapping.createKey(nickname));
+    }
+
+    /**
+     * Takes a channel out of this snapshot, to be restored.
+     *
+     * @return The channel as it was saved, or null if it wasn't (or was already taken).
+     */
+    SavedChannel takeChannel(String name) {
+        return channels.remove(casemapping.createKey(name));
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        creationTime = new Date(in.readLong());
+        networkName = readString(in);
+        casemapping = new CasemappingDefinition(in.readInt());
+
+        int userCount = in.readInt();
+        users = new HashMap(userCount * 2);
+        ArrayList<SavedUser> byPosition = new ArrayList(userCount);
+        for(int x = 0; x < userCount; x++) {
+            SavedUser user = new SavedUser();
+            user.nickname = in.readUTF();
+            user.ident = readString(in);
+            user.host = readString(in);
+            user.realname = readString(in);
+            user.ip = readString(in);
+
+            int flags = in.readByte();
+            if((flags & AWAY_KNOWN) != 0)
+                user.away = Boolean.valueOf((flags & AWAY) != 0);
+            if((flags & OPER_KNOWN) != 0)
+                user.serverOperator = Boolean.valueOf((flags & OPER) != 0);
+
+            user.store = readStore(in);
+
+            int historyCount = in.readInt();
+            user.oldNicknames = new ArrayList(historyCount);
+            for(int y = 0; y < historyCount; y++) {
+                NicknameHistory history = new NicknameHistory(null, in.readUTF(), null);
+                history.setUsageTime(new Date(in.readLong()));
+                history.setUsageStopTime(new Date(in.readLong()));
+                user.oldNicknames.add(history);
+            }
+
+            users.put(casemapping.createKey(user.nickname), user);
+            byPosition.add(user);
+        }
+
+        int channelCount = in.readInt();
+        channels = new HashMap(channelCount * 2);
+        for(int x = 0; x < channelCount; x++) {
+            SavedChannel channel = new SavedChannel();
+            channel.casemapping = casemapping;
+            channel.name = in.readUTF();
+            channel.topic = readString(in);
+            channel.lastTopicChanger = readString(in);
+            channel.lastTopicChangeTime = readDate(in);
+            channel.creationTime = readDate(in);
+
+            int modeCount = in.readInt();
+            channel.modes = new ArrayList(modeCount);
+            for(int y = 0; y < modeCount; y++)
+                channel.modes.add(new ChannelMode(Character.valueOf(in.readChar()), readString(in), true));
+
+            int listCount = in.readInt();
+            channel.lists = new LinkedHashMap();
+            for(int y = 0; y < listCount; y++) {
+                Character mode = Character.valueOf(in.readChar());
+                int maskCount = in.readInt();
+                List<ListedMask> masks = new ArrayList(maskCount);
+                for(int z = 0; z < maskCount; z++)
+                    masks.add(new ListedMask(in.readUTF(), readString(in), readDate(in)));
+                channel.lists.put(mode, masks);
+            }
+
+            channel.store = readStore(in);
+
+            int memberCount = in.readInt();
+            channel.members = new HashMap(memberCount * 2);
+            for(int y = 0; y < memberCount; y++) {
+                int position = in.readInt();
+                if(position < 0 || position >= byPosition.size())
+                    throw new IOException("The snapshot has a member of " + channel.name + " who isn't one of its users");
+
+                SavedMember member = new SavedMember();
+                member.prefixModes = in.readUTF();
+                member.store = readStore(in);
+                channel.members.put(casemapping.createKey(byPosition.get(position).nickname), member);
+            }
+
+            channels.put(casemapping.createKey(channel.name), channel);
+        }
+    }
+
+    /**
+     * Copies what a tracker knows into a snapshot. Only plain values are
+     * copied (data store values are taken as they are), so this is quick
+     * enough to do holding the reading side of the tracker's lock, leaving
+     * the snapshot to be written out with toByteArray() and writeFile()
+     * afterwards.
+     *
+     * @param tracker The tracker.
+     * @param users The users it is tracking.
+     * @param channels The channels it is tracking.
+     * @return The snapshot.
+     */
+    static TrackerSnapshot capture(Tracker tracker, Collection<TrackedUser> users, Collection<TrackedChannel> channels) {
+        TrackerSnapshot snapshot = new TrackerSnapshot();
+        snapshot.creationTime = new Date();
+        snapshot.networkName = tracker.getParser().getServerContext().getISupport().getNetworkName();
+        snapshot.casemapping = tracker.getParser().getServerContext().getISupport().getCasemappingDefinition();
+
+        snapshot.users = new LinkedHashMap(users.size() * 2);
+        for(TrackedUser user : users) {
+            SavedUser saved = new SavedUser();
+            saved.nickname = user.getHostmask().getNickname();
+            saved.ident = user.getHostmask().getIdent();
+            saved.host = user.getHostmask().getHost();
+            saved.realname = user.getRealname();
+            saved.ip = user.getIP();
+            saved.away = user.isAway();
+            saved.serverOperator = user.isServerOperator();
+            saved.store = copyStore(user.getStore());
+
+            List<NicknameHistory> history = user.getNicknameHistory();
+            saved.oldNicknames = new ArrayList(Math.max(0, history.size() - 1));
+            for(int x = 1; x < history.size(); x++) {
+                NicknameHistory old = new NicknameHistory(null, history.get(x).getNickname(), null);
+                old.setUsageTime(history.get(x).getUsageStartTime());
+                old.setUsageStopTime(history.get(x).getUsageStopTime());
+                saved.oldNicknames.add(old);
+            }
+
+            snapshot.users.put(snapshot.casemapping.createKey(saved.nickname), saved);
+        }
+
+        List<ChannelNickPrefixModeDefinition> prefixModes = tracker.getParser().getServerContext().getISupport().getNickPrefixModes();
+        snapshot.channels = new LinkedHashMap(channels.size() * 2);
+        for(TrackedChannel chan : channels) {
+            SavedChannel saved = new SavedChannel();
+            saved.casemapping = snapshot.casemapping;
+            saved.name = chan.getName();
+            saved.topic = chan.getTopic();
+            saved.lastTopicChanger = chan.getLastTopicChanger();
+            saved.lastTopicChangeTime = chan.getLastTopicChangeTime();
+            saved.creationTime = chan.getCreationTime();
+
+            saved.modes = new ArrayList();
+            for(ChannelMode mode : chan.getChannelModes())
+                saved.modes.add(new ChannelMode(mode.getMode(), mode.getParameter(), true));
+
+            saved.lists = new LinkedHashMap();
+            for(ListableModes list : chan.getListableModes()) {
+                List<ListedMask> masks = new ArrayList();
+                for(ListedMask mask : list.getMasks())
+                    masks.add(new ListedMask(mask.getMask(), mask.getSetter(), mask.getSetTime()));
+                saved.lists.put(list.getModeDefinition().getMode(), masks);
+            }
+
+            saved.store = copyStore(chan.getStore());
+
+            List<UserChannelInformation> members = chan.getUserInformation();
+            saved.members = new LinkedHashMap(members.size() * 2);
+            for(UserChannelInformation info : members) {
+                SavedMember member = new SavedMember();
+
+                StringBuffer modeChars = new StringBuffer();
+                for(ChannelNickPrefixModeDefinition def : prefixModes) {
+                    if(info.getPrefixModes().contains(def))
+                        modeChars.append(def.getMode().charValue());
+                }
+                member.prefixModes = modeChars.toString();
+                member.store = copyStore(info.hasStore() ? info.getStore() : null);
+
+                CasemappedKey key = snapshot.casemapping.createKey(info.getUser().getHostmask().getNickname());
+                if(!snapshot.users.containsKey(key))
+                    throw new IllegalStateException(info.getUser() + " is in " + chan.getName() + ", but isn't one of the tracked users");
+                saved.members.put(key, member);
+            }
+
+            snapshot.channels.put(snapshot.casemapping.createKey(saved.name), saved);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Creates an empty snapshot, for capture() to fill in.
+     */
+    private TrackerSnapshot() {
+    }
+
+    /**
+     * Writes this snapshot out in the layout of a snapshot file, serializing
+     * the data store values and compressing it. This is the slow part of
+     * saving a snapshot, which is why capture() leaves it for later.
+     *
+     * @return The snapshot, ready to be written to a file with writeFile().
+     */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream header = new DataOutputStream(bytes);
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.flush();
+
+            GZIPOutputStream zip = new GZIPOutputStream(bytes);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(zip));
+
+            out.writeLong(creationTime.getTime());
+            writeString(out, networkName);
+            out.writeInt(casemapping.getCasemappingConstant());
+
+            HashMap<CasemappedKey, Integer> positions = new HashMap(users.size() * 2); // key = casemapped nickname
+            out.writeInt(users.size());
+            for(CasemappedKey key : users.keySet()) {
+                SavedUser user = users.get(key);
+                positions.put(key, Integer.valueOf(positions.size()));
+
+                out.writeUTF(truncate(user.nickname));
+                writeString(out, user.ident);
+                writeString(out, user.host);
+                writeString(out, user.realname);
+                writeString(out, user.ip);
+
+                int flags = 0;
+                if(user.away != null)
+                    flags |= AWAY_KNOWN | (user.away.booleanValue() ? AWAY : 0);
+                if(user.serverOperator != null)
+                    flags |= OPER_KNOWN | (user.serverOperator.booleanValue() ? OPER : 0);
+                out.writeByte(flags);
+
+                writeStore(out, user.store);
+
+                out.writeInt(user.oldNicknames.size());
+                for(NicknameHistory history : user.oldNicknames) {
+                    out.writeUTF(truncate(history.getNickname()));
+                    out.writeLong(history.getUsageStartTime().getTime());
+                    out.writeLong(history.getUsageStopTime().getTime());
+                }
+            }
+
+            out.writeInt(channels.size());
+            for(SavedChannel chan : channels.values()) {
+                out.writeUTF(truncate(chan.name));
+                writeString(out, chan.topic);
+                writeString(out, chan.lastTopicChanger);
+                writeDate(out, chan.lastTopicChangeTime);
+                writeDate(out, chan.creationTime);
+
+                out.writeInt(chan.modes.size());
+                for(ChannelMode mode : chan.modes) {
+                    out.writeChar(mode.getMode().charValue());
+                    writeString(out, mode.getParameter());
+                }
+
+                out.writeInt(chan.lists.size());
+                for(Character mode : chan.lists.keySet()) {
+                    out.writeChar(mode.charValue());
+                    List<ListedMask> masks = chan.lists.get(mode);
+                    out.writeInt(masks.size());
+                    for(ListedMask mask : masks) {
+                        out.writeUTF(truncate(mask.getMask()));
+                        writeString(out, mask.getSetter());
+                        writeDate(out, mask.getSetTime());
+                    }
+                }
+
+                writeStore(out, chan.store);
+
+                out.writeInt(chan.members.size());
+                for(CasemappedKey key : chan.members.keySet()) {
+                    SavedMember member = chan.members.get(key);
+                    out.writeInt(positions.get(key).intValue());
+                    out.writeUTF(member.prefixModes);
+                    writeStore(out, member.store);
+                }
+            }
+
+            out.close();
+        } catch (IOException ex) {
+            // it's all in memory, so this can't really happen
+            throw new IllegalStateException("Could not write a tracker snapshot to memory", ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a snapshot made with toByteArray() to a file. It is written next to
+     * the file first and then moved into place, so a crash while writing
+     * never leaves a half-written snapshot where the last good one was.
+     */
+    static synchronized void writeFile(File file, byte[] snapshot) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(snapshot);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        // renameTo() won't replace an existing file everywhere
+        if(!temp.renameTo(file)) {
+            file.delete();
+            if(!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not move the new snapshot to " + file);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.writeUTF(truncate(s));
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readByte() == 0 ? null : in.readUTF();
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? -1 : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time == -1 ? null : new Date(time);
+    }
+
+    /**
+     * Copies the permanent, serializable values of a data store. Other
+     * values are left out, since they either wouldn't last or can't be
+     * saved.
+     *
+     * @param store The store, or null to copy an empty one.
+     */
+    private static LinkedHashMap<String, Object> copyStore(DataStore store) {
+        LinkedHashMap<String, Object> values = new LinkedHashMap();
+        if(store == null)
+            return values;
+
+        for(String key : store.getKeys()) {
+            Object value = store.get(key);
+            if(value instanceof Serializable && store.isPermanent(key))
+                values.put(key, value);
+        }
+        return values;
+    }
+
+    /**
+     * Writes the values of a data store copied with copyStore(). Values
+     * that turn out not to be serializable after all are left out, and so
+     * are values that fail while being written (such as one the parser is
+     * changing at the same time), so one bad value never costs the whole
+     * snapshot.
+     */
+    private static void writeStore(DataOutputStream out, LinkedHashMap<String, Object> store) throws IOException {
+        LinkedHashMap<String, byte[]> values = new LinkedHashMap();
+        for(String key : store.keySet()) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream object = new ObjectOutputStream(bytes);
+                object.writeObject(store.get(key));
+                object.close();
+                values.put(key, bytes.toByteArray());
+            } catch (IOException ex) {
+                // something inside it isn't serializable after all
+            } catch (RuntimeException ex) {
+                // it broke while being written; the rest of the snapshot is still good
+                ex.printStackTrace();
+            }
+        }
+
+        out.writeInt(values.size());
+        for(String key : values.keySet()) {
+            out.writeUTF(truncate(key));
+            out.writeInt(values.get(key).length);
+            out.write(values.get(key));
+        }
+    }
+
+    /**
+     * Reads the values of a data store. Values whose classes can't be found
+     * or read are left out.
+     */
+    private static LinkedHashMap<String, Object> readStore(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        LinkedHashMap<String, Object> values = new LinkedHashMap();
+        for(int x = 0; x < count; x++) {
+            String key = in.readUTF();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            try {
+                ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                values.put(key, object.readObject());
+                object.close();
+            } catch (ClassNotFoundException ex) {
+                // the class is gone since the snapshot was taken
+            } catch (IOException ex) {
+                // the class has changed too much to read
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Cuts a string short enough for writeUTF(), which can only take 65535
+     * bytes. Nothing from an IRC server is anywhere near that, so this is
+     * only a safeguard.
+     */
+    private static String truncate(String s) {
+        if(s.length() * 3 <= MAX_UTF_LENGTH)
+            return s;
+
+        return s.substring(0, MAX_UTF_LENGTH / 3);
+    }
+
+    /**
+     * A user as they were saved.
+     */
+    static class SavedUser {
+        String nickname;
+        String ident;
+        String host;
+        String realname;
+        String ip;
+        Boolean away;
+        Boolean serverOperator;
+        LinkedHashMap<String, Object> store;
+        List<NicknameHistory> oldNicknames; // newest first, with no user set
+    }
+
+    /**
+     * A channel as it was saved.
+     */
+    static class SavedChannel {
+        String name;
+        String topic;
+        String lastTopicChanger;
+        Date lastTopicChangeTime;
+        Date creationTime;
+        List<ChannelMode> modes;
+        LinkedHashMap<Character, List<ListedMask>> lists; // key = mode character
+        LinkedHashMap<String, Object> store;
+        HashMap<CasemappedKey, SavedMember> members; // key = casemapped nickname
+        CasemappingDefinition casemapping; // what the member keys were made with
+        boolean topicSeen; // set when the server gives us the topic after we rejoin
+
+        /**
+         * Takes a member out of this channel, to be restored.
+         */
+        SavedMember takeMember(String nickname) {
+            return members.remove(casemapping.createKey(nickname));
+        }
+    }
+
+    /**
+     * A user's membership of a channel as it was saved.
+     */
+    static class SavedMember {
+        String prefixModes; // mode characters, highest first
+        LinkedHashMap<String, Object> store;
+    }
+}
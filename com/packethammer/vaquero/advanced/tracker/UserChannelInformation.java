@@ -1,29 +1,36 @@
 /**
  * This represents information pertaining to a user inside of a channel. It is
  * the special in-between place between a just a user and just a channel.
+ *
+ * There is one of these for every user in every channel we track, so it is
+ * kept small: the prefix modes and witnessed modes are bits (numbered by the
+ * channel's PrefixModeIndex) packed into one int along with the definite
+ * flag, and the data store is only made when someone asks for it. The sets
+ * returned by getPrefixModes() and getWitnessedModes() are views of those
+ * bits, and changing them changes this information.
  */
 
 package com.packethammer.vaquero.advanced.tracker;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import com.packethammer.vaquero.parser.tracking.definitions.ChannelNickPrefixModeDefinition;
 import com.packethammer.vaquero.util.datastore.DataStore;
 
 public class UserChannelInformation {
+    private static final int WITNESSED_SHIFT = PrefixModeIndex.MAX_MODES;
+    private static final int PREFIX_MASK = (1 << PrefixModeIndex.MAX_MODES) - 1;
+    private static final int DEFINITE_FLAG = 1 << (2 * PrefixModeIndex.MAX_MODES);
+
     private TrackedUser user;
     private TrackedChannel channel;
-    private HashSet<ChannelNickPrefixModeDefinition> prefixModes;
-    private HashSet<Character> witnessedModes;
-    private DataStore store;
-    private boolean channelPrefixModesDefinite;
-    
+    private DataStore store; // made when first asked for
+    private int modes; // prefix mode bits, then witnessed mode bits, then the definite flag
+
     /** Creates a new instance of UserChannelInformation */
     public UserChannelInformation() {
-        // instantiate the modes in set-like mode, so that we can't accidently give them two +o's or something
-        store = new DataStore();
-        prefixModes = new HashSet();
-        witnessedModes = new HashSet();
     }
 
     /**
@@ -50,39 +57,51 @@ public class UserChannelInformation {
 
     /**
      * Returns the prefixing modes this user has in the channel. Be aware that this may
-     * not actually contain all modes the user has in most cases. For more 
+     * not actually contain all modes the user has in most cases. For more
      * information, see isModesDefinite().
      *
      * @see #isChannelPrefixModesDefinite()
      */
     public Set<ChannelNickPrefixModeDefinition> getPrefixModes() {
-        return prefixModes;
+        return new PrefixModeSet();
     }
-    
+
     /**
      * Calling this method removes this information from the user and channel it
      * is associated with, effectively removing a user from that channel.
      */
     public void destroy() {
-        this.store.destroy();
+        if(this.store != null)
+            this.store.destroy();
         this.store = null;
         this.user = null;
         this.channel = null;
-        this.prefixModes = null;
+        this.modes = 0;
     }
-    
+
     /**
-     * Returns the data store associated with this user-channel information. 
+     * Returns the data store associated with this user-channel information.
      * The store is emptied when the user in the channel is no longer being
      * tracked.
      */
     public DataStore getStore() {
+        if(store == null)
+            store = new DataStore();
+
         return store;
     }
-    
+
+    /**
+     * Determines if anything has asked for our data store yet, so it can be
+     * looked at without making one.
+     */
+    boolean hasStore() {
+        return store != null;
+    }
+
     /**
-     * Determines if the user-prefix channel modes (ie: +o, +v, etc.) are 
-     * fully known. The typical case where they are unknown/indefinite is 
+     * Determines if the user-prefix channel modes (ie: +o, +v, etc.) are
+     * fully known. The typical case where they are unknown/indefinite is
      * when we first join a channel and only get a NAMES list to work with.
      * Someone can have +ov, but we'd only see +o (since we'd see @nickname).
      * This is true by default if we've tracked this user from the time they
@@ -98,11 +117,14 @@ public class UserChannelInformation {
      * @return True if we know all the user prefix modes, or false if there may be more.
      */
     public boolean isChannelPrefixModesDefinite() {
-        return channelPrefixModesDefinite;
+        return (modes & DEFINITE_FLAG) != 0;
     }
 
     public void setChannelPrefixModesDefinite(boolean channelPrefixModesDefinite) {
-        this.channelPrefixModesDefinite = channelPrefixModesDefinite;
+        if(channelPrefixModesDefinite)
+            modes |= DEFINITE_FLAG;
+        else
+            modes &= ~DEFINITE_FLAG;
     }
 
     /**
@@ -110,7 +132,135 @@ public class UserChannelInformation {
      * MODES or some other means. This helps the tracker in determining if
      * we may already know all the user prefix modes this user has.
      */
-    public HashSet<Character> getWitnessedModes() {
-        return witnessedModes;
+    public Set<Character> getWitnessedModes() {
+        return new WitnessedModeSet();
+    }
+
+    private PrefixModeIndex getIndex() {
+        if(channel == null)
+            throw new IllegalStateException("This information is not associated with a channel");
+
+        return channel.getPrefixModeIndex();
+    }
+
+    /**
+     * Goes through the bits set in part of the modes.
+     */
+    private abstract class BitIterator<E> implements Iterator<E> {
+        private int shift;
+        private int remaining; // bits we haven't returned yet
+        private int last = -1;
+
+        public BitIterator(int shift) {
+            this.shift = shift;
+            this.remaining = (modes >>> shift) & PREFIX_MASK;
+        }
+
+        public boolean hasNext() {
+            return remaining != 0;
+        }
+
+        public E next() {
+            if(remaining == 0)
+                throw new NoSuchElementException();
+
+            last = Integer.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            return get(last);
+        }
+
+        public void remove() {
+            if(last == -1)
+                throw new IllegalStateException();
+
+            modes &= ~(1 << (last + shift));
+            last = -1;
+        }
+
+        protected abstract E get(int bit);
+    }
+
+    /**
+     * A view of the prefix mode bits as mode definitions.
+     */
+    private class PrefixModeSet extends AbstractSet<ChannelNickPrefixModeDefinition> {
+        public Iterator<ChannelNickPrefixModeDefinition> iterator() {
+            return new BitIterator<ChannelNickPrefixModeDefinition>(0) {
+                protected ChannelNickPrefixModeDefinition get(int bit) {
+                    return getIndex().getDefinition(bit);
+                }
+            };
+        }
+
+        public int size() {
+            return Integer.bitCount(modes & PREFIX_MASK);
+        }
+
+        public boolean contains(Object o) {
+            if(!(o instanceof ChannelNickPrefixModeDefinition))
+                return false;
+
+            int bit = getIndex().findBit(((ChannelNickPrefixModeDefinition) o).getMode().charValue());
+            return bit != -1 && (modes & (1 << bit)) != 0;
+        }
+
+        public boolean add(ChannelNickPrefixModeDefinition def) {
+            int flag = 1 << getIndex().getBit(def);
+            if((modes & flag) != 0)
+                return false;
+
+            modes |= flag;
+            return true;
+        }
+
+        public boolean remove(Object o) {
+            if(!contains(o))
+                return false;
+
+            modes &= ~(1 << getIndex().findBit(((ChannelNickPrefixModeDefinition) o).getMode().charValue()));
+            return true;
+        }
+    }
+
+    /**
+     * A view of the witnessed mode bits as mode characters.
+     */
+    private class WitnessedModeSet extends AbstractSet<Character> {
+        public Iterator<Character> iterator() {
+            return new BitIterator<Character>(WITNESSED_SHIFT) {
+                protected Character get(int bit) {
+                    return Character.valueOf(getIndex().getMode(bit));
+                }
+            };
+        }
+
+        public int size() {
+            return Integer.bitCount((modes >>> WITNESSED_SHIFT) & PREFIX_MASK);
+        }
+
+        public boolean contains(Object o) {
+            if(!(o instanceof Character))
+                return false;
+
+            int bit = getIndex().findBit(((Character) o).charValue());
+            return bit != -1 && (modes & (1 << (bit + WITNESSED_SHIFT))) != 0;
+        }
+
+        public boolean add(Character mode) {
+            int flag = 1 << (getIndex().getBit(mode.charValue()) + WITNESSED_SHIFT);
+            if((modes & flag) != 0)
+                return false;
+
+            modes |= flag;
+            return true;
+        }
+
+        public boolean remove(Object o) {
+            if(!contains(o))
+                return false;
+
+            modes &= ~(1 << (getIndex().findBit(((Character) o).charValue()) + WITNESSED_SHIFT));
+            return true;
+        }
     }
 }
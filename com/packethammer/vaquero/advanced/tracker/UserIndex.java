@@ -0,0 +1,221 @@
+/**
+ * This files tracked users by one part of what we know about them (such as
+ * their host or account name), so that everyone sharing it can be found
+ * without going through every user. Each user is filed under at most one
+ * value, and is moved when it changes.
+ *
+ * Values are compared using network casemapping and kept sorted, so users
+ * can also be found by a mask: masks that are plain text up to a trailing
+ * '*' (192.168.*) are looked up as a range of values. If the index keeps
+ * values reversed as well (as it does for hosts), masks that are plain
+ * text after a leading '*' (*.example.com) are too. Any other mask is
+ * checked against each distinct value, which is still usually far fewer
+ * than there are users.
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import com.packethammer.vaquero.util.CasemappingDefinition;
+import com.packethammer.vaquero.util.MaskMatcher;
+
+class UserIndex {
+    private CasemappingDefinition casemapping;
+    private TreeMap<String, Bucket> byValue; // key = casemapped value
+    private TreeMap<String, Bucket> byReversedValue; // key = casemapped value, last character first; null if not kept
+    private HashMap<Integer, Bucket> filed; // key = user ID, value = where they're filed
+
+    /**
+     * Creates a new, empty index.
+     *
+     * @param casemapping The casemapping to compare values with.
+     * @param reversed True to also keep values reversed, so masks with a leading '*' can be looked up.
+     */
+    UserIndex(CasemappingDefinition casemapping, boolean reversed) {
+        this.casemapping = casemapping;
+        this.byValue = new TreeMap();
+        this.byReversedValue = reversed ? new TreeMap() : null;
+        this.filed = new HashMap();
+    }
+
+    /**
+     * Files a user under a value, moving them if they were filed under
+     * something else.
+     *
+     * @param value The value, or null to take the user out of the index.
+     */
+    void update(TrackedUser user, String value) {
+        Integer id = Integer.valueOf(user.getId());
+        String key = value == null ? null : casemapping.toLowerCase(value);
+        Bucket old = filed.get(id);
+        if(old != null) {
+            if(old.key.equals(key))
+                return;
+
+            remove(user);
+        }
+
+        if(value == null)
+            return;
+
+        Bucket bucket = byValue.get(key);
+        if(bucket == null) {
+            bucket = new Bucket(value, key);
+            byValue.put(key, bucket);
+            if(byReversedValue != null)
+                byReversedValue.put(bucket.reversedKey(), bucket);
+        }
+        bucket.users.put(id, user);
+        filed.put(id, bucket);
+    }
+
+    /**
+     * Takes a user out of the index.
+     */
+    void remove(TrackedUser user) {
+        Bucket bucket = filed.remove(Integer.valueOf(user.getId()));
+        if(bucket == null)
+            return;
+
+        bucket.users.remove(Integer.valueOf(user.getId()));
+        if(bucket.users.isEmpty()) {
+            byValue.remove(bucket.key);
+            if(byReversedValue != null)
+                byReversedValue.remove(bucket.reversedKey());
+        }
+    }
+
+    /**
+     * Returns the users filed under a value.
+     */
+    List<TrackedUser> get(String value) {
+        Bucket bucket = byValue.get(casemapping.toLowerCase(value));
+        if(bucket == null)
+            return new ArrayList();
+
+        return new ArrayList(bucket.users.values());
+    }
+
+    /**
+     * Returns the number of users filed under a value.
+     */
+    int count(String value) {
+        Bucket bucket = byValue.get(casemapping.toLowerCase(value));
+        return bucket == null ? 0 : bucket.users.size();
+    }
+
+    /**
+     * Returns the values that at least some number of users are filed under,
+     * with how many there are of each, in order of value.
+     *
+     * @param minimum The least number of users a value must have.
+     */
+    Map<String, Integer> getCounts(int minimum) {
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap();
+        for(Bucket bucket : byValue.values()) {
+            if(bucket.users.size() >= minimum)
+                counts.put(bucket.value, Integer.valueOf(bucket.users.size()));
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the users filed under a value matching a mask.
+     */
+    List<TrackedUser> match(String mask) {
+        List<TrackedUser> users = lookUp(mask);
+        if(users != null)
+            return users;
+
+        users = new ArrayList();
+        MaskMatcher matcher = new MaskMatcher(mask, casemapping);
+        for(Bucket bucket : byValue.values()) {
+            if(matcher.matches(bucket.value))
+                users.addAll(bucket.users.values());
+        }
+        return users;
+    }
+
+    /**
+     * Returns the users filed under a value matching a mask, if the mask is
+     * one that can be looked up without checking every value.
+     *
+     * @return The users, or null if every value would have to be checked.
+     */
+    List<TrackedUser> lookUp(String mask) {
+        String key = casemapping.toLowerCase(mask);
+        if(!hasWildcards(key))
+            return get(mask);
+
+        SortedMap<String, Bucket> range = null;
+        if(key.length() > 1 && key.charAt(key.length() - 1) == '*' && !hasWildcards(key.substring(0, key.length() - 1)))
+            range = prefixRange(byValue, key.substring(0, key.length() - 1));
+        else if(byReversedValue != null && key.length() > 1 && key.charAt(0) == '*' && !hasWildcards(key.substring(1)))
+            range = prefixRange(byReversedValue, new StringBuffer(key.substring(1)).reverse().toString());
+
+        if(range == null)
+            return null;
+
+        List<TrackedUser> users = new ArrayList();
+        for(Bucket bucket : range.values())
+            users.addAll(bucket.users.values());
+        return users;
+    }
+
+    /**
+     * Returns the number of users in the index.
+     */
+    int size() {
+        return filed.size();
+    }
+
+    /**
+     * Files everyone again, for when the casemapping the values were
+     * compared with has changed.
+     */
+    void rekey() {
+        ArrayList<Bucket> buckets = new ArrayList(byValue.values());
+        byValue.clear();
+        if(byReversedValue != null)
+            byReversedValue.clear();
+        filed.clear();
+
+        for(Bucket bucket : buckets) {
+            for(TrackedUser user : bucket.users.values())
+                update(user, bucket.value);
+        }
+    }
+
+    private static SortedMap<String, Bucket> prefixRange(TreeMap<String, Bucket> map, String prefix) {
+        return map.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    private static boolean hasWildcards(String text) {
+        return text.indexOf('*') != -1 || text.indexOf('?') != -1;
+    }
+
+    /**
+     * The users filed under one value.
+     */
+    private static class Bucket {
+        String value; // as it was first given
+        String key;
+        LinkedHashMap<Integer, TrackedUser> users; // key = user ID
+
+        Bucket(String value, String key) {
+            this.value = value;
+            this.key = key;
+            this.users = new LinkedHashMap(2);
+        }
+
+        String reversedKey() {
+            return new StringBuffer(key).reverse().toString();
+        }
+    }
+}
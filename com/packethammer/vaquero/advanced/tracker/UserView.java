@@ -0,0 +1,158 @@
+/**
+ * This is what the tracker last published about a user: a copy made by the
+ * parser's thread once an event that changed the user has been tracked.
+ * It never changes, so any thread may read it without locking, and
+ * everything in it is from the same moment. A newer view is published
+ * each time the user changes.
+ *
+ * @see Tracker#getUserView(String)
+ * @see TrackedUser#getView()
+ */
+
+package com.packethammer.vaquero.advanced.tracker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import com.packethammer.vaquero.util.CasemappedKey;
+import com.packethammer.vaquero.util.Hostmask;
+
+public class UserView {
+    private TrackedUser user;
+    private CasemappedKey key; // casemapped nickname, as the tracker files us
+    private String nickname;
+    private String ident;
+    private String host;
+    private String realname;
+    private String ip;
+    private String accountName;
+    private Boolean serverOperator;
+    private Boolean away;
+    private boolean provisional;
+    private String[] channels;
+
+    /**
+     * Copies what we know of a user. This is done by the parser's thread.
+     *
+     * @param user The user to copy.
+     * @param key The user's casemapped nickname.
+     */
+    UserView(TrackedUser user, CasemappedKey key) {
+        Hostmask hostmask = user.getHostmask();
+        this.user = user;
+        this.key = key;
+        this.nickname = hostmask.getNickname();
+        this.ident = hostmask.getIdent();
+        this.host = hostmask.getHost();
+        this.realname = user.getRealname();
+        this.ip = user.getIP();
+        this.accountName = user.getStore().getString(Tracker.USERKEY_IRCU_ACCOUNT);
+        this.serverOperator = user.isServerOperator();
+        this.away = user.isAway();
+        this.provisional = user.isProvisional();
+
+        List<UserChannelInformation> infos = user.getChannelInformation();
+        this.channels = new String[infos.size()];
+        for(int i = 0; i < channels.length; i++)
+            channels[i] = infos.get(i).getChannel().getName();
+    }
+
+    /**
+     * Returns the tracked user this is a view of. Unlike the view, it keeps
+     * changing as the parser tracks events, so only the parser's thread
+     * should read it.
+     */
+    public TrackedUser getUser() {
+        return user;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    CasemappedKey getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the user's ident, or null if we don't know it.
+     */
+    public String getIdent() {
+        return ident;
+    }
+
+    /**
+     * Returns the user's host, or null if we don't know it.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns a new hostmask made from the nickname, ident and host.
+     */
+    public Hostmask getHostmask() {
+        return new Hostmask(nickname, ident, host);
+    }
+
+    /**
+     * Returns the user's realname, or null if we don't know it.
+     */
+    public String getRealname() {
+        return realname;
+    }
+
+    /**
+     * Returns the user's IP address, or null if we don't know it.
+     */
+    public String getIP() {
+        return ip;
+    }
+
+    /**
+     * Returns the user's ircu account name, or null if we don't know it (or
+     * aren't tracking accounts).
+     *
+     * @see TrackerSettings#setIrcuAccountTrackingEnabled(boolean)
+     */
+    public String getAccountName() {
+        return accountName;
+    }
+
+    /**
+     * @see TrackedUser#isServerOperator()
+     */
+    public Boolean isServerOperator() {
+        return serverOperator;
+    }
+
+    /**
+     * @see TrackedUser#isAway()
+     */
+    public Boolean isAway() {
+        return away;
+    }
+
+    /**
+     * @see TrackedUser#isProvisional()
+     */
+    public boolean isProvisional() {
+        return provisional;
+    }
+
+    /**
+     * Returns the names of the channels we see the user in, in the order
+     * they joined them. Each channel's own view says who is in it and with
+     * what modes.
+     *
+     * @return An unmodifiable list of channel names.
+     * @see Tracker#getChannelView(String)
+     */
+    public List<String> getChannels() {
+        return Collections.unmodifiableList(Arrays.asList(channels));
+    }
+
+    public String toString() {
+        return getHostmask().toString();
+    }
+}
@@ -28,19 +28,25 @@
 
 package com.packethammer.vaquero.client;
 
+import com.packethammer.vaquero.advanced.dispatcher.ChannelContextMessageFilter;
 import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
 import com.packethammer.vaquero.advanced.dispatcher.NicknameTargetFilter;
 import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.TrackerModeState;
 import com.packethammer.vaquero.advanced.tracker.TrackerSettings;
 import com.packethammer.vaquero.net.IRCConnector;
+import com.packethammer.vaquero.net.IRCConnectorListener;
 import com.packethammer.vaquero.outbound.CommandManager;
+import com.packethammer.vaquero.outbound.ModeOptimizer;
 import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
 import com.packethammer.vaquero.outbound.outboundprocessing.TimingScheme;
 
 public class AdvancedClient extends BasicClient {    
     private Tracker tracker;
     private TrackerSettings trackerSettings;
     private boolean adjustNicknameTargetsEnabled;
+    private boolean channelContextMessagingEnabled;
     
     /**
      * This initializes the client with some basic information and initializes
@@ -68,6 +74,32 @@ public class AdvancedClient extends BasicClient {
         if(this.isAdjustNicknameTargetsEnabled()) {
             this.getDispatcher().addPreReleaseFilter(new NicknameTargetFilter(tracker));
         }
+        if(this.isChannelContextMessagingEnabled()) {
+            // after the nickname filter, so we look up the target's current nickname
+            this.getDispatcher().addPreReleaseFilter(new ChannelContextMessageFilter(tracker));
+        }
+        
+        // let any mode optimizer drop mode changes that the tracker says would do nothing
+        for(CommandOptimizer optimizer : this.getDispatcher().getWaitQueue().getCommandOptimizers()) {
+            if(optimizer instanceof ModeOptimizer)
+                ((ModeOptimizer) optimizer).setModeState(new TrackerModeState(tracker));
+        }
+        
+        // the tracker saves its last snapshot (if it keeps any) when we're done with the server;
+        // it only copies what it knows here, and writes the file on its own thread
+        this.getIrcConnector().addListener(new IRCConnectorListener() {
+            public void onConnectionClosed() {
+                tracker.die();
+            }
+        });
+    }
+    
+    public void die() {
+        // before the parser goes, since the last snapshot is copied from what it knows (closing the connection below then finds the tracker already dead)
+        if(tracker != null)
+            tracker.die();
+        
+        super.die();
     }
     
     protected CommandManager getNewFunctionalCommandManager(TimingScheme outboundTimingScheme, OutboundRawIRCLineSenderI lineSender) {
@@ -118,4 +150,30 @@ public class AdvancedClient extends BasicClient {
             throw new IllegalStateException("Cannot set this property after the client is initialized.");
         this.adjustNicknameTargetsEnabled = adjustNicknameTargetsEnabled;
     }
+
+    /**
+     * Determines if PRIVMSGs and NOTICEs to single users are rewritten into
+     * CPRIVMSG/CNOTICE where possible.
+     */
+    public boolean isChannelContextMessagingEnabled() {
+        return channelContextMessagingEnabled;
+    }
+
+    /**
+     * Determines if we should set up a ChannelContextMessageFilter in the
+     * pre-release filter chain. On servers that support CPRIVMSG/CNOTICE
+     * (ircu and its descendants), this sends messages to users we share a
+     * channel with through that channel when we are opped or voiced in it,
+     * which keeps the server from refusing them with "target change too
+     * fast" when messaging many different people.
+     *
+     * See ChannelContextMessageFilter to find out more information.
+     *
+     * @param channelContextMessagingEnabled Set to true to rewrite messages, false otherwise.
+     */
+    public void setChannelContextMessagingEnabled(boolean channelContextMessagingEnabled) {
+        if(this.isInitialized())
+            throw new IllegalStateException("Cannot set this property after the client is initialized.");
+        this.channelContextMessagingEnabled = channelContextMessagingEnabled;
+    }
 }
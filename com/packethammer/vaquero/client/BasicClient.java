@@ -13,8 +13,12 @@ import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
 import com.packethammer.vaquero.dcc.DCCManager;
 import com.packethammer.vaquero.net.IRCConnector;
 import com.packethammer.vaquero.net.IRCLineListener;
+import com.packethammer.vaquero.outbound.ChannelBatchOptimizer;
 import com.packethammer.vaquero.outbound.CommandManager;
+import com.packethammer.vaquero.outbound.MessageSplitter;
 import com.packethammer.vaquero.outbound.ModeOptimizer;
+import com.packethammer.vaquero.outbound.SupersessionOptimizer;
+import com.packethammer.vaquero.outbound.OutboundRawIRCByteSenderI;
 import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.basic.IRCCTCPReplyNickCommand;
@@ -31,6 +35,8 @@ import com.packethammer.vaquero.parser.events.basic.IRCCTCPEvent;
 import com.packethammer.vaquero.parser.events.server.IRCPingEvent;
 import com.packethammer.vaquero.parser.tracking.IRCServerContext;
 import com.packethammer.vaquero.util.CommandHelper;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+import java.nio.charset.Charset;
 
 public class BasicClient {
     private DCCManager dccManager;
@@ -46,6 +52,9 @@ public class BasicClient {
     private boolean autoPongResponseEnabled;
     private boolean autoVersionResponseEnabled;
     private boolean autoModeOptimizationEnabled;
+    private boolean autoSupersessionOptimizationEnabled;
+    private boolean autoMessageSplittingEnabled;
+    private boolean autoChannelBatchOptimizationEnabled;
     
     /**
      * This initializes the client with some basic information and initializes
@@ -76,10 +85,18 @@ public class BasicClient {
         ircConnector.setLineListener(lineListener);
         
         // set up the line sender
-        lineSender = new OutboundRawIRCLineSenderI() {
+        lineSender = new OutboundRawIRCByteSenderI() {
             public void sendRawLine(String line) {
                 ircConnector.sendLine(line);
             }
+            
+            public void sendRawLine(IRCLineBuffer line) {
+                ircConnector.sendLine(line);
+            }
+            
+            public Charset getCharset() {
+                return ircConnector.getCharset();
+            }
         };
     }
     
@@ -110,7 +127,13 @@ public class BasicClient {
         
         // add any optimizers we are automatically going to use
         if(this.isAutoModeOptimizationEnabled())
-            this.outboundCommandManager.getWaitQueue().addCommandOptimizer(new ModeOptimizer(this.ircParser.getServerContext()));
+            this.outboundCommandManager.getWaitQueue().addCommandOptimizer(new ModeOptimizer(this.ircParser.getServerContext(), ircConnector.getCharset()));
+        if(this.isAutoSupersessionOptimizationEnabled())
+            this.outboundCommandManager.getWaitQueue().addCommandOptimizer(new SupersessionOptimizer(this.ircParser.getServerContext()));
+        if(this.isAutoChannelBatchOptimizationEnabled())
+            this.outboundCommandManager.getWaitQueue().addCommandOptimizer(new ChannelBatchOptimizer(this.ircParser.getServerContext()));
+        if(this.isAutoMessageSplittingEnabled())
+            this.outboundCommandManager.getWaitQueue().addCommandOptimizer(new MessageSplitter(this.ircParser.getServerContext(), ircConnector.getCharset()));
         
         // hook the events we want
         hookEvents();
@@ -360,4 +383,76 @@ public class BasicClient {
             throw new IllegalStateException("This can only be set before initialization!");
         this.autoModeOptimizationEnabled = autoModeOptimizationEnabled;
     }
+    
+    /**
+     * Determines if we enabled supersession optimization.
+     */
+    public boolean isAutoSupersessionOptimizationEnabled() {
+        return autoSupersessionOptimizationEnabled;
+    }
+
+    /**
+     * Determines if we should automatically attach a SupersessionOptimizer to
+     * the command manager. See the documentation for SupersessionOptimizer to
+     * find out more about what it does.
+     *
+     * This method can only be called before intialization.
+     *
+     * @param autoSupersessionOptimizationEnabled Set to true to use it, false otherwise.
+     * @throws IllegalStateException If the client has already been initialized.
+     * @see com.packethammer.vaquero.outbound.SupersessionOptimizer
+     */
+    public void setAutoSupersessionOptimizationEnabled(boolean autoSupersessionOptimizationEnabled) {
+        if(this.isInitialized())
+            throw new IllegalStateException("This can only be set before initialization!");
+        this.autoSupersessionOptimizationEnabled = autoSupersessionOptimizationEnabled;
+    }
+    
+    /**
+     * Determines if we enabled splitting of long messages.
+     */
+    public boolean isAutoMessageSplittingEnabled() {
+        return autoMessageSplittingEnabled;
+    }
+
+    /**
+     * Determines if we should automatically attach a MessageSplitter to the
+     * command manager. See the documentation for MessageSplitter to find out
+     * more about what it does.
+     *
+     * This method can only be called before intialization.
+     *
+     * @param autoMessageSplittingEnabled Set to true to use it, false otherwise.
+     * @throws IllegalStateException If the client has already been initialized.
+     * @see com.packethammer.vaquero.outbound.MessageSplitter
+     */
+    public void setAutoMessageSplittingEnabled(boolean autoMessageSplittingEnabled) {
+        if(this.isInitialized())
+            throw new IllegalStateException("This can only be set before initialization!");
+        this.autoMessageSplittingEnabled = autoMessageSplittingEnabled;
+    }
+    
+    /**
+     * Determines if we enabled JOIN/PART/KICK batching.
+     */
+    public boolean isAutoChannelBatchOptimizationEnabled() {
+        return autoChannelBatchOptimizationEnabled;
+    }
+
+    /**
+     * Determines if we should automatically attach a ChannelBatchOptimizer to
+     * the command manager. See the documentation for ChannelBatchOptimizer to
+     * find out more about what it does.
+     *
+     * This method can only be called before intialization.
+     *
+     * @param autoChannelBatchOptimizationEnabled Set to true to use it, false otherwise.
+     * @throws IllegalStateException If the client has already been initialized.
+     * @see com.packethammer.vaquero.outbound.ChannelBatchOptimizer
+     */
+    public void setAutoChannelBatchOptimizationEnabled(boolean autoChannelBatchOptimizationEnabled) {
+        if(this.isInitialized())
+            throw new IllegalStateException("This can only be set before initialization!");
+        this.autoChannelBatchOptimizationEnabled = autoChannelBatchOptimizationEnabled;
+    }
 }
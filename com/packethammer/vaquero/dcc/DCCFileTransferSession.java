@@ -7,14 +7,14 @@ package com.packethammer.vaquero.dcc;
 
 import java.io.File;
 import java.net.Socket;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
 
 public abstract class DCCFileTransferSession extends DCCSession {
     private File file;
     private int maxKilobytesPerSecond;
-    private Timer dataTimer;
+    private Timeout dataTimer;
     private long fileSize;
     private Vector<DCCFileTransferListener> transferListeners;
     
@@ -41,8 +41,7 @@ public abstract class DCCFileTransferSession extends DCCSession {
         
         // start a timer to handle the max kilobytes per second, assuming we need it
         if(this.getMaxKilobytesPerSecond() > 0) {
-            dataTimer = new Timer();
-            dataTimer.scheduleAtFixedRate(new TimerTask() {
+            dataTimer = WheelTimer.getSharedTimer().scheduleAtFixedRate(new Runnable() {
                 public void run() {
                     fired();
                 }
@@ -157,6 +156,17 @@ public abstract class DCCFileTransferSession extends DCCSession {
         this.notifyAll();
     }
 
+    /**
+     * Set to true if this DCC session is finished. This also stops the
+     * 1-second timer, if there is one.
+     */
+    public void setFinished(boolean finished) {
+        super.setFinished(finished);
+        
+        if(finished && dataTimer != null)
+            dataTimer.cancel();
+    }
+
     /**
      * Returns the current file transfer listeners for this file transfer 
      * session.
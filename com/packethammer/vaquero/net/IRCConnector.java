@@ -6,8 +6,10 @@
 
 package com.packethammer.vaquero.net;
 
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Vector;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 
 public abstract class IRCConnector {
     private IRCLineListener lineListener;
@@ -37,6 +39,27 @@ public abstract class IRCConnector {
      * @param line The raw line of IRC data to send.
      */
     public abstract void sendLine(String line);
+    
+    /**
+     * This will write a line that has already been encoded as bytes to the
+     * remote server, supressing any exceptions encountered in attempting to
+     * send the data. By default, the line is decoded and sent as a string;
+     * connectors that write to a byte stream should override this to write
+     * the bytes as they are.
+     *
+     * @param line The buffer holding the line, without its CR-LF.
+     */
+    public void sendLine(IRCLineBuffer line) {
+        this.sendLine(line.toString());
+    }
+    
+    /**
+     * Returns the charset this connector encodes lines in. By default, this
+     * is the platform's default charset.
+     */
+    public Charset getCharset() {
+        return Charset.defaultCharset();
+    }
 
     /**
      * Returns the current line listener associated with this IRC connector.
@@ -12,15 +12,33 @@ package com.packethammer.vaquero.net;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.nio.charset.Charset;
 import java.util.Scanner;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 
 public class IRCSocketConnector extends IRCConnector {
     private Socket socket = null;
     private SocketLineListener lineListener;
     private PrintStream out;
     private Scanner in;
+    private Charset charset;
     
     public IRCSocketConnector() {
+        this(Charset.defaultCharset());
+    }
+    
+    /**
+     * Initializes this connector with the charset to use for the lines
+     * we send and receive.
+     *
+     * @param charset The charset of the connection.
+     */
+    public IRCSocketConnector(Charset charset) {
+        this.charset = charset;
+    }
+    
+    public Charset getCharset() {
+        return charset;
     }
 
     /**
@@ -50,6 +68,14 @@ public class IRCSocketConnector extends IRCConnector {
         try { this.out.println(line); } catch (Exception e) {};
     }
     
+    public void sendLine(IRCLineBuffer line) {
+        try {
+            synchronized(this.out) {
+                line.writeLine(this.out);
+            }
+        } catch (Exception e) {};
+    }
+    
     /**
      * This takes a socket that is presumably already connected to an IRC
      * server and notifies all connector listeners of the connected status, then
@@ -66,10 +92,10 @@ public class IRCSocketConnector extends IRCConnector {
             this.socket = socket;
             
             // get output stream for later use
-            this.out = new PrintStream(socket.getOutputStream());
+            this.out = new PrintStream(socket.getOutputStream(), false, charset.name());
             
             // get the input steam
-            this.in = new Scanner(socket.getInputStream());
+            this.in = new Scanner(socket.getInputStream(), charset.name());
         }
     }
     
@@ -0,0 +1,380 @@
+/**
+ * This optimizer merges commands that take a list of targets into as few
+ * lines as possible. It does the following:
+ *  1. Merges every pending JOIN into one comma-separated list (or a few of
+ *     them), with keyed channels first as the protocol requires. Duplicate
+ *     channels are only joined once.
+ *  2. Merges pending PARTs that have the same parting message.
+ *  3. Merges pending KICKs in the same channel with the same reason into
+ *     one KICK with several nicknames, but only if the server has announced
+ *     through TARGMAX that it allows more than one nickname per KICK.
+ *
+ * Each list stays within the server's TARGMAX limit for the command (when
+ * it's known), the CHANLIMIT limit for each type of channel being joined,
+ * and the maximum line length. Merged commands take the place of the oldest
+ * pending command they were merged with, so a burst of JOINs after
+ * connecting or rejoining goes out as a handful of lines instead of one
+ * line per channel.
+ *
+ * JOINs are never merged past a pending PART (and PARTs never past a
+ * pending JOIN), since doing so could leave us in a channel we meant to
+ * leave or out of one we meant to join. Commands that have event listeners
+ * attached to them are left alone.
+ */
+
+package com.packethammer.vaquero.outbound;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.channel.ChannelKeyPair;
+import com.packethammer.vaquero.outbound.commands.channel.IRCJoinCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCKickCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCPartCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelTypeDefinition;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+
+public class ChannelBatchOptimizer extends CommandOptimizer {
+    private IRCServerContext serverContext;
+
+    /**
+     * Initializes this optimizer with the server context to use for limits
+     * and comparing channel names.
+     */
+    public ChannelBatchOptimizer(IRCServerContext serverContext) {
+        this.serverContext = serverContext;
+    }
+
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        if(!command.getListeners().isEmpty())
+            return;
+
+        IRCCommand cmd = command.getCommand();
+        if(cmd instanceof IRCJoinCommand && !isJoinZero((IRCJoinCommand) cmd)) {
+            merge(command, new JoinBatcher());
+        } else if(cmd instanceof IRCPartCommand) {
+            merge(command, new PartBatcher(((IRCPartCommand) cmd).getMessage()));
+        } else if(cmd instanceof IRCKickCommand && serverContext.getISupport().getMaxTargets("KICK") > 1) {
+            IRCKickCommand kick = (IRCKickCommand) cmd;
+            merge(command, new KickBatcher(kick.getChannels().iterator().next(), kick.getMessage()));
+        }
+    }
+
+    /**
+     * Pulls every pending command the batcher can merge with out of the
+     * queue, then puts the merged batches back where the oldest of them was.
+     */
+    private void merge(EncapsulatedIRCCommand command, Batcher batcher) {
+        Vector<EncapsulatedIRCCommand> queue = this.getWaitQueue().getCommandQueue();
+
+        // hold the queue so the timing scheme can't pull anything out from under us
+        synchronized(queue) {
+            List<IRCCommand> commands = new ArrayList();
+            List<EncapsulatedIRCCommand> merged = new ArrayList();
+            int insertAt = -1;
+
+            // walk back from the newest command, stopping wherever merging would reorder something important
+            List<Integer> found = new ArrayList();
+            for(int x = 0; x < queue.size(); x++) {
+                EncapsulatedIRCCommand queued = queue.get(x);
+                if(queued.getCommand() == null)
+                    continue;
+                if(batcher.stopsAt(queued.getCommand()))
+                    break;
+                if(queued.getListeners().isEmpty() && batcher.isMergeable(queued.getCommand()))
+                    found.add(x);
+            }
+
+            // remove them oldest first, so the remaining indices stay valid
+            for(int x = found.size() - 1; x >= 0; x--) {
+                EncapsulatedIRCCommand queued = queue.remove((int) found.get(x));
+                commands.add(queued.getCommand());
+                merged.add(queued);
+                this.getWaitQueue().commandOptimizedAway(queued);
+            }
+            if(!found.isEmpty())
+                insertAt = found.get(found.size() - 1) - (found.size() - 1);
+
+            commands.add(command.getCommand());
+            merged.add(command);
+            List<IRCCommand> batches = batcher.batch(commands);
+
+            if(insertAt == -1) {
+                // nothing was merged in; the command stays where it is, carrying the last batch
+                for(int x = 0; x < batches.size() - 1; x++)
+                    queue.add(0, createMergedCommand(batches.get(x), merged));
+                command.setCommand(batches.get(batches.size() - 1));
+            } else {
+                // the new command has been absorbed into the older ones
+                for(IRCCommand batch : batches)
+                    queue.add(insertAt, createMergedCommand(batch, merged));
+                command.setCommand(null);
+            }
+        }
+    }
+
+    /**
+     * Creates a command to carry a merged batch, taking on the earliest
+     * deadline and the time marks of the commands it came from.
+     */
+    private EncapsulatedIRCCommand createMergedCommand(IRCCommand batch, List<EncapsulatedIRCCommand> merged) {
+        EncapsulatedIRCCommand command = new EncapsulatedIRCCommand(batch);
+        for(EncapsulatedIRCCommand from : merged)
+            command.absorb(from);
+
+        return command;
+    }
+
+    /**
+     * Determines if a JOIN is the special "JOIN 0", which parts every channel.
+     */
+    private boolean isJoinZero(IRCJoinCommand join) {
+        return join.getChannels().contains("0");
+    }
+
+    /**
+     * Returns a form of a channel or nickname that is identical for every
+     * casing of it under the network's casemapping.
+     */
+    private String casemapKey(String target) {
+        return serverContext.casemapString(target).toLowerCase().toString();
+    }
+
+    /**
+     * Returns the most targets we may put in one command, which is
+     * unlimited if the server hasn't told us.
+     */
+    private int getTargetLimit(String command) {
+        int max = serverContext.getISupport().getMaxTargets(command);
+        return max > 0 ? max : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Decides what can be merged for one kind of command, and how.
+     */
+    private abstract class Batcher {
+        /**
+         * Determines if a pending command can be merged with the new one.
+         */
+        public abstract boolean isMergeable(IRCCommand command);
+
+        /**
+         * Determines if a pending command must not be merged past.
+         */
+        public boolean stopsAt(IRCCommand command) {
+            return false;
+        }
+
+        /**
+         * Merges the given commands (oldest first) into as few as possible.
+         */
+        public abstract List<IRCCommand> batch(List<IRCCommand> commands);
+    }
+
+    private class JoinBatcher extends Batcher {
+        public boolean isMergeable(IRCCommand command) {
+            return command instanceof IRCJoinCommand && !isJoinZero((IRCJoinCommand) command);
+        }
+
+        public boolean stopsAt(IRCCommand command) {
+            return command instanceof IRCPartCommand || (command instanceof IRCJoinCommand && isJoinZero((IRCJoinCommand) command));
+        }
+
+        public List<IRCCommand> batch(List<IRCCommand> commands) {
+            // gather every channel once, keyed channels first
+            List<ChannelKeyPair> keyed = new ArrayList();
+            List<ChannelKeyPair> unkeyed = new ArrayList();
+            Set<String> seen = new HashSet();
+            for(IRCCommand command : commands) {
+                for(ChannelKeyPair pair : ((IRCJoinCommand) command).getChannelKeyPairs()) {
+                    if(seen.add(casemapKey(pair.getChannel())))
+                        (pair.getKey() != null ? keyed : unkeyed).add(pair);
+                }
+            }
+            List<ChannelKeyPair> pairs = new ArrayList(keyed);
+            pairs.addAll(unkeyed);
+
+            int limit = getTargetLimit("JOIN");
+            List<IRCCommand> batches = new ArrayList();
+            List<ChannelKeyPair> current = new ArrayList();
+            HashMap<Character, Integer> perType = new HashMap();
+            int channelChars = 0;
+            int keyChars = 0;
+
+            for(ChannelKeyPair pair : pairs) {
+                Character type = pair.getChannel().length() > 0 ? pair.getChannel().charAt(0) : null;
+                int typeCount = perType.containsKey(type) ? perType.get(type) : 0;
+                int newChannelChars = channelChars + pair.getChannel().length() + (current.isEmpty() ? 0 : 1);
+                int newKeyChars = keyChars + (pair.getKey() == null ? 0 : pair.getKey().length() + 1); // a space before the first key, a comma before the rest
+
+                boolean fits = current.isEmpty()
+                        || (current.size() < limit
+                            && typeCount < getJoinLimit(type)
+                            && "JOIN ".length() + newChannelChars + newKeyChars <= IRCLineBuffer.MAX_LINE_LENGTH);
+
+                if(!fits) {
+                    batches.add(buildJoin(current));
+                    current = new ArrayList();
+                    perType.clear();
+                    typeCount = 0;
+                    newChannelChars = pair.getChannel().length();
+                    newKeyChars = pair.getKey() == null ? 0 : pair.getKey().length() + 1;
+                }
+
+                current.add(pair);
+                perType.put(type, typeCount + 1);
+                channelChars = newChannelChars;
+                keyChars = newKeyChars;
+            }
+
+            if(!current.isEmpty())
+                batches.add(buildJoin(current));
+
+            return batches;
+        }
+
+        /**
+         * Returns the CHANLIMIT for a channel type, or no limit if it's unknown.
+         */
+        private int getJoinLimit(Character type) {
+            if(type != null) {
+                ChannelTypeDefinition def = serverContext.getISupport().getChannelTypeByPrefix(type);
+                if(def != null && def.knowJoinLimit())
+                    return def.getJoinLimit();
+            }
+
+            return Integer.MAX_VALUE;
+        }
+
+        private IRCJoinCommand buildJoin(List<ChannelKeyPair> pairs) {
+            IRCJoinCommand join = new IRCJoinCommand();
+            join.getChannelKeyPairs().addAll(pairs); // already in order, keyed channels first
+            return join;
+        }
+    }
+
+    private class PartBatcher extends Batcher {
+        private String message;
+
+        public PartBatcher(String message) {
+            this.message = message;
+        }
+
+        public boolean isMergeable(IRCCommand command) {
+            return command instanceof IRCPartCommand && equal(message, ((IRCPartCommand) command).getMessage());
+        }
+
+        public boolean stopsAt(IRCCommand command) {
+            return command instanceof IRCJoinCommand;
+        }
+
+        public List<IRCCommand> batch(List<IRCCommand> commands) {
+            List<String> channels = new ArrayList();
+            Set<String> seen = new HashSet();
+            for(IRCCommand command : commands) {
+                for(String channel : ((IRCPartCommand) command).getChannels()) {
+                    if(seen.add(casemapKey(channel)))
+                        channels.add(channel);
+                }
+            }
+
+            // PART <channels> :<message>
+            int overhead = "PART ".length() + (message == null ? 0 : message.length() + 2);
+            List<IRCCommand> batches = new ArrayList();
+            for(List<String> group : group(channels, getTargetLimit("PART"), overhead)) {
+                IRCPartCommand part = new IRCPartCommand();
+                for(String channel : group)
+                    part.addPart(channel);
+                part.setMessage(message);
+                batches.add(part);
+            }
+
+            return batches;
+        }
+    }
+
+    private class KickBatcher extends Batcher {
+        private String channel;
+        private String reason;
+
+        public KickBatcher(String channel, String reason) {
+            this.channel = channel;
+            this.reason = reason;
+        }
+
+        public boolean isMergeable(IRCCommand command) {
+            if(command instanceof IRCKickCommand) {
+                IRCKickCommand kick = (IRCKickCommand) command;
+                String other = kick.getChannels().iterator().next();
+                return other != null && channel != null && casemapKey(channel).equals(casemapKey(other)) && equal(reason, kick.getMessage());
+            }
+
+            return false;
+        }
+
+        public List<IRCCommand> batch(List<IRCCommand> commands) {
+            List<String> nicknames = new ArrayList();
+            Set<String> seen = new HashSet();
+            for(IRCCommand command : commands) {
+                for(String nickname : ((IRCKickCommand) command).getNicknames()) {
+                    if(nickname != null && seen.add(casemapKey(nickname)))
+                        nicknames.add(nickname);
+                }
+            }
+
+            // KICK <channel> <nicknames> :<reason>
+            int overhead = "KICK ".length() + channel.length() + 1 + (reason == null ? 0 : reason.length() + 2);
+            List<IRCCommand> batches = new ArrayList();
+            for(List<String> group : group(nicknames, getTargetLimit("KICK"), overhead)) {
+                IRCKickCommand kick = new IRCKickCommand(channel, null, reason);
+                for(String nickname : group)
+                    kick.addNickname(nickname);
+                batches.add(kick);
+            }
+
+            return batches;
+        }
+    }
+
+    /**
+     * Splits targets into groups that fit within a target limit and line
+     * length once separated by commas.
+     */
+    private static List<List<String>> group(List<String> targets, int limit, int overhead) {
+        List<List<String>> groups = new ArrayList();
+        List<String> current = new ArrayList();
+        int length = overhead;
+
+        for(String target : targets) {
+            int added = target.length() + (current.isEmpty() ? 0 : 1);
+            if(!current.isEmpty() && (current.size() >= limit || length + added > IRCLineBuffer.MAX_LINE_LENGTH)) {
+                groups.add(current);
+                current = new ArrayList();
+                length = overhead;
+                added = target.length();
+            }
+
+            current.add(target);
+            length += added;
+        }
+
+        if(!current.isEmpty())
+            groups.add(current);
+
+        return groups;
+    }
+
+    /**
+     * Compares two strings that may be null.
+     */
+    private static boolean equal(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * This tells the mode optimizer about the modes already set in channels, so
+ * that it can drop mode changes that would do nothing (such as voicing 
+ * someone that is already voiced). The advanced client gives its mode 
+ * optimizer one that answers from its tracker.
+ */
+
+package com.packethammer.vaquero.outbound;
+
+import java.util.List;
+import com.packethammer.vaquero.util.modes.StandardMode;
+
+public interface ChannelModeStateI {
+    /**
+     * Returns the given mode changes without those that would change nothing
+     * in a channel. The changes should all be judged against the same state
+     * of the channel. Changes whose effect isn't known should be kept.
+     *
+     * @param channel The channel the modes are being set on.
+     * @param modes The mode changes, in order.
+     * @return The mode changes worth sending, in order.
+     */
+    public List<StandardMode> removeNoOps(String channel, List<StandardMode> modes);
+}
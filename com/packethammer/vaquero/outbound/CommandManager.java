@@ -10,21 +10,38 @@
  * 3. The pre-release filter chain, which is a last chance to deal with a 
  *    command before it gets sent to the server
  * 4. Actual release -- command is converted to a String and dispatched to the
- *    server.
+ *    server. If the raw line sender can take bytes, the command is instead 
+ *    rendered straight into a reusable buffer in the connection's charset.
+ *
+ * Commands can be given a deadline, either directly or through a default 
+ * time-to-live for their type of command. A command that leaves the wait queue
+ * after its deadline is discarded before the pre-release filter chain, and
+ * the number of commands discarded this way is counted for each command type.
+ *
+ * Each command is time-stamped as it passes through these steps. If a
+ * metrics sink is set, it is told how long each command spent in each step,
+ * what every filter and optimizer did with it, how deep the wait queue is
+ * and how much is being written out.
  */
 
 package com.packethammer.vaquero.outbound;
 
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.metrics.OutboundMetricsSinkI;
 import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
 import com.packethammer.vaquero.outbound.outboundprocessing.CommandReleaseI;
 import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
 import com.packethammer.vaquero.outbound.outboundprocessing.OutboundCommandEventListener;
 import com.packethammer.vaquero.outbound.outboundprocessing.TimingScheme;
 import com.packethammer.vaquero.outbound.outboundprocessing.WaitQueue;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 
 public class CommandManager {
     private Vector<CommandFilterI> preWaitFilterChain;
@@ -32,6 +49,12 @@ public class CommandManager {
     private WaitQueue waitQueue;
     private TimingScheme timingScheme;
     private OutboundRawIRCLineSenderI rawLineSender;
+    private IRCLineBuffer lineBuffer;
+    private long linesSent;
+    private long bytesSent;
+    private HashMap<Class,Long> defaultTimesToLive;
+    private HashMap<Class,Integer> expiredCounts;
+    private volatile OutboundMetricsSinkI metricsSink;
     
     /** 
      * Initializes the command manager with a timing scheme to use for command
@@ -59,6 +82,10 @@ public class CommandManager {
         
         // do the rest
         this.rawLineSender = rawLineSender;
+        if(rawLineSender instanceof OutboundRawIRCByteSenderI)
+            this.lineBuffer = new IRCLineBuffer(((OutboundRawIRCByteSenderI) rawLineSender).getCharset());
+        this.defaultTimesToLive = new HashMap();
+        this.expiredCounts = new HashMap();
     }
 
     /**
@@ -152,25 +179,83 @@ public class CommandManager {
         return rawLineSender;
     }
     
+    /**
+     * Returns the charset our lines are encoded in on their way out. This is
+     * the platform's default if the raw line sender only takes strings.
+     */
+    public Charset getCharset() {
+        if(lineBuffer != null)
+            return lineBuffer.getCharset();
+        
+        return Charset.defaultCharset();
+    }
+    
+    /**
+     * Sets where measurements of the outbound system are reported. Nothing
+     * is reported by default. See OutboundMetrics for a sink that keeps
+     * histograms and counters of everything reported.
+     *
+     * @param metricsSink The sink to report to, or null to stop reporting.
+     */
+    public void setMetricsSink(OutboundMetricsSinkI metricsSink) {
+        this.metricsSink = metricsSink;
+        this.waitQueue.setMetricsSink(metricsSink);
+    }
+    
+    /**
+     * Returns where measurements of the outbound system are reported.
+     *
+     * @return The metrics sink, or null if there is none.
+     */
+    public OutboundMetricsSinkI getMetricsSink() {
+        return metricsSink;
+    }
+    
     /**
      * Occurs when a command leaves the wait queue.
      */
     private void commandLeftWaitQueue(EncapsulatedIRCCommand command) {
+        OutboundMetricsSinkI metrics = this.metricsSink;
+        command.mark(EncapsulatedIRCCommand.MARK_RELEASED);
+        if(metrics != null)
+            metrics.recordQueueDepth(waitQueue.getCommandQueue().size());
+        
+        // don't bother with anything that has outlived its usefulness
+        if(isExpired(command, new Date())) {
+            countExpiry(command.getCommand().getClass());
+            if(metrics != null)
+                metrics.recordCommandFinished(command.getCommand().getClass(), OutboundMetricsSinkI.FATE_EXPIRED);
+            for(OutboundCommandEventListener listener : command.getListeners()) {
+                listener.onExpire();
+            }
+            return;
+        }
+        
         // run the command through the pre-release filter
-        if(runCommandThroughFilterChain(this.getPreReleaseFilterChain(), command)) {
+        Class commandClass = command.getCommand().getClass();
+        if(runCommandThroughFilterChain(this.getPreReleaseFilterChain(), command, metrics)) {
+            if(metrics != null)
+                metrics.recordCommandFinished(commandClass, OutboundMetricsSinkI.FATE_DROPPED);
             return; // command dropped
         }
+        command.mark(EncapsulatedIRCCommand.MARK_PRE_RELEASE_FILTERED);
         
         // now, attempt sending the command
         IRCCommand ircCommand = command.getCommand();
         if(ircCommand.isSendable()) {
-            this.rawLineSender.sendRawLine(ircCommand.renderForIRC().toRawLine());
+            int length = this.sendRawCommand(ircCommand);
+            command.mark(EncapsulatedIRCCommand.MARK_WRITTEN);
+            if(metrics != null)
+                recordSent(metrics, command, length);
             
             // sent command with success
             for(OutboundCommandEventListener listener : command.getListeners()) {
                 listener.onSent();
             }
         } else {
+            if(metrics != null)
+                metrics.recordCommandFinished(ircCommand.getClass(), OutboundMetricsSinkI.FATE_DROPPED);
+            
             // dropped command
             for(OutboundCommandEventListener listener : command.getListeners()) {
                 listener.onDrop();
@@ -178,13 +263,203 @@ public class CommandManager {
         }
     }
     
+    /**
+     * Reports a command that was just written to the metrics sink, along
+     * with how long it spent in each step of the outbound system.
+     */
+    private static void recordSent(OutboundMetricsSinkI metrics, EncapsulatedIRCCommand command, int length) {
+        Class commandClass = command.getCommand().getClass();
+        
+        metrics.recordLineWritten(commandClass, length);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_PRE_WAIT_FILTERS, EncapsulatedIRCCommand.MARK_SUBMITTED, EncapsulatedIRCCommand.MARK_PRE_WAIT_FILTERED);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_OPTIMIZERS, EncapsulatedIRCCommand.MARK_PRE_WAIT_FILTERED, EncapsulatedIRCCommand.MARK_QUEUED);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_WAIT_QUEUE, EncapsulatedIRCCommand.MARK_QUEUED, EncapsulatedIRCCommand.MARK_RELEASED);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_PRE_RELEASE_FILTERS, EncapsulatedIRCCommand.MARK_RELEASED, EncapsulatedIRCCommand.MARK_PRE_RELEASE_FILTERED);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_WRITE, EncapsulatedIRCCommand.MARK_PRE_RELEASE_FILTERED, EncapsulatedIRCCommand.MARK_WRITTEN);
+        recordStage(metrics, command, OutboundMetricsSinkI.STAGE_TOTAL, EncapsulatedIRCCommand.MARK_SUBMITTED, EncapsulatedIRCCommand.MARK_WRITTEN);
+        metrics.recordCommandFinished(commandClass, OutboundMetricsSinkI.FATE_SENT);
+    }
+    
+    /**
+     * Reports the time between two marks of a command, if it has both.
+     */
+    private static void recordStage(OutboundMetricsSinkI metrics, EncapsulatedIRCCommand command, int stage, int startMark, int endMark) {
+        long start = command.getMark(startMark);
+        long end = command.getMark(endMark);
+        if(start != 0 && end != 0)
+            metrics.recordStageLatency(command.getCommand().getClass(), stage, end - start);
+    }
+    
+    /**
+     * Renders a command and hands it to the raw line sender, keeping count
+     * of what has been sent. Returns the number of bytes sent.
+     */
+    private int sendRawCommand(IRCCommand ircCommand) {
+        if(lineBuffer != null) {
+            synchronized(lineBuffer) {
+                lineBuffer.reset();
+                ircCommand.renderInto(lineBuffer);
+                ((OutboundRawIRCByteSenderI) this.rawLineSender).sendRawLine(lineBuffer);
+                return countSent(lineBuffer.length());
+            }
+        } else {
+            String line = ircCommand.renderForIRC().toRawLine();
+            this.rawLineSender.sendRawLine(line);
+            return countSent(line.getBytes().length); // a string is sent in the platform's default charset
+        }
+    }
+    
+    /**
+     * Counts a line that has gone out to the server, returning its length
+     * including the CR-LF.
+     */
+    private synchronized int countSent(int length) {
+        linesSent++;
+        bytesSent += length + 2; // CR-LF
+        return length + 2;
+    }
+    
+    /**
+     * Returns the number of lines that have been sent to the server.
+     */
+    public synchronized long getLinesSent() {
+        return linesSent;
+    }
+    
+    /**
+     * Returns the number of bytes that have been sent to the server, 
+     * including the CR-LF at the end of each line.
+     */
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+    
     /**
      * Sends an IRC command using the outbound system.
      *
      * @param command The IRCCommand to send.
      */
     public void sendCommand(IRCCommand command) {
-        this.sendEncapsulatedCommand(new EncapsulatedIRCCommand(command));
+        this.sendCommand(command, null);
+    }
+    
+    /**
+     * Sends an IRC command using the outbound system, discarding it if it 
+     * has not left the wait queue by the given deadline.
+     *
+     * @param command The IRCCommand to send.
+     * @param deadline The time after which the command is no longer worth sending, or null to use the default for its type.
+     */
+    public void sendCommand(IRCCommand command, Date deadline) {
+        EncapsulatedIRCCommand ec = new EncapsulatedIRCCommand(command);
+        ec.setDeadline(deadline);
+        this.sendEncapsulatedCommand(ec);
+    }
+    
+    /**
+     * Determines if a command has passed its deadline. A command without a 
+     * deadline of its own uses the default time-to-live for its type, 
+     * measured from its creation time.
+     *
+     * @param command The command to check.
+     * @param now The current time.
+     * @return True if the command has expired, false otherwise.
+     */
+    public boolean isExpired(EncapsulatedIRCCommand command, Date now) {
+        if(command.getDeadline() != null)
+            return command.isExpired(now);
+        
+        long ttl = this.getDefaultTimeToLive(command.getCommand().getClass());
+        if(ttl < 0)
+            return false;
+        
+        return now.getTime() - command.getCreationTime().getTime() > ttl;
+    }
+    
+    /**
+     * Sets the default time-to-live for a type of command. This applies to
+     * the given class and all of its subclasses, unless a subclass has a
+     * default of its own. Commands given their own deadline ignore this.
+     *
+     * For example, you might give IRCCommand a generous default so that
+     * nothing sits in the queue forever, but give PONG replies a short one.
+     *
+     * @param commandClass The class of command, such as IRCNoticeNickCommand.class.
+     * @param timeToLive The number of milliseconds after creation that these commands are still worth sending.
+     */
+    public synchronized void setDefaultTimeToLive(Class commandClass, long timeToLive) {
+        this.defaultTimesToLive.put(commandClass, Long.valueOf(timeToLive));
+    }
+    
+    /**
+     * Removes the default time-to-live for a type of command. 
+     *
+     * @param commandClass The class of command.
+     */
+    public synchronized void removeDefaultTimeToLive(Class commandClass) {
+        this.defaultTimesToLive.remove(commandClass);
+    }
+    
+    /**
+     * Returns the default time-to-live that applies to a type of command,
+     * searching up through its superclasses.
+     *
+     * @param commandClass The class of command.
+     * @return The time-to-live in milliseconds, or -1 if there is none.
+     */
+    public synchronized long getDefaultTimeToLive(Class commandClass) {
+        for(Class c = commandClass; c != null; c = c.getSuperclass()) {
+            Long ttl = this.defaultTimesToLive.get(c);
+            if(ttl != null)
+                return ttl.longValue();
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Adds one to the expiry counter for a type of command.
+     */
+    private synchronized void countExpiry(Class commandClass) {
+        Integer count = this.expiredCounts.get(commandClass);
+        if(count == null)
+            count = Integer.valueOf(0);
+        this.expiredCounts.put(commandClass, Integer.valueOf(count.intValue() + 1));
+    }
+    
+    /**
+     * Returns the number of commands of exactly the given type that were
+     * discarded because they passed their deadline.
+     *
+     * @param commandClass The class of command.
+     * @return The number of expired commands.
+     */
+    public synchronized int getExpiredCount(Class commandClass) {
+        Integer count = this.expiredCounts.get(commandClass);
+        if(count == null)
+            return 0;
+        return count.intValue();
+    }
+    
+    /**
+     * Returns the number of commands that were discarded because they passed
+     * their deadline, by command type.
+     *
+     * @return A copy of the expiry counters.
+     */
+    public synchronized Map<Class,Integer> getExpiredCounts() {
+        return new HashMap(this.expiredCounts);
+    }
+    
+    /**
+     * Returns the total number of commands that were discarded because they
+     * passed their deadline.
+     */
+    public synchronized int getTotalExpiredCount() {
+        int total = 0;
+        for(Integer count : this.expiredCounts.values())
+            total += count.intValue();
+        return total;
     }
     
     /**
@@ -193,10 +468,17 @@ public class CommandManager {
      * @param command The encapsulated IRC command to send.
      */
     protected void sendEncapsulatedCommand(EncapsulatedIRCCommand command) {
+        OutboundMetricsSinkI metrics = this.metricsSink;
+        command.mark(EncapsulatedIRCCommand.MARK_SUBMITTED);
+        
         // first, run it through pre-wait filter
-        if(runCommandThroughFilterChain(this.getPreWaitFilterChain(), command)) {
+        Class commandClass = command.getCommand().getClass();
+        if(runCommandThroughFilterChain(this.getPreWaitFilterChain(), command, metrics)) {
+            if(metrics != null)
+                metrics.recordCommandFinished(commandClass, OutboundMetricsSinkI.FATE_DROPPED);
             return; // command dropped
         }
+        command.mark(EncapsulatedIRCCommand.MARK_PRE_WAIT_FILTERED);
         
         // now, put the command into the wait queue
         waitQueue.enqueue(command);
@@ -207,12 +489,31 @@ public class CommandManager {
      * for the command's listeners. Returns true if command was dropped.
      */
     public static boolean runCommandThroughFilterChain(List<? extends CommandFilterI> filterChain, EncapsulatedIRCCommand command) {
+        return runCommandThroughFilterChain(filterChain, command, null);
+    }
+    
+    /**
+     * Filters a command using a filter chain, spawning any necessary events
+     * for the command's listeners and reporting what each filter did to a 
+     * metrics sink. Returns true if command was dropped.
+     */
+    public static boolean runCommandThroughFilterChain(List<? extends CommandFilterI> filterChain, EncapsulatedIRCCommand command, OutboundMetricsSinkI metrics) {
         for(CommandFilterI filter : filterChain) {
             IRCCommand oldCommand = command.getCommand();
             
             // let the filter work on it
+            long start = metrics != null ? System.nanoTime() : 0;
             filter.filterCommand(command);
             
+            if(metrics != null) {
+                int outcome = OutboundMetricsSinkI.OUTCOME_PASSED;
+                if(command.getCommand() == null)
+                    outcome = OutboundMetricsSinkI.OUTCOME_DROPPED;
+                else if(oldCommand != command.getCommand())
+                    outcome = OutboundMetricsSinkI.OUTCOME_REPLACED;
+                metrics.recordFilterOutcome(filter, outcome, System.nanoTime() - start);
+            }
+            
             if(oldCommand != command.getCommand()) {
                 // reference changed
                 for(OutboundCommandEventListener listener : command.getListeners()) {
@@ -220,13 +521,6 @@ public class CommandManager {
                 }
             }
             
-            if(!oldCommand.getClass().equals(command.getCommand().getClass())) {
-                // class type changed
-                for(OutboundCommandEventListener listener : command.getListeners()) {
-                    listener.onCommandTypeChange();
-                }
-            }
-                
             if(command.getCommand() == null) {
                 // command dropped, do not continue
                 for(OutboundCommandEventListener listener : command.getListeners()) {
@@ -234,6 +528,13 @@ public class CommandManager {
                 }
                 return true;
             }
+            
+            if(!oldCommand.getClass().equals(command.getCommand().getClass())) {
+                // class type changed
+                for(OutboundCommandEventListener listener : command.getListeners()) {
+                    listener.onCommandTypeChange();
+                }
+            }
         }
         
         return false;
@@ -244,9 +545,12 @@ public class CommandManager {
      */
     public void die() {
         // drop all existing commands sitting in queue
+        OutboundMetricsSinkI metrics = this.getMetricsSink();
         Iterator<EncapsulatedIRCCommand> i = waitQueue.getCommandQueue().iterator();        
         while(i.hasNext()) {
             EncapsulatedIRCCommand command = i.next();
+            if(metrics != null && command.getCommand() != null)
+                metrics.recordCommandFinished(command.getCommand().getClass(), OutboundMetricsSinkI.FATE_DROPPED);
             for(OutboundCommandEventListener listener : command.getListeners()) {
                 listener.onDrop();
             }
@@ -0,0 +1,359 @@
+/**
+ * This optimizer splits PRIVMSG and NOTICE commands that are too long to
+ * reach their targets in one piece into as few lines as possible.
+ *
+ * The limit that matters is not the length of the line we send, but the
+ * length of the line the server relays to everyone else, which has our
+ * hostmask stuck on the front (":nick!ident@host PRIVMSG #channel :...").
+ * That line may not exceed 512 bytes including the CR-LF, so the room left
+ * for the message is worked out in bytes of the connection's charset using
+ * our tracked hostmask. Any part of our hostmask we don't know yet is
+ * assumed to be as long as it could reasonably be.
+ *
+ * Messages are split on spaces where possible, and otherwise between
+ * characters (never in the middle of a multi-byte character or a color
+ * code). Bold, underline, reverse and color in effect at the end of one line
+ * are turned back on at the start of the next, so the text looks the same
+ * as it would have in one piece. CTCP ACTIONs are split into several ACTIONs;
+ * other CTCP messages are left alone, since splitting them would break them.
+ *
+ * The command that was enqueued carries the last line, and keeps its event
+ * listeners. The lines before it go into the wait queue ahead of it.
+ */
+
+package com.packethammer.vaquero.outbound;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.basic.MultitargetMessage;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.util.Hostmask;
+import com.packethammer.vaquero.util.irctext.RichIRCText;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+
+public class MessageSplitter extends CommandOptimizer {
+    /** The nickname length we assume when neither our nickname nor NICKLEN is known */
+    public static final int DEFAULT_NICKNAME_LENGTH = 30;
+    /** The ident length we assume when our ident isn't known (the usual USERLEN) */
+    public static final int DEFAULT_IDENT_LENGTH = 10;
+    /** The hostname length we assume when our hostname isn't known (the usual HOSTLEN) */
+    public static final int DEFAULT_HOST_LENGTH = 63;
+
+    private static final String ACTION_PREFIX = "\001ACTION ";
+    private static final String CTCP_DELIMITER = "\001";
+
+    private IRCServerContext serverContext;
+    private Charset charset;
+    private boolean utf8;
+
+    /**
+     * Initializes this splitter with the server context to get our hostmask
+     * from, assuming the platform's default charset.
+     */
+    public MessageSplitter(IRCServerContext serverContext) {
+        this(serverContext, Charset.defaultCharset());
+    }
+
+    /**
+     * Initializes this splitter with the server context to get our hostmask
+     * from and the charset lines are sent in.
+     *
+     * @param serverContext The server context of the connection.
+     * @param charset The charset of the connection.
+     */
+    public MessageSplitter(IRCServerContext serverContext, Charset charset) {
+        this.serverContext = serverContext;
+        this.charset = charset;
+        this.utf8 = charset.name().equals("UTF-8");
+    }
+
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        if(!(command.getCommand() instanceof MultitargetMessage))
+            return;
+
+        MultitargetMessage message = (MultitargetMessage) command.getCommand();
+        String text = message.getMessage();
+        if(text == null || message.getTargets().isEmpty())
+            return;
+
+        int budget = getMessageBudget(message);
+        if(byteLength(text, 0, text.length()) <= budget)
+            return; // fits as it is
+
+        // keep CTCP framing on every piece
+        String prefix = "";
+        String suffix = "";
+        if(text.startsWith(CTCP_DELIMITER)) {
+            if(text.startsWith(ACTION_PREFIX) && text.endsWith(CTCP_DELIMITER) && text.length() > ACTION_PREFIX.length()) {
+                prefix = ACTION_PREFIX;
+                suffix = CTCP_DELIMITER;
+                text = text.substring(prefix.length(), text.length() - suffix.length());
+                budget -= byteLength(prefix, 0, prefix.length()) + byteLength(suffix, 0, suffix.length());
+            } else {
+                return;
+            }
+        }
+
+        if(budget <= 0)
+            return; // nothing we can do; our own hostmask and targets use up the line
+
+        List<String> pieces = split(text, budget);
+        if(pieces.size() <= 1)
+            return;
+
+        Vector<EncapsulatedIRCCommand> queue = this.getWaitQueue().getCommandQueue();
+        synchronized(queue) {
+            for(int x = 0; x < pieces.size() - 1; x++) {
+                EncapsulatedIRCCommand piece = new EncapsulatedIRCCommand(message.copyWithMessage(prefix + pieces.get(x) + suffix));
+                piece.setDeadline(command.getDeadline());
+                queue.add(0, piece);
+            }
+        }
+
+        message.setMessage(prefix + pieces.get(pieces.size() - 1) + suffix);
+    }
+
+    /**
+     * Returns the number of bytes of message text a message command can
+     * carry, both in the line we send and in the line the server relays to
+     * each of its targets.
+     */
+    private int getMessageBudget(MultitargetMessage message) {
+        String commandName = message.renderForIRC().getCommandArgument();
+        int commandBytes = byteLength(commandName, 0, commandName.length());
+
+        // the line we send: <command> <target>,<target> :<message>
+        int targetBytes = 0;
+        int longestTarget = 0;
+        for(String target : message.getTargets()) {
+            int length = byteLength(target, 0, target.length());
+            targetBytes += length + 1;
+            longestTarget = Math.max(longestTarget, length);
+        }
+        int ourLine = commandBytes + 1 + (targetBytes - 1) + 2;
+
+        // the line they get: :<nick>!<ident>@<host> <command> <target> :<message>
+        int relayedLine = 1 + getHostmaskLength() + 1 + commandBytes + 1 + longestTarget + 2;
+
+        return IRCLineBuffer.MAX_LINE_LENGTH - Math.max(ourLine, relayedLine);
+    }
+
+    /**
+     * Returns the number of bytes our hostmask takes up, or as much as it
+     * could take up for the parts we don't know.
+     */
+    private int getHostmaskLength() {
+        Hostmask me = serverContext.getMe();
+        String nick = me == null ? null : me.getNickname();
+        String ident = me == null ? null : me.getIdent();
+        String host = me == null ? null : me.getHost();
+
+        int length = 2; // '!' and '@'
+
+        if(nick != null)
+            length += byteLength(nick, 0, nick.length());
+        else if(serverContext.getISupport().isMaxNickLengthKnown())
+            length += serverContext.getISupport().getMaxNickLength();
+        else
+            length += DEFAULT_NICKNAME_LENGTH;
+
+        length += ident != null ? byteLength(ident, 0, ident.length()) : DEFAULT_IDENT_LENGTH;
+        length += host != null ? byteLength(host, 0, host.length()) : DEFAULT_HOST_LENGTH;
+
+        return length;
+    }
+
+    /**
+     * Splits text into pieces of no more than the given number of bytes,
+     * carrying formatting from each piece over to the next.
+     */
+    private List<String> split(String text, int budget) {
+        List<String> pieces = new ArrayList();
+        Formatting formatting = new Formatting();
+        int pos = 0;
+
+        while(pos < text.length()) {
+            String carried = formatting.toCodes();
+            int lineBytes = byteLength(carried, 0, carried.length());
+
+            Formatting scanned = formatting.copy();
+            Formatting atSpace = null;
+            int lastSpace = -1;
+            int x = pos;
+
+            while(x < text.length()) {
+                int end = tokenEnd(text, x);
+                int tokenBytes = byteLength(text, x, end);
+
+                if(lineBytes + tokenBytes > budget) {
+                    if(x == pos) {
+                        // not even one character fits after the carried codes; take it anyway so we move on
+                        scanned.apply(text, x, end);
+                        x = end;
+                    }
+                    break;
+                }
+
+                if(text.charAt(x) == ' ') {
+                    lastSpace = x;
+                    atSpace = scanned.copy();
+                }
+
+                scanned.apply(text, x, end);
+                lineBytes += tokenBytes;
+                x = end;
+            }
+
+            if(x >= text.length()) {
+                pieces.add(carried + text.substring(pos));
+                break;
+            }
+
+            if(lastSpace > pos) {
+                // break on the space, which is dropped
+                pieces.add(carried + text.substring(pos, lastSpace));
+                formatting = atSpace;
+                pos = lastSpace + 1;
+            } else {
+                pieces.add(carried + text.substring(pos, x));
+                formatting = scanned;
+                pos = x;
+            }
+        }
+
+        return pieces;
+    }
+
+    /**
+     * Returns the index just past the token starting at the given index. A
+     * token is one character (or surrogate pair), or a color code along with
+     * its color numbers.
+     */
+    private int tokenEnd(String text, int index) {
+        if(text.charAt(index) == RichIRCText.ASCIICODE_COLOR) {
+            int x = skipDigits(text, index + 1);
+            if(x < text.length() && text.charAt(x) == ',')
+                x = skipDigits(text, x + 1);
+            return x;
+        }
+
+        return index + Character.charCount(text.codePointAt(index));
+    }
+
+    /**
+     * Skips up to two digits (a color number).
+     */
+    private static int skipDigits(String text, int index) {
+        int x = index;
+        while(x < text.length() && x < index + 2 && Character.isDigit(text.charAt(x)))
+            x++;
+        return x;
+    }
+
+    /**
+     * Returns the number of bytes part of a string takes up in our charset.
+     */
+    private int byteLength(String text, int start, int end) {
+        if(!utf8)
+            return text.substring(start, end).getBytes(charset).length;
+
+        int length = 0;
+        for(int x = start; x < end; x++) {
+            char c = text.charAt(x);
+            if(c < 0x80)
+                length += 1;
+            else if(c < 0x800)
+                length += 2;
+            else if(Character.isHighSurrogate(c))
+                length += 4; // the low surrogate that follows adds nothing
+            else if(!Character.isLowSurrogate(c))
+                length += 3;
+        }
+
+        return length;
+    }
+
+    /**
+     * The formatting in effect at some point in a message.
+     */
+    private static class Formatting {
+        boolean bold;
+        boolean underline;
+        boolean reverse;
+        String foreground; // color number as it appeared, or null for none
+        String background;
+
+        Formatting copy() {
+            Formatting f = new Formatting();
+            f.bold = bold;
+            f.underline = underline;
+            f.reverse = reverse;
+            f.foreground = foreground;
+            f.background = background;
+            return f;
+        }
+
+        /**
+         * Updates this formatting with the token between the given indices,
+         * following the same rules as RichIRCText.
+         */
+        void apply(String text, int start, int end) {
+            char c = text.charAt(start);
+
+            if(c == RichIRCText.ASCIICODE_BOLD) {
+                bold = !bold;
+            } else if(c == RichIRCText.ASCIICODE_UNDERLINE) {
+                underline = !underline;
+            } else if(c == RichIRCText.ASCIICODE_REVERSE) {
+                reverse = !reverse;
+            } else if(c == RichIRCText.ASCIICODE_NORMAL) {
+                bold = underline = reverse = false;
+                foreground = background = null;
+            } else if(c == RichIRCText.ASCIICODE_COLOR) {
+                String code = text.substring(start + 1, end);
+                int comma = code.indexOf(',');
+                String fore = comma == -1 ? code : code.substring(0, comma);
+
+                foreground = fore.length() == 0 ? null : fore;
+                if(comma != -1) {
+                    String back = code.substring(comma + 1);
+                    background = back.length() == 0 ? null : back;
+                } else if(fore.length() == 0) {
+                    background = null; // a bare color code resets both colors
+                }
+            }
+        }
+
+        /**
+         * Returns the control codes that turn this formatting on.
+         */
+        String toCodes() {
+            StringBuilder codes = new StringBuilder();
+
+            if(bold)
+                codes.append(RichIRCText.ASCIICODE_BOLD);
+            if(underline)
+                codes.append(RichIRCText.ASCIICODE_UNDERLINE);
+            if(reverse)
+                codes.append(RichIRCText.ASCIICODE_REVERSE);
+            if(foreground != null || background != null) {
+                // always two digits, so text starting with a digit isn't taken as part of the color
+                codes.append(RichIRCText.ASCIICODE_COLOR);
+                if(foreground != null)
+                    codes.append(pad(foreground));
+                if(background != null)
+                    codes.append(',').append(pad(background));
+            }
+
+            return codes.toString();
+        }
+
+        private static String pad(String color) {
+            return color.length() == 1 ? "0" + color : color;
+        }
+    }
+}
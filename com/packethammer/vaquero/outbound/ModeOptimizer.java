@@ -1,192 +1,318 @@
 /**
  * This is a "mode optimizer". It does the following things:
- *  1. Splits mode commands up into more than one command if the mode command
- *     is trying to set too many modes at once (some servers have a limit on
- *     how many of a certain type of mode you can set at a time).
- *  2. Looks for modes that are back-to-back in the queue and merges them
- *     together into one command if possible. This only occurs in very safe
- *     situations where it won't ruin the importance of the order you are
- *     setting modes in.
+ *  1. Gathers the pending channel mode changes in the wait queue for the
+ *     same channel (as determined by the network's casemapping) and
+ *     coalesces them into one ordered mode set. The coalesced set takes the
+ *     place of the oldest pending mode command gathered, so mode changes 
+ *     may go out ahead of unrelated commands queued after them. Gathering
+ *     stops at any other pending command for that channel (a KICK, TOPIC,
+ *     INVITE, message and so on), since moving modes past it could change
+ *     what it does; +b followed by a KICK stays a kickban.
+ *  2. Resolves each mode and parameter to the last change made to it, so
+ *     +o jim followed by -o jim becomes -o jim, and duplicates are sent
+ *     once.
+ *  3. Drops mode changes that would do nothing at all, such as voicing
+ *     someone that is already voiced. This only happens if this optimizer
+ *     has been given a ChannelModeStateI to ask (the advanced client gives
+ *     it one backed by its tracker).
+ *  4. Splits the resulting set into the fewest MODE lines possible, staying
+ *     within the numeric 005 MODES limit (or the RFC1459 limit of 3 if it
+ *     is unknown) and the maximum line length.
  *
- * Note that this won't work if the server never gave us any numeric 005 
- * MODES information.
- *
- * TODO: Review this and consider special cases carefully to possibly expand
- * the merging abilities.
+ * Commands that have event listeners attached to them are never merged with
+ * other commands, since the listeners would lose track of them. They can
+ * still be split up if they are too large, however. The commands that take
+ * the place of merged ones keep the earliest deadline of those merged.
  */
 
 package com.packethammer.vaquero.outbound;
 
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.channel.IRCChannelModeCommand;
 import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
 import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
 import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.util.CasemappedString;
 import com.packethammer.vaquero.util.modes.Modes;
 import com.packethammer.vaquero.util.modes.StandardMode;
-import java.util.Iterator;
+import com.packethammer.vaquero.util.protocol.IRCRawParameter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
 
 public class ModeOptimizer extends CommandOptimizer {
+    /** The number of parameterized modes RFC1459 allows in one MODE command */
+    public static final int DEFAULT_MAX_PARAM_MODES = 3;
+
     private IRCServerContext serverContext;
-    
+    private Charset charset;
+    private ChannelModeStateI modeState;
+
     /**
      * Initializes this mode optimizer with the server context to use for
-     * optimizing modes.
+     * optimizing modes, assuming the platform's default charset.
      */
     public ModeOptimizer(IRCServerContext serverContext) {
+        this(serverContext, Charset.defaultCharset());
+    }
+
+    /**
+     * Initializes this mode optimizer with the server context to use for
+     * optimizing modes and the charset lines are sent in, which the line
+     * length is measured in.
+     *
+     * @param serverContext The server context.
+     * @param charset The charset of the connection.
+     */
+    public ModeOptimizer(IRCServerContext serverContext, Charset charset) {
         this.serverContext = serverContext;
+        this.charset = charset;
     }
-            
+
+    /**
+     * Initializes this mode optimizer with the server context to use for
+     * optimizing modes and the channel mode state to ask when dropping mode
+     * changes that would do nothing.
+     */
+    public ModeOptimizer(IRCServerContext serverContext, ChannelModeStateI modeState) {
+        this(serverContext);
+        this.modeState = modeState;
+    }
+
     public void filterCommand(EncapsulatedIRCCommand command) {
         if(command.getCommand() instanceof IRCChannelModeCommand) {
             IRCChannelModeCommand modeCmd = (IRCChannelModeCommand) command.getCommand();
-            
-            // make sure it's an actual mode set!
-            if(modeCmd.getModes() != null) {            
-                if(this.serverContext.getISupport().isMaxChanModesWithParamKnown()) {
-                    // is there an excessive number of modes being set?
-                    int maxModesWithParam = this.serverContext.getISupport().getMaxChanModesWithParam();
-                    command.setCommand(trimExcessiveModesToQueue(modeCmd, maxModesWithParam)); // trims off excessive modes and puts them in queue, then returns "ok" command
-
-                    // can we merge this (entire) mode set with the modes being set directly at the top of the queue?
-                    command.setCommand(tryMerge(modeCmd, maxModesWithParam));
+
+            // make sure it's an actual mode set, and not a request for a mode list!
+            if(modeCmd.getModes() != null && !modeCmd.isListRequest(this.serverContext.getISupport())) {
+                String channel = modeCmd.getTarget();
+                Vector<EncapsulatedIRCCommand> queue = this.getWaitQueue().getCommandQueue();
+
+                // hold the queue so the timing scheme can't pull anything out from under us
+                synchronized(queue) {
+                    List<StandardMode> modes = new ArrayList();
+                    List<EncapsulatedIRCCommand> merged = new ArrayList();
+                    int insertAt = -1;
+
+                    if(command.getListeners().isEmpty()) {
+                        // walk back from the newest command, stopping at anything else for this channel
+                        List<Integer> found = new ArrayList();
+                        for(int x = 0; x < queue.size(); x++) {
+                            EncapsulatedIRCCommand queued = queue.get(x);
+                            if(queued.getCommand() == null)
+                                continue;
+                            if(isMergeable(queued, channel))
+                                found.add(x);
+                            else if(targetsChannel(queued.getCommand(), channel))
+                                break;
+                        }
+
+                        // pull them out oldest first, so the remaining indices stay valid
+                        for(int x = found.size() - 1; x >= 0; x--) {
+                            EncapsulatedIRCCommand queued = queue.remove((int) found.get(x));
+                            modes.addAll(((IRCChannelModeCommand) queued.getCommand()).getModes().getModes());
+                            merged.add(queued);
+                            this.getWaitQueue().commandOptimizedAway(queued);
+                        }
+                        if(!found.isEmpty())
+                            insertAt = found.get(found.size() - 1) - (found.size() - 1); // where the oldest was, once the newer ones are out
+                    }
+
+                    modes.addAll(modeCmd.getModes().getModes());
+                    merged.add(command);
+                    List<Modes> batches = buildBatches(channel, removeNoOps(channel, resolveLastChanges(modes)));
+
+                    if(insertAt == -1) {
+                        // nothing was merged in; the command stays where it is, carrying the last batch
+                        if(batches.isEmpty()) {
+                            command.setCommand(null);
+                        } else {
+                            for(int x = 0; x < batches.size() - 1; x++)
+                                queue.add(0, createMergedCommand(channel, batches.get(x), merged));
+                            modeCmd.setModes(batches.get(batches.size() - 1));
+                        }
+                    } else {
+                        // the new command has been absorbed into the older ones
+                        for(Modes batch : batches)
+                            queue.add(insertAt, createMergedCommand(channel, batch, merged));
+                        command.setCommand(null);
+                    }
                 }
             }
         }
     }
-    
+
     /**
-     * Given a channel mode set command, this tries to merge *all* of it into
-     * the mode set at the top of the queue right now, assuming that it's
-     * even possible.
-     *
-     * Returns the original command or the merged version of it.
+     * Creates a command to carry a batch of merged modes, taking on the
+     * earliest deadline and the time marks of the commands it came from.
      */
-    private IRCChannelModeCommand tryMerge(IRCChannelModeCommand command, int maxParamModes) {
-        // is topmost element actually a channel mode command?
-        if(!this.getWaitQueue().getCommandQueue().isEmpty() && this.getWaitQueue().getCommandQueue().get(0).getCommand() instanceof IRCChannelModeCommand) {
-            IRCChannelModeCommand otherCommand = (IRCChannelModeCommand) this.getWaitQueue().getCommandQueue().get(0).getCommand();
-            
-            // is the other command a modes list request, or an actual mode setting?
-            if(otherCommand.getModes() != null) {
-                // are the modes all being added or all being removed on each one? (this prevents some very tricky cases which could result in very undesirable mode-setting behavior)
-                if(modesAreDifferentEnough(command.getModes(), otherCommand.getModes())) {
-                    // do channels match?
-                    if(this.serverContext.casemapString(command.getChannels().iterator().next()).equals(otherCommand.getChannels().iterator().next())) {
-                        // okay, now, if we merged the two mode sets, would the parameterized modes be too high?
-                        int totalParameterizedModesIfMerged = this.countNumberParameterizedModes(otherCommand.getModes()) + this.countNumberParameterizedModes(command.getModes());
-                        if(totalParameterizedModesIfMerged <= maxParamModes) {
-                            // yes, we can merge them!
-                            // remove the otherCommand from the queue
-                            this.getWaitQueue().getCommandQueue().remove(0);
-
-                            // now, merge the commands that were going to be sent 
-                            IRCChannelModeCommand newCommand = new IRCChannelModeCommand(command.getChannels().iterator().next(), new Modes());
-                            newCommand.getModes().getModes().addAll(otherCommand.getModes().getModes());
-                            newCommand.getModes().getModes().addAll(command.getModes().getModes());
-                            return newCommand;
-                        } else {
-                            return command; // we can't do anything
-                        }
-                    }
-                }
+    private EncapsulatedIRCCommand createMergedCommand(String channel, Modes batch, List<EncapsulatedIRCCommand> merged) {
+        EncapsulatedIRCCommand command = new EncapsulatedIRCCommand(new IRCChannelModeCommand(channel, batch));
+        for(EncapsulatedIRCCommand from : merged)
+            command.absorb(from);
+
+        return command;
+    }
+
+    /**
+     * Determines if a queued command is a mode set for the given channel that
+     * we are free to merge with.
+     */
+    private boolean isMergeable(EncapsulatedIRCCommand queued, String channel) {
+        if(queued.getCommand() instanceof IRCChannelModeCommand && queued.getListeners().isEmpty()) {
+            IRCChannelModeCommand other = (IRCChannelModeCommand) queued.getCommand();
+            return other.getModes() != null && other.getTarget() != null
+                    && !other.isListRequest(this.serverContext.getISupport())
+                    && this.serverContext.casemapString(channel).equals(other.getTarget());
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines if a queued command (other than a mergeable mode set) has
+     * anything to do with the given channel, going by whether the channel
+     * is one of its parameters or in a comma-separated list of them. This
+     * errs on the side of caution, since it only keeps modes from being
+     * merged past the command.
+     */
+    private boolean targetsChannel(IRCCommand queued, String channel) {
+        CasemappedString key = this.serverContext.casemapString(channel);
+        IRCRawParameter[] params = queued.renderForIRC().getParameters();
+        for(int x = 1; x < params.length; x++) {
+            for(String target : params[x].getParameterString().split(",")) {
+                if(target.length() > 0 && this.serverContext.casemapString(target).equals(key))
+                    return true;
             }
         }
-        
-        return command;
+
+        return false;
     }
-    
+
     /**
-     * This method recursively continues to trim off excessive modes and puts
-     * them directly into the queue until the mode is okay, then it returns the
-     * leftover mode.
+     * Walks the given modes in order and keeps only the last change made to
+     * each mode and parameter, where it was made. +o jim followed by -o jim
+     * leaves -o jim, which removeNoOps() can then drop if jim isn't opped.
      */
-    private IRCChannelModeCommand trimExcessiveModesToQueue(IRCChannelModeCommand command, int maxParamModes) {
-        // count the number of parameterized modes in the command
-        int parameterizedModes = countNumberParameterizedModes(command.getModes());
-        
-        int numberOfModesPastLimit = parameterizedModes - maxParamModes;
-        
-        //System.out.println("Modes past limit: " + numberOfModesPastLimit);
-        
-        if(numberOfModesPastLimit > 0) {
-            // trim out the max param modes and put them into queue as a new command
-            Modes newModes = new Modes();
-            
-            Iterator<StandardMode> i = command.getModes().getModes().iterator();
-            int curModeNum = 1;
-            while(i.hasNext() && curModeNum <= maxParamModes) {
-                StandardMode mode = i.next();
-                System.out.println("cur mode num for new mode command:" + curModeNum + ", nickname=" + mode.getParameter());
-                if(mode.getParameter() != null) {
-                    i.remove(); // remove this mode from the current command...
-                    newModes.addMode(mode); // ... and add it to the new modes set.
+    private List<StandardMode> resolveLastChanges(List<StandardMode> modes) {
+        List<StandardMode> result = new ArrayList();
+
+        for(StandardMode mode : modes) {
+            for(int x = 0; x < result.size(); x++) {
+                StandardMode other = result.get(x);
+                if(other.getMode().equals(mode.getMode()) && parametersMatch(other.getParameter(), mode.getParameter())) {
+                    result.remove(x); // by index, since StandardMode.equals() is loose
+                    break;
                 }
-                
-                curModeNum++;
             }
-            
-            // we're done stripping the number of modes we want -- make new command and put in queue
-            String channel = command.getChannels().iterator().next();
-            this.getWaitQueue().getCommandQueue().insertElementAt(new EncapsulatedIRCCommand(new IRCChannelModeCommand(channel, newModes)), 0);
-            
-            //System.out.println("new modes length:" + newModes.getModes().size());
-            //System.out.println("Original modes length now:" + command.getModes().getModes().size());
-            
-            // try another round
-            return this.trimExcessiveModesToQueue(command, maxParamModes);
-        } else {
-            // the command is fine now, return it since we're done
-            return command;
+
+            result.add(mode);
         }
+
+        return result;
     }
-    
-    private int countNumberParameterizedModes(Modes modes) {
-        int parameterizedModes = 0;
-        
-        Iterator<StandardMode> i = modes.getModes().iterator();
-        while(i.hasNext()) {
-            if(i.next().getParameter() != null)
-                parameterizedModes++;
-        }
-        
-        return parameterizedModes;
+
+    /**
+     * Removes modes that would not change anything in the channel. Nothing
+     * happens if we have no channel mode state to ask.
+     */
+    private List<StandardMode> removeNoOps(String channel, List<StandardMode> modes) {
+        if(modeState == null)
+            return modes;
+
+        return modeState.removeNoOps(channel, modes);
     }
-    
-    /*
-     * This determines if the modes in a given set are all being added or all
-     * being removed.
+
+    /**
+     * Packs modes into as few mode sets as possible while keeping to the
+     * parameterized mode limit and line length, and without reordering a
+     * removal ahead of an addition of the same mode (modes render with
+     * removals first).
      */
-    private boolean modesAreAllSame(Modes modes) {
-        boolean lastVal;
-        
-        if(!modes.getModes().isEmpty()) {
-            Iterator<StandardMode> i = modes.getModes().iterator();
-            lastVal = i.next().isBeingAdded();
-            while(i.hasNext()) {
-                if(i.next().isBeingAdded() != lastVal) {
-                    return false;
-                }
+    private List<Modes> buildBatches(String channel, List<StandardMode> modes) {
+        int maxParamModes = DEFAULT_MAX_PARAM_MODES;
+        if(this.serverContext.getISupport().isMaxChanModesWithParamKnown())
+            maxParamModes = this.serverContext.getISupport().getMaxChanModesWithParam();
+
+        List<Modes> batches = new ArrayList();
+        Modes current = new Modes();
+        int paramModes = 0;
+
+        for(StandardMode mode : modes) {
+            boolean fits = current.getModes().isEmpty()
+                    || ((!mode.hasParameter() || paramModes < maxParamModes)
+                        && !conflicts(current, mode)
+                        && fitsOnLine(channel, current, mode));
+
+            if(!fits) {
+                batches.add(current);
+                current = new Modes();
+                paramModes = 0;
             }
+
+            current.addMode(mode);
+            if(mode.hasParameter())
+                paramModes++;
         }
-        
-        return true;
+
+        if(!current.getModes().isEmpty())
+            batches.add(current);
+
+        return batches;
     }
-    
-    /*
-     * Determines if it is okay to merge two sets of modes.
+
+    /**
+     * Determines if a mode being removed would be rendered before the same
+     * mode being added earlier in the given set.
      */
-    private boolean modesAreDifferentEnough(Modes modes1, Modes modes2) {
-        if(this.modesAreAllSame(modes1) && this.modesAreAllSame(modes2)) {
-            if(!modes1.getModes().isEmpty() && !modes2.getModes().isEmpty()) {
-                Iterator<StandardMode> i = modes1.getModes().iterator();
-                Iterator<StandardMode> i2 = modes2.getModes().iterator();
-                
-                return i.next().isBeingAdded() == i2.next().isBeingAdded();
+    private boolean conflicts(Modes current, StandardMode mode) {
+        if(mode.isBeingRemoved()) {
+            for(Object o : current.getModes()) {
+                StandardMode other = (StandardMode) o;
+                if(other.isBeingAdded() && other.getMode().equals(mode.getMode()))
+                    return true;
             }
         }
-        
+
         return false;
     }
-    
+
+    /**
+     * Determines if adding a mode to the given set still renders to a line of
+     * acceptable length in our charset.
+     */
+    private boolean fitsOnLine(String channel, Modes current, StandardMode mode) {
+        Modes tentative = new Modes(current.getModes());
+        tentative.addMode(mode);
+        return new IRCChannelModeCommand(channel, tentative).renderForIRC().lengthIsRFCCompliant(charset);
+    }
+
+    /**
+     * Compares two mode parameters using the network's casemapping.
+     */
+    private boolean parametersMatch(String param1, String param2) {
+        if(param1 == null || param2 == null)
+            return param1 == param2;
+
+        return this.serverContext.casemapString(param1).equals(param2);
+    }
+
+    /**
+     * Returns what is asked to find mode changes that would do nothing.
+     *
+     * @return The channel mode state, or null if none is used.
+     */
+    public ChannelModeStateI getModeState() {
+        return modeState;
+    }
+
+    /**
+     * Sets what is asked to find mode changes that would do nothing.
+     *
+     * @param modeState The channel mode state to use, or null to not bother.
+     */
+    public void setModeState(ChannelModeStateI modeState) {
+        this.modeState = modeState;
+    }
 }
- 
\ No newline at end of file
@@ -0,0 +1,27 @@
+/*
+ * Defines a method used by the CommandManager to send a raw line of IRC data
+ * directly to the server as bytes, already encoded in the connection's 
+ * charset. A line sender that implements this gets lines rendered straight
+ * into a reusable buffer instead of as strings.
+ */
+
+package com.packethammer.vaquero.outbound;
+
+import java.nio.charset.Charset;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+
+public interface OutboundRawIRCByteSenderI extends OutboundRawIRCLineSenderI {
+    /**
+     * Returns the charset lines should be encoded in for this connection.
+     */
+    public Charset getCharset();
+    
+    /**
+     * Sends a raw line to an IRC server. The buffer is reused for the next
+     * line as soon as this returns, so it must be written out (or copied) 
+     * right away.
+     *
+     * @param line The buffer holding the line, without its CR-LF.
+     */
+    public void sendRawLine(IRCLineBuffer line);
+}
@@ -0,0 +1,129 @@
+/**
+ * This optimizer looks for commands where only the last one sent really
+ * matters, and throws out older copies that are still waiting in the queue.
+ * It currently handles the following:
+ *  1. TOPIC changes for the same channel
+ *  2. NICK changes
+ *  3. AWAY (and back) changes
+ *  4. User mode changes on the same user, but only when the newer command
+ *     changes every mode the older one did
+ *
+ * The newer command takes over the queue position of the one it replaces,
+ * so it does not lose its place in line. The listeners of the command that
+ * was replaced are told it was dropped; the listeners of the newer command
+ * stay with it.
+ */
+
+package com.packethammer.vaquero.outbound;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.channel.IRCTopicCommand;
+import com.packethammer.vaquero.outbound.commands.server.IRCAwayCommand;
+import com.packethammer.vaquero.outbound.commands.server.IRCNickCommand;
+import com.packethammer.vaquero.outbound.commands.server.IRCUserModeCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandOptimizer;
+import com.packethammer.vaquero.outbound.outboundprocessing.EncapsulatedIRCCommand;
+import com.packethammer.vaquero.outbound.outboundprocessing.OutboundCommandEventListener;
+import com.packethammer.vaquero.parser.tracking.IRCServerContext;
+import com.packethammer.vaquero.util.modes.StandardMode;
+
+public class SupersessionOptimizer extends CommandOptimizer {
+    private IRCServerContext serverContext;
+
+    /**
+     * Initializes this optimizer with the server context to use for comparing
+     * channel and nickname targets.
+     */
+    public SupersessionOptimizer(IRCServerContext serverContext) {
+        this.serverContext = serverContext;
+    }
+
+    public void filterCommand(EncapsulatedIRCCommand command) {
+        String key = getSupersessionKey(command.getCommand());
+        if(key == null)
+            return;
+
+        Vector<EncapsulatedIRCCommand> queue = this.getWaitQueue().getCommandQueue();
+        synchronized(queue) {
+            for(int x = queue.size() - 1; x >= 0; x--) {
+                EncapsulatedIRCCommand queued = queue.get(x);
+                if(key.equals(getSupersessionKey(queued.getCommand())) && supersedes(command.getCommand(), queued.getCommand())) {
+                    // the old command is finished as far as its listeners are concerned
+                    for(OutboundCommandEventListener listener : queued.getListeners())
+                        listener.onDrop();
+
+                    // move the new command (and its listeners) into the old command's spot
+                    EncapsulatedIRCCommand replacement = new EncapsulatedIRCCommand(command.getCommand());
+                    replacement.absorb(command);
+                    for(OutboundCommandEventListener listener : command.getListeners())
+                        replacement.addListener(listener);
+                    queue.set(x, replacement);
+                    this.getWaitQueue().commandOptimizedAway(queued);
+
+                    // the original encapsulation is now empty, so it can be dropped quietly
+                    command.getListeners().clear();
+                    command.setCommand(null);
+
+                    // at most one older copy can be waiting, since each one replaces the last
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a key identifying what a command changes (its type and target),
+     * or null if the command is not one that a newer command can replace.
+     */
+    private String getSupersessionKey(IRCCommand command) {
+        if(command instanceof IRCTopicCommand) {
+            IRCTopicCommand topic = (IRCTopicCommand) command;
+            if(topic.getMessage() != null) // topic queries are not replaceable
+                return "TOPIC " + casemapKey(topic.getChannels().iterator().next());
+        } else if(command instanceof IRCNickCommand) {
+            return "NICK";
+        } else if(command instanceof IRCAwayCommand) {
+            return "AWAY";
+        } else if(command instanceof IRCUserModeCommand) {
+            IRCUserModeCommand mode = (IRCUserModeCommand) command;
+            if(mode.getModes() != null && mode.getTarget() != null)
+                return "MODE " + casemapKey(mode.getTarget());
+        }
+
+        return null;
+    }
+
+    /**
+     * Determines if a newer command with the same key makes an older one
+     * pointless.
+     */
+    private boolean supersedes(IRCCommand newer, IRCCommand older) {
+        if(newer instanceof IRCUserModeCommand) {
+            // every mode the old command touches must be touched by the new one
+            Set<Character> newerModes = new HashSet();
+            for(Object o : ((IRCUserModeCommand) newer).getModes().getModes())
+                newerModes.add(((StandardMode) o).getMode());
+
+            for(Object o : ((IRCUserModeCommand) older).getModes().getModes()) {
+                if(!newerModes.contains(((StandardMode) o).getMode()))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a form of a channel or nickname that is identical for every
+     * casing of it under the network's casemapping.
+     */
+    private String casemapKey(String target) {
+        if(target == null)
+            return null;
+
+        return serverContext.casemapString(target).toLowerCase().toString();
+    }
+}
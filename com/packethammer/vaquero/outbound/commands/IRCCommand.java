@@ -6,6 +6,7 @@
 package com.packethammer.vaquero.outbound.commands;
 
 import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
 
 public abstract class IRCCommand {    
@@ -17,6 +18,18 @@ public abstract class IRCCommand {
      */
     public abstract IRCRawLine renderForIRC();
     
+    /**
+     * Renders this IRC command straight into a line buffer as bytes. By 
+     * default, this just renders the result of renderForIRC() into the 
+     * buffer; commands that are sent often can override it to skip building
+     * the raw line altogether. Either way, it must produce the same line.
+     *
+     * @param buffer The buffer to render into. It is not reset first.
+     */
+    public void renderInto(IRCLineBuffer buffer) {
+        this.renderForIRC().renderInto(buffer);
+    }
+    
     /**
      * Determines if this IRC command is sendable with the data it currently
      * contains. Otherwise, the command manager can just discard it instead
@@ -8,6 +8,7 @@ package com.packethammer.vaquero.outbound.commands.basic;
 
 import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
 import java.util.Collection;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
 import com.packethammer.vaquero.parser.StringOperations;
 import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
@@ -75,6 +76,10 @@ public class IRCMessageNickCommand extends MultitargetMessage implements Nicknam
         return IRCRawLine.buildRawLine(true, "PRIVMSG", targets, this.getMessage());
     }    
    
+    public void renderInto(IRCLineBuffer buffer) {
+        this.renderMessageInto(buffer, "PRIVMSG");
+    }
+    
     public boolean isSendable() {
         return !this.getNicknames().isEmpty() && this.getMessage() != null;
     }
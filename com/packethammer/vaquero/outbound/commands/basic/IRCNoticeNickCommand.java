@@ -9,6 +9,7 @@ package com.packethammer.vaquero.outbound.commands.basic;
 
 import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
 import java.util.Collection;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
 import com.packethammer.vaquero.parser.StringOperations;
 import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
@@ -74,6 +75,10 @@ public class IRCNoticeNickCommand extends MultitargetMessage implements Nickname
         return IRCRawLine.buildRawLine(true, "NOTICE", targets, this.getMessage());
     }    
    
+    public void renderInto(IRCLineBuffer buffer) {
+        this.renderMessageInto(buffer, "NOTICE");
+    }
+    
     public boolean isSendable() {
         return !this.getNicknames().isEmpty() && this.getMessage() != null;
     }
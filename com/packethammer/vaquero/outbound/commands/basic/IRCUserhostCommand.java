@@ -0,0 +1,71 @@
+/*
+ * Asks the server for the hostmasks of up to five users at once. The server
+ * replies with a single numeric listing each user that exists, whether they
+ * are an IRC operator and whether they are away.
+ *
+ * USERHOST <NICKNAME> [<NICKNAME> ...]
+ */
+
+package com.packethammer.vaquero.outbound.commands.basic;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
+import com.packethammer.vaquero.util.protocol.IRCRawLine;
+
+public class IRCUserhostCommand extends IRCCommand implements NicknamesTargetedCommandI,AdjustableNicknameTargetCommandI {
+    /** The most nicknames a USERHOST may ask about, according to RFC1459 */
+    public static final int MAX_NICKNAMES = 5;
+    
+    private List<String> nicknames;
+    
+    /**
+     * Instantiates this USERHOST command with a nickname to look up.
+     *
+     * @param nickname The nickname to look up.
+     */
+    public IRCUserhostCommand(String nickname) {
+        this();
+        this.addNick(nickname);
+    }
+    
+    public IRCUserhostCommand() {
+        nicknames = new Vector();
+    }
+    
+    /**
+     * Adds a nickname to look up. Only the first five are sent.
+     */
+    public void addNick(String nickname) {
+        this.nicknames.add(nickname);
+    }
+    
+    /**
+     * Returns the nicknames being looked up.
+     */
+    public Collection<String> getNicknames() {
+        return nicknames;
+    }
+    
+    public void setNicknameTargets(List<String> targets) {
+        this.nicknames.clear();
+        this.nicknames.addAll(targets);
+    }
+    
+    public IRCRawLine renderForIRC() {
+        int count = Math.min(this.nicknames.size(), MAX_NICKNAMES);
+        String[] args = new String[count + 1];
+        args[0] = "USERHOST";
+        for(int x = 0; x < count; x++)
+            args[x + 1] = this.nicknames.get(x);
+        
+        return IRCRawLine.buildRawLine(false, args);
+    }
+    
+    public boolean isSendable() {
+        return !this.nicknames.isEmpty();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Asks the server for information about one or more users by nickname. The
+ * server replies with a series of numerics for each user (their hostmask and
+ * real name, the server they are on, their channels, how long they have been
+ * idle, and so on), followed by an end-of-WHOIS numeric. 
+ *
+ * If a target server is given, the request is passed on to that server. 
+ * Giving the user's own nickname as the target server asks the server the 
+ * user is on, which is the only way to get their idle time on some networks.
+ *
+ * WHOIS [<TARGET SERVER>] <NICKNAMES>
+ */
+
+package com.packethammer.vaquero.outbound.commands.basic;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
+import com.packethammer.vaquero.parser.StringOperations;
+import com.packethammer.vaquero.util.protocol.IRCRawLine;
+
+public class IRCWhoisCommand extends IRCCommand implements NicknamesTargetedCommandI,AdjustableNicknameTargetCommandI {
+    private List<String> nicknames;
+    private String targetServer;
+    
+    /**
+     * Instantiates this WHOIS command with a nickname to look up and a
+     * server to ask.
+     *
+     * @param nickname The nickname to look up.
+     * @param targetServer The server to ask, or null to ask our own server.
+     */
+    public IRCWhoisCommand(String nickname, String targetServer) {
+        this();
+        this.addNick(nickname);
+        this.setTargetServer(targetServer);
+    }
+    
+    /**
+     * Instantiates this WHOIS command with a nickname to look up.
+     *
+     * @param nickname The nickname to look up.
+     */
+    public IRCWhoisCommand(String nickname) {
+        this(nickname, null);
+    }
+    
+    public IRCWhoisCommand() {
+        nicknames = new Vector();
+    }
+    
+    /**
+     * Adds a nickname to look up. Many servers only answer for the first
+     * nickname given, or limit how many can be given at once.
+     */
+    public void addNick(String nickname) {
+        this.nicknames.add(nickname);
+    }
+    
+    /**
+     * Returns the nicknames being looked up.
+     */
+    public Collection<String> getNicknames() {
+        return nicknames;
+    }
+    
+    public void setNicknameTargets(List<String> targets) {
+        this.nicknames.clear();
+        this.nicknames.addAll(targets);
+    }
+    
+    /**
+     * Returns the server the request is passed on to, or null if our own
+     * server is being asked.
+     */
+    public String getTargetServer() {
+        return targetServer;
+    }
+    
+    /**
+     * @see #getTargetServer()
+     */
+    public void setTargetServer(String targetServer) {
+        this.targetServer = targetServer;
+    }
+    
+    public IRCRawLine renderForIRC() {
+        String nicks = StringOperations.commaDelimit(this.nicknames);
+        
+        if(this.getTargetServer() != null)
+            return IRCRawLine.buildRawLine(false, "WHOIS", this.getTargetServer(), nicks);
+        else
+            return IRCRawLine.buildRawLine(false, "WHOIS", nicks);
+    }
+    
+    public boolean isSendable() {
+        return !this.nicknames.isEmpty();
+    }
+}
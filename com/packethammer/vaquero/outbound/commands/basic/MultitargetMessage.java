@@ -8,8 +8,9 @@ import java.util.List;
 import java.util.Vector;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.interfaces.ExtendedMessageCommandI;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 
-public abstract class MultitargetMessage extends IRCCommand implements ExtendedMessageCommandI {
+public abstract class MultitargetMessage extends IRCCommand implements ExtendedMessageCommandI, Cloneable {
     private Vector<String> targets;
     private String message;
     
@@ -45,4 +46,34 @@ public abstract class MultitargetMessage extends IRCCommand implements ExtendedM
     public void setMessage(String message) {
         this.message = message;
     }
+    
+    /**
+     * Returns a copy of this message command (of the same type, with the
+     * same targets) that sends a different message.
+     *
+     * @param message The message the copy should send.
+     * @return The copy.
+     */
+    public MultitargetMessage copyWithMessage(String message) {
+        try {
+            MultitargetMessage copy = (MultitargetMessage) super.clone();
+            copy.targets = new Vector(targets);
+            copy.message = message;
+            return copy;
+        } catch (CloneNotSupportedException ex) {
+            throw new RuntimeException(ex); // can't happen, we're cloneable
+        }
+    }
+    
+    /**
+     * Renders this message into a line buffer as '<command> <targets> :<message>'.
+     *
+     * @param buffer The buffer to render into.
+     * @param command The command to use (PRIVMSG or NOTICE).
+     */
+    protected void renderMessageInto(IRCLineBuffer buffer, String command) {
+        buffer.appendParameter(command, false);
+        buffer.appendCommaDelimitedParameter(targets);
+        buffer.appendParameter(message, true);
+    }
 }
@@ -7,6 +7,7 @@
 package com.packethammer.vaquero.outbound.commands.channel;
 
 import java.util.Collection;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
 import com.packethammer.vaquero.parser.StringOperations;
 import com.packethammer.vaquero.outbound.commands.basic.MultitargetMessage;
@@ -67,6 +68,10 @@ public class IRCChannelMessageCommand extends MultitargetMessage implements Chan
         return IRCRawLine.buildRawLine(true, "PRIVMSG", targets, this.getMessage());
     }    
    
+    public void renderInto(IRCLineBuffer buffer) {
+        this.renderMessageInto(buffer, "PRIVMSG");
+    }
+    
     public boolean isSendable() {
         return !this.getChannels().isEmpty() && this.getMessage() != null;
     }
@@ -7,8 +7,11 @@ package com.packethammer.vaquero.outbound.commands.channel;
 import java.util.ArrayList;
 import java.util.Collection;
 import com.packethammer.vaquero.util.modes.Modes;
+import com.packethammer.vaquero.util.modes.StandardMode;
 import com.packethammer.vaquero.outbound.commands.basic.IRCModeCommand;
 import com.packethammer.vaquero.outbound.commands.interfaces.ChannelsTargetedCommandI;
+import com.packethammer.vaquero.parser.tracking.IRCServerISupport;
+import com.packethammer.vaquero.parser.tracking.definitions.ChannelModeDefinition;
 
 public class IRCChannelModeCommand extends IRCModeCommand implements ChannelsTargetedCommandI {
     /**
@@ -40,4 +43,26 @@ public class IRCChannelModeCommand extends IRCModeCommand implements ChannelsTar
         a.add(this.getTarget());        
         return a;
     }
+    
+    /**
+     * Determines if this command only contains listable modes without
+     * parameters (ie: 'MODE #channel +b'), which asks the server for the
+     * contents of those lists rather than changing anything.
+     *
+     * @param isupport The server's ISUPPORT information, used to look up channel modes.
+     * @return True if this is a request for one or more mode lists.
+     */
+    public boolean isListRequest(IRCServerISupport isupport) {
+        if(this.getModes() == null || this.getModes().getModes().isEmpty())
+            return false;
+        
+        for(Object o : this.getModes().getModes()) {
+            StandardMode mode = (StandardMode) o;
+            ChannelModeDefinition def = isupport.getChannelModeByChar(mode.getMode());
+            if(mode.hasParameter() || def == null || !def.isListable())
+                return false;
+        }
+        
+        return true;
+    }
 }
@@ -12,6 +12,7 @@
 package com.packethammer.vaquero.outbound.commands.channel;
 
 import java.util.Collection;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
 import com.packethammer.vaquero.parser.StringOperations;
 import com.packethammer.vaquero.outbound.commands.basic.MultitargetMessage;
@@ -72,6 +73,10 @@ public class IRCChannelNoticeCommand extends MultitargetMessage implements Chann
         return IRCRawLine.buildRawLine(true, "NOTICE", targets, this.getMessage());
     }    
    
+    public void renderInto(IRCLineBuffer buffer) {
+        this.renderMessageInto(buffer, "NOTICE");
+    }
+    
     public boolean isSendable() {
         return !this.getChannels().isEmpty() && this.getMessage() != null;
     }
@@ -66,6 +66,14 @@ public class IRCJoinCommand extends IRCCommand implements ChannelsTargetedComman
         return joinList;
     }
 
+    /**
+     * Returns the channel-key pairs we are joining, in the order they will
+     * be sent. This is a direct reference to the internal list.
+     */
+    public List<ChannelKeyPair> getChannelKeyPairs() {
+        return channels;
+    }
+
     /** 
      * Adds a channel to the join list.
      *
@@ -3,11 +3,13 @@
  *
  * Note: There is an option in RFC1459 and a full expansion to this command in 
  * RFC2812 which seems to allow for multiple nicknames and channels to be 
- * specified in the kick, but I do not see any servers thus far that even 
- * support it. For now, it seems a better idea to omit such support, as it can 
- * cause some confusion with the traditional usage of the kick command.
+ * specified in the kick. Multiple channels are not supported here, as it can
+ * cause some confusion with the traditional usage of the kick command, but 
+ * multiple nicknames in one channel are, for servers that announce a KICK 
+ * limit above 1 in TARGMAX. Only add more than one nickname if you know the
+ * server allows it.
  *
- * KICK <CHANNEL> <NICKNAME> [REASON]
+ * KICK <CHANNEL> <NICKNAME>{,<NICKNAME>} [REASON]
  */
 
 package com.packethammer.vaquero.outbound.commands.channel;
@@ -15,6 +17,7 @@ package com.packethammer.vaquero.outbound.commands.channel;
 import java.util.ArrayList;
 import java.util.Collection;
 import com.packethammer.vaquero.util.protocol.IRCRawLine;
+import com.packethammer.vaquero.parser.StringOperations;
 import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
 import com.packethammer.vaquero.outbound.commands.interfaces.ChannelsTargetedCommandI;
@@ -24,7 +27,7 @@ import java.util.List;
 
 public class IRCKickCommand extends IRCCommand implements ChannelsTargetedCommandI,NicknamesTargetedCommandI,ExtendedMessageCommandI,AdjustableNicknameTargetCommandI {
     private String channel;
-    private String nickname;
+    private List<String> nicknames;
     private String reason;
     
     /**
@@ -36,6 +39,7 @@ public class IRCKickCommand extends IRCCommand implements ChannelsTargetedComman
      * @param reason The reason for the kick (may be null if you wish to use none).
      */
     public IRCKickCommand(String channel, String nickname, String reason) {
+        this();
         this.setChannel(channel);
         this.setNickname(nickname);
         this.setMessage(reason);
@@ -53,6 +57,7 @@ public class IRCKickCommand extends IRCCommand implements ChannelsTargetedComman
     }
     
     public IRCKickCommand() {
+        nicknames = new ArrayList();
     }
     
     /**
@@ -63,15 +68,27 @@ public class IRCKickCommand extends IRCCommand implements ChannelsTargetedComman
     }
     
     /**
-     * Sets the nickname of the person we are to kick.
+     * Sets the nickname of the person we are to kick, replacing any others.
      */
     public void setNickname(String nickname) {
-        this.nickname = nickname;
+        this.nicknames.clear();
+        if(nickname != null)
+            this.nicknames.add(nickname);
+    }
+    
+    /**
+     * Adds another nickname to kick from the same channel. The server must
+     * support kicking more than one nickname at a time.
+     */
+    public void addNickname(String nickname) {
+        this.nicknames.add(nickname);
     }
     
     public void setNicknameTargets(List<String> targets) {
-        if(!targets.isEmpty()) 
-            this.nickname = targets.get(0);
+        if(!targets.isEmpty()) {
+            this.nicknames.clear();
+            this.nicknames.addAll(targets);
+        }
     }
     
     /**
@@ -90,12 +107,10 @@ public class IRCKickCommand extends IRCCommand implements ChannelsTargetedComman
     }
     
     /**
-     * Returns the nickname of the user we are kicking.     
+     * Returns the nicknames of the users we are kicking.     
      */    
     public Collection<String> getNicknames() {
-        ArrayList<String> a = new ArrayList();
-        a.add(nickname);
-        return a;
+        return new ArrayList(nicknames);
     }
     
     /**
@@ -108,10 +123,10 @@ public class IRCKickCommand extends IRCCommand implements ChannelsTargetedComman
     }
     
     public IRCRawLine renderForIRC() {
-        return IRCRawLine.buildRawLine(this.getMessage() != null, "KICK", channel, nickname, this.getMessage());
+        return IRCRawLine.buildRawLine(this.getMessage() != null, "KICK", channel, StringOperations.commaDelimit(nicknames), this.getMessage());
     }    
    
     public boolean isSendable() {
-        return this.channel != null && this.nickname != null;
+        return this.channel != null && !this.nicknames.isEmpty();
     }
 }
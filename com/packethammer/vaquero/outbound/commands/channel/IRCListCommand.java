@@ -10,6 +10,8 @@
  * types of servers; some servers allow special parameters to be used for
  * filtering the channels list. This is particularly useful for discovering
  * hidden users (at least by looking at user count) on some channels.
+ * Servers that take such conditions name the kinds they accept in ELIST
+ * (see IRCServerISupport.getListExtensions()); add them with addCondition().
  *
  * LIST <CHANNELS> <TARGET SERVER>
  */
@@ -26,6 +28,7 @@ import com.packethammer.vaquero.outbound.commands.interfaces.ChannelsTargetedCom
 
 public class IRCListCommand extends IRCCommand implements ChannelsTargetedCommandI {    
     private List<String> channels;
+    private List<String> conditions;
     private String targetServer;
     
     /**
@@ -58,6 +61,7 @@ public class IRCListCommand extends IRCCommand implements ChannelsTargetedComman
      */
     public IRCListCommand() {
         channels = new Vector();
+        conditions = new Vector();
     }
     
     /**
@@ -75,6 +79,26 @@ public class IRCListCommand extends IRCCommand implements ChannelsTargetedComman
         return channels;
     }
     
+    /**
+     * Adds a condition for the server to filter the listing with, such as
+     * ">10" for channels with more than ten users. Conditions are sent in
+     * the same parameter as the channels, but they are not channels, so they
+     * are kept apart from getChannels().
+     *
+     * @param condition A condition of a kind the server names in ELIST.
+     * @see com.packethammer.vaquero.parser.tracking.IRCServerISupport#getListExtensions()
+     */
+    public void addCondition(String condition) {
+        this.conditions.add(condition);
+    }
+    
+    /**
+     * Returns the conditions the server is to filter the listing with.
+     */
+    public Collection<String> getConditions() {
+        return conditions;
+    }
+    
     /** 
      * Returns the server we are requesting channel listing from, or null if 
      * none is being targeted.
@@ -94,7 +118,9 @@ public class IRCListCommand extends IRCCommand implements ChannelsTargetedComman
     }
     
     public IRCRawLine renderForIRC() {
-        String channelsString = StringOperations.commaDelimit(this.channels);
+        List<String> targets = new Vector(this.channels);
+        targets.addAll(this.conditions);
+        String channelsString = StringOperations.commaDelimit(targets);
         if(channelsString.length() == 0)
             channelsString = null; // make empty if none
 
@@ -0,0 +1,122 @@
+/*
+ * This class houses the information common to CPRIVMSG and CNOTICE, ircu's
+ * "channel context" messages. They deliver a message to a single user just
+ * like PRIVMSG/NOTICE would, but name a channel that we share with them in
+ * which we are an operator or have voice. Because of that, the server does
+ * not count the message against our target change limit, which is what
+ * normally produces "target change too fast" when messaging lots of
+ * different people.
+ *
+ * <COMMAND> <NICKNAME> <CHANNEL> <MESSAGE>
+ *
+ * @see vaquero.parser.tracking.IRCServerISupport#isCPrivmsgSupported()
+ */
+
+package com.packethammer.vaquero.outbound.commands.extended.ircu;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.interfaces.AdjustableNicknameTargetCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.ChannelsTargetedCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.ExtendedMessageCommandI;
+import com.packethammer.vaquero.outbound.commands.interfaces.NicknamesTargetedCommandI;
+import com.packethammer.vaquero.util.protocol.IRCLineBuffer;
+import com.packethammer.vaquero.util.protocol.IRCRawLine;
+
+public abstract class ChannelContextMessage extends IRCCommand implements NicknamesTargetedCommandI, ChannelsTargetedCommandI, ExtendedMessageCommandI, AdjustableNicknameTargetCommandI {
+    private String nickname;
+    private String channel;
+    private String message;
+    
+    /**
+     * Initializes this message with its target, the channel we share with
+     * the target, and the message to send.
+     *
+     * @param nickname The person to message.
+     * @param channel A channel both of us are in, in which we are opped or voiced.
+     * @param message The message to send.
+     */
+    public ChannelContextMessage(String nickname, String channel, String message) {
+        this.nickname = nickname;
+        this.channel = channel;
+        this.message = message;
+    }
+    
+    /**
+     * Returns the name of the command being sent (CPRIVMSG or CNOTICE).
+     */
+    protected abstract String getCommandName();
+    
+    /**
+     * Returns the nickname of the person being messaged.
+     */
+    public String getNickname() {
+        return nickname;
+    }
+    
+    /**
+     * Sets the nickname of the person being messaged.
+     */
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+    
+    /**
+     * Returns the channel we share with the person being messaged.
+     */
+    public String getChannel() {
+        return channel;
+    }
+    
+    /**
+     * Sets the channel we share with the person being messaged. We must be
+     * an operator or have voice in it, or the server will refuse the message.
+     */
+    public void setChannel(String channel) {
+        this.channel = channel;
+    }
+    
+    public String getMessage() {
+        return message;
+    }
+    
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    
+    public Collection<String> getNicknames() {
+        List<String> nicks = new ArrayList();
+        if(nickname != null)
+            nicks.add(nickname);
+        return nicks;
+    }
+    
+    public Collection<String> getChannels() {
+        List<String> channels = new ArrayList();
+        if(channel != null)
+            channels.add(channel);
+        return channels;
+    }
+    
+    public void setNicknameTargets(List<String> targets) {
+        if(!targets.isEmpty())
+            this.nickname = targets.get(0);
+    }
+    
+    public IRCRawLine renderForIRC() {
+        return IRCRawLine.buildRawLine(true, this.getCommandName(), nickname, channel, message);
+    }
+    
+    public void renderInto(IRCLineBuffer buffer) {
+        buffer.appendParameter(this.getCommandName(), false);
+        buffer.appendParameter(nickname, false);
+        buffer.appendParameter(channel, false);
+        buffer.appendParameter(message, true);
+    }
+    
+    public boolean isSendable() {
+        return nickname != null && channel != null && message != null;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Sends a NOTICE to a user through a channel we share with them and are
+ * opped or voiced in, which ircu does not count against our target change
+ * limit. Only use this if the server advertises CNOTICE support.
+ *
+ * CNOTICE <NICKNAME> <CHANNEL> <MESSAGE>
+ *
+ * @see ChannelContextMessage
+ */
+
+package com.packethammer.vaquero.outbound.commands.extended.ircu;
+
+public class IRCCNoticeCommand extends ChannelContextMessage {
+    /**
+     * Instantiates a CNOTICE command.
+     *
+     * @param nickname The person to notice.
+     * @param channel A channel both of us are in, in which we are opped or voiced.
+     * @param message The message to send.
+     */
+    public IRCCNoticeCommand(String nickname, String channel, String message) {
+        super(nickname, channel, message);
+    }
+    
+    protected String getCommandName() {
+        return "CNOTICE";
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Sends a PRIVMSG to a user through a channel we share with them and are
+ * opped or voiced in, which ircu does not count against our target change
+ * limit. Only use this if the server advertises CPRIVMSG support.
+ *
+ * CPRIVMSG <NICKNAME> <CHANNEL> <MESSAGE>
+ *
+ * @see ChannelContextMessage
+ */
+
+package com.packethammer.vaquero.outbound.commands.extended.ircu;
+
+public class IRCCPrivmsgCommand extends ChannelContextMessage {
+    /**
+     * Instantiates a CPRIVMSG command.
+     *
+     * @param nickname The person to message.
+     * @param channel A channel both of us are in, in which we are opped or voiced.
+     * @param message The message to send.
+     */
+    public IRCCPrivmsgCommand(String nickname, String channel, String message) {
+        super(nickname, channel, message);
+    }
+    
+    protected String getCommandName() {
+        return "CPRIVMSG";
+    }
+}
@@ -104,6 +104,18 @@ public class WhoXSearchOptions {
         searchFlags = new HashSet();
         searchFields = new HashSet();
     }
+    
+    /**
+     * Initializes this class with a copy of another set of search options,
+     * including its query tag.
+     *
+     * @param options The options to copy.
+     */
+    public WhoXSearchOptions(WhoXSearchOptions options) {
+        searchFlags = new HashSet(options.getSearchFlags());
+        searchFields = new HashSet(options.getSearchFields());
+        queryTag = options.getQueryTag();
+    }
 
     /**
      * Returns the search flags being used in this query.
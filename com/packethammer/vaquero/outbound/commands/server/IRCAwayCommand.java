@@ -0,0 +1,65 @@
+/**
+ * Marks us as being away with a message, or marks us as being back if there
+ * is no message.
+ *
+ * AWAY [:MESSAGE]
+ */
+
+package com.packethammer.vaquero.outbound.commands.server;
+
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.outbound.commands.interfaces.ExtendedMessageCommandI;
+import com.packethammer.vaquero.util.protocol.IRCRawLine;
+
+public class IRCAwayCommand extends IRCCommand implements ExtendedMessageCommandI {
+    private String message;
+    
+    /**
+     * Initializes this away command with the away message to use.
+     *
+     * @param message The away message, or null to mark ourselves as back.
+     */
+    public IRCAwayCommand(String message) {
+        this.setMessage(message);
+    }
+    
+    /**
+     * Initializes this away command without a message, which marks us as 
+     * no longer being away.
+     */
+    public IRCAwayCommand() {
+        
+    }
+    
+    /**
+     * Returns the away message, or null if we are marking ourselves as back.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Sets the away message. Set to null to mark ourselves as back.
+     */
+    public void setMessage(String message) {
+        this.message = message;
+    }
+    
+    /**
+     * Determines if this command marks us as away, as opposed to back.
+     */
+    public boolean isMarkingAway() {
+        return this.getMessage() != null && this.getMessage().length() > 0;
+    }
+    
+    public IRCRawLine renderForIRC() {
+        if(this.isMarkingAway())
+            return IRCRawLine.buildRawLine(true, "AWAY", this.getMessage());
+        else
+            return IRCRawLine.buildRawLine(false, "AWAY");
+    }
+   
+    public boolean isSendable() {
+        return true;
+    }
+}
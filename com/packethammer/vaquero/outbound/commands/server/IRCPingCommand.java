@@ -0,0 +1,48 @@
+/*
+ * Pings the server we are connected to. The server should reply with a PONG
+ * that carries the same payload, which makes this useful for measuring lag.
+ * Do not confuse this with a client-to-client CTCP ping.
+ *
+ * PING <PAYLOAD>
+ */
+
+package com.packethammer.vaquero.outbound.commands.server;
+
+import com.packethammer.vaquero.outbound.commands.IRCCommand;
+import com.packethammer.vaquero.util.protocol.IRCRawLine;
+
+public class IRCPingCommand extends IRCCommand {
+    private String payload;
+    
+    /**
+     * Initializes this ping command with the payload the server should 
+     * reply with.
+     *
+     * @param payload The data to ping with.
+     */
+    public IRCPingCommand(String payload) {
+        this.setPayload(payload);
+    }
+    
+    /**
+     * Returns the payload associated with this ping command.
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Sets the payload to send with this PING command.
+     */
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+    
+    public IRCRawLine renderForIRC() {
+        return IRCRawLine.buildRawLine(true, "PING", this.getPayload());
+    }
+   
+    public boolean isSendable() {
+        return this.getPayload() != null;
+    }
+}
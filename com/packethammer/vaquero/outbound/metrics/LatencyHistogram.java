@@ -0,0 +1,155 @@
+/**
+ * This is a histogram of durations that many threads can record into at
+ * once without locking. Durations are kept at microsecond resolution in
+ * buckets that grow with the size of the value (eight buckets for every
+ * power of two), so any percentile it reports is within about 12% of the
+ * real value, while the whole histogram takes up a few kilobytes no matter
+ * how many values are recorded.
+ */
+
+package com.packethammer.vaquero.outbound.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // about twelve days in microseconds
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    private AtomicLongArray counts;
+    private AtomicLong count;
+    private AtomicLong total;
+    private AtomicLong max;
+    
+    /** Creates a new, empty histogram */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+    
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration in nanoseconds. Negative values are taken as zero.
+     */
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        
+        counts.incrementAndGet(bucketFor(nanos / 1000));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        
+        long m;
+        while(nanos > (m = max.get())) {
+            if(max.compareAndSet(m, nanos))
+                break;
+        }
+    }
+    
+    /**
+     * Returns the bucket a number of microseconds falls into.
+     */
+    private static int bucketFor(long micros) {
+        if(micros < SUB_BUCKETS)
+            return (int) micros;
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        
+        int sub = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+    
+    /**
+     * Returns the smallest number of microseconds that falls into a bucket.
+     */
+    private static long lowestValueIn(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BUCKET_BITS);
+    }
+    
+    /**
+     * Returns the number of durations recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * Returns the longest duration recorded, in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+    
+    /**
+     * Returns the average duration recorded, in nanoseconds, or 0 if nothing
+     * has been recorded.
+     */
+    public long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : total.get() / c;
+    }
+    
+    /**
+     * Returns the duration that the given fraction of recorded durations
+     * were no longer than. For example, getPercentile(0.99) returns the 99th
+     * percentile.
+     *
+     * @param fraction The fraction, from 0 to 1.
+     * @return The duration in nanoseconds, or 0 if nothing has been recorded.
+     * @throws IllegalArgumentException If the fraction is not between 0 and 1.
+     */
+    public long getPercentile(double fraction) {
+        if(fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException("The fraction must be between 0 and 1!");
+        
+        // take a snapshot, since others may be recording while we look
+        long[] snapshot = new long[BUCKETS];
+        long recorded = 0;
+        for(int x = 0; x < BUCKETS; x++) {
+            snapshot[x] = counts.get(x);
+            recorded += snapshot[x];
+        }
+        
+        if(recorded == 0)
+            return 0;
+        
+        long wanted = Math.max(1, (long) Math.ceil(fraction * recorded));
+        long seen = 0;
+        for(int x = 0; x < BUCKETS; x++) {
+            seen += snapshot[x];
+            if(seen >= wanted) {
+                // report the top of the bucket, but never more than what we've actually seen
+                long top = x + 1 < BUCKETS ? lowestValueIn(x + 1) * 1000 - 1 : Long.MAX_VALUE;
+                return Math.min(top, max.get());
+            }
+        }
+        
+        return max.get();
+    }
+    
+    /**
+     * Returns a short summary of this histogram in milliseconds.
+     */
+    public String toString() {
+        return "count=" + getCount()
+                + " p50=" + toMillis(getPercentile(0.5))
+                + "ms p99=" + toMillis(getPercentile(0.99))
+                + "ms max=" + toMillis(getMax()) + "ms";
+    }
+    
+    private static String toMillis(long nanos) {
+        return String.valueOf(Math.round(nanos / 10000.0) / 100.0);
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * This is a metrics sink that keeps everything the command manager reports
+ * in memory, where you can look at it whenever you like:
+ *   - A latency histogram for each stage of the outbound system, for each
+ *     class of command (p50, p99, max and so on).
+ *   - The depth of the wait queue, now and at its deepest.
+ *   - How often each filter and command optimizer passed, replaced or
+ *     dropped a command, and how long it took doing so.
+ *   - How many commands of each class were sent, dropped, optimized away or
+ *     expired.
+ *   - Lines and bytes sent per second.
+ *
+ * Recording never takes a lock, so it is safe to leave this in place on a
+ * busy connection. To use it:
+ *   OutboundMetrics metrics = new OutboundMetrics();
+ *   client.getOutboundCommandManager().setMetricsSink(metrics);
+ *   ...
+ *   System.out.println(metrics);
+ */
+
+package com.packethammer.vaquero.outbound.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
+
+public class OutboundMetrics implements OutboundMetricsSinkI {
+    private static final String[] STAGE_NAMES = { "pre-wait filters", "optimizers", "wait queue", "pre-release filters", "write", "total" };
+    private static final String[] FATE_NAMES = { "sent", "dropped", "optimized", "expired" };
+    
+    private ConcurrentHashMap<Class,LatencyHistogram[]> latencies;
+    private ConcurrentHashMap<Class,AtomicLongArray> fates;
+    private ConcurrentHashMap<CommandFilterI,FilterStatistics> filters;
+    private AtomicInteger queueDepth;
+    private AtomicInteger maxQueueDepth;
+    private ThroughputMeter lines;
+    private ThroughputMeter bytes;
+    
+    /** Creates a new, empty set of metrics */
+    public OutboundMetrics() {
+        latencies = new ConcurrentHashMap();
+        fates = new ConcurrentHashMap();
+        filters = new ConcurrentHashMap();
+        queueDepth = new AtomicInteger();
+        maxQueueDepth = new AtomicInteger();
+        lines = new ThroughputMeter();
+        bytes = new ThroughputMeter();
+    }
+    
+    public void recordStageLatency(Class commandClass, int stage, long nanos) {
+        getLatencies(commandClass)[stage].record(nanos);
+    }
+    
+    public void recordFilterOutcome(CommandFilterI filter, int outcome, long nanos) {
+        FilterStatistics stats = filters.get(filter);
+        if(stats == null) {
+            FilterStatistics created = new FilterStatistics();
+            stats = filters.putIfAbsent(filter, created);
+            if(stats == null)
+                stats = created;
+        }
+        
+        stats.record(outcome, nanos);
+    }
+    
+    public void recordQueueDepth(int depth) {
+        queueDepth.set(depth);
+        
+        int m;
+        while(depth > (m = maxQueueDepth.get())) {
+            if(maxQueueDepth.compareAndSet(m, depth))
+                break;
+        }
+    }
+    
+    public void recordLineWritten(Class commandClass, int bytes) {
+        this.lines.record(1);
+        this.bytes.record(bytes);
+    }
+    
+    public void recordCommandFinished(Class commandClass, int fate) {
+        AtomicLongArray counts = fates.get(commandClass);
+        if(counts == null) {
+            AtomicLongArray created = new AtomicLongArray(FATE_COUNT);
+            counts = fates.putIfAbsent(commandClass, created);
+            if(counts == null)
+                counts = created;
+        }
+        
+        counts.incrementAndGet(fate);
+    }
+    
+    /**
+     * Returns the histograms for a class of command, creating them if this is
+     * the first time we've seen it.
+     */
+    private LatencyHistogram[] getLatencies(Class commandClass) {
+        LatencyHistogram[] histograms = latencies.get(commandClass);
+        if(histograms == null) {
+            LatencyHistogram[] created = new LatencyHistogram[STAGE_COUNT];
+            for(int x = 0; x < STAGE_COUNT; x++)
+                created[x] = new LatencyHistogram();
+            
+            histograms = latencies.putIfAbsent(commandClass, created);
+            if(histograms == null)
+                histograms = created;
+        }
+        
+        return histograms;
+    }
+    
+    /**
+     * Returns the latency histogram of one stage for a class of command.
+     *
+     * @param commandClass The exact class of command, such as IRCMessageNickCommand.class.
+     * @param stage One of the OutboundMetricsSinkI.STAGE_ constants.
+     * @return The histogram, which is empty if no such commands have been sent.
+     */
+    public LatencyHistogram getLatency(Class commandClass, int stage) {
+        return getLatencies(commandClass)[stage];
+    }
+    
+    /**
+     * Returns the histogram of one stage for every class of command that
+     * has been sent.
+     *
+     * @param stage One of the OutboundMetricsSinkI.STAGE_ constants.
+     * @return The histograms by command class.
+     */
+    public Map<Class,LatencyHistogram> getLatencies(int stage) {
+        Map<Class,LatencyHistogram> map = new HashMap();
+        for(Map.Entry<Class,LatencyHistogram[]> entry : latencies.entrySet())
+            map.put(entry.getKey(), entry.getValue()[stage]);
+        return map;
+    }
+    
+    /**
+     * Returns the number of commands of a class that met a given fate.
+     *
+     * @param commandClass The exact class of command.
+     * @param fate One of the OutboundMetricsSinkI.FATE_ constants.
+     * @return The number of commands.
+     */
+    public long getFateCount(Class commandClass, int fate) {
+        AtomicLongArray counts = fates.get(commandClass);
+        return counts == null ? 0 : counts.get(fate);
+    }
+    
+    /**
+     * Returns the statistics kept for a filter or command optimizer.
+     *
+     * @param filter The filter.
+     * @return Its statistics, or null if it has never been given a command.
+     */
+    public FilterStatistics getFilterStatistics(CommandFilterI filter) {
+        return filters.get(filter);
+    }
+    
+    /**
+     * Returns the statistics kept for every filter and command optimizer
+     * that has been given a command.
+     */
+    public Map<CommandFilterI,FilterStatistics> getFilterStatistics() {
+        return new HashMap(filters);
+    }
+    
+    /**
+     * Returns the number of commands in the wait queue when it last changed.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+    
+    /**
+     * Returns the most commands that have been in the wait queue at once.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+    
+    /**
+     * Returns the meter counting lines sent.
+     */
+    public ThroughputMeter getLines() {
+        return lines;
+    }
+    
+    /**
+     * Returns the meter counting bytes sent, including the CR-LF of each line.
+     */
+    public ThroughputMeter getBytes() {
+        return bytes;
+    }
+    
+    /**
+     * Returns a readable report of everything recorded so far.
+     */
+    public String toString() {
+        String r = "";
+        r += "Lines sent: " + lines.getTotal() + " (" + lines.getRate(10) + "/s over 10s, " + lines.getRate() + "/s over " + ThroughputMeter.DEFAULT_WINDOW + "s)\n";
+        r += "Bytes sent: " + bytes.getTotal() + " (" + bytes.getRate(10) + "/s over 10s, " + bytes.getRate() + "/s over " + ThroughputMeter.DEFAULT_WINDOW + "s)\n";
+        r += "Wait queue depth: " + getQueueDepth() + " (max " + getMaxQueueDepth() + ")\n";
+        
+        for(Map.Entry<Class,LatencyHistogram[]> entry : latencies.entrySet()) {
+            r += entry.getKey().getSimpleName() + ":\n";
+            for(int x = 0; x < STAGE_COUNT; x++) {
+                if(entry.getValue()[x].getCount() > 0)
+                    r += "  " + STAGE_NAMES[x] + ": " + entry.getValue()[x] + "\n";
+            }
+        }
+        
+        for(Map.Entry<Class,AtomicLongArray> entry : fates.entrySet()) {
+            r += entry.getKey().getSimpleName() + " fates:";
+            for(int x = 0; x < FATE_COUNT; x++)
+                r += " " + FATE_NAMES[x] + "=" + entry.getValue().get(x);
+            r += "\n";
+        }
+        
+        for(Map.Entry<CommandFilterI,FilterStatistics> entry : filters.entrySet())
+            r += entry.getKey().getClass().getSimpleName() + ": " + entry.getValue() + "\n";
+        
+        return r;
+    }
+    
+    /**
+     * The counters kept for a single filter or command optimizer.
+     */
+    public static class FilterStatistics {
+        private AtomicLongArray outcomes;
+        private AtomicLong nanos;
+        
+        FilterStatistics() {
+            outcomes = new AtomicLongArray(OUTCOME_COUNT);
+            nanos = new AtomicLong();
+        }
+        
+        void record(int outcome, long time) {
+            outcomes.incrementAndGet(outcome);
+            nanos.addAndGet(time);
+        }
+        
+        /**
+         * Returns the number of commands the filter left in place.
+         */
+        public long getPassedCount() {
+            return outcomes.get(OUTCOME_PASSED);
+        }
+        
+        /**
+         * Returns the number of commands the filter replaced with another.
+         */
+        public long getReplacedCount() {
+            return outcomes.get(OUTCOME_REPLACED);
+        }
+        
+        /**
+         * Returns the number of commands the filter dropped (for a command
+         * optimizer, this is usually the number it merged into others).
+         */
+        public long getDroppedCount() {
+            return outcomes.get(OUTCOME_DROPPED);
+        }
+        
+        /**
+         * Returns the total time the filter has spent on commands, in
+         * nanoseconds.
+         */
+        public long getTotalTime() {
+            return nanos.get();
+        }
+        
+        public String toString() {
+            return "passed=" + getPassedCount() + " replaced=" + getReplacedCount() + " dropped=" + getDroppedCount()
+                    + " time=" + (getTotalTime() / 1000000) + "ms";
+        }
+    }
+}
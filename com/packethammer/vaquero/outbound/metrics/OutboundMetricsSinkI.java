@@ -0,0 +1,100 @@
+/**
+ * This defines a place the command manager reports the progress of outbound
+ * commands to, so that you can see how long commands spend in each part of
+ * the outbound system and how much is going out to the server. Use
+ * OutboundMetrics for a ready-made sink that keeps histograms and counters,
+ * or implement this yourself to feed your own statistics system.
+ *
+ * Every method here is called on the thread doing the sending (or the
+ * enqueueing), in the middle of the outbound pipeline, so implementations
+ * must be thread-safe and should return quickly without taking locks that
+ * could hold up sending.
+ *
+ * @see com.packethammer.vaquero.outbound.CommandManager#setMetricsSink(OutboundMetricsSinkI)
+ */
+
+package com.packethammer.vaquero.outbound.metrics;
+
+import com.packethammer.vaquero.outbound.outboundprocessing.CommandFilterI;
+
+public interface OutboundMetricsSinkI {
+    /** Time from a command being sent to the command manager until it has passed the pre-wait filter chain */
+    public static final int STAGE_PRE_WAIT_FILTERS = 0;
+    /** Time spent in the wait queue's command optimizers */
+    public static final int STAGE_OPTIMIZERS = 1;
+    /** Time spent waiting in the wait queue for the timing scheme to release it */
+    public static final int STAGE_WAIT_QUEUE = 2;
+    /** Time spent in the pre-release filter chain */
+    public static final int STAGE_PRE_RELEASE_FILTERS = 3;
+    /** Time spent rendering the command and writing it to the connection */
+    public static final int STAGE_WRITE = 4;
+    /** Time from a command being sent to the command manager until it was written */
+    public static final int STAGE_TOTAL = 5;
+    /** The number of stages above */
+    public static final int STAGE_COUNT = 6;
+    
+    /** The filter left the command in place (although it may have changed its contents) */
+    public static final int OUTCOME_PASSED = 0;
+    /** The filter replaced the command with a different one */
+    public static final int OUTCOME_REPLACED = 1;
+    /** The filter dropped the command */
+    public static final int OUTCOME_DROPPED = 2;
+    /** The number of outcomes above */
+    public static final int OUTCOME_COUNT = 3;
+    
+    /** The command was written to the connection */
+    public static final int FATE_SENT = 0;
+    /** The command was dropped by a filter, or was not sendable by the time it left the queue */
+    public static final int FATE_DROPPED = 1;
+    /** The command was dropped by a command optimizer, usually because it was merged into another one */
+    public static final int FATE_OPTIMIZED = 2;
+    /** The command passed its deadline before it left the wait queue */
+    public static final int FATE_EXPIRED = 3;
+    /** The number of fates above */
+    public static final int FATE_COUNT = 4;
+    
+    /**
+     * Occurs when a command has been written to the connection, once for each
+     * stage whose duration is known. Commands created inside the wait queue
+     * (for example, by splitting a long message) skip the stages before it.
+     *
+     * @param commandClass The class of the command that was written.
+     * @param stage One of the STAGE_ constants.
+     * @param nanos The time spent in that stage, in nanoseconds.
+     */
+    public void recordStageLatency(Class commandClass, int stage, long nanos);
+    
+    /**
+     * Occurs after a filter (including a command optimizer) has processed a
+     * command.
+     *
+     * @param filter The filter.
+     * @param outcome One of the OUTCOME_ constants.
+     * @param nanos The time the filter took, in nanoseconds.
+     */
+    public void recordFilterOutcome(CommandFilterI filter, int outcome, long nanos);
+    
+    /**
+     * Occurs whenever a command goes into or comes out of the wait queue.
+     *
+     * @param depth The number of commands in the wait queue.
+     */
+    public void recordQueueDepth(int depth);
+    
+    /**
+     * Occurs when a line has been written to the connection.
+     *
+     * @param commandClass The class of the command that was written.
+     * @param bytes The number of bytes written, including the CR-LF.
+     */
+    public void recordLineWritten(Class commandClass, int bytes);
+    
+    /**
+     * Occurs when a command has left the outbound system for good, one way
+     * or another.
+     *
+     * @param commandClass The class of the command.
+     * @param fate One of the FATE_ constants.
+     */
+    public void recordCommandFinished(Class commandClass, int fate);
+}
@@ -0,0 +1,98 @@
+/**
+ * This counts how much of something happens per second, over a sliding
+ * window of recent seconds, without locking. Each second has its own slot
+ * in a ring; a slot is cleared and reused when its second comes around
+ * again.
+ *
+ * The rates are approximate: an amount recorded at the exact moment a slot
+ * is being reused can be lost. The running total is always exact.
+ */
+
+package com.packethammer.vaquero.outbound.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class ThroughputMeter {
+    /** The default number of seconds kept */
+    public static final int DEFAULT_WINDOW = 60;
+    
+    private AtomicLongArray amounts;
+    private AtomicLongArray seconds;
+    private AtomicLong total;
+    
+    /**
+     * Initializes this meter to keep the last minute.
+     */
+    public ThroughputMeter() {
+        this(DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Initializes this meter to keep a given number of seconds.
+     *
+     * @param window The number of seconds to keep.
+     * @throws IllegalArgumentException If the window is not positive.
+     */
+    public ThroughputMeter(int window) {
+        if(window <= 0)
+            throw new IllegalArgumentException("The window must be positive!");
+        
+        // one extra slot for the second that is still going on
+        amounts = new AtomicLongArray(window + 1);
+        seconds = new AtomicLongArray(window + 1);
+        total = new AtomicLong();
+    }
+    
+    /**
+     * Records an amount as happening now.
+     *
+     * @param amount The amount.
+     */
+    public void record(long amount) {
+        long now = System.currentTimeMillis() / 1000;
+        int slot = (int) (now % amounts.length());
+        
+        long second = seconds.get(slot);
+        if(second != now && seconds.compareAndSet(slot, second, now))
+            amounts.set(slot, 0); // we won the right to reuse this slot
+        
+        amounts.addAndGet(slot, amount);
+        total.addAndGet(amount);
+    }
+    
+    /**
+     * Returns the total amount ever recorded.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+    
+    /**
+     * Returns the average amount per second over the given number of most
+     * recent complete seconds.
+     *
+     * @param window The number of seconds, which is limited to the number this meter keeps.
+     * @return The average amount per second.
+     */
+    public double getRate(int window) {
+        window = Math.max(1, Math.min(window, amounts.length() - 1));
+        long now = System.currentTimeMillis() / 1000;
+        
+        long sum = 0;
+        for(long second = now - window; second < now; second++) {
+            int slot = (int) (second % amounts.length());
+            if(seconds.get(slot) == second)
+                sum += amounts.get(slot);
+        }
+        
+        return sum / (double) window;
+    }
+    
+    /**
+     * Returns the average amount per second over the whole window.
+     */
+    public double getRate() {
+        return getRate(amounts.length() - 1);
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * This timing scheme adjusts the delay between command releases on its own,
+ * based on how the server is coping with what we send it. It works much like
+ * TCP congestion control (additive increase, multiplicative decrease):
+ *  1. Every so often while commands are being released (once we have logged
+ *     in), a PING with a unique payload is sent straight to the server and
+ *     the round trip time is measured from the matching PONG.
+ *  2. Each time a PONG comes back quickly, the delay is shortened by a small,
+ *     fixed step.
+ *  3. Each time the server shows signs of being overloaded, the delay is
+ *     multiplied by the backoff factor. Signs of overload are a slow PONG, a
+ *     PING that is never answered, ERR_TOOMANYTARGETS, ircu's "target change
+ *     too fast" numeric and RPL_TRYAGAIN.
+ *
+ * The delay never goes below the minimum or above the maximum given to this
+ * scheme. It starts at the maximum, since that is the safest place to be
+ * before we know anything about the server.
+ *
+ * This needs the parser to see PONG replies and numerics, so stop it with
+ * stopTiming() once you are done with it so it lets go of its listeners.
+ */
+
+package com.packethammer.vaquero.outbound.outboundprocessing;
+
+import com.packethammer.vaquero.outbound.commands.server.IRCPingCommand;
+import com.packethammer.vaquero.parser.IRCEventListener;
+import com.packethammer.vaquero.parser.IRCParser;
+import com.packethammer.vaquero.parser.events.IRCEvent;
+import com.packethammer.vaquero.parser.events.server.IRCPongEvent;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public class AdaptiveTimingScheme extends ScheduledTimingScheme {
+    /** ircu's ERR_TARGETTOOFAST, which isn't part of any RFC */
+    public static final int ERR_TARGETTOOFAST = 439;
+    /** The prefix of the payload we use in our lag PINGs */
+    public static final String PING_PREFIX = "VQLAG";
+
+    private IRCParser parser;
+    private IRCEventListener pongListener;
+    private IRCEventListener numericListener;
+
+    private long minimumDelay;
+    private long maximumDelay;
+    private long currentDelay;
+
+    private long decreaseStep = 100;
+    private double backoffFactor = 2.0;
+    private long pingInterval = 10000;
+    private long pingTimeout = 15000;
+    private long lagThreshold = 3000;
+
+    private int pingSequence;
+    private String outstandingPing; // payload of the PING we are waiting on, or null
+    private long outstandingPingTime;
+    private long lastPingTime;
+    private long lastRoundTripTime = -1;
+    private int overloadCount;
+
+    /**
+     * Initializes this timing scheme with the parser to watch for server
+     * feedback and the bounds of the delay between each command release.
+     *
+     * @param parser The parser for the connection we are sending commands on.
+     * @param minimumDelay The shortest delay in milliseconds we will ever put between each command release.
+     * @param maximumDelay The longest delay in milliseconds we will ever put between each command release.
+     * @throws IllegalArgumentException If the minimum is negative or greater than the maximum.
+     */
+    public AdaptiveTimingScheme(IRCParser parser, long minimumDelay, long maximumDelay) {
+        if(minimumDelay < 0 || minimumDelay > maximumDelay)
+            throw new IllegalArgumentException("The minimum delay must be between 0 and the maximum delay!");
+
+        this.parser = parser;
+        this.minimumDelay = minimumDelay;
+        this.maximumDelay = maximumDelay;
+        this.currentDelay = maximumDelay;
+
+        hookEvents();
+    }
+
+    /**
+     * Hooks the events we use to measure how the server is doing.
+     */
+    private void hookEvents() {
+        pongListener = new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                // the payload is the last argument (servers reply with PONG <server> :<payload>)
+                String payload = e.getArg(e.parametersCount() - 1);
+                if(payload != null && payload.startsWith(PING_PREFIX))
+                    pongReceived(payload, e.getArrival().getTime());
+            }
+        };
+        parser.getEventDistributor().addHardEventListener(IRCPongEvent.class, pongListener);
+
+        numericListener = new IRCEventListener() {
+            public void onEvent(IRCEvent e) {
+                int numeric = ((IRCNumericEvent) e).getNumeric();
+                if(numeric == IRCNumericEvent.ERR_TOOMANYTARGETS || numeric == ERR_TARGETTOOFAST || numeric == IRCNumericEvent.RPL_TRYAGAIN)
+                    overloaded();
+            }
+        };
+        parser.getEventDistributor().addDynamicEventListener(IRCNumericEvent.class, numericListener);
+    }
+
+    protected synchronized long getReleaseDelay() {
+        return currentDelay;
+    }
+
+    protected void beforeRelease() {
+        checkPing();
+    }
+
+    /**
+     * Sends a lag PING if one is due, and treats a PING that has gone
+     * unanswered for too long as a sign of overload. The decision is made
+     * under this scheme's lock, but the PING is written outside it, so a
+     * slow connection doesn't hold up anything else that needs the lock.
+     */
+    private void checkPing() {
+        String ping = takeDuePing();
+
+        // this goes straight out so the measurement isn't skewed by our own queue
+        if(ping != null)
+            this.getDestination().commandReleased(new EncapsulatedIRCCommand(new IRCPingCommand(ping)));
+    }
+
+    /**
+     * Determines if a lag PING is due, and if so, records it as outstanding.
+     *
+     * @return The payload of the PING to send, or null if none is due.
+     */
+    private synchronized String takeDuePing() {
+        long now = System.currentTimeMillis();
+
+        if(outstandingPing != null) {
+            if(now - outstandingPingTime > pingTimeout) {
+                // the server never answered; either it's drowning or it dropped our lines
+                outstandingPing = null;
+                overloaded();
+            } else {
+                return null; // still waiting on it
+            }
+        }
+
+        // servers won't answer a PING until we've finished logging in
+        if(parser.getServerContext().isFullyConnected() && now - lastPingTime >= pingInterval) {
+            outstandingPing = PING_PREFIX + (pingSequence++);
+            outstandingPingTime = now;
+            lastPingTime = now;
+            return outstandingPing;
+        }
+
+        return null;
+    }
+
+    /**
+     * Occurs when the reply to one of our lag PINGs arrives.
+     */
+    private synchronized void pongReceived(String payload, long arrival) {
+        if(!payload.equals(outstandingPing))
+            return; // stale or not ours
+
+        outstandingPing = null;
+        lastRoundTripTime = arrival - outstandingPingTime;
+
+        if(lastRoundTripTime > lagThreshold) {
+            overloaded();
+        } else {
+            // additive increase of the release rate
+            currentDelay = Math.max(minimumDelay, currentDelay - decreaseStep);
+        }
+    }
+
+    /**
+     * Occurs when the server shows signs of being overloaded.
+     */
+    private synchronized void overloaded() {
+        overloadCount++;
+
+        // multiplicative decrease of the release rate
+        currentDelay = Math.min(maximumDelay, Math.max(currentDelay + 1, (long) (currentDelay * backoffFactor)));
+    }
+
+    /**
+     * Stops this timing scheme and unhooks it from the parser.
+     */
+    public void stopTiming() {
+        super.stopTiming();
+        pongListener.unregisterMe();
+        numericListener.unregisterMe();
+    }
+
+    /**
+     * Returns the delay in milliseconds currently being put between each
+     * command release.
+     */
+    public synchronized long getCurrentDelay() {
+        return currentDelay;
+    }
+
+    /**
+     * Returns the round trip time of the last lag PING that was answered.
+     *
+     * @return Round trip time in milliseconds, or -1 if none has been answered yet.
+     */
+    public synchronized long getLastRoundTripTime() {
+        return lastRoundTripTime;
+    }
+
+    /**
+     * Returns the number of times the server has shown signs of being
+     * overloaded.
+     */
+    public synchronized int getOverloadCount() {
+        return overloadCount;
+    }
+
+    /**
+     * Returns the number of milliseconds the delay is shortened by each time
+     * a lag PING comes back quickly.
+     */
+    public synchronized long getDecreaseStep() {
+        return decreaseStep;
+    }
+
+    /**
+     * Sets the number of milliseconds the delay is shortened by each time
+     * a lag PING comes back quickly. The default is 100.
+     */
+    public synchronized void setDecreaseStep(long decreaseStep) {
+        this.decreaseStep = decreaseStep;
+    }
+
+    /**
+     * Returns the factor the delay is multiplied by when the server shows
+     * signs of being overloaded.
+     */
+    public synchronized double getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    /**
+     * Sets the factor the delay is multiplied by when the server shows
+     * signs of being overloaded. The default is 2.
+     *
+     * @throws IllegalArgumentException If the factor is not greater than 1.
+     */
+    public synchronized void setBackoffFactor(double backoffFactor) {
+        if(backoffFactor <= 1.0)
+            throw new IllegalArgumentException("The backoff factor must be greater than 1!");
+        this.backoffFactor = backoffFactor;
+    }
+
+    /**
+     * Returns the minimum number of milliseconds between lag PINGs.
+     */
+    public synchronized long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Sets the minimum number of milliseconds between lag PINGs. PINGs are
+     * only sent while commands are being released. The default is 10000.
+     */
+    public synchronized void setPingInterval(long pingInterval) {
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Returns the number of milliseconds we wait for a PONG before assuming
+     * it is never coming.
+     */
+    public synchronized long getPingTimeout() {
+        return pingTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds we wait for a PONG before assuming
+     * it is never coming. The default is 15000.
+     */
+    public synchronized void setPingTimeout(long pingTimeout) {
+        this.pingTimeout = pingTimeout;
+    }
+
+    /**
+     * Returns the round trip time in milliseconds above which we consider
+     * the server to be lagging.
+     */
+    public synchronized long getLagThreshold() {
+        return lagThreshold;
+    }
+
+    /**
+     * Sets the round trip time in milliseconds above which we consider the
+     * server to be lagging. The default is 3000.
+     */
+    public synchronized void setLagThreshold(long lagThreshold) {
+        this.lagThreshold = lagThreshold;
+    }
+}
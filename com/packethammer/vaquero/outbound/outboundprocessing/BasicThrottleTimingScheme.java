@@ -5,7 +5,7 @@
 
 package com.packethammer.vaquero.outbound.outboundprocessing;
 
-public class BasicThrottleTimingScheme extends TimingScheme {
+public class BasicThrottleTimingScheme extends ScheduledTimingScheme {
     private long throttleRate;
     
     /**
@@ -18,15 +18,7 @@ public class BasicThrottleTimingScheme extends TimingScheme {
         this.throttleRate = throttleRate;
     }
     
-    public synchronized void run() {
-        while(!this.isStopped()) {
-            this.releaseCommand();
-            
-            try {
-                this.wait(throttleRate);
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
-        }
+    protected long getReleaseDelay() {
+        return throttleRate;
     }
 }
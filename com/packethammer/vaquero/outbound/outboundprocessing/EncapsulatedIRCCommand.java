@@ -10,9 +10,25 @@ import com.packethammer.vaquero.outbound.commands.IRCCommand;
 import java.util.Date;
 
 public class EncapsulatedIRCCommand {
+    /** When the command was given to the command manager */
+    public static final int MARK_SUBMITTED = 0;
+    /** When the command came out of the pre-wait filter chain */
+    public static final int MARK_PRE_WAIT_FILTERED = 1;
+    /** When the command went into the wait queue, after the command optimizers */
+    public static final int MARK_QUEUED = 2;
+    /** When the timing scheme released the command from the wait queue */
+    public static final int MARK_RELEASED = 3;
+    /** When the command came out of the pre-release filter chain */
+    public static final int MARK_PRE_RELEASE_FILTERED = 4;
+    /** When the command was written to the connection */
+    public static final int MARK_WRITTEN = 5;
+    private static final int MARK_COUNT = 6;
+    
     private IRCCommand command;
     private Date creationTime;
+    private Date deadline;
     private Vector<OutboundCommandEventListener> listeners;
+    private long[] marks;
     
     /**
      * Initializes with the IRC command to be sent.
@@ -23,6 +39,7 @@ public class EncapsulatedIRCCommand {
         this.setCommand(command);
         this.creationTime = new Date();
         listeners = new Vector();
+        marks = new long[MARK_COUNT];
     }
 
     /**
@@ -70,4 +87,84 @@ public class EncapsulatedIRCCommand {
         return creationTime;
     }
     
+    /**
+     * Returns the time after which this command is no longer worth sending.
+     *
+     * @return The deadline, or null if this command has no deadline of its own.
+     */
+    public Date getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the time after which this command is no longer worth sending. If
+     * the command leaves the wait queue after this time, it is discarded
+     * instead of being sent.
+     *
+     * @param deadline The deadline, or null to use the command manager's default for this type of command.
+     */
+    public void setDeadline(Date deadline) {
+        this.deadline = deadline;
+    }
+    
+    /**
+     * Sets the deadline of this command relative to its creation time.
+     *
+     * @param timeToLive The number of milliseconds after creation that this command is still worth sending.
+     * @see #setDeadline(Date)
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.setDeadline(new Date(this.getCreationTime().getTime() + timeToLive));
+    }
+    
+    /**
+     * Determines if this command's own deadline has passed.
+     *
+     * @param now The current time.
+     * @return True if there is a deadline and it has passed, false otherwise.
+     */
+    public boolean isExpired(Date now) {
+        return this.getDeadline() != null && now.after(this.getDeadline());
+    }
+    
+    /**
+     * Records that the command has reached a point in the outbound system
+     * right now. These are used to measure how long the command spends in
+     * each part of the system.
+     *
+     * @param mark One of the MARK_ constants.
+     */
+    public void mark(int mark) {
+        marks[mark] = System.nanoTime();
+    }
+    
+    /**
+     * Takes on the deadline and time marks of a command that has been merged
+     * into this one by a command optimizer, so the merged command is neither
+     * kept past the soonest deadline of what went into it nor measured as
+     * if it had only just been submitted. The earliest deadline and the
+     * earliest time of each mark are kept.
+     *
+     * @param merged The command merged into this one.
+     */
+    public void absorb(EncapsulatedIRCCommand merged) {
+        if(merged.getDeadline() != null && (this.getDeadline() == null || merged.getDeadline().before(this.getDeadline())))
+            this.setDeadline(merged.getDeadline());
+        
+        for(int x = 0; x < MARK_COUNT; x++) {
+            if(merged.marks[x] != 0 && (this.marks[x] == 0 || merged.marks[x] - this.marks[x] < 0))
+                this.marks[x] = merged.marks[x];
+        }
+    }
+    
+    /**
+     * Returns when the command reached a point in the outbound system, in
+     * terms of System.nanoTime().
+     *
+     * @param mark One of the MARK_ constants.
+     * @return The time, or 0 if the command has not reached (or skipped) that point.
+     */
+    public long getMark(int mark) {
+        return marks[mark];
+    }
 }
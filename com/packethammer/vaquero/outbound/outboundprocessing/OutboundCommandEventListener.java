@@ -32,6 +32,15 @@ public abstract class OutboundCommandEventListener {
         
     }
     
+    /**
+     * Occurs when the command left the wait queue after its deadline had 
+     * passed, so it was thrown out instead of being sent. By default, this
+     * simply calls onDrop().
+     */
+    public void onExpire() {
+        this.onDrop();
+    }
+    
     /**
      * Occurs when this command has successfully been sent out (it's been
      * sent to the remote server).
@@ -0,0 +1,132 @@
+/**
+ * This is a timing scheme that does not need a thread of its own. Rather
+ * than looping and sleeping between releases, it schedules each release on a
+ * WheelTimer (the one shared by the whole process, unless told otherwise),
+ * and goes idle when the wait queue is empty until the queue tells it a new
+ * command has arrived. This way, any number of clients can be throttled
+ * without any more threads than the timer already has.
+ *
+ * Subclasses decide how long to wait after each release. The first command
+ * given to an idle scheme is released as soon as that delay has passed since
+ * the last release, which is right away if the queue has been quiet.
+ */
+
+package com.packethammer.vaquero.outbound.outboundprocessing;
+
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
+
+public abstract class ScheduledTimingScheme extends TimingScheme {
+    private WheelTimer timer;
+    private Timeout pendingRelease;
+    private boolean scheduled;  // true while a release is waiting on the timer (or running)
+    private long nextReleaseTime;
+    private Runnable releaseTask;
+
+    /**
+     * Initializes this timing scheme to use the timer shared by the whole
+     * process.
+     */
+    public ScheduledTimingScheme() {
+        this(WheelTimer.getSharedTimer());
+    }
+
+    /**
+     * Initializes this timing scheme to use the given timer.
+     *
+     * @param timer The timer to schedule command releases on.
+     */
+    public ScheduledTimingScheme(WheelTimer timer) {
+        this.timer = timer;
+        this.releaseTask = new Runnable() {
+            public void run() {
+                scheduledRelease();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of milliseconds to wait after releasing a command
+     * before the next one may be released.
+     */
+    protected abstract long getReleaseDelay();
+
+    /**
+     * Occurs each time a release comes due, before a command is pulled from
+     * the source. This does nothing by default.
+     */
+    protected void beforeRelease() {
+    }
+
+    /**
+     * Starts this timing scheme. Unlike other timing schemes, this does not
+     * spawn a new thread; it simply releases whatever is already waiting.
+     */
+    public void start() {
+        commandAvailable();
+    }
+
+    /**
+     * Does nothing, since the timer does the work a thread would normally
+     * do.
+     */
+    public void run() {
+    }
+
+    public synchronized void commandAvailable() {
+        if(this.isStopped() || scheduled)
+            return; // either we're dead, or a release is already on its way
+
+        scheduled = true;
+        pendingRelease = timer.schedule(releaseTask, Math.max(0, nextReleaseTime - System.currentTimeMillis()));
+    }
+
+    /**
+     * Occurs when the timer tells us a release is due. Releases one command
+     * and schedules the next release, or goes idle if there's nothing to
+     * release.
+     */
+    private void scheduledRelease() {
+        beforeRelease();
+
+        EncapsulatedIRCCommand command;
+        synchronized(this) {
+            // the poll and going idle have to happen together, so that a
+            // command arriving in between is sure to see us idle
+            if(this.isStopped() || (command = this.getSource().pollNextCommand()) == null) {
+                scheduled = false;
+                return;
+            }
+        }
+
+        this.getDestination().commandReleased(command);
+
+        synchronized(this) {
+            long delay = getReleaseDelay();
+            nextReleaseTime = System.currentTimeMillis() + delay;
+
+            if(this.isStopped())
+                scheduled = false;
+            else
+                pendingRelease = timer.schedule(releaseTask, delay);
+        }
+    }
+
+    /**
+     * Stops this timing scheme and cancels any release waiting on the timer.
+     */
+    public synchronized void stopTiming() {
+        super.stopTiming();
+        scheduled = false;
+
+        if(pendingRelease != null)
+            pendingRelease.cancel();
+    }
+
+    /**
+     * Returns the timer command releases are scheduled on.
+     */
+    public WheelTimer getTimer() {
+        return timer;
+    }
+}
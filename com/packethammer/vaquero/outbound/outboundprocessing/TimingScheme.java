@@ -56,6 +56,14 @@ public abstract class TimingScheme extends Thread {
         destination.commandReleased(command);
     }
     
+    /**
+     * Occurs when the source of commands has just been given a new command.
+     * Timing schemes that block in releaseCommand() don't need this, so it
+     * does nothing by default.
+     */
+    public void commandAvailable() {
+    }
+    
     /**
      * Starts the command-pulling process for command release. This method is
      * spawned as part of a new thread, so we can perform blocking operations
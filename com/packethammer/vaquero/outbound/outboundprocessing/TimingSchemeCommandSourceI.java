@@ -10,4 +10,11 @@ public interface TimingSchemeCommandSourceI {
      * the source may block until a new command is available.
      */
     public EncapsulatedIRCCommand getNextCommand();
+    
+    /**
+     * Requests a command from the source without ever blocking.
+     *
+     * @return The next command, or null if the source has no command to give right now.
+     */
+    public EncapsulatedIRCCommand pollNextCommand();
 }
@@ -16,11 +16,14 @@ package com.packethammer.vaquero.outbound.outboundprocessing;
 import java.util.Iterator;
 import java.util.Vector;
 import com.packethammer.vaquero.outbound.CommandManager;
+import com.packethammer.vaquero.outbound.metrics.OutboundMetricsSinkI;
 
 public class WaitQueue {
     private Vector<CommandOptimizer> commandOptimizers;
     private Vector<EncapsulatedIRCCommand> commandQueue;
     private CommandRelease release;
+    private TimingScheme timingScheme;
+    private volatile OutboundMetricsSinkI metricsSink;
     
     /** Creates a new instance of WaitQueue */
     public WaitQueue() {
@@ -95,21 +98,92 @@ public class WaitQueue {
         
      */
     public void enqueue(EncapsulatedIRCCommand command) {
-        if(CommandManager.runCommandThroughFilterChain(this.getCommandOptimizers(), command)) {
+        OutboundMetricsSinkI metrics = this.metricsSink;
+        Class commandClass = command.getCommand().getClass();
+        
+        if(CommandManager.runCommandThroughFilterChain(this.getCommandOptimizers(), command, metrics)) {
+            if(metrics != null)
+                metrics.recordCommandFinished(commandClass, OutboundMetricsSinkI.FATE_OPTIMIZED);
             return; // dropped
         }
         
         // we've sent the command through the optimizers, so now we add it to the queue
+        command.mark(EncapsulatedIRCCommand.MARK_QUEUED);
         commandQueue.add(0, command);
+        if(metrics != null)
+            metrics.recordQueueDepth(commandQueue.size());
         
         release.newCommandInserted();
     }
     
+    /**
+     * Takes a command back out of the queue before it is released, and tells
+     * its listeners it was dropped. This does nothing if the command is not
+     * in the queue (it may have been released already, or dropped by an
+     * optimizer).
+     *
+     * @param command The encapsulated command to withdraw.
+     * @return True if the command was in the queue and has been withdrawn.
+     */
+    public boolean withdraw(EncapsulatedIRCCommand command) {
+        boolean removed;
+        synchronized(commandQueue) {
+            removed = commandQueue.remove(command);
+        }
+        
+        if(!removed)
+            return false;
+        
+        OutboundMetricsSinkI metrics = this.metricsSink;
+        if(metrics != null && command.getCommand() != null)
+            metrics.recordCommandFinished(command.getCommand().getClass(), OutboundMetricsSinkI.FATE_DROPPED);
+        
+        for(OutboundCommandEventListener listener : command.getListeners())
+            listener.onDrop();
+        
+        return true;
+    }
+    
+    /**
+     * Reports a queued command that a command optimizer has taken out of
+     * the queue, either because it was merged into another command or
+     * because a newer command replaced it. Optimizers should call this for
+     * each one, so the metrics sink doesn't go on counting it as waiting.
+     *
+     * @param command The encapsulated command that was taken out.
+     */
+    public void commandOptimizedAway(EncapsulatedIRCCommand command) {
+        OutboundMetricsSinkI metrics = this.metricsSink;
+        if(metrics != null && command.getCommand() != null)
+            metrics.recordCommandFinished(command.getCommand().getClass(), OutboundMetricsSinkI.FATE_OPTIMIZED);
+    }
+    
+    /**
+     * Sets where the wait queue reports the outcome of each command
+     * optimizer and the depth of the queue. The command manager sets this
+     * for you.
+     *
+     * @param metricsSink The sink to report to, or null to not report.
+     */
+    public void setMetricsSink(OutboundMetricsSinkI metricsSink) {
+        this.metricsSink = metricsSink;
+    }
+    
+    /**
+     * Returns where the wait queue reports to.
+     *
+     * @return The metrics sink, or null if there is none.
+     */
+    public OutboundMetricsSinkI getMetricsSink() {
+        return metricsSink;
+    }
+    
     /**
      * Gives a timing scheme to the wait queue to configure for usage and start
      * up.
      */
     public void useTimingScheme(TimingScheme s) {
+        timingScheme = s;
         s.setSource(release);
         s.start();
     }
@@ -126,8 +200,14 @@ public class WaitQueue {
         }
         
         // called when a new command is added to the wait queue -- this means we may have a new command available to send
-        public synchronized void newCommandInserted() {
-            this.notifyAll();
+        public void newCommandInserted() {
+            synchronized(this) {
+                this.notifyAll();
+            }
+            
+            // outside of our lock, since scheduled timing schemes may release the command right here
+            if(timingScheme != null)
+                timingScheme.commandAvailable();
         }
         
         public synchronized EncapsulatedIRCCommand getNextCommand() {
@@ -142,5 +222,15 @@ public class WaitQueue {
             // there's at least one command in the queue -- remove and return it
             return parent.getCommandQueue().remove(parent.getCommandQueue().size() - 1);            
         } 
+        
+        public EncapsulatedIRCCommand pollNextCommand() {
+            Vector<EncapsulatedIRCCommand> queue = parent.getCommandQueue();
+            synchronized(queue) {
+                if(queue.isEmpty())
+                    return null;
+                
+                return queue.remove(queue.size() - 1);
+            }
+        }
     }
 }
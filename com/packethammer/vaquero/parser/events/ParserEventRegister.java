@@ -62,6 +62,12 @@ import com.packethammer.vaquero.parser.events.server.numeric.error.NicknameInUse
 import com.packethammer.vaquero.parser.events.server.numeric.error.NoNicknameGivenError;
 import com.packethammer.vaquero.parser.events.server.numeric.error.RestrictedNicknameError;
 import com.packethammer.vaquero.parser.events.server.numeric.error.UnavailableResourceError;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.BanListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfBanListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfExceptListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfInviteListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.ExceptListReply;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.InviteListReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.ChannelCreationReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.ChannelModeReply;
 import com.packethammer.vaquero.parser.events.server.numeric.reply.ChannelsFormedReply;
@@ -185,6 +191,12 @@ public class ParserEventRegister extends EventRegister {
                     addEventClass(EndOfNamesReply.class);
                     addEventClass(ChannelModeReply.class);
                     addEventClass(ChannelCreationReply.class);
+                    addEventClass(BanListReply.class);
+                    addEventClass(EndOfBanListReply.class);
+                    addEventClass(ExceptListReply.class);
+                    addEventClass(EndOfExceptListReply.class);
+                    addEventClass(InviteListReply.class);
+                    addEventClass(EndOfInviteListReply.class);
                     addEventClass(WhoisUserReply.class);
                     addEventClass(WhoisChannelsReply.class);
                     addEventClass(WhoisAccountReply.class);
@@ -0,0 +1,19 @@
+/**
+ * RPL_BANLIST
+ * "<channel> <banmask> [<setter> <time set>]"
+ *
+ * One of the bans of a channel, given in reply to MODE #channel +b.
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class BanListReply extends ListModeReply {
+    
+    /** Creates a new instance of BanListReply */
+    public BanListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_BANLIST;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * RPL_ENDOFBANLIST
+ * "<channel> <info text>"
+ *
+ * Terminates the ban list of a channel.
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class EndOfBanListReply extends EndOfListModeReply {
+    
+    /** Creates a new instance of EndOfBanListReply */
+    public EndOfBanListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_ENDOFBANLIST;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * RPL_ENDOFEXCEPTLIST
+ * "<channel> <info text>"
+ *
+ * Terminates the ban exception list of a channel.
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class EndOfExceptListReply extends EndOfListModeReply {
+    
+    /** Creates a new instance of EndOfExceptListReply */
+    public EndOfExceptListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_ENDOFEXCEPTLIST;
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * RPL_ENDOFINVITELIST
+ * "<channel> <info text>"
+ *
+ * Terminates the invite exception list of a channel.
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class EndOfInviteListReply extends EndOfListModeReply {
+    
+    /** Creates a new instance of EndOfInviteListReply */
+    public EndOfInviteListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_ENDOFINVITELIST;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * This is the base of the replies that end a listing of the masks of a 
+ * listable channel mode, such as the bans of a channel.
+ * "<channel> <info text>"
+ *
+ * @see ListModeReply
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public abstract class EndOfListModeReply extends IRCNumericEvent {
+    
+    /**
+     * Returns the channel the list was for.
+     */
+    public String getChannel() {
+        return this.getNumericArg(0);
+    }
+    
+    /**
+     * Returns something to the effect of "end of channel ban list."
+     */
+    public String getInfo() {
+        return this.getNumericArg(1);
+    }
+    
+    public boolean validate() {
+        return this.numericArgumentCount() >= 1;
+    }
+    
+    public String toString() {
+        return super.toString() + ", CHAN:" + this.getChannel() + ", INFO:" + this.getInfo();
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * RPL_EXCEPTLIST
+ * "<channel> <exceptionmask> [<setter> <time set>]"
+ *
+ * One of the ban exceptions of a channel, given in reply to MODE #channel +e
+ * (or whichever mode the server names in the EXCEPTS ISUPPORT token).
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class ExceptListReply extends ListModeReply {
+    
+    /** Creates a new instance of ExceptListReply */
+    public ExceptListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_EXCEPTLIST;
+    }
+}
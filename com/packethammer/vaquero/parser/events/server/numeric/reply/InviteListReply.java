@@ -0,0 +1,20 @@
+/**
+ * RPL_INVITELIST
+ * "<channel> <invitemask> [<setter> <time set>]"
+ *
+ * One of the invite exceptions of a channel, given in reply to MODE #channel +I
+ * (or whichever mode the server names in the INVEX ISUPPORT token).
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+public class InviteListReply extends ListModeReply {
+    
+    /** Creates a new instance of InviteListReply */
+    public InviteListReply() {
+    }
+    
+    public int getHandledNumeric() {
+        return this.RPL_INVITELIST;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * This is the base of the replies that list the masks of a listable channel
+ * mode, such as the bans of a channel. The server sends one reply for each
+ * mask, then a reply to end the list.
+ * "<channel> <mask> [<setter> <time set>]"
+ *
+ * The setter and time are not part of RFC2812, but nearly every server sends
+ * them.
+ *
+ * @see EndOfListModeReply
+ */
+
+package com.packethammer.vaquero.parser.events.server.numeric.reply;
+
+import java.util.Date;
+import com.packethammer.vaquero.parser.events.server.numeric.IRCNumericEvent;
+
+public abstract class ListModeReply extends IRCNumericEvent {
+    
+    /**
+     * Returns the channel this list is for.
+     */
+    public String getChannel() {
+        return this.getNumericArg(0);
+    }
+    
+    /**
+     * Returns the mask in the list.
+     */
+    public String getMask() {
+        return this.getNumericArg(1);
+    }
+    
+    /**
+     * Returns who set the mask (usually a nickname or hostmask, but may be a 
+     * server name), or null if the server didn't say.
+     */
+    public String getSetter() {
+        return this.getNumericArg(2);
+    }
+    
+    /**
+     * Returns the time the mask was set, or null if the server didn't say.
+     */
+    public Date getSetTime() {
+        String time = this.getNumericArg(3);
+        if(time == null)
+            return null;
+        
+        try {
+            // multiply by 1000 so it is in milliseconds (date takes milliseconds)
+            return new Date(Long.parseLong(time) * 1000);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+    
+    public boolean validate() {
+        return this.numericArgumentCount() >= 2;
+    }
+    
+    public String toString() {
+        return super.toString() + ", CHAN:" + this.getChannel() + ", MASK:" + this.getMask() + ", SETTER:" + this.getSetter() + ", TIME:" + this.getSetTime();
+    }
+}
@@ -69,13 +69,18 @@ public class NamesReply extends IRCNumericEvent {
     public Map<String,ChannelNickPrefixModeDefinition> getNicknames(IRCServerISupport iSupport) {
         Map<String,ChannelNickPrefixModeDefinition> map = new LinkedHashMap();
         for(String rawNick : this.getUncleanNicknames()) {
+            ChannelNickPrefixModeDefinition prefix = null;
             for(ChannelNickPrefixModeDefinition def : iSupport.getNickPrefixModes()) {
                 if(new Character(rawNick.charAt(0)).equals(def.getPrefix())) {
-                    map.put(rawNick.substring(1), def);
+                    prefix = def;
                     break;
                 }
-                map.put(rawNick, null);
             }
+            
+            if(prefix != null)
+                map.put(rawNick.substring(1), prefix);
+            else
+                map.put(rawNick, null);
         }
         return map;
     }
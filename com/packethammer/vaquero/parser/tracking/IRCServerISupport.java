@@ -58,11 +58,14 @@ public class IRCServerISupport {
     private int maxKickMessageLength = -1; // for KICKLEN
     private int maxChannelLength = -1; // for CHANNELLEN
     private int maxTargets = -1; // for MAXTARGETS
+    private HashMap<String, Integer> maxTargetsByCommand; // for TARGMAX
     private String networkName; // for NETWORK
     private String caseMapping; // for CASEMAPPING
     private boolean whoXSupported; // for WHOX (ircu)
     private boolean cPrivmsgSupported; // for CPRIVMSG (ircu)
     private boolean cNoticeSupported; // for CNOTICE (ircu)
+    private String listExtensions; // for ELIST
+    private boolean safeListSupported; // for SAFELIST
     private CasemappingDefinition casemappingDefinition; // for CASEMAPPING (yes, a second one)
     
     public IRCServerISupport() {
@@ -71,6 +74,7 @@ public class IRCServerISupport {
         nickPrefixModes = new Vector();
         channelTypes = new HashSet();
         channelModes = new HashSet();
+        maxTargetsByCommand = new HashMap();
         casemappingDefinition = new CasemappingDefinition();
         
         // add default channel prefixes
@@ -287,7 +291,8 @@ public class IRCServerISupport {
                 this.caseMapping = val;
                 this.casemappingDefinition.setCasemappingConstant(CasemappingDefinition.getCasemappingConstantByName(val));
             } else if(key.equals("ELIST")) {
-                // don't know enough about how this works to implement it yet
+                // each letter is a kind of condition LIST accepts, ex: "CMNTU"
+                this.listExtensions = val.toUpperCase();
             } else if(key.equals("TOPICLEN")) {
                 if(StringOperations.isInteger(val))
                     this.maxTopicLength = Integer.parseInt(val);
@@ -300,6 +305,18 @@ public class IRCServerISupport {
             } else if(key.equals("MAXTARGETS")) {
                 if(StringOperations.isInteger(val))
                     this.maxTargets = Integer.parseInt(val);
+            } else if(key.equals("TARGMAX")) {
+                // format is "cmd:num[,cmd:num,...]", where an empty num means no limit
+                // ex: PRIVMSG:4,NOTICE:4,JOIN:,KICK:1
+                for(String limitExpression : val.split(",")) {
+                    String[] split = limitExpression.split(":", -1);
+                    if(split.length == 2) {
+                        if(split[1].length() == 0)
+                            maxTargetsByCommand.put(split[0].toUpperCase(), Integer.MAX_VALUE);
+                        else if(StringOperations.isInteger(split[1]))
+                            maxTargetsByCommand.put(split[0].toUpperCase(), Integer.parseInt(split[1]));
+                    }
+                }
             }
         } else {
             // handle valueless keys
@@ -311,12 +328,20 @@ public class IRCServerISupport {
                 /* see STATUSMSG
                 this.parseISupport("STATUSMSG", "+");
                  */
+            } else if(key.equals("EXCEPTS")) {
+                // with no value, the ban exception mode is the usual 'e'
+                this.parseISupport("EXCEPTS", "e");
+            } else if(key.equals("INVEX")) {
+                // likewise, the invite exception mode is the usual 'I'
+                this.parseISupport("INVEX", "I");
             } else if(key.equals("WHOX")) {
                 this.whoXSupported = true;
             } else if(key.equals("CPRIVMSG")) {
                 this.cPrivmsgSupported = true;
             } else if(key.equals("CNOTICE")) {
                 this.cNoticeSupported = true;
+            } else if(key.equals("SAFELIST")) {
+                this.safeListSupported = true;
             }
         }
     }
@@ -582,6 +607,32 @@ public class IRCServerISupport {
         return this.getMaxTargets() > -1;
     }
     
+    /**
+     * Determines the maximum number of targets that may be given to a 
+     * particular command, as announced by TARGMAX. For PRIVMSG and NOTICE,
+     * MAXTARGETS is used if TARGMAX doesn't mention them.
+     *
+     * @param command The command name, such as "JOIN" or "KICK".
+     * @return The maximum number of targets, Integer.MAX_VALUE if there is no limit, or -1 if it is unknown.
+     */
+    public int getMaxTargets(String command) {
+        Integer max = maxTargetsByCommand.get(command.toUpperCase());
+        if(max != null)
+            return max;
+        
+        if(command.equalsIgnoreCase("PRIVMSG") || command.equalsIgnoreCase("NOTICE"))
+            return this.getMaxTargets();
+        
+        return -1;
+    }
+    
+    /**
+     * @see #getMaxTargets(String)
+     */
+    public boolean isMaxTargetsKnown(String command) {
+        return this.getMaxTargets(command) > -1;
+    }
+    
     /**
      * Returns the general network name that this server is a member of. Returns
      * null if it is unknown.
@@ -662,6 +713,46 @@ public class IRCServerISupport {
         return cNoticeSupported;
     }
     
+    /**
+     * Returns the kinds of conditions this server lets us put in a LIST
+     * command, as given by ELIST. Each letter is one kind of condition:
+     *   C - channel creation time, ex: "C<60" (created within the last hour)
+     *   M - a mask the channel name must match, ex: "*chat*"
+     *   N - a mask the channel name must not match, ex: "!*chat*"
+     *   T - topic change time, ex: "T>60" (topic changed over an hour ago)
+     *   U - user count, ex: ">10" or "<100"
+     *
+     * @return The ELIST letters in upper case, or an empty string if the server named none.
+     */
+    public String getListExtensions() {
+        if(listExtensions == null)
+            return "";
+    
+        return listExtensions;
+    }
+    
+    /**
+     * Determines if this server accepts a kind of LIST condition.
+     *
+     * @param extension The ELIST letter of the condition (see getListExtensions()).
+     * @return True if the server accepts that kind of condition.
+     * @see #getListExtensions()
+     */
+    public boolean isListExtensionSupported(char extension) {
+        return getListExtensions().indexOf(Character.toUpperCase(extension)) != -1;
+    }
+    
+    /**
+     * Determines if this server sends LIST replies only as fast as we can
+     * take them (SAFELIST). Where it doesn't, asking for the whole channel
+     * list of a large network can get us disconnected for flooding ourselves.
+     *
+     * @return True if SAFELIST is supported, false otherwise.
+     */
+    public boolean isSafeListSupported() {
+        return safeListSupported;
+    }
+    
     public String toString() {
         String r = "";
         r += "Casemapping: " + this.getCaseMapping() + "\n";
@@ -674,6 +765,7 @@ public class IRCServerISupport {
         r += "Max. kick message length: " + this.getMaxKickMessageLength() + "\n";
         r += "Max. nickname length: " + this.getMaxNickLength() + "\n";
         r += "Max. targets: " + this.getMaxTargets() + "\n";
+        r += "Max. targets by command: " + maxTargetsByCommand + "\n";
         r += "Max. topic length: " + this.getMaxTopicLength() + "\n";
         r += "Network name: " + this.getNetworkName() + "\n";
         r += "Nickname prefix modes: " + this.getNickPrefixModes() + "\n";
@@ -0,0 +1,87 @@
+/**
+ * Measures how much memory the tracker uses for each channel membership. It
+ * fills one channel from NAMES replies so that every user exists, then puts
+ * the same users in a second channel; the memory that second channel takes,
+ * divided by its members, is the cost of a membership alone.
+ *
+ * Usage: MembershipMemoryBenchmark [members]
+ */
+
+package com.packethammer.vaquero.testing;
+
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.TrackerSettings;
+import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.outboundprocessing.BasicThrottleTimingScheme;
+import com.packethammer.vaquero.parser.IRCParser;
+
+public class MembershipMemoryBenchmark {
+    private static final int NAMES_PER_LINE = 40;
+
+    public static void main(String[] args) throws Exception {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        IRCParser parser = new IRCParser("irc.example.com", 6667);
+        parser.getServerContext().setMyTrackedNickname("me");
+        Dispatcher dispatcher = new Dispatcher(new BasicThrottleTimingScheme(1000), new OutboundRawIRCLineSenderI() {
+            public void sendRawLine(String line) {
+                // nothing is really sent
+            }
+        }, parser);
+
+        TrackerSettings settings = new TrackerSettings();
+        settings.setAutomaticWhoQueryingEnabled(false);
+        settings.setAutomaticJoinWhoQueryingEnabled(false);
+        settings.setAutomaticJoinModeListingEnabled(false);
+        Tracker tracker = new Tracker(parser, dispatcher, settings);
+
+        parser.parseLine(":irc.example.com 005 me PREFIX=(qaohv)~&@%+ CASEMAPPING=rfc1459 :are supported by this server");
+
+        long beforeUsers = usedMemory();
+        fillChannel(parser, "#first", members);
+        long afterFirst = usedMemory();
+        fillChannel(parser, "#second", members);
+        long afterSecond = usedMemory();
+
+        System.out.println("Members per channel:     " + tracker.getChannel("#second").getUserCount());
+        System.out.println("Bytes per user:          " + (afterFirst - beforeUsers) / members + " (including their first membership)");
+        System.out.println("Bytes per membership:    " + (afterSecond - afterFirst) / members);
+    }
+
+    /**
+     * Joins a channel and gives it members from NAMES replies, one in ten
+     * with a prefix.
+     */
+    private static void fillChannel(IRCParser parser, String channel, int members) {
+        final String prefixes = "~&@%+";
+
+        parser.parseLine(":me!me@example.com JOIN " + channel);
+
+        StringBuilder line = new StringBuilder();
+        for(int x = 0; x < members; x++) {
+            if(line.length() == 0)
+                line.append(":irc.example.com 353 me = ").append(channel).append(" :");
+            else
+                line.append(' ');
+
+            if(x % 10 == 0)
+                line.append(prefixes.charAt((x / 10) % prefixes.length()));
+            line.append("user").append(x);
+
+            if((x + 1) % NAMES_PER_LINE == 0 || x == members - 1) {
+                parser.parseLine(line.toString());
+                line.setLength(0);
+            }
+        }
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int x = 0; x < 5; x++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Checks that a NAMES reply, which only gives nicknames, doesn't make the
+ * tracker forget the ident and host it already knew for a user. The user
+ * joins one channel with their full hostmask, then shows up in the NAMES
+ * reply of a second channel, and must still be found by their host.
+ */
+
+package com.packethammer.vaquero.testing;
+
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.TrackedUser;
+import com.packethammer.vaquero.advanced.tracker.TrackerSettings;
+import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.outboundprocessing.BasicThrottleTimingScheme;
+import com.packethammer.vaquero.parser.IRCParser;
+import java.util.List;
+
+public class NamesHostmaskTest {
+    public static void main(String[] args) throws Exception {
+        IRCParser parser = new IRCParser("irc.example.com", 6667);
+        parser.getServerContext().setMyTrackedNickname("me");
+        Dispatcher dispatcher = new Dispatcher(new BasicThrottleTimingScheme(1000), new OutboundRawIRCLineSenderI() {
+            public void sendRawLine(String line) {
+                // nothing is really sent
+            }
+        }, parser);
+
+        TrackerSettings settings = new TrackerSettings();
+        settings.setAutomaticWhoQueryingEnabled(false);
+        settings.setAutomaticJoinWhoQueryingEnabled(false);
+        settings.setAutomaticJoinModeListingEnabled(false);
+        Tracker tracker = new Tracker(parser, dispatcher, settings);
+
+        parser.parseLine(":me!me@example.com JOIN #first");
+        parser.parseLine(":irc.example.com 353 me = #first :me");
+        parser.parseLine(":irc.example.com 366 me #first :End of /NAMES list.");
+        parser.parseLine(":jim!jimmy@jim.example.net JOIN #first");
+        check(tracker.getUsersBy(Tracker.USERINDEX_HOST, "jim.example.net").size() == 1, "jim should be found by host after joining");
+
+        parser.parseLine(":me!me@example.com JOIN #second");
+        parser.parseLine(":irc.example.com 353 me = #second :me @jim");
+        parser.parseLine(":irc.example.com 366 me #second :End of /NAMES list.");
+
+        TrackedUser jim = tracker.getUser("jim");
+        check(jim.getChannelInformation("#second") != null, "jim should be in #second");
+        check("jimmy".equals(jim.getHostmask().getIdent()) && "jim.example.net".equals(jim.getHostmask().getHost()),
+                "jim's hostmask should be kept, but is " + jim.getHostmask());
+
+        List<TrackedUser> byHost = tracker.getUsersBy(Tracker.USERINDEX_HOST, "jim.example.net");
+        check(byHost.size() == 1 && byHost.get(0) == jim, "jim should still be found by host, but we found " + byHost);
+        check(tracker.getUsersMatching(Tracker.USERINDEX_HOST, "*.example.net").contains(jim), "jim should still match a host mask");
+
+        tracker.die();
+        System.out.println("NamesHostmaskTest passed");
+        System.exit(0);
+    }
+
+    private static void check(boolean passed, String message) {
+        if(!passed)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Checks that a data store value which fails while it is being written to a
+ * tracker snapshot is left out, rather than costing the whole snapshot. A
+ * user is given one such value and one ordinary value, the snapshot is
+ * saved and then restored by a second tracker, and only the ordinary value
+ * should come back.
+ */
+
+package com.packethammer.vaquero.testing;
+
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.TrackedUser;
+import com.packethammer.vaquero.advanced.tracker.TrackerSettings;
+import com.packethammer.vaquero.advanced.tracker.TrackerSnapshot;
+import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.outboundprocessing.BasicThrottleTimingScheme;
+import com.packethammer.vaquero.parser.IRCParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ConcurrentModificationException;
+
+public class SnapshotStoreTest {
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        file.deleteOnExit();
+
+        IRCParser parser = new IRCParser("irc.example.com", 6667);
+        Tracker tracker = createTracker(parser, new TrackerSettings());
+        parser.parseLine(":me!me@example.com JOIN #test");
+        parser.parseLine(":irc.example.com 353 me = #test :me jim");
+        parser.parseLine(":irc.example.com 366 me #test :End of /NAMES list.");
+
+        TrackedUser jim = tracker.getUser("jim");
+        jim.getStore().store("good", "kept");
+        jim.getStore().store("bad", new FailingValue());
+
+        tracker.saveSnapshot(file);
+        TrackerSnapshot snapshot = new TrackerSnapshot(file);
+        check(snapshot.getUserCount() == 2, "the snapshot should have both users, but has " + snapshot.getUserCount());
+
+        TrackerSettings settings = new TrackerSettings();
+        settings.setSnapshotFile(file);
+        settings.setSnapshotInterval(0);
+        IRCParser restoring = new IRCParser("irc.example.com", 6667);
+        Tracker restored = createTracker(restoring, settings);
+        restoring.parseLine(":me!me@example.com JOIN #test");
+        restoring.parseLine(":irc.example.com 353 me = #test :me jim");
+        restoring.parseLine(":irc.example.com 366 me #test :End of /NAMES list.");
+
+        jim = restored.getUser("jim");
+        check("kept".equals(jim.getStore().get("good")), "the good value should be restored, but is " + jim.getStore().get("good"));
+        check(!jim.getStore().hasKey("bad"), "the failing value should be left out");
+
+        restored.die();
+        tracker.die();
+        System.out.println("SnapshotStoreTest passed");
+    }
+
+    private static Tracker createTracker(IRCParser parser, TrackerSettings settings) {
+        parser.getServerContext().setMyTrackedNickname("me");
+        Dispatcher dispatcher = new Dispatcher(new BasicThrottleTimingScheme(1000), new OutboundRawIRCLineSenderI() {
+            public void sendRawLine(String line) {
+                // nothing is really sent
+            }
+        }, parser);
+
+        settings.setAutomaticWhoQueryingEnabled(false);
+        settings.setAutomaticJoinWhoQueryingEnabled(false);
+        settings.setAutomaticJoinModeListingEnabled(false);
+        return new Tracker(parser, dispatcher, settings);
+    }
+
+    private static void check(boolean passed, String message) {
+        if(!passed)
+            throw new IllegalStateException(message);
+    }
+
+    /**
+     * A value that fails the way one being changed while it is written
+     * does.
+     */
+    private static class FailingValue implements Serializable {
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new ConcurrentModificationException();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Checks the views the tracker publishes for other threads: that each event
+ * publishes new views of just the users and channels it changed, that a view
+ * already handed out never changes, and that a reader holding on to views
+ * inside read() doesn't hold up the parser.
+ */
+
+package com.packethammer.vaquero.testing;
+
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.tracker.ChannelView;
+import com.packethammer.vaquero.advanced.tracker.Tracker;
+import com.packethammer.vaquero.advanced.tracker.TrackerReadI;
+import com.packethammer.vaquero.advanced.tracker.TrackerSettings;
+import com.packethammer.vaquero.advanced.tracker.UserView;
+import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.outboundprocessing.BasicThrottleTimingScheme;
+import com.packethammer.vaquero.parser.IRCParser;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TrackerViewTest {
+    public static void main(String[] args) throws Exception {
+        final IRCParser parser = new IRCParser("irc.example.com", 6667);
+        parser.getServerContext().setMyTrackedNickname("me");
+        Dispatcher dispatcher = new Dispatcher(new BasicThrottleTimingScheme(1000), new OutboundRawIRCLineSenderI() {
+            public void sendRawLine(String line) {
+                // nothing is really sent
+            }
+        }, parser);
+
+        TrackerSettings settings = new TrackerSettings();
+        settings.setAutomaticWhoQueryingEnabled(false);
+        settings.setAutomaticJoinWhoQueryingEnabled(false);
+        settings.setAutomaticJoinModeListingEnabled(false);
+        final Tracker tracker = new Tracker(parser, dispatcher, settings);
+
+        parser.parseLine(":me!me@example.com JOIN #test");
+        parser.parseLine(":irc.example.com 353 me = #test :me +jim bob");
+        parser.parseLine(":irc.example.com 366 me #test :End of /NAMES list.");
+        parser.parseLine(":irc.example.com MODE #test +o me");
+        parser.parseLine(":me!me@example.com JOIN #other");
+        parser.parseLine(":irc.example.com 353 me = #other :me");
+        parser.parseLine(":irc.example.com 366 me #other :End of /NAMES list.");
+        parser.parseLine(":jim!jimmy@jim.example.net JOIN #other");
+
+        ChannelView test = tracker.getChannelView("#TEST");
+        check(test != null && test.getMemberCount() == 3, "#test should have 3 members, but is " + test);
+        check(test.getMember("me").hasPrefixMode('o') && "@".equals(test.getMember("me").getPrefixes()), "we should be opped in #test");
+        check(test.getMember("JIM").hasPrefixMode('v') && !test.getMember("jim").hasPrefixMode('o'), "jim should be voiced in #test");
+        check(test.getMember("bob").getPrefixModes().length() == 0, "bob should have no modes in #test");
+
+        UserView jim = tracker.getUserView("jim");
+        check(jim != null && jim.getChannels().size() == 2, "jim should be in 2 channels, but is " + jim);
+        check("jim.example.net".equals(jim.getHost()), "jim's host should be published");
+
+        // only what an event changes is copied again
+        UserView bob = tracker.getUserView("bob");
+        ChannelView other = tracker.getChannelView("#other");
+        parser.parseLine(":me!me@example.com MODE #test +m");
+        check(tracker.getChannelView("#test").hasMode('m'), "#test should be +m");
+        check(!test.hasMode('m'), "a view already handed out must not change");
+        check(tracker.getUserView("bob") == bob && tracker.getChannelView("#other") == other, "views of what didn't change should stay as they were");
+
+        // a nickname change changes the user, and how each of their channels lists them
+        parser.parseLine(":jim!jimmy@jim.example.net NICK jimbo");
+        check(tracker.getUserView("jim") == null && tracker.getUserView("jimbo") != null, "jim should be published as jimbo");
+        check(tracker.getUser("jimbo") == jim.getUser(), "jimbo should be the same tracked user as jim");
+        check(tracker.getChannelView("#test").getMember("jimbo").hasPrefixMode('v'), "#test should list jimbo, still voiced");
+        check(tracker.getChannelView("#other").getMember("jimbo") != null, "#other should list jimbo");
+        check(jim.getNickname().equals("jim") && test.getMember("jim") != null, "old views should still say jim");
+
+        // a reader holding on inside read() doesn't hold up the parser
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int[] seen = new int[1];
+        Thread reader = new Thread() {
+            public void run() {
+                seen[0] = tracker.read(new TrackerReadI<Integer>() {
+                    public Integer read(Tracker tracker) {
+                        ChannelView chan = tracker.getChannelView("#test");
+                        reading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                        }
+                        return Integer.valueOf(chan.getMemberCount());
+                    }
+                }).intValue();
+            }
+        };
+        reader.start();
+        check(reading.await(5, TimeUnit.SECONDS), "the reader should have started reading");
+
+        Thread writer = new Thread() {
+            public void run() {
+                parser.parseLine(":alice!alice@example.org JOIN #test");
+                parser.parseLine(":bob!bob@example.org QUIT :Leaving");
+            }
+        };
+        writer.start();
+        writer.join(5000);
+        check(!writer.isAlive(), "the parser should not wait for a reader");
+        check(tracker.getChannelView("#test").getMember("alice") != null, "alice should be published in #test");
+        check(tracker.getUserView("bob") == null && tracker.getChannelView("#test").getMember("bob") == null, "bob should be gone");
+
+        release.countDown();
+        reader.join(5000);
+        check(seen[0] == 3, "the reader should have read #test as it was, but saw " + seen[0] + " members");
+
+        // leaving a channel takes its view away, along with anyone we no longer see
+        parser.parseLine(":me!me@example.com PART #test");
+        check(tracker.getChannelView("#test") == null, "#test should no longer be published");
+        check(tracker.getUserView("alice") == null, "alice should no longer be published");
+        check(tracker.getUserView("jimbo").getChannels().size() == 1, "jimbo should only be in #other");
+        check(tracker.getChannelViews().size() == 1, "only #other should be published");
+
+        tracker.die();
+        System.out.println("TrackerViewTest passed");
+        System.exit(0);
+    }
+
+    private static void check(boolean passed, String message) {
+        if(!passed)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Checks that the end of a WHO sent around the dispatcher's query processor
+ * leaves a tagged WHOX query alone. A WHOX query is sent, then a plain WHO
+ * for someone else goes out as a raw command, so the query processor never
+ * sees it; its end of listing must not finish the WHOX query or free its
+ * tag while the WHOX replies are still coming.
+ */
+
+package com.packethammer.vaquero.testing;
+
+import com.packethammer.vaquero.advanced.dispatcher.Dispatcher;
+import com.packethammer.vaquero.advanced.dispatcher.querying.WhoXQueryListener;
+import com.packethammer.vaquero.outbound.OutboundRawIRCLineSenderI;
+import com.packethammer.vaquero.outbound.commands.basic.IRCRawCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.IRCWhoXCommand;
+import com.packethammer.vaquero.outbound.commands.extended.ircu.WhoXSearchOptions;
+import com.packethammer.vaquero.outbound.outboundprocessing.BasicThrottleTimingScheme;
+import com.packethammer.vaquero.parser.IRCParser;
+import com.packethammer.vaquero.parser.events.server.numeric.reply.EndOfWhoReply;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class WhoOutsideQueryTest {
+    public static void main(String[] args) throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList());
+
+        IRCParser parser = new IRCParser("irc.example.com", 6667);
+        parser.getServerContext().setMyTrackedNickname("me");
+        Dispatcher dispatcher = new Dispatcher(new BasicThrottleTimingScheme(1), new OutboundRawIRCLineSenderI() {
+            public void sendRawLine(String line) {
+                sent.add(line);
+            }
+        }, parser);
+        dispatcher.setQueryingEnabled(true);
+
+        final boolean[] finished = new boolean[1];
+        WhoXQueryListener listener = new WhoXQueryListener() {
+            public void onFinished(EndOfWhoReply end) {
+                finished[0] = true;
+            }
+        };
+
+        WhoXSearchOptions options = new WhoXSearchOptions();
+        options.addSearchField(WhoXSearchOptions.SEARCHFIELD_NICK);
+        dispatcher.performWhoXQuery(new IRCWhoXCommand("#test", options), listener);
+        dispatcher.sendCommand(new IRCRawCommand("WHO bob"));
+        waitForLines(sent, 2);
+
+        String tag = null;
+        for(String line : sent) {
+            // WHO <mask> %<fields>,<tag> ...
+            int fields = line.indexOf(" %");
+            if(line.endsWith("#test") && fields != -1)
+                tag = line.substring(line.indexOf(',', fields) + 1, line.indexOf(' ', fields + 1));
+        }
+        check(tag != null, "the WHOX query should have gone out with a tag, but we sent " + sent);
+
+        // the outside WHO finishes first
+        parser.parseLine(":irc.example.com 352 me * b example.com irc.example.com bob H :0 Bob");
+        parser.parseLine(":irc.example.com 315 me bob :End of /WHO list.");
+        check(!finished[0], "the end of the outside WHO finished the WHOX query");
+
+        parser.parseLine(":irc.example.com 354 me " + tag + " jim");
+        check(listener.getReplies().size() == 1, "the WHOX reply should reach the query, but it got " + listener.getReplies().size());
+
+        parser.parseLine(":irc.example.com 315 me #test :End of /WHO list.");
+        check(finished[0], "the WHOX query's own end should finish it");
+
+        System.out.println("WhoOutsideQueryTest passed");
+        System.exit(0);
+    }
+
+    private static void waitForLines(List<String> sent, int count) throws InterruptedException {
+        for(int x = 0; x < 100 && sent.size() < count; x++)
+            Thread.sleep(50);
+    }
+
+    private static void check(boolean passed, String message) {
+        if(!passed)
+            throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * This is a string in a form that can be used as a key in a map or a member
+ * of a set, where strings that are equal under an IRC casemapping make
+ * equal keys. Unlike a CasemappedString, the casemapping is applied once
+ * when the key is made, so a key never changes; the catch is that keys made
+ * under different casemappings shouldn't be mixed. If the casemapping of a
+ * collection's keys changes (as it may once we get numeric 005 ISUPPORT
+ * CASEMAPPING), the keys have to be made again.
+ *
+ * Keys are made with CasemappingDefinition.createKey().
+ */
+
+package com.packethammer.vaquero.util;
+
+public final class CasemappedKey implements Comparable {
+    private String key;
+    
+    /**
+     * Initializes this key from a string that has already been lowercased
+     * under the casemapping in use.
+     */
+    CasemappedKey(String key) {
+        this.key = key;
+    }
+    
+    /**
+     * Returns the lowercase form of the string this key was made from.
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    public boolean equals(Object o) {
+        return o instanceof CasemappedKey && ((CasemappedKey) o).key.equals(this.key);
+    }
+    
+    public int hashCode() {
+        return key.hashCode();
+    }
+    
+    public int compareTo(Object o) {
+        return this.key.compareTo(((CasemappedKey) o).key);
+    }
+    
+    public String toString() {
+        return key;
+    }
+}
@@ -69,6 +69,51 @@ public class CasemappingDefinition {
     }
     
     
+    /**
+     * Returns the lowercase form of a string under this casemapping, which is
+     * the same for every string that this casemapping considers equal. The
+     * string itself is returned if it is already lowercase, so nothing is
+     * allocated for the common case.
+     */
+    public String toLowerCase(String string) {
+        int constant = this.getCasemappingConstant();
+        
+        // the highest uppercase character this casemapping lowers
+        char highest;
+        if(constant == CASEMAPPING_RFC1459)
+            highest = 94; // adds [\]^ -> {|}~
+        else if(constant == CASEMAPPING_STRICT_RFC1459)
+            highest = 93; // adds [\] -> {|}
+        else if(constant == CASEMAPPING_ASCII)
+            highest = 90;
+        else
+            return string; // unknown casemapping; nothing is equal but itself
+        
+        char[] chars = null;
+        for(int x = 0; x < string.length(); x++) {
+            char c = string.charAt(x);
+            if(c >= 65 && c <= highest) {
+                if(chars == null)
+                    chars = string.toCharArray();
+                chars[x] = (char) (c + 32);
+            }
+        }
+        
+        return chars == null ? string : new String(chars);
+    }
+    
+    /**
+     * Creates a key for a string that can be used in hashed collections,
+     * equal to the key of any string this casemapping considers equal.
+     *
+     * @param string The string to make a key of.
+     * @return The key.
+     * @see CasemappedKey
+     */
+    public CasemappedKey createKey(String string) {
+        return new CasemappedKey(this.toLowerCase(string));
+    }
+    
     /**
      * Returns a casemapping constant by its name, or -1 if none was found.
      * These names are derived from numeric 005 ISUPPORT's CASEMAPPING.
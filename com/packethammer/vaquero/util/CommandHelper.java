@@ -21,6 +21,7 @@ import com.packethammer.vaquero.outbound.commands.channel.IRCJoinCommand;
 import com.packethammer.vaquero.outbound.commands.channel.IRCKickCommand;
 import com.packethammer.vaquero.outbound.commands.channel.IRCPartCommand;
 import com.packethammer.vaquero.outbound.commands.channel.IRCTopicCommand;
+import com.packethammer.vaquero.outbound.commands.server.IRCAwayCommand;
 import com.packethammer.vaquero.outbound.commands.server.IRCNickCommand;
 import com.packethammer.vaquero.util.modes.Modes;
 import com.packethammer.vaquero.util.modes.channel.ChanBanMode;
@@ -272,6 +273,24 @@ public class CommandHelper {
         outbound.sendCommand(nick);
     }
     
+    /**
+     * Marks us as being away.
+     *
+     * @param message The away message to use.
+     */
+    public void away(String message) {
+        IRCAwayCommand away = new IRCAwayCommand(message);
+        outbound.sendCommand(away);
+    }
+    
+    /**
+     * Marks us as no longer being away.
+     */
+    public void back() {
+        IRCAwayCommand away = new IRCAwayCommand();
+        outbound.sendCommand(away);
+    }
+    
     /**
      * Invites a user by their nickname to a channel.
      *
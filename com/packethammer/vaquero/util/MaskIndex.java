@@ -0,0 +1,531 @@
+/**
+ * This holds a number of hostmask masks (such as the bans of a channel) so
+ * that the ones matching a user can be found without trying every mask.
+ *
+ * Nearly every mask set on IRC pins down one part of the hostmask with
+ * plain text, and most pin down the host:
+ *
+ *   *!*@host.example.com     the whole host
+ *   *!*@*.example.com        the end of the host
+ *   *!*@192.168.*            the start of the host
+ *   baduser!*@*              the nickname
+ *
+ * Masks are filed by that part: whole hosts and nicknames in hash tables,
+ * and host endings and beginnings in character trees, which are walked
+ * along the user's host. Only the masks filed under something the user
+ * actually has are then checked in full with a MaskMatcher. Masks with no
+ * such part (like *!*ident@*) are simply checked every time, as there are
+ * usually very few of them.
+ *
+ * Two kinds of masks can't be filed by their text and are also checked
+ * every time:
+ *
+ *   *!*@192.168.0.0/16       a CIDR range, which matches users whose host
+ *                            is an IP address inside it
+ *   $a:account, ~q:*!*@host  an extended ban, starting with '$' or with '~'
+ *                            and a name followed by ':'
+ *
+ * An extended ban matches a user when the hostmask after its ':' does (as
+ * with ~q:mask), leaving what the ban does to them up to the caller. Those
+ * that name an account, a realname or the like can't be judged from a
+ * hostmask and never match, and neither do negated ones ($~a).
+ *
+ * Masks are normalized the way servers do it before they are filed: a mask
+ * missing its nickname or ident part has "*" put in its place, so "*@host"
+ * becomes "*!*@host", and a lone word becomes a nickname mask (or a host
+ * mask if it has a dot in it).
+ */
+
+package com.packethammer.vaquero.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+public class MaskIndex<T> {
+    // where a mask is filed
+    private static final int FILED_BY_HOST = 0;
+    private static final int FILED_BY_HOST_ENDING = 1;
+    private static final int FILED_BY_HOST_BEGINNING = 2;
+    private static final int FILED_BY_NICKNAME = 3;
+    private static final int FILED_UNDER_OTHERS = 4;
+
+    private CasemappingDefinition casemapping;
+    private HashMap<String, List<Entry<T>>> byHost; // key = casemapped host
+    private HashMap<String, List<Entry<T>>> byNickname; // key = casemapped nickname
+    private Node<T> hostEndings; // keyed by the host's characters, last first
+    private Node<T> hostBeginnings; // keyed by the host's characters, first first
+    private List<Entry<T>> others;
+    private int size;
+    private int cidrMasks; // the number of masks that need the user's host as an IP address
+
+    /**
+     * Creates a new, empty index.
+     *
+     * @param casemapping The casemapping to compare masks with hostmasks with. If it changes, the index must be built again.
+     */
+    public MaskIndex(CasemappingDefinition casemapping) {
+        this.casemapping = casemapping;
+        this.byHost = new HashMap();
+        this.byNickname = new HashMap();
+        this.hostEndings = new Node();
+        this.hostBeginnings = new Node();
+        this.others = new ArrayList();
+    }
+
+    /**
+     * Adds a mask to the index.
+     *
+     * @param mask The mask, which is normalized first (unless it is an extended ban).
+     * @param value What to give back when the mask matches.
+     */
+    public void add(String mask, T value) {
+        Entry<T> entry = new Entry(indexedForm(mask), value, casemapping);
+        bucketFor(entry.mask, true).add(entry);
+        size++;
+        if(entry.network != null)
+            cidrMasks++;
+    }
+
+    /**
+     * Removes a mask from the index. Lists and tree nodes left empty are
+     * dropped along with it.
+     *
+     * @param mask The mask, as it was added.
+     * @param value The value it was added with.
+     * @return True if it was in the index.
+     */
+    public boolean remove(String mask, T value) {
+        String key = indexedForm(mask);
+        List<Entry<T>> bucket = bucketFor(key, false);
+        if(bucket == null)
+            return false;
+
+        Iterator<Entry<T>> i = bucket.iterator();
+        while(i.hasNext()) {
+            Entry<T> entry = i.next();
+            if(entry.value == value) {
+                i.remove();
+                size--;
+                if(entry.network != null)
+                    cidrMasks--;
+                if(bucket.isEmpty())
+                    dropBucket(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of masks in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the masks matching a hostmask. Unknown parts of the hostmask only
+     * match masks that allow anything in that part.
+     *
+     * @param hostmask The hostmask to match.
+     * @return The values of the masks that match, in no particular order.
+     */
+    public List<T> match(Hostmask hostmask) {
+        String nickname = casemapping.toLowerCase(hostmask.getNonNullNickname());
+        String host = casemapping.toLowerCase(hostmask.getNonNullHost());
+        String text = hostmask.getNonNullNickname() + "!" + hostmask.getNonNullIdent() + "@" + hostmask.getNonNullHost();
+        byte[] address = cidrMasks > 0 ? parseAddress(hostmask.getNonNullHost()) : null;
+
+        List<T> matches = new ArrayList();
+        check(byHost.get(host), text, address, matches);
+        check(byNickname.get(nickname), text, address, matches);
+        check(others, text, address, matches);
+
+        Node<T> node = hostEndings;
+        for(int x = host.length() - 1; x >= 0 && node != null; x--) {
+            node = node.children == null ? null : node.children.get(Character.valueOf(host.charAt(x)));
+            if(node != null)
+                check(node.entries, text, address, matches);
+        }
+
+        node = hostBeginnings;
+        for(int x = 0; x < host.length() && node != null; x++) {
+            node = node.children == null ? null : node.children.get(Character.valueOf(host.charAt(x)));
+            if(node != null)
+                check(node.entries, text, address, matches);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Normalizes a mask into nickname!ident@host form, the way servers do
+     * when the mask is set.
+     */
+    public static String normalizeMask(String mask) {
+        int bang = mask.indexOf('!');
+        int at = mask.indexOf('@', bang + 1);
+
+        String nickname, ident, host;
+        if(bang == -1 && at == -1) {
+            if(mask.indexOf('.') != -1 || mask.indexOf(':') != -1) {
+                nickname = "*";
+                ident = "*";
+                host = mask;
+            } else {
+                nickname = mask;
+                ident = "*";
+                host = "*";
+            }
+        } else if(bang == -1) {
+            nickname = "*";
+            ident = mask.substring(0, at);
+            host = mask.substring(at + 1);
+        } else if(at == -1) {
+            nickname = mask.substring(0, bang);
+            ident = mask.substring(bang + 1);
+            host = "*";
+        } else {
+            nickname = mask.substring(0, bang);
+            ident = mask.substring(bang + 1, at);
+            host = mask.substring(at + 1);
+        }
+
+        return (nickname.length() == 0 ? "*" : nickname) + "!" + (ident.length() == 0 ? "*" : ident) + "@" + (host.length() == 0 ? "*" : host);
+    }
+
+    /**
+     * Returns the form a mask is filed under: extended bans as they are,
+     * and everything else normalized.
+     */
+    private static String indexedForm(String mask) {
+        return isExtendedBan(mask) ? mask : normalizeMask(mask);
+    }
+
+    /**
+     * Determines if a mask is an extended ban, such as $a:account, $~a or
+     * ~q:mask, rather than a hostmask mask.
+     */
+    private static boolean isExtendedBan(String mask) {
+        if(mask.length() < 2)
+            return false;
+
+        if(mask.charAt(0) == '$')
+            return true;
+
+        if(mask.charAt(0) == '~') {
+            int colon = mask.indexOf(':');
+            if(colon < 2)
+                return false;
+            for(int x = 1; x < colon; x++) {
+                if(!Character.isLetter(mask.charAt(x)))
+                    return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the hostmask mask an extended ban applies to, normalized, or
+     * null if it doesn't apply to a hostmask.
+     */
+    private static String extendedBanMask(String mask) {
+        if(mask.startsWith("$~"))
+            return null; // negated
+
+        String target = mask.substring(mask.indexOf(':') + 1);
+        if(mask.indexOf(':') == -1 || (target.indexOf('!') == -1 && target.indexOf('@') == -1))
+            return null;
+
+        return normalizeMask(target);
+    }
+
+    /**
+     * Determines where a mask in its indexed form is filed.
+     */
+    private int filingOf(String mask) {
+        if(isExtendedBan(mask))
+            return FILED_UNDER_OTHERS;
+
+        String host = hostOf(mask);
+        if(!hasWildcards(host))
+            return parseCidr(host) == null ? FILED_BY_HOST : FILED_UNDER_OTHERS;
+
+        if(host.charAt(0) == '*' && host.length() > 1 && !hasWildcards(host.substring(1)))
+            return FILED_BY_HOST_ENDING;
+
+        if(host.charAt(host.length() - 1) == '*' && host.length() > 1 && !hasWildcards(host.substring(0, host.length() - 1)))
+            return FILED_BY_HOST_BEGINNING;
+
+        if(!hasWildcards(nicknameOf(mask)))
+            return FILED_BY_NICKNAME;
+
+        return FILED_UNDER_OTHERS;
+    }
+
+    /**
+     * Finds the list a mask in its indexed form is filed in.
+     *
+     * @param create True to make the list if it doesn't exist yet.
+     */
+    private List<Entry<T>> bucketFor(String mask, boolean create) {
+        Node<T> node;
+        switch(filingOf(mask)) {
+            case FILED_BY_HOST:
+                return mapBucket(byHost, hostOf(mask), create);
+            case FILED_BY_NICKNAME:
+                return mapBucket(byNickname, nicknameOf(mask), create);
+            case FILED_BY_HOST_ENDING:
+                node = hostEndings;
+                break;
+            case FILED_BY_HOST_BEGINNING:
+                node = hostBeginnings;
+                break;
+            default:
+                return others;
+        }
+
+        String path = treePath(mask);
+        for(int x = 0; x < path.length() && node != null; x++)
+            node = node.child(path.charAt(x), create);
+        return node == null ? null : node.entries(create);
+    }
+
+    /**
+     * Drops the list a mask in its indexed form is filed in, which has just
+     * been emptied, along with any tree nodes left with nothing under them.
+     */
+    private void dropBucket(String mask) {
+        switch(filingOf(mask)) {
+            case FILED_BY_HOST:
+                byHost.remove(hostOf(mask));
+                break;
+            case FILED_BY_NICKNAME:
+                byNickname.remove(nicknameOf(mask));
+                break;
+            case FILED_BY_HOST_ENDING:
+                hostEndings.prune(treePath(mask), 0);
+                break;
+            case FILED_BY_HOST_BEGINNING:
+                hostBeginnings.prune(treePath(mask), 0);
+                break;
+        }
+    }
+
+    /**
+     * Returns the characters a mask filed in one of the trees is filed
+     * under, in the order the tree is walked: *.example.com by its ending,
+     * last character first, and 192.168.* by its beginning.
+     */
+    private String treePath(String mask) {
+        String host = hostOf(mask);
+        if(host.charAt(0) == '*')
+            return new StringBuilder(host.substring(1)).reverse().toString();
+        return host.substring(0, host.length() - 1);
+    }
+
+    private String hostOf(String mask) {
+        int bang = mask.indexOf('!');
+        return casemapping.toLowerCase(mask.substring(mask.indexOf('@', bang + 1) + 1));
+    }
+
+    private String nicknameOf(String mask) {
+        return casemapping.toLowerCase(mask.substring(0, mask.indexOf('!')));
+    }
+
+    private List<Entry<T>> mapBucket(HashMap<String, List<Entry<T>>> map, String key, boolean create) {
+        List<Entry<T>> bucket = map.get(key);
+        if(bucket == null && create) {
+            bucket = new ArrayList(1);
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static boolean hasWildcards(String text) {
+        return text.indexOf('*') != -1 || text.indexOf('?') != -1;
+    }
+
+    /**
+     * Parses a CIDR range such as 192.168.0.0/16 or 2001:db8::/32.
+     *
+     * @return The network address with its last byte followed by the
+     *         prefix length, or null if the text isn't a CIDR range.
+     */
+    private static byte[] parseCidr(String text) {
+        int slash = text.indexOf('/');
+        if(slash == -1 || slash == text.length() - 1 || text.length() - slash > 4)
+            return null;
+
+        for(int x = slash + 1; x < text.length(); x++) {
+            if(!Character.isDigit(text.charAt(x)))
+                return null;
+        }
+
+        byte[] address = parseAddress(text.substring(0, slash));
+        int prefixLength = Integer.parseInt(text.substring(slash + 1));
+        if(address == null || prefixLength > address.length * 8)
+            return null;
+
+        byte[] cidr = new byte[address.length + 1];
+        System.arraycopy(address, 0, cidr, 0, address.length);
+        cidr[address.length] = (byte) prefixLength;
+        return cidr;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address. Nothing is ever looked up; anything
+     * that isn't an address gives null.
+     */
+    private static byte[] parseAddress(String text) {
+        if(text.indexOf(':') != -1) {
+            for(int x = 0; x < text.length(); x++) {
+                char c = text.charAt(x);
+                if(c != ':' && c != '.' && Character.digit(c, 16) == -1)
+                    return null;
+            }
+
+            try {
+                // the brackets make it an address or nothing, never a name to look up
+                return InetAddress.getByName("[" + text + "]").getAddress();
+            } catch(UnknownHostException ex) {
+                return null;
+            }
+        }
+
+        // IPv4, by hand for the same reason
+        String[] parts = text.split("\\.", -1);
+        if(parts.length != 4)
+            return null;
+
+        byte[] address = new byte[4];
+        for(int x = 0; x < 4; x++) {
+            if(parts[x].length() == 0 || parts[x].length() > 3)
+                return null;
+            for(int y = 0; y < parts[x].length(); y++) {
+                if(!Character.isDigit(parts[x].charAt(y)))
+                    return null;
+            }
+
+            int octet = Integer.parseInt(parts[x]);
+            if(octet > 255)
+                return null;
+            address[x] = (byte) octet;
+        }
+        return address;
+    }
+
+    private void check(List<Entry<T>> entries, String text, byte[] address, List<T> matches) {
+        if(entries == null)
+            return;
+
+        for(Entry<T> entry : entries) {
+            if(entry.matches(text, address))
+                matches.add(entry.value);
+        }
+    }
+
+    private static class Entry<T> {
+        String mask;
+        MaskMatcher matcher; // null if the mask can never match a hostmask
+        byte[] network; // for CIDR masks, the range the host must be in
+        int prefixLength;
+        T value;
+
+        Entry(String mask, T value, CasemappingDefinition casemapping) {
+            this.mask = mask;
+            this.value = value;
+
+            String target = isExtendedBan(mask) ? extendedBanMask(mask) : mask;
+            if(target == null)
+                return;
+
+            int hostStart = target.indexOf('@', target.indexOf('!') + 1) + 1;
+            byte[] cidr = parseCidr(target.substring(hostStart));
+            if(cidr != null) {
+                // the host is checked against the range, and the rest with the matcher
+                network = new byte[cidr.length - 1];
+                System.arraycopy(cidr, 0, network, 0, network.length);
+                prefixLength = cidr[network.length] & 0xff;
+                target = target.substring(0, hostStart) + "*";
+            }
+
+            this.matcher = new MaskMatcher(target, casemapping);
+        }
+
+        boolean matches(String text, byte[] address) {
+            if(matcher == null || !matcher.matches(text))
+                return false;
+            if(network == null)
+                return true;
+            if(address == null || address.length != network.length)
+                return false;
+
+            int bytes = prefixLength / 8;
+            for(int x = 0; x < bytes; x++) {
+                if(address[x] != network[x])
+                    return false;
+            }
+
+            int bits = prefixLength % 8;
+            if(bits == 0)
+                return true;
+            int bitMask = (0xff << (8 - bits)) & 0xff;
+            return (address[bytes] & bitMask) == (network[bytes] & bitMask);
+        }
+    }
+
+    /**
+     * A node in a character tree. Most nodes have no entries and one child,
+     * so both are made only when needed.
+     */
+    private static class Node<T> {
+        HashMap<Character, Node<T>> children;
+        List<Entry<T>> entries;
+
+        Node<T> child(char c, boolean create) {
+            Node<T> child = children == null ? null : children.get(Character.valueOf(c));
+            if(child == null && create) {
+                if(children == null)
+                    children = new HashMap(2);
+                child = new Node();
+                children.put(Character.valueOf(c), child);
+            }
+            return child;
+        }
+
+        List<Entry<T>> entries(boolean create) {
+            if(entries == null && create)
+                entries = new ArrayList(1);
+            return entries;
+        }
+
+        /**
+         * Drops empty lists and nodes along a path below this node.
+         *
+         * @return True if this node has nothing left under it.
+         */
+        boolean prune(String path, int depth) {
+            if(depth == path.length()) {
+                if(entries != null && entries.isEmpty())
+                    entries = null;
+            } else {
+                Character c = Character.valueOf(path.charAt(depth));
+                Node<T> child = children == null ? null : children.get(c);
+                if(child != null && child.prune(path, depth + 1)) {
+                    children.remove(c);
+                    if(children.isEmpty())
+                        children = null;
+                }
+            }
+
+            return entries == null && children == null;
+        }
+    }
+}
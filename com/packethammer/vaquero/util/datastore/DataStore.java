@@ -13,7 +13,9 @@
 package com.packethammer.vaquero.util.datastore;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.Vector;
 
 public class DataStore {
@@ -37,10 +39,11 @@ public class DataStore {
         StorageElement e = new StorageElement();
         e.element = value;
         
+        // the element must be in place first, or the qualifiers would go to the one it replaces
+        map.put(key, e);
+        
         for(LifeQualifier q : lifeQualifiers)
             this.addLifeQualifier(key, q);
-        
-        map.put(key, e);
     }
     
     /** 
@@ -107,6 +110,40 @@ public class DataStore {
         return map.containsKey(key.toUpperCase());
     }
     
+    /**
+     * Returns the keys currently in the store (in upper case). The set is a
+     * copy.
+     */
+    public Set<String> getKeys() {
+        return new HashSet(map.keySet());
+    }
+    
+    /**
+     * Determines if a key will live for as long as this data store does,
+     * which is the case when it was stored with an infinite life qualifier.
+     *
+     * @param key The key to check.
+     * @return True if the key exists and will never expire, false otherwise.
+     */
+    public boolean isPermanent(String key) {
+        StorageElement e = map.get(key.toUpperCase());
+        if(e != null) {
+            for(LifeQualifier q : e.lifeQualifiers) {
+                if(q instanceof InfiniteLifeQualifier)
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Removes every key from the store.
+     */
+    public void clear() {
+        map.clear();
+    }
+    
     /**
      * Removes a life qualifier (which is associated with a key inherently).
      * This typically occurs when one expires and is removing itself.
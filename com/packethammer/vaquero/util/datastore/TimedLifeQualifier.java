@@ -5,10 +5,13 @@
 
 package com.packethammer.vaquero.util.datastore;
 
+import com.packethammer.vaquero.util.timing.Timeout;
+import com.packethammer.vaquero.util.timing.WheelTimer;
+
 public class TimedLifeQualifier extends LifeQualifier {
     private long time;
     private boolean started;
-    private Thread dequalifier;
+    private Timeout dequalifier;
     
     /**
      * Starts this timed life qualifier right away with the specified number of
@@ -29,26 +32,32 @@ public class TimedLifeQualifier extends LifeQualifier {
      */
     public TimedLifeQualifier(long time, boolean autostart) {
         this.time = time;
+        
+        if(autostart)
+            start();
     }
     
     /**
-     * Starts this timed life qualifier.
+     * Starts this timed life qualifier. The wait happens on the timer shared
+     * by the whole process, so this doesn't cost a thread.
      */
-    public void start() {
+    public synchronized void start() {
         if(!started) {
             started = true;
-            dequalifier = new Thread() {
-                public synchronized void run() {
-                    try {
-                        wait(time);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    dequalify();
+            dequalifier = WheelTimer.getSharedTimer().schedule(new Runnable() {
+                public void run() {
+                    if(getStore() != null) // we may never have been stored at all
+                        dequalify();
                 }
-            };
-            
-            dequalifier.start();
+            }, time);
         }
     }
+    
+    /**
+     * Stops this timed life qualifier from ever dequalifying on its own.
+     */
+    public synchronized void cancel() {
+        if(dequalifier != null)
+            dequalifier.cancel();
+    }
 }
@@ -0,0 +1,240 @@
+/**
+ * This is a reusable buffer that an outbound IRC line is rendered into as
+ * bytes, already encoded in the charset of the connection it is going out on.
+ * It is meant to be kept around for the life of a connection and reset for
+ * every line, so sending a command does not need to build any strings or
+ * parameter objects along the way.
+ *
+ * Because the line is held as bytes, the length of the buffer is the exact
+ * number of bytes the line will take up on the wire (not counting the
+ * trailing CR-LF), which is what the RFC1459 line limit actually applies to.
+ *
+ * This class is not thread-safe; whoever owns it should make sure only one
+ * line is rendered into it at a time.
+ */
+
+package com.packethammer.vaquero.util.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+public class IRCLineBuffer {
+    /** The maximum number of bytes in a line, not counting the CR-LF, as given by RFC1459 */
+    public static final int MAX_LINE_LENGTH = 510;
+
+    private Charset charset;
+    private CharsetEncoder encoder;
+    private boolean asciiCompatible;
+    private byte[] buffer;
+    private int length;
+    private int parameters;
+
+    /**
+     * Initializes this buffer using the platform's default charset.
+     */
+    public IRCLineBuffer() {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * Initializes this buffer with the charset lines should be encoded in.
+     *
+     * @param charset The charset of the connection.
+     */
+    public IRCLineBuffer(Charset charset) {
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = new byte[MAX_LINE_LENGTH + 2];
+
+        // most charsets IRC is spoken in encode plain ASCII as itself, which lets us skip the encoder for it
+        try {
+            this.asciiCompatible = charset.newEncoder().encode(CharBuffer.wrap("A: \001")).remaining() == 4;
+        } catch (CharacterCodingException ex) {
+            this.asciiCompatible = false;
+        }
+    }
+
+    /**
+     * Returns the charset lines are encoded in.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Empties this buffer so that a new line can be rendered into it.
+     */
+    public void reset() {
+        length = 0;
+        parameters = 0;
+    }
+
+    /**
+     * Appends a parameter to the line, putting a space before it if it is
+     * not the first one and a colon before it if it is extended.
+     *
+     * @param parameter The parameter text.
+     * @param extended True if this is the last parameter of the line and may contain spaces.
+     * @return This buffer.
+     */
+    public IRCLineBuffer appendParameter(String parameter, boolean extended) {
+        if(parameters++ > 0)
+            append(' ');
+        if(extended)
+            append(':');
+
+        return append(parameter);
+    }
+
+    /**
+     * Appends a parameter that is made up of several strings separated by
+     * commas (such as a list of channels).
+     *
+     * @param items The strings to separate with commas.
+     * @return This buffer.
+     */
+    public IRCLineBuffer appendCommaDelimitedParameter(Iterable<String> items) {
+        if(parameters++ > 0)
+            append(' ');
+
+        boolean first = true;
+        for(String item : items) {
+            if(!first)
+                append(',');
+            append(item);
+            first = false;
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character to the line.
+     *
+     * @param c The character, which must be ASCII.
+     * @return This buffer.
+     */
+    public IRCLineBuffer append(char c) {
+        if(!asciiCompatible)
+            return append(String.valueOf(c));
+
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends text to the line, encoding it in our charset.
+     *
+     * @param text The text to append.
+     * @return This buffer.
+     */
+    public IRCLineBuffer append(String text) {
+        int size = text.length();
+
+        if(asciiCompatible) {
+            ensureCapacity(length + size);
+
+            int x = 0;
+            for(; x < size; x++) {
+                char c = text.charAt(x);
+                if(c >= 0x80)
+                    break; // the rest needs the encoder
+                buffer[length++] = (byte) c;
+            }
+
+            if(x == size)
+                return this;
+
+            text = text.substring(x);
+        }
+
+        encode(text);
+        return this;
+    }
+
+    /**
+     * Runs text through the encoder, growing the buffer as required.
+     */
+    private void encode(String text) {
+        CharBuffer in = CharBuffer.wrap(text);
+        encoder.reset();
+        ensureCapacity(length + (int) (text.length() * encoder.averageBytesPerChar()) + 1);
+
+        while(true) {
+            ByteBuffer out = ByteBuffer.wrap(buffer, length, buffer.length - length);
+            CoderResult result = encoder.encode(in, out, true);
+            if(!result.isOverflow())
+                result = encoder.flush(out);
+            length = out.position();
+
+            if(result.isOverflow())
+                ensureCapacity(buffer.length * 2);
+            else
+                break;
+        }
+    }
+
+    /**
+     * Makes sure the buffer can hold a certain number of bytes, plus the
+     * CR-LF that is put on the end when it is written out.
+     */
+    private void ensureCapacity(int bytes) {
+        if(bytes + 2 > buffer.length) {
+            byte[] bigger = new byte[Math.max(bytes + 2, buffer.length * 2)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    /**
+     * Returns the length of the line in bytes, not counting the CR-LF.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Determines if the line is within the RFC1459 limit of 510 bytes (not
+     * counting the CR-LF).
+     */
+    public boolean isRFCCompliant() {
+        return length <= MAX_LINE_LENGTH;
+    }
+
+    /**
+     * Returns the internal byte array. Only the first length() bytes are
+     * part of the line.
+     */
+    public byte[] getBytes() {
+        return buffer;
+    }
+
+    /**
+     * Writes the line, followed by a CR-LF, to an output stream in one write.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream could not be written to.
+     */
+    public void writeLine(OutputStream out) throws IOException {
+        buffer[length] = '\r';
+        buffer[length + 1] = '\n';
+        out.write(buffer, 0, length + 2);
+    }
+
+    /**
+     * Returns the line decoded back into a string.
+     */
+    public String toString() {
+        return new String(buffer, 0, length, charset);
+    }
+}
@@ -13,6 +13,7 @@
 package com.packethammer.vaquero.util.protocol;
 
 import com.packethammer.vaquero.util.Hostmask;
+import java.nio.charset.Charset;
 import java.util.StringTokenizer;
 
 public class IRCRawLine {
@@ -63,6 +64,35 @@ public class IRCRawLine {
         }
     }
     
+    /**
+     * Renders this raw line into a line buffer, the same way toRawLine()
+     * would render it into a string.
+     *
+     * @param buffer The buffer to render into. It is not reset first.
+     */
+    public void renderInto(IRCLineBuffer buffer) {
+        if(parameters != null) {
+            if(this.isSourceDefinite()) {
+                buffer.append(':').append(this.getSource().getShortHostmask()).append(' ');
+            }
+            
+            for(IRCRawParameter param : parameters)
+                buffer.appendParameter(param.getParameterString(), param.isExtended());
+        }
+    }
+    
+    /**
+     * Returns the exact number of bytes this line takes up when encoded in
+     * the given charset, not counting the CR-LF.
+     *
+     * @param charset The charset of the connection the line is sent on.
+     */
+    public int lengthInBytes(Charset charset) {
+        IRCLineBuffer buffer = new IRCLineBuffer(charset);
+        this.renderInto(buffer);
+        return buffer.length();
+    }
+    
     /**
      * Returns the parameters that accompanied this raw line.
      *
@@ -209,6 +239,17 @@ public class IRCRawLine {
         return this.toRawLine().length() <= 510;
     }
     
+    /**
+     * Determines if the length of this raw line is compliant with RFC1459
+     * once it is encoded in the given charset. A valid length is one not 
+     * exceeding 510 bytes.
+     *
+     * @param charset The charset of the connection the line is sent on.
+     */
+    public boolean lengthIsRFCCompliant(Charset charset) {
+        return this.lengthInBytes(charset) <= IRCLineBuffer.MAX_LINE_LENGTH;
+    }
+    
     /**
      * Determines if the number of parameters in this line is RFC1459 compliant.
      * No more than 15 parameters are allowed if this is to be compliant.
@@ -251,6 +292,7 @@ public class IRCRawLine {
                 notNull++;
         
         IRCRawParameter[] params = new IRCRawParameter[notNull];
+        int index = 0;
         
         for(int x = 0; x < args.length; x++) {
             if(args[x] != null) {
@@ -262,7 +304,7 @@ public class IRCRawLine {
                     param = new IRCRawParameter(false, args[x]);
                 }
 
-                params[x] = param;
+                params[index++] = param;
             }
         }
         
@@ -0,0 +1,81 @@
+/**
+ * A timeout is a handle on a task that has been scheduled with a WheelTimer.
+ * It can be used to cancel the task before it runs (or, for a repeating
+ * task, to stop it from running again).
+ */
+
+package com.packethammer.vaquero.util.timing;
+
+public class Timeout {
+    private WheelTimer timer;
+    private Runnable task;
+    private long deadline; // nanoseconds relative to the start of the timer
+    private long period;   // nanoseconds between runs, or 0 if this only runs once
+    private volatile boolean cancelled;
+
+    // bookkeeping for the wheel itself
+    long remainingRounds;
+
+    /**
+     * Initializes this timeout with the timer it belongs to, the task to run,
+     * when to first run it and how often to repeat it.
+     */
+    Timeout(WheelTimer timer, Runnable task, long deadline, long period) {
+        this.timer = timer;
+        this.task = task;
+        this.deadline = deadline;
+        this.period = period;
+    }
+
+    /**
+     * Returns the timer this timeout was scheduled with.
+     */
+    public WheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Returns the task that will be run when this timeout expires.
+     */
+    public Runnable getTask() {
+        return task;
+    }
+
+    /**
+     * Determines if this timeout repeats itself at a fixed rate.
+     */
+    public boolean isRepeating() {
+        return period > 0;
+    }
+
+    /**
+     * Cancels this timeout. If the task has not run yet, it never will; if it
+     * is a repeating task, it will not run again. A task that is already
+     * running is not interrupted.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Determines if this timeout has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    /**
+     * Moves the deadline of a repeating timeout forward by one period.
+     */
+    void advance() {
+        deadline += period;
+    }
+}
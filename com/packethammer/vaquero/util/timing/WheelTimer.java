@@ -0,0 +1,282 @@
+/**
+ * This is a hashed timing wheel, which is used to run a very large number of
+ * short tasks at (approximately) a given time without dedicating a thread or
+ * a java.util.Timer to each of them. Every client in a process can share
+ * the one returned by getSharedTimer(), so that a hundred bots with wait
+ * queues, timed data store keys and throttled DCC transfers still only
+ * use a handful of threads for all of their timing.
+ *
+ * The wheel is an array of buckets, each of which covers one "tick" of
+ * time. Scheduling a task only drops it into a pending list, and one thread
+ * moves pending tasks into the right bucket on each tick, so scheduling and
+ * cancelling are both O(1). Tasks that are further away than one full turn
+ * of the wheel simply wait out the extra turns in their bucket.
+ *
+ * The price of this is precision: a task will never run early, but it may
+ * run up to one tick late. The default tick is 10 milliseconds, which is
+ * plenty for throttling IRC traffic. Expired tasks are handed to a small
+ * pool of worker threads, so a task that blocks for a little while (such as
+ * one writing to a socket) won't hold up the wheel itself. Even so, tasks
+ * should be short; something that needs to run for a long time belongs in
+ * its own thread.
+ */
+
+package com.packethammer.vaquero.util.timing;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+public class WheelTimer {
+    /** The default length of one tick of the wheel, in milliseconds */
+    public static final long DEFAULT_TICK_DURATION = 10;
+    /** The default number of buckets (ticks) in one turn of the wheel */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static WheelTimer sharedTimer;
+
+    private long tickDuration; // nanoseconds
+    private LinkedList<Timeout>[] wheel;
+    private int mask;
+    private ConcurrentLinkedQueue<Timeout> pending;
+    private ExecutorService workers;
+    private int workerCount;
+    private Thread wheelThread;
+    private long startTime;
+    private long tick;
+    private volatile boolean stopped;
+
+    /**
+     * Initializes a timing wheel with the default tick duration and wheel
+     * size, and one worker thread for each processor (but at least two).
+     */
+    public WheelTimer() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Initializes a timing wheel.
+     *
+     * @param tickDuration The length of one tick in milliseconds. Tasks may run up to this late.
+     * @param wheelSize The number of buckets in the wheel. This is rounded up to a power of two.
+     * @param workerCount The number of threads that run expired tasks.
+     * @throws IllegalArgumentException If any of the values are not positive.
+     */
+    public WheelTimer(long tickDuration, int wheelSize, int workerCount) {
+        if(tickDuration <= 0 || wheelSize <= 0 || workerCount <= 0)
+            throw new IllegalArgumentException("The tick duration, wheel size and worker count must all be positive!");
+
+        int size = 1;
+        while(size < wheelSize)
+            size <<= 1;
+
+        this.tickDuration = tickDuration * 1000000L;
+        this.wheel = new LinkedList[size];
+        for(int x = 0; x < size; x++)
+            wheel[x] = new LinkedList();
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue();
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Returns the timing wheel shared by everything in this process. It is
+     * created the first time it is asked for and is never stopped; its
+     * threads are daemon threads, so they won't keep the process alive.
+     */
+    public static synchronized WheelTimer getSharedTimer() {
+        if(sharedTimer == null)
+            sharedTimer = new WheelTimer();
+
+        return sharedTimer;
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @param task The task to run.
+     * @param delay Milliseconds to wait before running the task.
+     * @return A timeout that can be used to cancel the task.
+     * @throws IllegalStateException If this timer has been stopped.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /**
+     * Schedules a task to run repeatedly. Each run is scheduled relative to
+     * when the first one was meant to happen, not when the last one finished,
+     * so the rate does not drift. A task is never run again until its last
+     * run has finished.
+     *
+     * @param task The task to run.
+     * @param initialDelay Milliseconds to wait before running the task for the first time.
+     * @param period Milliseconds between each run of the task.
+     * @return A timeout that can be used to stop the task from running again.
+     * @throws IllegalArgumentException If the period is not positive.
+     * @throws IllegalStateException If this timer has been stopped.
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if(period <= 0)
+            throw new IllegalArgumentException("The period must be positive!");
+
+        return schedule(task, initialDelay, period);
+    }
+
+    /**
+     * Schedules a task, starting the wheel if it isn't already running.
+     */
+    private Timeout schedule(Runnable task, long delay, long period) {
+        if(stopped)
+            throw new IllegalStateException("This timer has been stopped!");
+
+        start();
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + Math.max(0, delay) * 1000000L, period * 1000000L);
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Starts the wheel and worker threads the first time something is
+     * scheduled.
+     */
+    private synchronized void start() {
+        if(wheelThread == null) {
+            workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+                private int count;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "WheelTimer worker " + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            startTime = System.nanoTime();
+            wheelThread = new Thread("WheelTimer") {
+                public void run() {
+                    turnWheel();
+                }
+            };
+            wheelThread.setDaemon(true);
+            wheelThread.start();
+        }
+    }
+
+    /**
+     * Stops this timer. Tasks that have not run yet are thrown away, and
+     * nothing more can be scheduled. The shared timer should never be
+     * stopped, since other clients are depending on it.
+     */
+    public synchronized void stop() {
+        stopped = true;
+
+        if(wheelThread != null) {
+            wheelThread.interrupt();
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Determines if this timer has been stopped.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * The main loop of the wheel thread: waits out each tick, then expires
+     * everything in that tick's bucket.
+     */
+    private void turnWheel() {
+        while(!stopped) {
+            long deadline = tickDuration * (tick + 1);
+
+            // wait for the end of this tick
+            long sleep;
+            while((sleep = deadline - (System.nanoTime() - startTime)) > 0) {
+                try {
+                    Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+                } catch (InterruptedException ex) {
+                    if(stopped)
+                        return;
+                }
+            }
+
+            transferPending();
+            expireBucket(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled tasks into the bucket they belong in.
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while((timeout = pending.poll()) != null) {
+            if(timeout.isCancelled())
+                continue;
+
+            long ticks = timeout.getDeadline() / tickDuration;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+
+            // anything already overdue goes in the current bucket
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs every task in a bucket whose time has come, and counts down the
+     * rest by one turn of the wheel.
+     */
+    private void expireBucket(LinkedList<Timeout> bucket, long deadline) {
+        Iterator<Timeout> i = bucket.iterator();
+        while(i.hasNext()) {
+            Timeout timeout = i.next();
+
+            if(timeout.isCancelled()) {
+                i.remove();
+            } else if(timeout.remainingRounds <= 0 && timeout.getDeadline() <= deadline) {
+                i.remove();
+                dispatch(timeout);
+            } else if(timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * Hands an expired timeout to the worker threads, and puts repeating
+     * ones back on the wheel once they have finished running.
+     */
+    private void dispatch(final Timeout timeout) {
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    if(timeout.isCancelled())
+                        return;
+
+                    try {
+                        timeout.getTask().run();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+
+                    if(timeout.isRepeating() && !timeout.isCancelled() && !stopped) {
+                        timeout.advance();
+                        pending.add(timeout);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // we've been stopped while expiring this bucket
+        }
+    }
+}